@@ -0,0 +1,40 @@
+package de.ganskef.shortcircuit.proxy;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The URI of every forwarded request is rewritten to the origin form.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProxyUtilsBenchmark {
+
+    private String absolute = "http://www.example.com:8080/path/to/resource.html?query=value&other=1";
+
+    private String origin = "/path/to/resource.html?query=value&other=1";
+
+    @Benchmark
+    public String stripHostAbsolute() {
+        return ProxyUtils.stripHost(absolute);
+    }
+
+    @Benchmark
+    public String stripHostOrigin() {
+        return ProxyUtils.stripHost(origin);
+    }
+
+}
@@ -0,0 +1,61 @@
+package de.ganskef.shortcircuit.proxy;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.netty.handler.ssl.SslContext;
+
+/**
+ * A context is looked up for every intercepted tunnel, a cached one usually.
+ * A miss mints the certificate, measured with a new factory per call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SslContextFactoryBenchmark {
+
+    private SslContextFactory cached;
+
+    @State(Scope.Thread)
+    public static class Empty {
+
+        SslContextFactory factory;
+
+        @Setup(Level.Invocation)
+        public void setup() {
+            factory = new SslContextFactory();
+        }
+    }
+
+    @Setup
+    public void setup() throws GeneralSecurityException {
+        cached = new SslContextFactory(new AccessHistory());
+        cached.getSslContext("www.example.com");
+    }
+
+    @Benchmark
+    public SslContext cachedContext() throws GeneralSecurityException {
+        return cached.getSslContext("www.example.com");
+    }
+
+    @Benchmark
+    public SslContext mintedContext(Empty empty) throws GeneralSecurityException {
+        return empty.factory.getSslContext("www.example.com");
+    }
+
+}
@@ -0,0 +1,31 @@
+package de.ganskef.shortcircuit.proxy.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.CharsetUtil;
+
+/**
+ * Records responses into a cache without an upstream, for benchmarks of the
+ * other packages. The recording is package private.
+ */
+public final class ResponseCacheFixture {
+
+    private ResponseCacheFixture() {
+        // don't instantiate
+    }
+
+    /**
+     * Records the raw response, head and body, for a GET of the URI.
+     */
+    public static void record(ResponseCache cache, String uri, String response) {
+        CachedResponse recording = cache.record(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri));
+        ByteBuf buf = Unpooled.copiedBuffer(response, CharsetUtil.ISO_8859_1);
+        recording.append(buf);
+        buf.release();
+        recording.complete();
+    }
+
+}
@@ -0,0 +1,100 @@
+package de.ganskef.shortcircuit.proxy.examples;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DefaultSocketChannelConfig;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.SocketChannelConfig;
+
+/**
+ * An embedded channel passing for a socket, since the initializers of the
+ * servers are typed to socket channels.
+ */
+class EmbeddedSocketChannel extends EmbeddedChannel implements SocketChannel {
+
+    private static final InetSocketAddress LOCAL = new InetSocketAddress("127.0.0.1", 9090);
+
+    private static final InetSocketAddress REMOTE = new InetSocketAddress("127.0.0.1", 54321);
+
+    /** Created lazily, the initializer runs in the super constructor. */
+    private SocketChannelConfig config;
+
+    EmbeddedSocketChannel(ChannelHandler... handlers) {
+        super(handlers);
+    }
+
+    @Override
+    public ServerSocketChannel parent() {
+        return null;
+    }
+
+    @Override
+    public SocketChannelConfig config() {
+        if (config == null) {
+            config = new DefaultSocketChannelConfig(this, new Socket());
+        }
+        return config;
+    }
+
+    @Override
+    public InetSocketAddress localAddress() {
+        return LOCAL;
+    }
+
+    @Override
+    public InetSocketAddress remoteAddress() {
+        return REMOTE;
+    }
+
+    @Override
+    public boolean isInputShutdown() {
+        return !isActive();
+    }
+
+    @Override
+    public ChannelFuture shutdownInput() {
+        return close();
+    }
+
+    @Override
+    public ChannelFuture shutdownInput(ChannelPromise promise) {
+        return close(promise);
+    }
+
+    @Override
+    public boolean isOutputShutdown() {
+        return !isActive();
+    }
+
+    @Override
+    public ChannelFuture shutdownOutput() {
+        return close();
+    }
+
+    @Override
+    public ChannelFuture shutdownOutput(ChannelPromise promise) {
+        return close(promise);
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return !isActive();
+    }
+
+    @Override
+    public ChannelFuture shutdown() {
+        return close();
+    }
+
+    @Override
+    public ChannelFuture shutdown(ChannelPromise promise) {
+        return close(promise);
+    }
+
+}
@@ -0,0 +1,120 @@
+package de.ganskef.shortcircuit.proxy.examples;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.ganskef.shortcircuit.proxy.cache.CollapsedForwarding;
+import de.ganskef.shortcircuit.proxy.cache.ResponseCache;
+import de.ganskef.shortcircuit.proxy.cache.ResponseCacheFixture;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * A connection with a single request through the complete pipelines of the
+ * servers, without network, from the initializer to the response written:
+ * <ul>
+ * <li>the home page of the evaluation server, a canned response</li>
+ * <li>the metrics of the evaluation server, a response created per request</li>
+ * <li>a cached response of the proxy, served from a file</li>
+ * </ul>
+ * The connections aren't kept alive, so every invocation measures the setup
+ * of the pipeline too.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark {
+
+    private static final String CACHED_URI = "http://localhost:8080/cached.txt";
+
+    private static final String CACHED_RESPONSE = "HTTP/1.1 200 OK\r\n" //
+            + "Content-Type: text/plain\r\n" //
+            + "Cache-Control: max-age=86400\r\n" //
+            + "Content-Length: 10\r\n\r\n" //
+            + "0123456789";
+
+    private ChannelHandler evaluationInitializer;
+
+    private ChannelHandler proxyInitializer;
+
+    private File cacheDir;
+
+    @Setup
+    public void setup() throws Exception {
+        evaluationInitializer = new EvaluationServerInitializer(null, new String[0]);
+        cacheDir = File.createTempFile("benchmark", "");
+        cacheDir.delete();
+        cacheDir.mkdirs();
+        ResponseCache cache = new ResponseCache(cacheDir);
+        ResponseCacheFixture.record(cache, CACHED_URI, CACHED_RESPONSE);
+        proxyInitializer = new NettyProxyFrontendInitializer(new CollapsedForwarding(cache));
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (File each : cacheDir.listFiles()) {
+            each.delete();
+        }
+        cacheDir.delete();
+    }
+
+    private static ByteBuf request(String uri) {
+        return Unpooled.copiedBuffer("GET " + uri + " HTTP/1.1\r\nHost: localhost:8080\r\n"
+                + "Connection: close\r\n\r\n", CharsetUtil.US_ASCII);
+    }
+
+    /**
+     * Sends the request and returns the number of messages written.
+     */
+    private static int exchange(ChannelHandler initializer, String uri) {
+        EmbeddedChannel channel = new EmbeddedSocketChannel(initializer);
+        channel.writeInbound(request(uri));
+        channel.runPendingTasks();
+        int result = 0;
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            ReferenceCountUtil.release(msg);
+            result++;
+        }
+        channel.finishAndReleaseAll();
+        if (result == 0) {
+            throw new IllegalStateException("No response to " + uri);
+        }
+        return result;
+    }
+
+    @Benchmark
+    public int evaluationServerHome() {
+        return exchange(evaluationInitializer, "/");
+    }
+
+    @Benchmark
+    public int evaluationServerMetrics() {
+        return exchange(evaluationInitializer, "/metrics");
+    }
+
+    @Benchmark
+    public int proxyCachedResponse() {
+        return exchange(proxyInitializer, CACHED_URI);
+    }
+
+}
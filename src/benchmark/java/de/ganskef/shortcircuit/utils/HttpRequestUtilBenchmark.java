@@ -0,0 +1,50 @@
+package de.ganskef.shortcircuit.utils;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+
+/**
+ * The address of every forwarded request is parsed and resolved in the event
+ * loop. A literal address measures the parsing, the local host name the
+ * resolution cached by the JVM.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpRequestUtilBenchmark {
+
+    private HttpRequest literal = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET,
+            "http://127.0.0.1:8080/path/to/resource.html?query=value");
+
+    private HttpRequest named = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET,
+            "http://localhost:8080/path/to/resource.html?query=value");
+
+    @Benchmark
+    public InetSocketAddress literalAddress() {
+        return HttpRequestUtil.getInetSocketAddress(literal);
+    }
+
+    @Benchmark
+    public InetSocketAddress namedAddress() {
+        return HttpRequestUtil.getInetSocketAddress(named);
+    }
+
+}
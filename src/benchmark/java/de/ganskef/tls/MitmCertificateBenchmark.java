@@ -0,0 +1,72 @@
+package de.ganskef.tls;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Minting a certificate for an intercepted host is a key pair generation and
+ * a signature, measured apart. The key generation varies a lot, it's random.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MitmCertificateBenchmark {
+
+    private File keyStoreDir;
+
+    private MitmCertificate root;
+
+    private KeyPair keyPair;
+
+    @Setup
+    public void setup() throws GeneralSecurityException, IOException {
+        keyStoreDir = File.createTempFile("benchmark", "");
+        keyStoreDir.delete();
+        keyStoreDir.mkdirs();
+        root = new MitmCertificate.RootBuilder().keyStoreDir(keyStoreDir).build();
+        keyPair = MitmCertificate.generateKeyPair(1024);
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (File each : keyStoreDir.listFiles()) {
+            each.delete();
+        }
+        keyStoreDir.delete();
+    }
+
+    @Benchmark
+    public KeyPair generateKeyPair() throws GeneralSecurityException {
+        return MitmCertificate.generateKeyPair(1024);
+    }
+
+    @Benchmark
+    public MitmCertificate sign() throws GeneralSecurityException {
+        return new MitmCertificate.FakeBuilder().commonName("www.example.com").keyPair(keyPair).issuedBy(root)
+                .build();
+    }
+
+    @Benchmark
+    public MitmCertificate mint() throws GeneralSecurityException {
+        return new MitmCertificate.FakeBuilder().commonName("www.example.com").issuedBy(root).build();
+    }
+
+}
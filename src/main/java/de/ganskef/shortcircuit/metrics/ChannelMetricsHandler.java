@@ -0,0 +1,72 @@
+package de.ganskef.shortcircuit.metrics;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+
+/**
+ * Counts the connections and the bytes received and sent, placed first in
+ * the pipeline to see the bytes on the wire. It's shared by all channels.
+ */
+@Sharable
+public class ChannelMetricsHandler extends ChannelDuplexHandler {
+
+    private static final StripedCounter ACTIVE = Metrics.gauge("shortcircuit_connections_active",
+            "Connections currently open.");
+
+    private static final StripedCounter ACCEPTED = Metrics.counter("shortcircuit_connections_total",
+            "Connections opened.");
+
+    private static final StripedCounter BYTES_IN = Metrics.counter("shortcircuit_received_bytes_total",
+            "Bytes received from the clients.");
+
+    private static final StripedCounter BYTES_OUT = Metrics.counter("shortcircuit_sent_bytes_total",
+            "Bytes written to the clients.");
+
+    public static final ChannelMetricsHandler INSTANCE = new ChannelMetricsHandler();
+
+    private ChannelMetricsHandler() {
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        ACTIVE.increment();
+        ACCEPTED.increment();
+        FlightEvent.ACCEPT.instant(ctx.channel().remoteAddress(), 0);
+        ctx.fireChannelActive();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        ACTIVE.decrement();
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        BYTES_IN.add(size(msg));
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        BYTES_OUT.add(size(msg));
+        ctx.write(msg, promise);
+    }
+
+    private static long size(Object msg) {
+        if (msg instanceof ByteBuf) {
+            return ((ByteBuf) msg).readableBytes();
+        } else if (msg instanceof ByteBufHolder) {
+            return ((ByteBufHolder) msg).content().readableBytes();
+        } else if (msg instanceof FileRegion) {
+            return ((FileRegion) msg).count();
+        }
+        return 0;
+    }
+
+}
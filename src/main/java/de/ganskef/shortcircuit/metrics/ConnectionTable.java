@@ -0,0 +1,208 @@
+package de.ganskef.shortcircuit.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelId;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.util.AttributeKey;
+
+/**
+ * The registry of the open client and upstream channels, to see which
+ * connections hold the buffers if the direct memory grows. An entry is added
+ * and removed by a {@link ConnectionTableHandler} of the channel only. The
+ * bytes and the last activity are plain fields of the entry written by the
+ * event loop of the channel, so keeping it up to date doesn't need a lock.
+ * The pending outbound bytes, the attributes and the pipeline are read from
+ * the channel itself while taking a snapshot. The values changing meanwhile
+ * are copied once per entry before sorting, so the order stays consistent.
+ */
+public final class ConnectionTable {
+
+    private static final ConcurrentMap<ChannelId, Entry> entries = new ConcurrentHashMap<ChannelId, Entry>();
+
+    /**
+     * Sorts the largest pending outbound bytes first, since they are the
+     * buffers held in memory.
+     */
+    private static final Comparator<Row> BY_PENDING_BYTES = new Comparator<Row>() {
+        @Override
+        public int compare(Row o1, Row o2) {
+            if (o1.pendingOutboundBytes != o2.pendingOutboundBytes) {
+                return o1.pendingOutboundBytes > o2.pendingOutboundBytes ? -1 : 1;
+            }
+            long t1 = o1.bytesIn + o1.bytesOut;
+            long t2 = o2.bytesIn + o2.bytesOut;
+            return t1 > t2 ? -1 : t1 == t2 ? 0 : 1;
+        }
+    };
+
+    /**
+     * The values of an entry taken once for a snapshot.
+     */
+    private static final class Row {
+
+        final Entry entry;
+
+        final long bytesIn;
+
+        final long bytesOut;
+
+        final long pendingOutboundBytes;
+
+        Row(Entry entry) {
+            this.entry = entry;
+            this.bytesIn = entry.bytesIn;
+            this.bytesOut = entry.bytesOut;
+            this.pendingOutboundBytes = entry.pendingOutboundBytes();
+        }
+    }
+
+    /**
+     * The accounting of a channel, the counters are written by its event loop
+     * only and read by any thread.
+     */
+    public static final class Entry {
+
+        private final Channel channel;
+
+        private final String side;
+
+        private final long opened = System.currentTimeMillis();
+
+        private volatile long bytesIn;
+
+        private volatile long bytesOut;
+
+        private volatile long lastActivity = opened;
+
+        Entry(Channel channel, String side) {
+            this.channel = channel;
+            this.side = side;
+        }
+
+        void read(long bytes) {
+            // a single writer, the event loop
+            bytesIn += bytes;
+            lastActivity = System.currentTimeMillis();
+        }
+
+        void written(long bytes) {
+            bytesOut += bytes;
+            lastActivity = System.currentTimeMillis();
+        }
+
+        public Channel channel() {
+            return channel;
+        }
+
+        /** Returns client or upstream. */
+        public String side() {
+            return side;
+        }
+
+        public long bytesIn() {
+            return bytesIn;
+        }
+
+        public long bytesOut() {
+            return bytesOut;
+        }
+
+        /**
+         * Returns the bytes written but not flushed to the socket yet.
+         */
+        public long pendingOutboundBytes() {
+            ChannelOutboundBuffer buffer = channel.unsafe().outboundBuffer();
+            return buffer == null ? 0 : buffer.totalPendingWriteBytes();
+        }
+
+        public long ageMillis() {
+            return System.currentTimeMillis() - opened;
+        }
+
+        public long idleMillis() {
+            return System.currentTimeMillis() - lastActivity;
+        }
+    }
+
+    private ConnectionTable() {
+        // don't instantiate
+    }
+
+    static Entry open(Channel channel, String side) {
+        Entry result = new Entry(channel, side);
+        entries.put(channel.id(), result);
+        return result;
+    }
+
+    static void close(Entry entry) {
+        entries.remove(entry.channel.id(), entry);
+    }
+
+    public static int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the entries of the open channels, the largest pending outbound
+     * bytes first.
+     */
+    public static List<Entry> snapshot() {
+        List<Row> rows = rows();
+        List<Entry> result = new ArrayList<Entry>(rows.size());
+        for (Row each : rows) {
+            result.add(each.entry);
+        }
+        return result;
+    }
+
+    private static List<Row> rows() {
+        List<Row> result = new ArrayList<Row>(entries.size());
+        for (Entry each : entries.values()) {
+            result.add(new Row(each));
+        }
+        Collections.sort(result, BY_PENDING_BYTES);
+        return result;
+    }
+
+    /**
+     * Returns the open channels as a text table, one per line, with the value
+     * of the given attribute as the target, the address of a CONNECT request
+     * for example, and at most the given number of lines.
+     *
+     * @throws IllegalArgumentException
+     *             if the limit is negative
+     */
+    public static String dump(AttributeKey<String> targetKey, int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Negative limit " + limit);
+        }
+        List<Row> snapshot = rows();
+        StringBuilder result = new StringBuilder();
+        result.append("# ").append(snapshot.size()).append(" open\n");
+        result.append("id\tside\tremote\ttarget\tage_ms\tidle_ms\tbytes_in\tbytes_out\tpending_out\tpipeline\n");
+        for (Row row : snapshot.subList(0, Math.min(limit, snapshot.size()))) {
+            Entry each = row.entry;
+            Channel channel = each.channel;
+            String target = targetKey == null ? null : channel.attr(targetKey).get();
+            result.append(channel.id().asShortText()).append('\t');
+            result.append(each.side).append('\t');
+            result.append(channel.remoteAddress()).append('\t');
+            result.append(target == null ? "-" : target).append('\t');
+            result.append(each.ageMillis()).append('\t');
+            result.append(each.idleMillis()).append('\t');
+            result.append(row.bytesIn).append('\t');
+            result.append(row.bytesOut).append('\t');
+            result.append(row.pendingOutboundBytes).append('\t');
+            result.append(channel.pipeline().names()).append('\n');
+        }
+        return result.toString();
+    }
+
+}
@@ -0,0 +1,93 @@
+package de.ganskef.shortcircuit.metrics;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+
+/**
+ * Keeps the entry of its channel in the {@link ConnectionTable}, placed first
+ * in the pipeline to see the bytes on the wire. The bytes out are counted if
+ * written, the pending ones not flushed to the socket yet are part of it.
+ * It's added to client and upstream channels, a handler per channel.
+ */
+public class ConnectionTableHandler extends ChannelDuplexHandler {
+
+    public static final String CLIENT = "client";
+
+    public static final String UPSTREAM = "upstream";
+
+    private final String side;
+
+    private ConnectionTable.Entry entry;
+
+    public ConnectionTableHandler(String side) {
+        this.side = side;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        if (ctx.channel().isActive()) {
+            open(ctx);
+        }
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        open(ctx);
+        ctx.fireChannelActive();
+    }
+
+    private void open(ChannelHandlerContext ctx) {
+        if (entry == null) {
+            entry = ConnectionTable.open(ctx.channel(), side);
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        close();
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        close();
+    }
+
+    private void close() {
+        if (entry != null) {
+            ConnectionTable.close(entry);
+        }
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (entry != null) {
+            entry.read(size(msg));
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (entry != null) {
+            entry.written(size(msg));
+        }
+        ctx.write(msg, promise);
+    }
+
+    private static long size(Object msg) {
+        if (msg instanceof ByteBuf) {
+            return ((ByteBuf) msg).readableBytes();
+        } else if (msg instanceof ByteBufHolder) {
+            return ((ByteBufHolder) msg).content().readableBytes();
+        } else if (msg instanceof FileRegion) {
+            return ((FileRegion) msg).count();
+        }
+        return 0;
+    }
+
+}
@@ -0,0 +1,180 @@
+package de.ganskef.shortcircuit.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+/**
+ * Detects blocked event loops. A heartbeat task is posted to every event loop
+ * of the watched groups periodically. If it isn't run within the threshold,
+ * the stack of the event loop thread is captured while it's still stalled and
+ * reported as a warning, at most once per report interval and event loop.
+ * The delay of every late heartbeat is recorded in the histogram
+ * <code>shortcircuit_event_loop_stall_seconds</code>, so blocking regressions
+ * like file I/O, key generation or name resolution in a handler show up.
+ *
+ * It runs in a thread of its own with high priority, it mustn't depend on the
+ * watched event loops. The probes cost a task per event loop twice per
+ * threshold, so it's started on demand, with a threshold to choose.
+ */
+public class EventLoopWatchdog {
+
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(EventLoopWatchdog.class);
+
+    public static final long DEFAULT_THRESHOLD_MILLIS = 100;
+
+    public static final long DEFAULT_REPORT_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final LatencyHistogram STALLS = Metrics.histogram("shortcircuit_event_loop_stall_seconds",
+            "Delay of the heartbeats of the event loops exceeding the threshold.");
+
+    private static final StripedCounter REPORTS = Metrics.counter("shortcircuit_event_loop_stalls_total",
+            "Stalled event loops detected, reported or not.");
+
+    private final List<Probe> probes = new ArrayList<Probe>();
+
+    private final long thresholdNanos;
+
+    private final long reportIntervalNanos;
+
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * A heartbeat of an event loop, posted again if the previous one is run.
+     */
+    private final class Probe implements Runnable {
+
+        private final EventExecutor executor;
+
+        private volatile Thread thread;
+
+        /** Time the pending heartbeat was posted, zero if none is pending. */
+        private volatile long posted;
+
+        private boolean captured;
+
+        private long lastReport;
+
+        Probe(EventExecutor executor) {
+            this.executor = executor;
+        }
+
+        /**
+         * Looks up the thread of the event loop, if it's started, so a stall
+         * before the first heartbeat is reported too.
+         */
+        void findThread() {
+            if (thread != null) {
+                return;
+            }
+            for (Thread each : Thread.getAllStackTraces().keySet()) {
+                if (executor.inEventLoop(each)) {
+                    thread = each;
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            long delay = System.nanoTime() - posted;
+            if (delay > thresholdNanos) {
+                STALLS.record(delay);
+            }
+            posted = 0;
+        }
+
+        void check(long now) {
+            long pending = posted;
+            if (pending == 0) {
+                if (executor.isShuttingDown()) {
+                    return;
+                }
+                captured = false;
+                posted = now;
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    logger.debug("Event loop terminated {}", executor);
+                }
+            } else if (!captured && now - pending > thresholdNanos) {
+                captured = true;
+                REPORTS.increment();
+                findThread();
+                Thread stalled = thread;
+                if (stalled != null && (lastReport == 0 || now - lastReport > reportIntervalNanos)) {
+                    lastReport = now;
+                    report(stalled, now - pending);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a watchdog of the event loops of the given groups, usually the
+     * boss and the worker group, with the default threshold.
+     */
+    public EventLoopWatchdog(EventExecutorGroup... groups) {
+        this(DEFAULT_THRESHOLD_MILLIS, DEFAULT_REPORT_INTERVAL_MILLIS, groups);
+    }
+
+    public EventLoopWatchdog(long thresholdMillis, long reportIntervalMillis, EventExecutorGroup... groups) {
+        for (EventExecutorGroup group : groups) {
+            for (EventExecutor each : group) {
+                probes.add(new Probe(each));
+            }
+        }
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        this.reportIntervalNanos = TimeUnit.MILLISECONDS.toNanos(reportIntervalMillis);
+        this.scheduler = new ScheduledThreadPoolExecutor(1,
+                new DefaultThreadFactory("watchdog", true, Thread.MAX_PRIORITY));
+    }
+
+    /**
+     * Starts to post the heartbeats, twice per threshold.
+     */
+    public EventLoopWatchdog start() {
+        for (Probe each : probes) {
+            each.findThread();
+        }
+        long period = Math.max(1, thresholdNanos / 2);
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                long now = System.nanoTime();
+                for (Probe each : probes) {
+                    each.check(now);
+                }
+            }
+        }, period, period, TimeUnit.NANOSECONDS);
+        return this;
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Logs the stack of the stalled thread, overridden to report otherwise.
+     */
+    protected void report(Thread thread, long stalledNanos) {
+        StringBuilder message = new StringBuilder();
+        message.append("Event loop ").append(thread.getName()).append(" stalled for ")
+                .append(TimeUnit.NANOSECONDS.toMillis(stalledNanos)).append(" ms");
+        for (StackTraceElement each : thread.getStackTrace()) {
+            message.append("\n\tat ").append(each);
+        }
+        logger.warn(message.toString());
+    }
+
+}
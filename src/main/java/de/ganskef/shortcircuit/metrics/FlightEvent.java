@@ -0,0 +1,235 @@
+package de.ganskef.shortcircuit.metrics;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+/**
+ * A type of Java Flight Recorder events of the lifecycle of proxied
+ * connections, in the category Short Circuit Proxy of a recording. Every event
+ * carries the host and a number of bytes, the duration and the thread, usually
+ * the event loop, are taken by the recorder:
+ *
+ * <pre>
+ * java -XX:StartFlightRecording=filename=proxy.jfr ...
+ * </pre>
+ *
+ * The project is compiled for Java 7, so the types are created at runtime with
+ * the jdk.jfr.EventFactory of Java 11 and later, by method handles. Without it
+ * the events are ignored. If the recorder isn't started or the type is
+ * disabled, {@link #begin()} returns null without creating an event.
+ */
+public final class FlightEvent {
+
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(FlightEvent.class);
+
+    private static final String CATEGORY = "Short Circuit Proxy";
+
+    private static final int HOST = 0;
+
+    private static final int BYTES = 1;
+
+    /*
+     * The handles are null without the recorder, assigned once so the JIT
+     * treats them as constants.
+     */
+    private static final MethodHandle newEvent;
+
+    private static final MethodHandle getEventType;
+
+    private static final MethodHandle isEnabled;
+
+    private static final MethodHandle beginEvent;
+
+    private static final MethodHandle endEvent;
+
+    private static final MethodHandle shouldCommit;
+
+    private static final MethodHandle set;
+
+    private static final MethodHandle commitEvent;
+
+    private static final MethodHandle newAnnotationElement;
+
+    private static final MethodHandle newValueDescriptor;
+
+    private static final MethodHandle createFactory;
+
+    private static final boolean available;
+
+    static {
+        MethodHandle[] handles = new MethodHandle[11];
+        boolean found = false;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+            Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            Class<?> eventTypeClass = Class.forName("jdk.jfr.EventType");
+            Class<?> valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+            Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+            handles[0] = lookup.findVirtual(factoryClass, "newEvent", MethodType.methodType(eventClass));
+            handles[1] = lookup.findVirtual(factoryClass, "getEventType", MethodType.methodType(eventTypeClass));
+            handles[2] = lookup.findVirtual(eventTypeClass, "isEnabled", MethodType.methodType(boolean.class));
+            handles[3] = lookup.findVirtual(eventClass, "begin", MethodType.methodType(void.class));
+            handles[4] = lookup.findVirtual(eventClass, "end", MethodType.methodType(void.class));
+            handles[5] = lookup.findVirtual(eventClass, "shouldCommit", MethodType.methodType(boolean.class));
+            handles[6] = lookup.findVirtual(eventClass, "set",
+                    MethodType.methodType(void.class, int.class, Object.class));
+            handles[7] = lookup.findVirtual(eventClass, "commit", MethodType.methodType(void.class));
+            handles[8] = lookup.findConstructor(annotationElementClass,
+                    MethodType.methodType(void.class, Class.class, Object.class));
+            handles[9] = lookup.findConstructor(valueDescriptorClass,
+                    MethodType.methodType(void.class, Class.class, String.class, List.class));
+            handles[10] = lookup.findStatic(factoryClass, "create",
+                    MethodType.methodType(factoryClass, List.class, List.class));
+            found = true;
+        } catch (ClassNotFoundException e) {
+            logger.debug("Flight Recorder events not supported by this JVM");
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.debug("Flight Recorder events not available:", e);
+        }
+        if (!found) {
+            // none of a partial lookup is used
+            Arrays.fill(handles, null);
+        }
+        newEvent = handles[0];
+        getEventType = handles[1];
+        isEnabled = handles[2];
+        beginEvent = handles[3];
+        endEvent = handles[4];
+        shouldCommit = handles[5];
+        set = handles[6];
+        commitEvent = handles[7];
+        newAnnotationElement = handles[8];
+        newValueDescriptor = handles[9];
+        createFactory = handles[10];
+        available = found;
+    }
+
+    public static final FlightEvent ACCEPT = new FlightEvent("Accept", "Connection Accepted",
+            "A client connection is accepted.");
+
+    public static final FlightEvent CONNECT = new FlightEvent("Connect", "CONNECT Handled",
+            "A CONNECT request is answered to intercept the tunnel.");
+
+    public static final FlightEvent TLS_SNIFF = new FlightEvent("TlsSniff", "TLS Sniffed",
+            "The first bytes of an intercepted tunnel are checked for TLS and the context is chosen.");
+
+    public static final FlightEvent TLS_HANDSHAKE = new FlightEvent("TlsHandshake", "TLS Handshake",
+            "The TLS handshake with a client, successful or not.");
+
+    public static final FlightEvent CERTIFICATE_MINT = new FlightEvent("CertificateMint", "Certificate Minted",
+            "A certificate and its context are created for an intercepted host.");
+
+    public static final FlightEvent UPSTREAM_CONNECT = new FlightEvent("UpstreamConnect", "Upstream Connect",
+            "A connection to the origin or a parent proxy is established, successful or not.");
+
+    public static final FlightEvent REQUEST = new FlightEvent("Request", "Request Forwarded",
+            "A request is received and its head is written upstream.");
+
+    public static final FlightEvent RESPONSE = new FlightEvent("Response", "Response Relayed",
+            "A response is relayed from the first byte received to its completion.");
+
+    public static final FlightEvent TUNNEL = new FlightEvent("Tunnel", "Tunnel Closed",
+            "A raw relayed connection, an upgraded or a SOCKS one, is closed.");
+
+    /** The jdk.jfr.EventFactory, null if not available. */
+    private final Object factory;
+
+    /** The jdk.jfr.EventType to ask whether it's recorded. */
+    private final Object type;
+
+    private FlightEvent(String name, String label, String description) {
+        Object createdFactory = null;
+        Object createdType = null;
+        if (available) {
+            try {
+                List<Object> annotations = Arrays.asList( //
+                        annotation("jdk.jfr.Name", "de.ganskef.shortcircuit." + name), //
+                        annotation("jdk.jfr.Label", label), //
+                        annotation("jdk.jfr.Description", description), //
+                        annotation("jdk.jfr.Category", new String[] { CATEGORY }), //
+                        // a stack trace per event is much too expensive
+                        annotation("jdk.jfr.StackTrace", Boolean.FALSE));
+                List<Object> fields = new ArrayList<Object>();
+                fields.add(field(String.class, "host", "Host"));
+                fields.add(field(long.class, "bytes", "Bytes"));
+                createdFactory = createFactory.invoke(annotations, fields);
+                createdType = getEventType.invoke(createdFactory);
+            } catch (Throwable e) {
+                logger.debug("Flight Recorder event not created:", e);
+                createdFactory = null;
+            }
+        }
+        this.factory = createdFactory;
+        this.type = createdType;
+    }
+
+    private static Object annotation(String className, Object value) throws Throwable {
+        Class<? extends Annotation> annotationClass = Class.forName(className).asSubclass(Annotation.class);
+        return newAnnotationElement.invoke(annotationClass, value);
+    }
+
+    private static Object field(Class<?> fieldClass, String name, String label) throws Throwable {
+        List<Object> annotations = new ArrayList<Object>();
+        annotations.add(annotation("jdk.jfr.Label", label));
+        return newValueDescriptor.invoke(fieldClass, name, annotations);
+    }
+
+    /**
+     * Returns a started event, null if the type isn't recorded now. It's
+     * committed with {@link #commit(Object, Object, long)} of the same type.
+     */
+    public Object begin() {
+        if (factory == null) {
+            return null;
+        }
+        try {
+            if (!(boolean) isEnabled.invoke(type)) {
+                return null;
+            }
+            Object result = newEvent.invoke(factory);
+            beginEvent.invoke(result);
+            return result;
+        } catch (Throwable e) {
+            logger.debug("Flight Recorder event not started:", e);
+            return null;
+        }
+    }
+
+    /**
+     * Ends and commits a started event, ignored if it's null. The host is
+     * converted to a string only if the event is committed, an address of a
+     * channel for example.
+     */
+    public void commit(Object event, Object host, long bytes) {
+        if (event == null) {
+            return;
+        }
+        try {
+            endEvent.invoke(event);
+            if ((boolean) shouldCommit.invoke(event)) {
+                set.invoke(event, HOST, (Object) (host == null ? null : host.toString()));
+                set.invoke(event, BYTES, (Object) Long.valueOf(bytes));
+                commitEvent.invoke(event);
+            }
+        } catch (Throwable e) {
+            logger.debug("Flight Recorder event not committed:", e);
+        }
+    }
+
+    /**
+     * Commits an event without a duration.
+     */
+    public void instant(Object host, long bytes) {
+        commit(begin(), host, bytes);
+    }
+
+}
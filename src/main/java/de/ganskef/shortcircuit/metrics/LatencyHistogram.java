@@ -0,0 +1,123 @@
+package de.ganskef.shortcircuit.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations in nanoseconds, with log-linear buckets
+ * like the HdrHistogram. Every power of two is divided into
+ * {@link #SUB_BUCKETS} linear buckets, so a value is found with an error
+ * below 12.5 percent from a nanosecond to the longest duration, in a fixed
+ * array of counters.
+ *
+ * Recording computes the bucket with a few bit operations and adds one to
+ * its counter. The counters are striped per thread like the
+ * {@link StripedCounter}, so the event loops don't contend. The quantiles are
+ * estimated on the fly from a snapshot summing up the stripes, which isn't
+ * atomic, but sufficient for monitoring.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+
+    /** Linear buckets per power of two. */
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    /** Longs from one stripe to the next, padded against false sharing. */
+    private static final int STRIDE = BUCKETS + StripedCounter.PADDING;
+
+    private final AtomicLongArray counts;
+
+    private final int mask;
+
+    private final StripedCounter sum = new StripedCounter();
+
+    public LatencyHistogram() {
+        int stripes = StripedCounter.stripes();
+        this.counts = new AtomicLongArray(stripes * STRIDE);
+        this.mask = stripes - 1;
+    }
+
+    /**
+     * Records a duration, a negative one as zero.
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(StripedCounter.stripe(mask) * STRIDE + index(value));
+        sum.add(value);
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Returns the highest value of the bucket with the given index.
+     */
+    static long highestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+        return lowest + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    public long count() {
+        long result = 0;
+        for (long each : snapshot()) {
+            result += each;
+        }
+        return result;
+    }
+
+    private long[] snapshot() {
+        long[] result = new long[BUCKETS];
+        for (int offset = 0; offset < counts.length(); offset += STRIDE) {
+            for (int i = 0; i < BUCKETS; i++) {
+                result[i] += counts.get(offset + i);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the sum of the recorded durations in nanoseconds.
+     */
+    public long sum() {
+        return sum.sum();
+    }
+
+    /**
+     * Returns the estimated durations in nanoseconds for the given quantiles
+     * in ascending order, zero if nothing is recorded.
+     */
+    public long[] quantiles(double... quantiles) {
+        long[] snapshot = snapshot();
+        long total = 0;
+        for (long each : snapshot) {
+            total += each;
+        }
+        long[] result = new long[quantiles.length];
+        if (total == 0) {
+            return result;
+        }
+        int index = 0;
+        long seen = snapshot[0];
+        for (int q = 0; q < quantiles.length; q++) {
+            long rank = Math.max(1, (long) Math.ceil(quantiles[q] * total));
+            while (seen < rank && index < BUCKETS - 1) {
+                seen += snapshot[++index];
+            }
+            result[q] = highestValue(index);
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,120 @@
+package de.ganskef.shortcircuit.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The registry of the metrics shared by all handlers, written in the text
+ * format of Prometheus. A metric is registered once by its series name, with
+ * labels if needed like <code>name{label="value"}</code>, and kept by the
+ * handler in a static field, so recording doesn't need a lookup.
+ *
+ * Durations are recorded in nanoseconds and exposed as summaries in seconds,
+ * with some quantiles estimated from the {@link LatencyHistogram}.
+ */
+public final class Metrics {
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private static final ConcurrentMap<String, Metric> registry = new ConcurrentSkipListMap<String, Metric>();
+
+    private static final class Metric {
+
+        private final String type;
+
+        private final String help;
+
+        private final Object value;
+
+        Metric(String type, String help, Object value) {
+            this.type = type;
+            this.help = help;
+            this.value = value;
+        }
+    }
+
+    private Metrics() {
+        // don't instantiate
+    }
+
+    /**
+     * Returns the counter with the given name, registers it if needed.
+     */
+    public static StripedCounter counter(String name, String help) {
+        return (StripedCounter) register(name, "counter", help, new StripedCounter());
+    }
+
+    /**
+     * Returns a counter going up and down with the given name, registers it
+     * if needed.
+     */
+    public static StripedCounter gauge(String name, String help) {
+        return (StripedCounter) register(name, "gauge", help, new StripedCounter());
+    }
+
+    /**
+     * Returns the histogram of durations with the given name, registers it if
+     * needed.
+     */
+    public static LatencyHistogram histogram(String name, String help) {
+        return (LatencyHistogram) register(name, "summary", help, new LatencyHistogram());
+    }
+
+    private static Object register(String name, String type, String help, Object value) {
+        Metric metric = new Metric(type, help, value);
+        Metric previous = registry.putIfAbsent(name, metric);
+        if (previous == null) {
+            return value;
+        }
+        if (!previous.type.equals(type)) {
+            throw new IllegalArgumentException("Registered as " + previous.type + " already: " + name);
+        }
+        return previous.value;
+    }
+
+    /**
+     * Returns all metrics in the text format of Prometheus 0.0.4.
+     */
+    public static String scrape() {
+        StringBuilder result = new StringBuilder();
+        String family = null;
+        for (Map.Entry<String, Metric> each : registry.entrySet()) {
+            String name = each.getKey();
+            Metric metric = each.getValue();
+            int labelStart = name.indexOf('{');
+            String familyName = labelStart == -1 ? name : name.substring(0, labelStart);
+            String labels = labelStart == -1 ? "" : name.substring(labelStart + 1, name.length() - 1);
+            if (!familyName.equals(family)) {
+                family = familyName;
+                result.append("# HELP ").append(family).append(' ').append(metric.help).append('\n');
+                result.append("# TYPE ").append(family).append(' ').append(metric.type).append('\n');
+            }
+            if (metric.value instanceof StripedCounter) {
+                result.append(name).append(' ').append(((StripedCounter) metric.value).sum()).append('\n');
+            } else {
+                appendSummary(result, familyName, labels, (LatencyHistogram) metric.value);
+            }
+        }
+        return result.toString();
+    }
+
+    private static void appendSummary(StringBuilder result, String family, String labels,
+            LatencyHistogram histogram) {
+        String separator = labels.isEmpty() ? "" : ",";
+        long[] values = histogram.quantiles(QUANTILES);
+        for (int i = 0; i < QUANTILES.length; i++) {
+            result.append(family).append('{').append(labels).append(separator).append("quantile=\"")
+                    .append(QUANTILES[i]).append("\"} ").append(seconds(values[i])).append('\n');
+        }
+        String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+        result.append(family).append("_sum").append(suffix).append(' ').append(seconds(histogram.sum()))
+                .append('\n');
+        result.append(family).append("_count").append(suffix).append(' ').append(histogram.count()).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+}
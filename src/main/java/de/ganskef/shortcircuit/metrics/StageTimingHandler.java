@@ -0,0 +1,34 @@
+package de.ganskef.shortcircuit.metrics;
+
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+/**
+ * Records the time spent in the handlers behind this one for every message
+ * read, as series of the summary <code>shortcircuit_stage_seconds</code>
+ * labeled with the name of the stage. It's inclusive, the time of a stage
+ * contains the time of the following stages, so a stage itself costs the
+ * difference to the next one. It's shared by all channels.
+ */
+@Sharable
+public class StageTimingHandler extends ChannelInboundHandlerAdapter {
+
+    private final LatencyHistogram histogram;
+
+    public StageTimingHandler(String stage) {
+        this.histogram = Metrics.histogram("shortcircuit_stage_seconds{stage=\"" + stage + "\"}",
+                "Time to handle a message read, from the stage to the end of the pipeline.");
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        long start = System.nanoTime();
+        try {
+            ctx.fireChannelRead(msg);
+        } finally {
+            histogram.record(System.nanoTime() - start);
+        }
+    }
+
+}
@@ -0,0 +1,64 @@
+package de.ganskef.shortcircuit.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter spread over cells per thread, so the event loops don't contend
+ * for the same cache line. Adding is a single uncontended atomic operation,
+ * reading sums up the cells and is only as exact as the moment allows.
+ */
+public final class StripedCounter {
+
+    /** Longs between two cells, 128 bytes against false sharing. */
+    static final int PADDING = 16;
+
+    private final AtomicLongArray cells;
+
+    private final int mask;
+
+    public StripedCounter() {
+        int stripes = stripes();
+        this.cells = new AtomicLongArray(stripes * PADDING);
+        this.mask = stripes - 1;
+    }
+
+    /**
+     * Returns the count of stripes, a power of two of at least twice the
+     * processors.
+     */
+    static int stripes() {
+        return Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) << 1;
+    }
+
+    /**
+     * Returns the stripe of the current thread for the given mask.
+     */
+    static int stripe(int mask) {
+        return (int) Thread.currentThread().getId() & mask;
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public void decrement() {
+        add(-1);
+    }
+
+    public void add(long value) {
+        cells.getAndAdd(index(), value);
+    }
+
+    private int index() {
+        return stripe(mask) * PADDING;
+    }
+
+    public long sum() {
+        long result = 0;
+        for (int i = 0; i < cells.length(); i += PADDING) {
+            result += cells.get(i);
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,213 @@
+package de.ganskef.shortcircuit.proxy;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.util.CharsetUtil;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+/**
+ * Counts the requested URLs and the host names of the faked certificates, to
+ * warm up the caches after a restart with the most frequent of them. See
+ * {@link CacheWarmer}.
+ *
+ * The history is written as a compact text file with a line per entry, the
+ * kind, the count and the name separated by blanks:
+ *
+ * <pre>
+ * host 42 www.example.com
+ * url 17 http://www.example.com/logo.png
+ * </pre>
+ *
+ * Only the top entries are kept. If there are too many, the less frequent
+ * half is dropped, so a long tail of rare URLs doesn't consume the memory.
+ */
+public class AccessHistory {
+
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(AccessHistory.class);
+
+    public static final int DEFAULT_TOP_COUNT = 1000;
+
+    private static final String URL = "url";
+
+    private static final String HOST = "host";
+
+    private final int topCount;
+
+    private final Map<String, Long> urls = new HashMap<String, Long>();
+
+    private final Map<String, Long> hosts = new HashMap<String, Long>();
+
+    public AccessHistory() {
+        this(DEFAULT_TOP_COUNT);
+    }
+
+    public AccessHistory(int topCount) {
+        this.topCount = topCount;
+    }
+
+    /**
+     * Counts a request of a cacheable URL.
+     */
+    public synchronized void recordUrl(String url) {
+        increment(urls, url, 1);
+    }
+
+    /**
+     * Counts a host name a certificate is faked for.
+     */
+    public synchronized void recordHost(String host) {
+        increment(hosts, host, 1);
+    }
+
+    private void increment(Map<String, Long> counts, String key, long count) {
+        Long previous = counts.get(key);
+        counts.put(key, previous == null ? count : previous + count);
+        if (counts.size() > 4 * topCount) {
+            List<Map.Entry<String, Long>> sorted = sorted(counts);
+            for (Map.Entry<String, Long> each : sorted.subList(2 * topCount, sorted.size())) {
+                counts.remove(each.getKey());
+            }
+        }
+    }
+
+    /**
+     * Returns the most frequent URLs, the most frequent first.
+     */
+    public synchronized List<String> topUrls() {
+        return top(urls);
+    }
+
+    /**
+     * Returns the most frequent host names, the most frequent first.
+     */
+    public synchronized List<String> topHosts() {
+        return top(hosts);
+    }
+
+    private List<String> top(Map<String, Long> counts) {
+        List<String> result = new ArrayList<String>();
+        for (Map.Entry<String, Long> each : sorted(counts)) {
+            if (result.size() == topCount) {
+                break;
+            }
+            result.add(each.getKey());
+        }
+        return result;
+    }
+
+    private static List<Map.Entry<String, Long>> sorted(Map<String, Long> counts) {
+        List<Map.Entry<String, Long>> result = new ArrayList<Map.Entry<String, Long>>(counts.size());
+        for (Map.Entry<String, Long> each : counts.entrySet()) {
+            result.add(new AbstractMap.SimpleImmutableEntry<String, Long>(each));
+        }
+        Collections.sort(result, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> o1, Map.Entry<String, Long> o2) {
+                return o2.getValue().compareTo(o1.getValue());
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Reads a history file written before, ignores malformed lines. Returns
+     * the history, which is empty if the file doesn't exist.
+     */
+    public AccessHistory read(File file) throws IOException {
+        if (!file.isFile()) {
+            return this;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), CharsetUtil.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] tokens = line.trim().split(" ", 3);
+                if (tokens.length == 3) {
+                    try {
+                        long count = Long.parseLong(tokens[1]);
+                        synchronized (this) {
+                            if (URL.equals(tokens[0])) {
+                                increment(urls, tokens[2], count);
+                            } else if (HOST.equals(tokens[0])) {
+                                increment(hosts, tokens[2], count);
+                            }
+                        }
+                    } catch (NumberFormatException e) {
+                        logger.debug("Ignore malformed history line {}", line);
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return this;
+    }
+
+    /**
+     * Writes the top entries to the file. It's replaced with a renamed
+     * temporary file, so a crash while writing keeps the previous history.
+     */
+    public void write(File file) throws IOException {
+        List<Map.Entry<String, Long>> topHosts;
+        List<Map.Entry<String, Long>> topUrls;
+        synchronized (this) {
+            topHosts = sorted(hosts);
+            topUrls = sorted(urls);
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(temp), CharsetUtil.UTF_8);
+        try {
+            write(writer, HOST, topHosts);
+            write(writer, URL, topUrls);
+        } finally {
+            writer.close();
+        }
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            throw new IOException("Rename to " + file + " failed");
+        }
+    }
+
+    private void write(Writer writer, String kind, List<Map.Entry<String, Long>> sorted) throws IOException {
+        for (Map.Entry<String, Long> each : sorted.subList(0, Math.min(topCount, sorted.size()))) {
+            writer.write(kind + " " + each.getValue() + " " + each.getKey() + "\n");
+        }
+    }
+
+    /**
+     * Writes the history periodically into the file with the given executor.
+     * Writing blocks, so it shouldn't be an event loop serving clients, see
+     * {@link CacheWarmer#scheduleWrites(File, long, TimeUnit)}.
+     */
+    public ScheduledFuture<?> scheduleWrites(ScheduledExecutorService executor, final File file, long period,
+            TimeUnit unit) {
+        return executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(file);
+                } catch (IOException e) {
+                    logger.warn("Writing history {} failed:", file, e);
+                }
+            }
+        }, period, period, unit);
+    }
+
+}
@@ -0,0 +1,342 @@
+package de.ganskef.shortcircuit.proxy;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import de.ganskef.shortcircuit.metrics.Metrics;
+import de.ganskef.shortcircuit.metrics.StripedCounter;
+import io.netty.util.concurrent.FastThreadLocal;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+/**
+ * Writes an access log in the Common Log Format, followed by the duration in
+ * microseconds, without blocking the event loops:
+ *
+ * <pre>
+ * 127.0.0.1 - - [19/Oct/2026:10:00:00 +0000] "GET http://host/ HTTP/1.1" 200 1234 567
+ * </pre>
+ *
+ * A line is encoded by the caller directly into a slot of a ring buffer with
+ * preallocated bytes, claimed lock-free with a compare and set and published
+ * by a sequence per slot. A single background thread drains the published
+ * lines in order, in batches through a direct buffer into a FileChannel, and
+ * rotates the file if it exceeds the maximum size, keeping some old ones with
+ * the suffixes .1, .2 and so on. While idle, it backs off up to
+ * {@link #MAX_IDLE_NANOS} and is woken by the next line.
+ *
+ * If the buffer is full, the line is dropped and counted by default. Waiting
+ * for a free slot instead is meant for tools replaying traffic, never for an
+ * event loop. With a sampling greater than one only every nth request is
+ * logged, decided by chance.
+ */
+public class AccessLog implements Closeable {
+
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(AccessLog.class);
+
+    /** Lines buffered until dropped, rounded up to a power of two. */
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    /** Longest line, a longer URI is truncated. */
+    public static final int MAX_LINE_LENGTH = 512;
+
+    public static final long DEFAULT_MAX_FILE_BYTES = 64L * 1024 * 1024;
+
+    public static final int DEFAULT_KEPT_FILES = 5;
+
+    private static final int BATCH_BYTES = 64 * 1024;
+
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /** Longest sleep of the idle writer, if a wake up is missed. */
+    static final long MAX_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final StripedCounter DROPPED = Metrics.counter("shortcircuit_access_log_dropped_total",
+            "Lines of the access log dropped since the buffer was full.");
+
+    /** The date of the current second per thread, formatted once. */
+    private static final FastThreadLocal<CachedDate> dates = new FastThreadLocal<CachedDate>() {
+        @Override
+        protected CachedDate initialValue() {
+            return new CachedDate();
+        }
+    };
+
+    private static final class CachedDate {
+
+        private final SimpleDateFormat format = new SimpleDateFormat("dd/MMM/yyyy:HH:mm:ss Z", Locale.ENGLISH);
+
+        private long second = -1;
+
+        private String formatted;
+
+        CachedDate() {
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        }
+
+        String format(long millis) {
+            long current = millis / 1000;
+            if (current != second) {
+                second = current;
+                formatted = format.format(new Date(current * 1000));
+            }
+            return formatted;
+        }
+    }
+
+    private final File file;
+
+    private final long maxFileBytes;
+
+    private final int keptFiles;
+
+    private final int sampling;
+
+    private final boolean dropOnOverflow;
+
+    private final int capacity;
+
+    private final int mask;
+
+    private final byte[] lines;
+
+    private final int[] lengths;
+
+    /** Sequence plus one of the line in a slot if it's published. */
+    private final AtomicLongArray published;
+
+    private final AtomicLong claimed = new AtomicLong();
+
+    private volatile long consumed;
+
+    private volatile boolean closed;
+
+    /** True while the writer sleeps longer than a moment. */
+    private volatile boolean sleeping;
+
+    private final Thread writer;
+
+    private FileChannel channel;
+
+    /**
+     * Creates a log writing every request into the given file, dropping lines
+     * if the file system doesn't keep up.
+     */
+    public AccessLog(File file) throws IOException {
+        this(file, DEFAULT_CAPACITY, DEFAULT_MAX_FILE_BYTES, DEFAULT_KEPT_FILES, 1, true);
+    }
+
+    public AccessLog(File file, int capacity, long maxFileBytes, int keptFiles, int sampling,
+            boolean dropOnOverflow) throws IOException {
+        this.file = file;
+        this.maxFileBytes = maxFileBytes;
+        this.keptFiles = keptFiles;
+        this.sampling = sampling;
+        this.dropOnOverflow = dropOnOverflow;
+        this.capacity = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.mask = this.capacity - 1;
+        this.lines = new byte[this.capacity * MAX_LINE_LENGTH];
+        this.lengths = new int[this.capacity];
+        this.published = new AtomicLongArray(this.capacity);
+        this.channel = open();
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "access-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private FileChannel open() throws IOException {
+        FileChannel result = new RandomAccessFile(file, "rw").getChannel();
+        result.position(result.size());
+        return result;
+    }
+
+    /**
+     * Returns true if a request should be logged, to be asked once before
+     * collecting its data.
+     */
+    public boolean isSampled() {
+        return sampling <= 1 || ThreadLocalRandom.current().nextInt(sampling) == 0;
+    }
+
+    /**
+     * Appends a line for a request, returns false if it's dropped.
+     */
+    public boolean log(String client, String method, String uri, String protocol, int status, long bytes,
+            long micros) {
+        long sequence = claim();
+        if (sequence == -1) {
+            DROPPED.increment();
+            return false;
+        }
+        int slot = (int) (sequence & mask);
+        int start = slot * MAX_LINE_LENGTH;
+        // one byte is left for the line feed
+        int end = start + MAX_LINE_LENGTH - 1;
+        int i = start;
+        i = append(client, i, end);
+        i = append(" - - [", i, end);
+        i = append(dates.get().format(System.currentTimeMillis()), i, end);
+        i = append("] \"", i, end);
+        i = append(method, i, end);
+        i = append(" ", i, end);
+        // the URI is truncated, the fields behind are kept
+        i = append(uri, i, end - 64);
+        i = append(" ", i, end);
+        i = append(protocol, i, end);
+        i = append("\" ", i, end);
+        i = append(status, i, end);
+        i = append(" ", i, end);
+        i = append(bytes, i, end);
+        i = append(" ", i, end);
+        i = append(micros, i, end);
+        lines[i++] = '\n';
+        lengths[slot] = i - start;
+        published.lazySet(slot, sequence + 1);
+        if (sleeping) {
+            LockSupport.unpark(writer);
+        }
+        return true;
+    }
+
+    private long claim() {
+        while (!closed) {
+            long sequence = claimed.get();
+            if (sequence - consumed >= capacity) {
+                if (dropOnOverflow) {
+                    return -1;
+                }
+                LockSupport.parkNanos(IDLE_NANOS);
+            } else if (claimed.compareAndSet(sequence, sequence + 1)) {
+                return sequence;
+            }
+        }
+        return -1;
+    }
+
+    private int append(CharSequence value, int index, int end) {
+        String text = value == null ? "-" : value.toString();
+        int length = Math.min(text.length(), end - index);
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            // neither a line feed nor a non ASCII character gets in
+            lines[index++] = c < ' ' || c > '~' ? (byte) '?' : (byte) c;
+        }
+        return index;
+    }
+
+    private int append(long value, int index, int end) {
+        if (value < 0) {
+            return append("-", index, end);
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        if (index + digits > end) {
+            return index;
+        }
+        for (int i = index + digits - 1; i >= index; i--) {
+            lines[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return index + digits;
+    }
+
+    private void drain() {
+        ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_BYTES);
+        long idleNanos = IDLE_NANOS;
+        while (true) {
+            boolean stopping = closed;
+            long next = consumed;
+            while (published.get((int) (next & mask)) == next + 1) {
+                int slot = (int) (next & mask);
+                if (batch.remaining() < lengths[slot]) {
+                    write(batch);
+                }
+                batch.put(lines, slot * MAX_LINE_LENGTH, lengths[slot]);
+                next++;
+                // the slot is free as soon as it's copied
+                consumed = next;
+            }
+            if (batch.position() > 0) {
+                write(batch);
+                idleNanos = IDLE_NANOS;
+            } else if (stopping) {
+                return;
+            } else {
+                // a line published in between is seen, or it wakes us up
+                sleeping = idleNanos > IDLE_NANOS;
+                if (published.get((int) (next & mask)) != next + 1 && !closed) {
+                    LockSupport.parkNanos(this, idleNanos);
+                }
+                sleeping = false;
+                idleNanos = Math.min(idleNanos * 2, MAX_IDLE_NANOS);
+            }
+        }
+    }
+
+    private void write(ByteBuffer batch) {
+        ((Buffer) batch).flip();
+        try {
+            if (channel.position() + batch.remaining() > maxFileBytes && channel.position() > 0) {
+                rotate();
+            }
+            while (batch.hasRemaining()) {
+                channel.write(batch);
+            }
+        } catch (IOException e) {
+            logger.warn("Access log not written:", e);
+        }
+        ((Buffer) batch).clear();
+    }
+
+    private void rotate() throws IOException {
+        channel.close();
+        File oldest = new File(file.getPath() + (keptFiles == 0 ? "" : "." + keptFiles));
+        if (oldest.exists() && !oldest.delete()) {
+            logger.warn("Access log not deleted: {}", oldest);
+        }
+        for (int i = keptFiles - 1; i >= 0; i--) {
+            File older = new File(file.getPath() + (i == 0 ? "" : "." + i));
+            if (older.exists() && !older.renameTo(new File(file.getPath() + "." + (i + 1)))) {
+                logger.warn("Access log not rotated: {}", older);
+            }
+        }
+        channel = open();
+    }
+
+    /**
+     * Writes the published lines and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+}
@@ -0,0 +1,131 @@
+package de.ganskef.shortcircuit.proxy;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+
+/**
+ * The stage of the client pipeline writing a line per request into the
+ * {@link AccessLog}, placed behind the HttpRequestDecoder. It takes the
+ * request line of a decoded request, the status of the first response
+ * written, as object or as raw bytes, and counts the bytes written. The line
+ * is written if the response is complete, on the next request, an Upgrade or
+ * the end of the connection.
+ */
+public class AccessLogHandler extends ChannelDuplexHandler {
+
+    private final AccessLog log;
+
+    private String method;
+
+    private String uri;
+
+    private String protocol;
+
+    private long start;
+
+    private int status;
+
+    private long bytes;
+
+    public AccessLogHandler(AccessLog log) {
+        this.log = log;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HttpRequest) {
+            complete(ctx);
+            if (log.isSampled()) {
+                // taken now, the URI is rewritten for upstream
+                HttpRequest request = (HttpRequest) msg;
+                method = request.method().name();
+                uri = request.uri();
+                protocol = request.protocolVersion().text();
+                start = System.nanoTime();
+            }
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (method != null) {
+            if (msg instanceof HttpResponse && status == 0) {
+                status = ((HttpResponse) msg).status().code();
+            }
+            if (msg instanceof ByteBuf) {
+                ByteBuf buf = (ByteBuf) msg;
+                if (status == 0) {
+                    status = parseStatus(buf);
+                }
+                bytes += buf.readableBytes();
+            } else if (msg instanceof ByteBufHolder) {
+                bytes += ((ByteBufHolder) msg).content().readableBytes();
+            } else if (msg instanceof FileRegion) {
+                bytes += ((FileRegion) msg).count();
+            }
+        }
+        ctx.write(msg, promise);
+    }
+
+    /**
+     * Returns the status of a raw response head like HTTP/1.1 200 OK, zero if
+     * it isn't one.
+     */
+    static int parseStatus(ByteBuf buf) {
+        int i = buf.readerIndex();
+        if (buf.readableBytes() < 12 || buf.getByte(i) != 'H' || buf.getByte(i + 4) != '/'
+                || buf.getByte(i + 8) != ' ') {
+            return 0;
+        }
+        int result = 0;
+        for (int j = i + 9; j < i + 12; j++) {
+            byte digit = buf.getByte(j);
+            if (digit < '0' || digit > '9') {
+                return 0;
+            }
+            result = result * 10 + digit - '0';
+        }
+        return result;
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof HttpResponseRelayHandler.ResponseComplete
+                || evt instanceof HttpResponseRelayHandler.Upgraded) {
+            complete(ctx);
+        }
+        ctx.fireUserEventTriggered(evt);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        complete(ctx);
+        ctx.fireChannelInactive();
+    }
+
+    private void complete(ChannelHandlerContext ctx) {
+        if (method == null) {
+            return;
+        }
+        SocketAddress remote = ctx.channel().remoteAddress();
+        String client = remote instanceof InetSocketAddress
+                ? ((InetSocketAddress) remote).getAddress().getHostAddress() : String.valueOf(remote);
+        log.log(client, method, uri, protocol, status, bytes, (System.nanoTime() - start) / 1000);
+        method = null;
+        uri = null;
+        protocol = null;
+        status = 0;
+        bytes = 0;
+    }
+
+}
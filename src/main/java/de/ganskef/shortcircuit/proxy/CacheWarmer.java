@@ -0,0 +1,208 @@
+package de.ganskef.shortcircuit.proxy;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.GeneralSecurityException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+/**
+ * Warms up the caches after a restart with the most frequent entries of an
+ * {@link AccessHistory}. First the certificates of the top host names are
+ * minted, then the top URLs are requested through the running proxy, so they
+ * are recorded into its response cache as usual.
+ *
+ * It runs in a single thread of low priority and requests with a limited
+ * rate, so the proxy accepts and serves its clients in the meantime. The
+ * history may be written periodically in this thread too.
+ */
+public class CacheWarmer {
+
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(CacheWarmer.class);
+
+    public static final int DEFAULT_REQUESTS_PER_SECOND = 5;
+
+    private final AccessHistory history;
+
+    private final SslContextFactory sslCtxFactory;
+
+    private final InetSocketAddress proxyAddress;
+
+    private final int requestsPerSecond;
+
+    private final EventLoopGroup group;
+
+    private ScheduledFuture<?> prefetching;
+
+    /**
+     * Creates a warmer minting the certificates with the given factory, and
+     * requesting the URLs through the proxy at the given address. Both are
+     * optional.
+     */
+    public CacheWarmer(AccessHistory history, SslContextFactory sslCtxFactory, InetSocketAddress proxyAddress) {
+        this(history, sslCtxFactory, proxyAddress, DEFAULT_REQUESTS_PER_SECOND);
+    }
+
+    public CacheWarmer(AccessHistory history, SslContextFactory sslCtxFactory, InetSocketAddress proxyAddress,
+            int requestsPerSecond) {
+        if (requestsPerSecond <= 0) {
+            throw new IllegalArgumentException("requestsPerSecond must be positive: " + requestsPerSecond);
+        }
+        this.history = history;
+        this.sslCtxFactory = sslCtxFactory;
+        this.proxyAddress = proxyAddress;
+        this.requestsPerSecond = requestsPerSecond;
+        this.group = new NioEventLoopGroup(1, new DefaultThreadFactory("warmer", true, Thread.MIN_PRIORITY));
+    }
+
+    /**
+     * Writes the history periodically into the file, in the thread of the
+     * warmer, until it's stopped.
+     */
+    public CacheWarmer scheduleWrites(File file, long period, TimeUnit unit) {
+        history.scheduleWrites(group, file, period, unit);
+        return this;
+    }
+
+    /**
+     * Starts the warm-up in the background.
+     */
+    public CacheWarmer start() {
+        group.execute(new Runnable() {
+            @Override
+            public void run() {
+                mintCertificates();
+                if (proxyAddress != null) {
+                    prefetch(history.topUrls());
+                }
+            }
+        });
+        return this;
+    }
+
+    private void mintCertificates() {
+        if (sslCtxFactory == null) {
+            return;
+        }
+        List<String> hosts = history.topHosts();
+        for (String each : hosts) {
+            if (group.isShuttingDown()) {
+                return;
+            }
+            try {
+                sslCtxFactory.mint(each);
+            } catch (GeneralSecurityException e) {
+                logger.warn("Minting a certificate for {} failed:", each, e);
+            }
+        }
+        logger.info("Minted {} certificates", hosts.size());
+    }
+
+    private void prefetch(List<String> urls) {
+        final Iterator<String> it = urls.iterator();
+        final int count = urls.size();
+        prefetching = group.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                if (!it.hasNext()) {
+                    logger.info("Prefetched {} URLs", count);
+                    prefetching.cancel(false);
+                    return;
+                }
+                request(it.next());
+            }
+        }, 0, 1000000 / requestsPerSecond, TimeUnit.MICROSECONDS);
+    }
+
+    private void request(String url) {
+        final HttpRequest request;
+        try {
+            URI uri = new URI(url);
+            if (!"http".equals(uri.getScheme()) || uri.getHost() == null) {
+                return;
+            }
+            request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, url);
+            request.headers().set(HttpHeaderNames.HOST, uri.getRawAuthority());
+            request.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+        } catch (URISyntaxException e) {
+            logger.debug("Skip malformed URL {}", url);
+            return;
+        }
+        Bootstrap b = new Bootstrap();
+        b.group(group);
+        b.channel(NioSocketChannel.class);
+        b.handler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel ch) throws Exception {
+                ch.pipeline().addLast(new HttpClientCodec(), new DiscardHandler());
+            }
+        });
+        b.connect(proxyAddress).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                if (future.isSuccess()) {
+                    future.channel().writeAndFlush(request);
+                } else {
+                    ReferenceCountUtil.release(request);
+                    logger.debug("Prefetch connect failed:", future.cause());
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops the prefetched response, the proxy has recorded it.
+     */
+    private static class DiscardHandler extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            boolean last = msg instanceof LastHttpContent;
+            ReferenceCountUtil.release(msg);
+            if (last) {
+                ctx.close();
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            logger.debug("An exception was thrown:", cause);
+            ctx.close();
+        }
+    }
+
+    /**
+     * Stops the warm-up, if it's not finished yet.
+     */
+    public void stop() {
+        group.shutdownGracefully();
+    }
+
+}
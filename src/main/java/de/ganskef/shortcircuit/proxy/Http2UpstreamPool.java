@@ -0,0 +1,548 @@
+package de.ganskef.shortcircuit.proxy;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import de.ganskef.shortcircuit.utils.HttpResponseUtil;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.Http2Connection;
+import io.netty.handler.codec.http2.Http2ConnectionHandler;
+import io.netty.handler.codec.http2.Http2ConnectionHandlerBuilder;
+import io.netty.handler.codec.http2.Http2Error;
+import io.netty.handler.codec.http2.Http2Exception;
+import io.netty.handler.codec.http2.Http2FrameAdapter;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2Stream;
+import io.netty.handler.codec.http2.HttpConversionUtil;
+import io.netty.util.CharsetUtil;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+/**
+ * Multiplexes the requests to origins speaking HTTP/2 as streams over shared
+ * upstream connections, one per origin and event loop as long as the
+ * concurrent streams of the origin allow it, another one if they are
+ * exhausted. The responses are written to the clients as HTTP/1.1 raw bytes,
+ * like the {@link HttpResponseRelayHandler} does, with a
+ * {@link HttpResponseRelayHandler.ResponseComplete} event behind.
+ *
+ * The flow control windows of a stream are consumed only if the bytes are
+ * written to its client, so a slow client stalls its own stream, not the
+ * connection. The connection window is raised to let the other streams go
+ * on meanwhile.
+ *
+ * The proxy connects cleartext, so the origins have to be known to speak
+ * HTTP/2 with prior knowledge (h2c), there is no upgrade negotiation. It's not
+ * thread safe, the connections are used in the event loop of the clients
+ * only.
+ *
+ * A connection is retired before its stream ids are exhausted, it's closed
+ * when its last stream is complete. The pooled connections are closed with
+ * {@link #close()}.
+ */
+public class Http2UpstreamPool {
+
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(Http2UpstreamPool.class);
+
+    /** Streams per connection until the origin announces its limit. */
+    public static final int DEFAULT_MAX_STREAMS = 100;
+
+    /** Size of the connection flow control window shared by the streams. */
+    public static final int CONNECTION_WINDOW_BYTES = 4 * 1024 * 1024;
+
+    /** The largest stream id, see RFC 7540 section 5.1.1. */
+    static final int MAX_STREAM_ID = Integer.MAX_VALUE;
+
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(CharsetUtil.US_ASCII);
+
+    private final Set<String> origins;
+
+    private final int maxStreams;
+
+    private final int maxStreamId;
+
+    private volatile boolean closed;
+
+    private final ConcurrentMap<EventLoop, Map<String, List<Connection>>> pools = new ConcurrentHashMap<EventLoop, Map<String, List<Connection>>>();
+
+    /**
+     * Creates a pool for the given origins as host:port.
+     */
+    public Http2UpstreamPool(Collection<String> origins) {
+        this(origins, DEFAULT_MAX_STREAMS);
+    }
+
+    public Http2UpstreamPool(Collection<String> origins, int maxStreams) {
+        this(origins, maxStreams, MAX_STREAM_ID);
+    }
+
+    Http2UpstreamPool(Collection<String> origins, int maxStreams, int maxStreamId) {
+        this.origins = new HashSet<String>(origins);
+        this.maxStreams = maxStreams;
+        this.maxStreamId = maxStreamId;
+    }
+
+    private static String key(InetSocketAddress address) {
+        return address.getHostString() + ":" + address.getPort();
+    }
+
+    /**
+     * Returns true if the origin speaks HTTP/2.
+     */
+    public boolean isHttp2(InetSocketAddress address) {
+        return origins.contains(key(address));
+    }
+
+    /**
+     * Forwards a request without body to the origin and writes the response
+     * to the client. Returns the exchange to cancel it if the client is gone.
+     */
+    public Exchange forward(HttpRequest request, InetSocketAddress address, Channel client) {
+        Exchange result = new Exchange(request, client);
+        if (closed) {
+            result.abort();
+            return result;
+        }
+        connection(address, client).start(result);
+        return result;
+    }
+
+    /**
+     * Closes the pooled connections, in their event loops. The streams in
+     * progress are aborted.
+     */
+    public void close() {
+        closed = true;
+        for (Map.Entry<EventLoop, Map<String, List<Connection>>> each : pools.entrySet()) {
+            final Map<String, List<Connection>> pool = each.getValue();
+            each.getKey().execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (List<Connection> connections : pool.values()) {
+                        for (Connection connection : new ArrayList<Connection>(connections)) {
+                            connection.channel.close();
+                        }
+                    }
+                    pool.clear();
+                }
+            });
+        }
+    }
+
+    private Connection connection(InetSocketAddress address, Channel client) {
+        EventLoop loop = client.eventLoop();
+        Map<String, List<Connection>> pool = pools.get(loop);
+        if (pool == null) {
+            pool = new HashMap<String, List<Connection>>();
+            Map<String, List<Connection>> previous = pools.putIfAbsent(loop, pool);
+            if (previous != null) {
+                pool = previous;
+            }
+        }
+        String key = key(address);
+        List<Connection> connections = pool.get(key);
+        if (connections == null) {
+            connections = new ArrayList<Connection>();
+            pool.put(key, connections);
+        }
+        for (Connection each : connections) {
+            if (each.hasCapacity()) {
+                return each;
+            }
+        }
+        logger.debug("Open connection {} to {}", connections.size() + 1, key);
+        Connection result = new Connection(connections);
+        result.connect(address, client);
+        connections.add(result);
+        return result;
+    }
+
+    /**
+     * A shared upstream connection, dispatching the frames to the exchanges
+     * by stream id.
+     */
+    private class Connection extends Http2FrameAdapter {
+
+        private final List<Connection> pool;
+
+        private final Map<Integer, Exchange> exchanges = new HashMap<Integer, Exchange>();
+
+        private final List<Exchange> pending = new ArrayList<Exchange>();
+
+        private final Http2ConnectionHandler handler;
+
+        private Channel channel;
+
+        private boolean active;
+
+        private boolean usable = true;
+
+        Connection(List<Connection> pool) {
+            this.pool = pool;
+            this.handler = new Http2ConnectionHandlerBuilder().server(false).frameListener(this).build();
+        }
+
+        void connect(InetSocketAddress address, Channel client) {
+            Bootstrap b = new Bootstrap();
+            b.group(client.eventLoop());
+            b.channel(client.getClass());
+            b.handler(new ChannelInitializer<Channel>() {
+                @Override
+                protected void initChannel(Channel ch) {
+                    ch.pipeline().addLast(handler, new ChannelInboundHandlerAdapter() {
+                        @Override
+                        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+                            // behind the handler, which has sent the preface
+                            activated();
+                            ctx.fireChannelActive();
+                        }
+                    });
+                }
+            });
+            ChannelFuture f = b.connect(address);
+            channel = f.channel();
+            f.addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) {
+                    if (!future.isSuccess()) {
+                        logger.info("Connect failed: {}", future.cause().toString());
+                    }
+                }
+            });
+            channel.closeFuture().addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) {
+                    retire();
+                    List<Exchange> aborted = new ArrayList<Exchange>(exchanges.values());
+                    aborted.addAll(pending);
+                    exchanges.clear();
+                    pending.clear();
+                    for (Exchange each : aborted) {
+                        each.abort();
+                    }
+                }
+            });
+        }
+
+        private void activated() throws Http2Exception {
+            active = true;
+            Http2Connection connection = handler.connection();
+            Http2Stream stream = connection.connectionStream();
+            connection.local().flowController().incrementWindowSize(stream,
+                    CONNECTION_WINDOW_BYTES - connection.local().flowController().windowSize(stream));
+            List<Exchange> started = new ArrayList<Exchange>(pending);
+            pending.clear();
+            for (Exchange each : started) {
+                start(each);
+            }
+        }
+
+        boolean hasCapacity() {
+            int limit = Math.min(maxStreams, handler.connection().local().maxActiveStreams());
+            return usable && exchanges.size() + pending.size() < limit;
+        }
+
+        void start(final Exchange exchange) {
+            exchange.connection = this;
+            if (!active) {
+                pending.add(exchange);
+                return;
+            }
+            int streamId = handler.connection().local().incrementAndGetNextStreamId();
+            exchange.streamId = streamId;
+            exchanges.put(streamId, exchange);
+            if (streamId > maxStreamId - 2) {
+                // the next id would be exhausted
+                logger.debug("Retire connection at stream {}", streamId);
+                retire();
+            }
+            Http2Headers headers = HttpConversionUtil.toHttp2Headers(exchange.request, false);
+            ChannelHandlerContext ctx = context();
+            handler.encoder().writeHeaders(ctx, streamId, headers, 0, true, ctx.newPromise())
+                    .addListener(new ChannelFutureListener() {
+                        @Override
+                        public void operationComplete(ChannelFuture future) {
+                            if (!future.isSuccess()) {
+                                logger.info("Request failed: {}", future.cause().toString());
+                                remove(exchange);
+                                exchange.abort();
+                            }
+                        }
+                    });
+            ctx.flush();
+        }
+
+        private ChannelHandlerContext context() {
+            return channel.pipeline().context(handler);
+        }
+
+        void remove(Exchange exchange) {
+            exchanges.remove(exchange.streamId);
+            pending.remove(exchange);
+            closeIfRetired();
+        }
+
+        void cancel(Exchange exchange) {
+            if (exchanges.remove(exchange.streamId) != null && channel.isActive()) {
+                ChannelHandlerContext ctx = context();
+                handler.resetStream(ctx, exchange.streamId, Http2Error.CANCEL.code(), ctx.newPromise());
+                ctx.flush();
+            }
+            pending.remove(exchange);
+            closeIfRetired();
+        }
+
+        /**
+         * Returns the bytes written to the client to the flow control windows.
+         */
+        void consumed(int streamId, int bytes) {
+            Http2Stream stream = handler.connection().stream(streamId);
+            if (stream == null || !channel.isActive()) {
+                // the unconsumed bytes of a closed stream are returned
+                return;
+            }
+            try {
+                if (handler.connection().local().flowController().consumeBytes(stream, bytes)) {
+                    context().flush();
+                }
+            } catch (Http2Exception e) {
+                logger.debug("An exception was thrown:", e);
+            }
+        }
+
+        private void retire() {
+            usable = false;
+            pool.remove(this);
+        }
+
+        private void closeIfRetired() {
+            if (!usable && exchanges.isEmpty() && pending.isEmpty()) {
+                channel.close();
+            }
+        }
+
+        @Override
+        public void onHeadersRead(ChannelHandlerContext ctx, int streamId, Http2Headers headers, int padding,
+                boolean endOfStream) throws Http2Exception {
+            Exchange exchange = exchanges.get(streamId);
+            if (exchange == null) {
+                return;
+            }
+            if (!exchange.headSent) {
+                FullHttpResponse response = HttpConversionUtil.toHttpResponse(streamId, headers, ctx.alloc(), false);
+                try {
+                    if (response.status().code() >= 200) {
+                        exchange.head(response, endOfStream);
+                    }
+                } finally {
+                    response.release();
+                }
+            }
+            if (endOfStream) {
+                // trailers aren't relayed
+                exchanges.remove(streamId);
+                exchange.end();
+                closeIfRetired();
+            }
+        }
+
+        @Override
+        public void onHeadersRead(ChannelHandlerContext ctx, int streamId, Http2Headers headers,
+                int streamDependency, short weight, boolean exclusive, int padding, boolean endOfStream)
+                throws Http2Exception {
+            onHeadersRead(ctx, streamId, headers, padding, endOfStream);
+        }
+
+        @Override
+        public int onDataRead(ChannelHandlerContext ctx, int streamId, ByteBuf data, int padding,
+                boolean endOfStream) {
+            Exchange exchange = exchanges.get(streamId);
+            if (exchange == null) {
+                return data.readableBytes() + padding;
+            }
+            exchange.data(data);
+            if (endOfStream) {
+                exchanges.remove(streamId);
+                exchange.end();
+                closeIfRetired();
+            }
+            // the data is consumed if written to the client
+            return padding;
+        }
+
+        @Override
+        public void onRstStreamRead(ChannelHandlerContext ctx, int streamId, long errorCode) {
+            Exchange exchange = exchanges.remove(streamId);
+            if (exchange != null) {
+                logger.debug("Stream {} reset with {}", streamId, errorCode);
+                exchange.abort();
+                closeIfRetired();
+            }
+        }
+
+        @Override
+        public void onGoAwayRead(ChannelHandlerContext ctx, int lastStreamId, long errorCode, ByteBuf debugData) {
+            retire();
+            Iterator<Map.Entry<Integer, Exchange>> it = exchanges.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, Exchange> each = it.next();
+                if (each.getKey() > lastStreamId) {
+                    it.remove();
+                    each.getValue().abort();
+                }
+            }
+            closeIfRetired();
+        }
+    }
+
+    /**
+     * A request forwarded as a stream, with the response written to the
+     * client as HTTP/1.1.
+     */
+    public static class Exchange {
+
+        private final HttpRequest request;
+
+        private final Channel client;
+
+        private final boolean clientKeepAlive;
+
+        private Connection connection;
+
+        private int streamId;
+
+        private boolean headSent;
+
+        private boolean chunked;
+
+        private boolean keepAlive;
+
+        private boolean done;
+
+        Exchange(HttpRequest request, Channel client) {
+            this.request = request;
+            this.client = client;
+            this.clientKeepAlive = HttpUtil.isKeepAlive(request);
+        }
+
+        void head(HttpResponse response, boolean endOfStream) {
+            headSent = true;
+            HttpHeaders headers = response.headers();
+            for (HttpConversionUtil.ExtensionHeaderNames each : HttpConversionUtil.ExtensionHeaderNames.values()) {
+                headers.remove(each.text());
+            }
+            int code = response.status().code();
+            boolean bodyless = request.method() == HttpMethod.HEAD || code == 204 || code == 304;
+            keepAlive = clientKeepAlive;
+            if (!bodyless && !headers.contains(HttpHeaderNames.CONTENT_LENGTH)) {
+                if (endOfStream) {
+                    HttpUtil.setContentLength(response, 0);
+                } else if (clientKeepAlive && request.protocolVersion() == HttpVersion.HTTP_1_1) {
+                    chunked = true;
+                    HttpUtil.setTransferEncodingChunked(response, true);
+                } else {
+                    // delimited by the end of the client connection
+                    keepAlive = false;
+                }
+            }
+            headers.set(HttpHeaderNames.CONNECTION, keepAlive ? HttpHeaderValues.KEEP_ALIVE : HttpHeaderValues.CLOSE);
+            client.write(HttpResponseUtil.encodeHead(client.alloc(), response));
+        }
+
+        void data(ByteBuf data) {
+            final int length = data.readableBytes();
+            if (length == 0) {
+                return;
+            }
+            if (chunked) {
+                client.write(Unpooled.copiedBuffer(Integer.toHexString(length) + "\r\n", CharsetUtil.US_ASCII));
+            }
+            ChannelFuture f = client.write(data.retain());
+            if (chunked) {
+                f = client.write(Unpooled.wrappedBuffer(CRLF));
+            }
+            client.flush();
+            f.addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) {
+                    if (future.isSuccess()) {
+                        connection.consumed(streamId, length);
+                    }
+                }
+            });
+        }
+
+        void end() {
+            if (done) {
+                return;
+            }
+            done = true;
+            if (!headSent) {
+                client.close();
+                return;
+            }
+            ChannelFuture f = client.writeAndFlush(chunked ? Unpooled.wrappedBuffer(LAST_CHUNK) : Unpooled.EMPTY_BUFFER);
+            if (keepAlive) {
+                f.addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) {
+                        if (future.isSuccess()) {
+                            client.pipeline().fireUserEventTriggered(new HttpResponseRelayHandler.ResponseComplete(true));
+                        }
+                    }
+                });
+            } else {
+                f.addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+
+        void abort() {
+            if (!done) {
+                done = true;
+                client.close();
+            }
+        }
+
+        /**
+         * Resets the stream, if the client is gone.
+         */
+        public void cancel() {
+            if (!done) {
+                done = true;
+                if (connection != null) {
+                    connection.cancel(this);
+                }
+            }
+        }
+    }
+
+}
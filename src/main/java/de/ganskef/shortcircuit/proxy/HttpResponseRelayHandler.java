@@ -0,0 +1,413 @@
+package de.ganskef.shortcircuit.proxy;
+
+import java.util.List;
+
+import de.ganskef.shortcircuit.utils.HttpResponseUtil;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.DecoderException;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+/**
+ * Relays an upstream response as raw bytes. Only the head is decoded, to
+ * remove the hop-by-hop headers and to decide whether the client connection
+ * could be kept alive. The body is passed through as slices of the received
+ * buffers without creating HttpContent objects, its end is found by counting
+ * the Content-Length or by tracking the chunk framing with a small state
+ * machine.
+ *
+ * A {@link ResponseComplete} event is fired behind the last byte of the
+ * response. Responses delimited by the end of the connection complete with
+ * the inactive channel.
+ *
+ * If the request asked for an Upgrade and it's accepted with 101 Switching
+ * Protocols, an {@link Upgraded} event is fired behind the head and the
+ * handler removes itself, the following bytes belong to the new protocol.
+ *
+ * With a {@link BodyCoder} the body could be recoded on the fly, compressed
+ * for example. The payload is taken out of the framing of the origin and the
+ * coded bytes are relayed chunked, trailers are dropped.
+ */
+public class HttpResponseRelayHandler extends ChannelInboundHandlerAdapter {
+
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(HttpResponseRelayHandler.class);
+
+    /** Limit of the response head, a longer one is rejected. */
+    public static final int MAX_HEAD_LENGTH = 64 * 1024;
+
+    private static final String[] HOP_BY_HOP_HEADERS = { "Keep-Alive", "Proxy-Connection", "Proxy-Authenticate",
+            "TE", "Upgrade" };
+
+    /**
+     * Fired if the last byte of a response is relayed. It's fired from the
+     * head of the client pipeline by a handler writing a response on its own
+     * too, like a cache, without keep alive if the connection is closed.
+     */
+    public static final class ResponseComplete {
+
+        private final boolean keepAlive;
+
+        public ResponseComplete(boolean keepAlive) {
+            this.keepAlive = keepAlive;
+        }
+
+        /**
+         * Returns true if the client connection is kept alive for the next
+         * request.
+         */
+        public boolean isKeepAlive() {
+            return keepAlive;
+        }
+    }
+
+    /**
+     * Fired if the connection is switched to another protocol, the HTTP
+     * handlers are obsolete.
+     */
+    public static final class Upgraded {
+
+        Upgraded() {
+        }
+    }
+
+    /**
+     * Recodes the body of a relayed response, a new one for every response.
+     */
+    public interface BodyCoder {
+
+        /**
+         * Returns true if the body of the response is recoded, the headers are
+         * adapted to the coding then.
+         */
+        boolean start(HttpResponse response);
+
+        /**
+         * Returns the coded bytes of the payload, maybe none, and releases it.
+         */
+        ByteBuf encode(ByteBufAllocator alloc, ByteBuf payload);
+
+        /**
+         * Returns the last coded bytes at the end of the body.
+         */
+        ByteBuf finish(ByteBufAllocator alloc);
+
+        /**
+         * Releases the coder, the body may be incomplete.
+         */
+        void release();
+    }
+
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
+    private enum State {
+        HEAD, FIXED, CHUNK_SIZE, CHUNK_EXTENSION, CHUNK_DATA, CHUNK_DATA_END, TRAILER_START, TRAILER, UNTIL_CLOSE,
+        DONE, UPGRADED
+    }
+
+    private final HttpMethod requestMethod;
+
+    private final boolean clientKeepAlive;
+
+    private final boolean upgrade;
+
+    private final BodyCoder coder;
+
+    private boolean coding;
+
+    private State state = State.HEAD;
+
+    private ByteBuf head;
+
+    private long remaining;
+
+    private boolean keepAlive;
+
+    /**
+     * Creates a relay for the response to a request with the given method.
+     * The client connection is kept alive if the client wants it and the end
+     * of the response is determined by its framing.
+     */
+    public HttpResponseRelayHandler(HttpMethod requestMethod, boolean clientKeepAlive) {
+        this(requestMethod, clientKeepAlive, false);
+    }
+
+    /**
+     * Creates a relay for the response to a request asking for an Upgrade,
+     * if upgrade is true.
+     */
+    public HttpResponseRelayHandler(HttpMethod requestMethod, boolean clientKeepAlive, boolean upgrade) {
+        this(requestMethod, clientKeepAlive, upgrade, null);
+    }
+
+    /**
+     * Creates a relay recoding the body with the given coder, if not null and
+     * it accepts the response. The client has to understand a chunked body.
+     */
+    public HttpResponseRelayHandler(HttpMethod requestMethod, boolean clientKeepAlive, boolean upgrade,
+            BodyCoder coder) {
+        this.requestMethod = requestMethod;
+        this.clientKeepAlive = clientKeepAlive;
+        this.upgrade = upgrade;
+        this.coder = coder;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof ByteBuf)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        ByteBuf buf = (ByteBuf) msg;
+        try {
+            while (buf.isReadable() && state != State.DONE && state != State.UPGRADED) {
+                if (state == State.HEAD) {
+                    ByteBuf rest = readHead(ctx, buf);
+                    if (rest != buf) {
+                        buf.release();
+                        buf = rest;
+                    }
+                } else if (coding) {
+                    ByteBuf payload = ctx.alloc().buffer(buf.readableBytes());
+                    buf.skipBytes(bodyLength(buf, payload));
+                    fireChunk(ctx, coder.encode(ctx.alloc(), payload));
+                    if (state == State.DONE) {
+                        finishCoding(ctx);
+                        ctx.fireUserEventTriggered(new ResponseComplete(keepAlive));
+                    }
+                } else {
+                    int length = bodyLength(buf, null);
+                    ctx.fireChannelRead(buf.readRetainedSlice(length));
+                    if (state == State.DONE) {
+                        ctx.fireUserEventTriggered(new ResponseComplete(keepAlive));
+                    }
+                }
+            }
+            if (state == State.UPGRADED) {
+                // the bytes behind the head belong to the new protocol
+                if (buf.isReadable()) {
+                    ctx.fireChannelRead(buf.readRetainedSlice(buf.readableBytes()));
+                }
+                ctx.pipeline().remove(this);
+                ctx.fireUserEventTriggered(new Upgraded());
+            } else if (buf.isReadable()) {
+                logger.debug("Discard {} bytes behind the response", buf.readableBytes());
+            }
+        } finally {
+            buf.release();
+        }
+    }
+
+    /**
+     * Collects the head and fires it rewritten. Returns the buffer with the
+     * bytes behind the head, or the given one if the head is incomplete.
+     */
+    private ByteBuf readHead(ChannelHandlerContext ctx, ByteBuf buf) {
+        if (head == null) {
+            head = ctx.alloc().buffer(buf.readableBytes());
+        }
+        head.writeBytes(buf);
+        int headEnd = HttpResponseUtil.indexOfHeadEnd(head);
+        if (headEnd == -1) {
+            if (head.readableBytes() > MAX_HEAD_LENGTH) {
+                throw new DecoderException("Response head exceeds " + MAX_HEAD_LENGTH + " bytes");
+            }
+            return buf;
+        }
+        HttpResponse response = HttpResponseUtil.decodeHead(head.slice(head.readerIndex(), headEnd));
+        if (response == null) {
+            throw new DecoderException("Malformed response head");
+        }
+        head.readerIndex(headEnd);
+        ByteBuf rest = head;
+        head = null;
+        ctx.fireChannelRead(HttpResponseUtil.encodeHead(ctx.alloc(), rewrite(response)));
+        if (state == State.DONE) {
+            ctx.fireUserEventTriggered(new ResponseComplete(keepAlive));
+        }
+        return rest;
+    }
+
+    private HttpResponse rewrite(HttpResponse response) {
+        HttpHeaders headers = response.headers();
+        int code = response.status().code();
+        if (code == 101 && upgrade) {
+            state = State.UPGRADED;
+            for (String each : HOP_BY_HOP_HEADERS) {
+                if (!HttpHeaderNames.UPGRADE.contentEqualsIgnoreCase(each)) {
+                    headers.remove(each);
+                }
+            }
+            headers.set(HttpHeaderNames.CONNECTION, HttpHeaderValues.UPGRADE);
+            return response;
+        }
+        if (code >= 100 && code < 200) {
+            // an interim response is followed by the final one
+            state = State.HEAD;
+            return response;
+        }
+        if (requestMethod == HttpMethod.HEAD || code == 204 || code == 304) {
+            state = State.DONE;
+        } else if (HttpUtil.isTransferEncodingChunked(response)) {
+            state = State.CHUNK_SIZE;
+            remaining = 0;
+        } else if (headers.contains(HttpHeaderNames.CONTENT_LENGTH)) {
+            remaining = HttpUtil.getContentLength(response);
+            state = remaining == 0 ? State.DONE : State.FIXED;
+        } else {
+            state = State.UNTIL_CLOSE;
+        }
+        keepAlive = clientKeepAlive && state != State.UNTIL_CLOSE;
+        List<String> connectionOptions = headers.getAll(HttpHeaderNames.CONNECTION);
+        for (String each : connectionOptions) {
+            for (String option : each.split(",")) {
+                headers.remove(option.trim());
+            }
+        }
+        for (String each : HOP_BY_HOP_HEADERS) {
+            headers.remove(each);
+        }
+        if (coder != null && state != State.DONE && coder.start(response)) {
+            coding = true;
+            headers.remove(HttpHeaderNames.CONTENT_LENGTH);
+            headers.set(HttpHeaderNames.TRANSFER_ENCODING, HttpHeaderValues.CHUNKED);
+        }
+        headers.set(HttpHeaderNames.CONNECTION, keepAlive ? HttpHeaderValues.KEEP_ALIVE : HttpHeaderValues.CLOSE);
+        return response;
+    }
+
+    private void fireChunk(ChannelHandlerContext ctx, ByteBuf data) {
+        if (!data.isReadable()) {
+            data.release();
+            return;
+        }
+        ByteBuf size = ctx.alloc().buffer(10);
+        ByteBufUtil.writeAscii(size, Integer.toHexString(data.readableBytes()));
+        size.writeBytes(CRLF);
+        ctx.fireChannelRead(size);
+        ctx.fireChannelRead(data);
+        ctx.fireChannelRead(ctx.alloc().buffer(CRLF.length).writeBytes(CRLF));
+    }
+
+    private void finishCoding(ChannelHandlerContext ctx) {
+        coding = false;
+        try {
+            fireChunk(ctx, coder.finish(ctx.alloc()));
+        } finally {
+            coder.release();
+        }
+        ctx.fireChannelRead(ctx.alloc().buffer(LAST_CHUNK.length).writeBytes(LAST_CHUNK));
+    }
+
+    /**
+     * Returns the count of readable bytes belonging to the body, and advances
+     * the state. The payload without the framing is copied into the given
+     * buffer, if not null.
+     */
+    private int bodyLength(ByteBuf buf, ByteBuf payload) {
+        int start = buf.readerIndex();
+        int end = buf.writerIndex();
+        int i = start;
+        while (i < end && state != State.DONE) {
+            switch (state) {
+            case UNTIL_CLOSE:
+                if (payload != null) {
+                    payload.writeBytes(buf, i, end - i);
+                }
+                i = end;
+                break;
+            case FIXED:
+            case CHUNK_DATA:
+                int skipped = (int) Math.min(remaining, end - i);
+                if (payload != null) {
+                    payload.writeBytes(buf, i, skipped);
+                }
+                i += skipped;
+                remaining -= skipped;
+                if (remaining == 0) {
+                    state = state == State.FIXED ? State.DONE : State.CHUNK_DATA_END;
+                }
+                break;
+            case CHUNK_SIZE:
+                i = chunkSize(buf.getByte(i), i);
+                break;
+            case CHUNK_EXTENSION:
+                if (buf.getByte(i++) == '\n') {
+                    state = remaining == 0 ? State.TRAILER_START : State.CHUNK_DATA;
+                }
+                break;
+            case CHUNK_DATA_END:
+                if (buf.getByte(i++) == '\n') {
+                    state = State.CHUNK_SIZE;
+                }
+                break;
+            case TRAILER_START:
+                byte b = buf.getByte(i++);
+                if (b == '\n') {
+                    state = State.DONE;
+                } else if (b != '\r') {
+                    state = State.TRAILER;
+                }
+                break;
+            case TRAILER:
+                if (buf.getByte(i++) == '\n') {
+                    state = State.TRAILER_START;
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unexpected " + state);
+            }
+        }
+        return i - start;
+    }
+
+    private int chunkSize(byte b, int index) {
+        int digit = Character.digit(b, 16);
+        if (digit != -1) {
+            if (remaining > (Long.MAX_VALUE >> 4)) {
+                throw new DecoderException("Chunk size too large");
+            }
+            remaining = (remaining << 4) + digit;
+        } else if (b == '\n') {
+            state = remaining == 0 ? State.TRAILER_START : State.CHUNK_DATA;
+        } else if (b == ';' || b == '\r' || b == ' ' || b == '\t') {
+            state = State.CHUNK_EXTENSION;
+        } else {
+            throw new DecoderException("Malformed chunk size");
+        }
+        return index + 1;
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (coding && state == State.UNTIL_CLOSE) {
+            // the end of the body
+            finishCoding(ctx);
+        }
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        if (head != null) {
+            head.release();
+            head = null;
+        }
+        if (coding) {
+            coding = false;
+            coder.release();
+        }
+    }
+
+}
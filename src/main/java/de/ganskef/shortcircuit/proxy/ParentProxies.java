@@ -0,0 +1,407 @@
+package de.ganskef.shortcircuit.proxy;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.handler.proxy.HttpProxyHandler;
+import io.netty.handler.proxy.ProxyHandler;
+import io.netty.handler.proxy.Socks4ProxyHandler;
+import io.netty.handler.proxy.Socks5ProxyHandler;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+/**
+ * Chains the upstream connections through parent proxies, given as URIs like
+ * http://host:port, socks4://host:port or socks5://host:port.
+ *
+ * A parent is picked with the power of two choices, the one with less
+ * outstanding requests of two random parents. A parent failing to connect
+ * {@link #MAX_FAILURES} times in a row is ejected for a while, longer with
+ * every ejection until it connects again. If all parents are ejected, all of
+ * them are tried anyway.
+ *
+ * A HTTP parent gets plain requests in absolute form, sent over connections
+ * established in advance, a few per event loop, so a request doesn't wait for
+ * the handshake with the parent. Such a connection keeps a read pending while
+ * idle, so it's dropped as soon as the parent closes it, and it's closed after
+ * {@link #WARM_IDLE_SECONDS}. A connection dropped by the parent before its use
+ * counts as a failure of the parent. Upgrades and SOCKS parents need a tunnel to
+ * the destination, it's opened with the handlers of netty-handler-proxy on
+ * demand.
+ */
+public class ParentProxies {
+
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(ParentProxies.class);
+
+    /** Idle connections kept per HTTP parent and event loop. */
+    public static final int DEFAULT_WARM_CONNECTIONS = 2;
+
+    /** Seconds a connection established in advance is kept unused. */
+    public static final int WARM_IDLE_SECONDS = 30;
+
+    /** Connect failures in a row to eject a parent. */
+    public static final int MAX_FAILURES = 3;
+
+    /** Duration of the first ejection, doubled with every following. */
+    public static final long EJECTION_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    private static final long MAX_EJECTION_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final List<Parent> parents;
+
+    private final int warmConnections;
+
+    /**
+     * Creates parents for the given URIs.
+     */
+    public ParentProxies(Collection<String> uris) {
+        this(uris, DEFAULT_WARM_CONNECTIONS);
+    }
+
+    public ParentProxies(Collection<String> uris, int warmConnections) {
+        List<Parent> list = new ArrayList<Parent>();
+        for (String each : uris) {
+            list.add(new Parent(URI.create(each)));
+        }
+        if (list.isEmpty()) {
+            throw new IllegalArgumentException("No parent proxy given");
+        }
+        this.parents = Collections.unmodifiableList(list);
+        this.warmConnections = warmConnections;
+    }
+
+    public List<Parent> parents() {
+        return parents;
+    }
+
+    /**
+     * Returns the parent with less outstanding requests of two random healthy
+     * ones.
+     */
+    public Parent select() {
+        long now = System.currentTimeMillis();
+        List<Parent> healthy = new ArrayList<Parent>(parents.size());
+        for (Parent each : parents) {
+            if (!each.isEjected(now)) {
+                healthy.add(each);
+            }
+        }
+        if (healthy.isEmpty()) {
+            // panic, better to try an ejected parent than to fail for sure
+            healthy = parents;
+        }
+        int size = healthy.size();
+        if (size == 1) {
+            return healthy.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(size);
+        int second = random.nextInt(size - 1);
+        if (second >= first) {
+            second++;
+        }
+        Parent a = healthy.get(first);
+        Parent b = healthy.get(second);
+        return a.outstanding() <= b.outstanding() ? a : b;
+    }
+
+    /**
+     * A parent proxy with its state of health and the connections established
+     * in advance.
+     */
+    public final class Parent {
+
+        private final String type;
+
+        private final InetSocketAddress address;
+
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        private final ConcurrentMap<EventLoop, Deque<Channel>> warm = new ConcurrentHashMap<EventLoop, Deque<Channel>>();
+
+        private int failures;
+
+        private int ejections;
+
+        private volatile long ejectedUntil;
+
+        Parent(URI uri) {
+            type = uri.getScheme();
+            if (!"http".equals(type) && !"socks4".equals(type) && !"socks5".equals(type)) {
+                throw new IllegalArgumentException("Unsupported parent proxy " + uri);
+            }
+            if (uri.getPort() == -1) {
+                throw new IllegalArgumentException("Port of parent proxy missing " + uri);
+            }
+            address = new InetSocketAddress(uri.getHost(), uri.getPort());
+        }
+
+        public InetSocketAddress address() {
+            return address;
+        }
+
+        public int outstanding() {
+            return outstanding.get();
+        }
+
+        public boolean isEjected(long now) {
+            return now < ejectedUntil;
+        }
+
+        /**
+         * Returns true if a request is sent to the parent in absolute form,
+         * otherwise it's sent to the destination through a tunnel.
+         */
+        public boolean isForwarding(boolean upgrade) {
+            return "http".equals(type) && !upgrade;
+        }
+
+        /**
+         * Connects the channel of the bootstrap to the destination through this
+         * parent, or takes a connection established in advance. Its handler
+         * is added to a taken connection, which is read once like a new one.
+         */
+        public ChannelFuture connect(Bootstrap b, InetSocketAddress destination, boolean upgrade) {
+            outstanding.incrementAndGet();
+            ChannelFuture result;
+            if (isForwarding(upgrade)) {
+                EventLoop loop = b.config().group().next();
+                Channel channel = takeWarm(loop);
+                if (channel != null) {
+                    logger.debug("Use warm connection to {}", address);
+                    channel.pipeline().addLast(b.config().handler());
+                    channel.read();
+                    result = channel.newSucceededFuture();
+                } else {
+                    result = b.connect(address);
+                    result.addListener(healthListener());
+                }
+                warmUp(b, loop);
+            } else {
+                final ProxyHandler proxyHandler = newProxyHandler();
+                final ReplyHandler replyHandler = new ReplyHandler();
+                final ChannelHandler handler = b.config().handler();
+                result = b.clone().handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast(replyHandler, proxyHandler, handler);
+                    }
+                }).connect(destination);
+                result.addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) {
+                        // the handshake isn't started
+                        if (!future.isSuccess()) {
+                            health(false);
+                        }
+                    }
+                });
+                proxyHandler.connectFuture().addListener(new GenericFutureListener<Future<Channel>>() {
+                    @Override
+                    public void operationComplete(Future<Channel> future) {
+                        if (future.isSuccess()) {
+                            health(true);
+                        } else if (!replyHandler.replied) {
+                            health(false);
+                        } else {
+                            // the parent rejected the destination, a 502 for example
+                            logger.debug("Tunnel through {} rejected: {}", address, future.cause().toString());
+                        }
+                    }
+                });
+            }
+            result.channel().closeFuture().addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) {
+                    outstanding.decrementAndGet();
+                }
+            });
+            return result;
+        }
+
+        private ProxyHandler newProxyHandler() {
+            if ("socks4".equals(type)) {
+                return new Socks4ProxyHandler(address);
+            } else if ("socks5".equals(type)) {
+                return new Socks5ProxyHandler(address);
+            }
+            return new HttpProxyHandler(address);
+        }
+
+        private Channel takeWarm(EventLoop loop) {
+            Deque<Channel> channels = warm.get(loop);
+            if (channels != null) {
+                // connections still connecting are kept for the next request
+                for (Iterator<Channel> it = channels.iterator(); it.hasNext();) {
+                    Channel result = it.next();
+                    if (result.isActive()) {
+                        it.remove();
+                        result.pipeline().remove(IdleStateHandler.class);
+                        result.pipeline().remove(WarmHandler.class);
+                        // survived until its use
+                        health(true);
+                        return result;
+                    }
+                }
+            }
+            return null;
+        }
+
+        private void warmUp(Bootstrap b, EventLoop loop) {
+            Deque<Channel> channels = warm.get(loop);
+            if (channels == null) {
+                channels = new ArrayDeque<Channel>();
+                Deque<Channel> previous = warm.putIfAbsent(loop, channels);
+                if (previous != null) {
+                    channels = previous;
+                }
+            }
+            final Deque<Channel> pool = channels;
+            Bootstrap idle = b.clone(loop).handler(new ChannelInitializer<Channel>() {
+                @Override
+                protected void initChannel(Channel ch) {
+                    ch.pipeline().addLast(new IdleStateHandler(0, 0, WARM_IDLE_SECONDS), new WarmHandler());
+                }
+            }).option(ChannelOption.AUTO_READ, false);
+            for (int i = pool.size(); i < warmConnections; i++) {
+                final ChannelFuture f = idle.connect(address);
+                pool.add(f.channel());
+                f.addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) {
+                        // a success is counted when taken
+                        if (!future.isSuccess()) {
+                            health(false);
+                        }
+                    }
+                });
+                f.channel().closeFuture().addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) {
+                        pool.remove(future.channel());
+                    }
+                });
+            }
+        }
+
+        /**
+         * Keeps a read pending on an idle connection to see the parent closing
+         * or resetting it, which counts as a failure, and closes it if idle
+         * too long. It's removed with the {@link IdleStateHandler} when the
+         * connection is taken.
+         */
+        private final class WarmHandler extends ChannelInboundHandlerAdapter {
+
+            private boolean closing;
+
+            @Override
+            public void channelActive(ChannelHandlerContext ctx) {
+                ctx.read();
+                ctx.fireChannelActive();
+            }
+
+            @Override
+            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                // nothing was asked for
+                ReferenceCountUtil.release(msg);
+                ctx.close();
+            }
+
+            @Override
+            public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+                if (evt instanceof IdleStateEvent) {
+                    closing = true;
+                    ctx.close();
+                } else {
+                    ctx.fireUserEventTriggered(evt);
+                }
+            }
+
+            @Override
+            public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+                logger.debug("Warm connection to {} failed: {}", address, cause.toString());
+                ctx.close();
+            }
+
+            @Override
+            public void channelInactive(ChannelHandlerContext ctx) {
+                if (!closing) {
+                    logger.debug("Warm connection to {} dropped", address);
+                    health(false);
+                }
+                ctx.fireChannelInactive();
+            }
+        }
+
+        /**
+         * Notes the parent replied to the handshake, so a failed handshake is
+         * about the destination, not the parent.
+         */
+        private final class ReplyHandler extends ChannelInboundHandlerAdapter {
+
+            private boolean replied;
+
+            @Override
+            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                replied = true;
+                ctx.pipeline().remove(this);
+                ctx.fireChannelRead(msg);
+            }
+        }
+
+        private ChannelFutureListener healthListener() {
+            return new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) {
+                    health(future.isSuccess());
+                }
+            };
+        }
+
+        private synchronized void health(boolean success) {
+            if (success) {
+                failures = 0;
+                ejections = 0;
+            } else if (++failures >= MAX_FAILURES) {
+                long millis = Math.min(EJECTION_MILLIS << Math.min(ejections, 16), MAX_EJECTION_MILLIS);
+                ejectedUntil = System.currentTimeMillis() + millis;
+                ejections++;
+                failures = 0;
+                logger.warn("Eject parent proxy {} for {} ms", address, millis);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return type + "://" + address.getHostString() + ":" + address.getPort();
+        }
+    }
+
+}
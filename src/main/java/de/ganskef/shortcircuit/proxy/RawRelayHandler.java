@@ -0,0 +1,97 @@
+package de.ganskef.shortcircuit.proxy;
+
+import de.ganskef.shortcircuit.metrics.FlightEvent;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+/**
+ * Relays the bytes of a channel to its peer without any decoding, for a
+ * connection switched to another protocol with an Upgrade, a WebSocket for
+ * example. A pair of it is installed in both pipelines.
+ *
+ * The channels are read with auto read disabled. The next read is requested
+ * as long as the peer is writable, otherwise if the peer gets writable again,
+ * so a slow side throttles the other by the write buffer water marks.
+ */
+public class RawRelayHandler extends ChannelInboundHandlerAdapter {
+
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(RawRelayHandler.class);
+
+    private final Channel peer;
+
+    private Object event;
+
+    private long bytes;
+
+    public RawRelayHandler(Channel peer) {
+        this.peer = peer;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        event = FlightEvent.TUNNEL.begin();
+        if (ctx.channel().isActive()) {
+            ctx.read();
+        }
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+        ctx.read();
+        ctx.fireChannelActive();
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (event != null && msg instanceof ByteBuf) {
+            bytes += ((ByteBuf) msg).readableBytes();
+        }
+        peer.write(msg);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        peer.flush();
+        if (peer.isWritable()) {
+            ctx.read();
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        // the peer relays into this channel, it's read on if drained
+        if (ctx.channel().isWritable()) {
+            peer.read();
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        FlightEvent.TUNNEL.commit(event, ctx.channel().remoteAddress(), bytes);
+        event = null;
+        closeOnFlush(peer);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        logger.debug("An exception was thrown:", cause);
+        closeOnFlush(ctx.channel());
+    }
+
+    /**
+     * Closes the specified channel after all queued write requests are flushed.
+     */
+    static void closeOnFlush(Channel ch) {
+        if (ch.isActive()) {
+            ch.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+}
@@ -0,0 +1,151 @@
+package de.ganskef.shortcircuit.proxy;
+
+import de.ganskef.shortcircuit.metrics.LatencyHistogram;
+import de.ganskef.shortcircuit.metrics.Metrics;
+import io.netty.util.Recycler;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+/**
+ * The timestamps of the phases of a proxied request, to see whether the name
+ * resolution, the origin or the proxy itself is slow. It's taken from a pool
+ * per thread for every request and given back with {@link #complete()}, which
+ * records the durations of the phases in the histogram
+ * <code>shortcircuit_request_phase_seconds</code> and writes a line to the
+ * access log. A phase is measured from the end of the previous one:
+ * <ul>
+ * <li>resolve: the name of the origin is resolved, blocking the event loop</li>
+ * <li>connect: the TCP connection upstream is established</li>
+ * <li>handshake: TLS or the tunnel of a parent proxy is established</li>
+ * <li>first_byte: the first byte of the response is received</li>
+ * <li>transfer: the last byte is written to the client</li>
+ * </ul>
+ * A skipped phase, a handshake usually, isn't recorded. The access log line
+ * contains the method, the URI and the phases in microseconds, logged with
+ * the category de.ganskef.shortcircuit.access. It's not thread safe,
+ * the timestamps are taken in the event loop of the client.
+ */
+public final class RequestTiming {
+
+    private static final InternalLogger accessLogger = InternalLoggerFactory
+            .getInstance("de.ganskef.shortcircuit.access");
+
+    private static final String[] PHASES = { "resolve", "connect", "handshake", "first_byte", "transfer" };
+
+    private static final LatencyHistogram[] HISTOGRAMS = new LatencyHistogram[PHASES.length];
+
+    private static final LatencyHistogram TOTAL = Metrics.histogram("shortcircuit_request_seconds",
+            "Time from the request received to the last byte of the response written.");
+
+    static {
+        for (int i = 0; i < PHASES.length; i++) {
+            HISTOGRAMS[i] = Metrics.histogram("shortcircuit_request_phase_seconds{phase=\"" + PHASES[i] + "\"}",
+                    "Time of a phase of a proxied request.");
+        }
+    }
+
+    private static final Recycler<RequestTiming> RECYCLER = new Recycler<RequestTiming>() {
+        @Override
+        protected RequestTiming newObject(Handle<RequestTiming> handle) {
+            return new RequestTiming(handle);
+        }
+    };
+
+    private static final int RESOLVED = 0;
+
+    private static final int CONNECTED = 1;
+
+    private static final int HANDSHAKEN = 2;
+
+    private static final int FIRST_BYTE = 3;
+
+    private static final int LAST_BYTE = 4;
+
+    private final Recycler.Handle<RequestTiming> handle;
+
+    /** Timestamps of the ends of the phases, zero if not reached. */
+    private final long[] ends = new long[PHASES.length];
+
+    private long start;
+
+    private String method;
+
+    private String uri;
+
+    private RequestTiming(Recycler.Handle<RequestTiming> handle) {
+        this.handle = handle;
+    }
+
+    /**
+     * Returns a timing for a request starting now.
+     */
+    public static RequestTiming start(String method, String uri) {
+        RequestTiming result = RECYCLER.get();
+        result.start = System.nanoTime();
+        result.method = method;
+        result.uri = uri;
+        return result;
+    }
+
+    public void resolved() {
+        ends[RESOLVED] = System.nanoTime();
+    }
+
+    public void connected() {
+        ends[CONNECTED] = System.nanoTime();
+    }
+
+    public void handshaken() {
+        ends[HANDSHAKEN] = System.nanoTime();
+    }
+
+    /**
+     * Marks the first byte of the response, only the first call counts.
+     */
+    public void firstByte() {
+        if (ends[FIRST_BYTE] == 0) {
+            ends[FIRST_BYTE] = System.nanoTime();
+        }
+    }
+
+    /**
+     * Marks the last byte written to the client, records the phases and gives
+     * the timing back to the pool. It mustn't be used anymore.
+     */
+    public void complete() {
+        ends[LAST_BYTE] = System.nanoTime();
+        StringBuilder line = accessLogger.isInfoEnabled() ? new StringBuilder(128) : null;
+        if (line != null) {
+            line.append(method).append(' ').append(uri);
+        }
+        long previous = start;
+        for (int i = 0; i < PHASES.length; i++) {
+            if (ends[i] != 0) {
+                HISTOGRAMS[i].record(ends[i] - previous);
+                if (line != null) {
+                    line.append(' ').append(PHASES[i]).append('=').append((ends[i] - previous) / 1000);
+                }
+                previous = ends[i];
+            }
+        }
+        TOTAL.record(ends[LAST_BYTE] - start);
+        if (line != null) {
+            line.append(" total=").append((ends[LAST_BYTE] - start) / 1000);
+            accessLogger.info(line.toString());
+        }
+        recycle();
+    }
+
+    /**
+     * Gives the timing back to the pool without recording it.
+     */
+    public void recycle() {
+        for (int i = 0; i < ends.length; i++) {
+            ends[i] = 0;
+        }
+        method = null;
+        uri = null;
+        handle.recycle(this);
+    }
+
+}
@@ -0,0 +1,146 @@
+package de.ganskef.shortcircuit.proxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+/**
+ * Spools a response into a temporary file for a slow client. The upstream
+ * could be read at full speed and closed early, while the client is fed from
+ * the file with {@link DefaultFileRegion}s, zero copy if the transport
+ * supports it.
+ *
+ * It's not thread safe, it's used in the event loop of the client channel,
+ * which is shared with the upstream channel.
+ */
+public class ResponseSpool {
+
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(ResponseSpool.class);
+
+    private final Channel client;
+
+    private final File file;
+
+    private final RandomAccessFile raf;
+
+    private final FileChannel fileChannel;
+
+    private long written;
+
+    private long sent;
+
+    private boolean writing;
+
+    private boolean complete;
+
+    private boolean closed;
+
+    private Runnable whenSent;
+
+    /**
+     * Creates a spool in a new file of the directory, which is deleted if the
+     * response is sent or the client is gone.
+     */
+    public ResponseSpool(Channel client, File directory) throws IOException {
+        this.client = client;
+        this.file = File.createTempFile("spool", ".body", directory);
+        this.raf = new RandomAccessFile(file, "rw");
+        this.fileChannel = raf.getChannel();
+    }
+
+    /**
+     * Appends the buffer to the spool and releases it.
+     */
+    public void append(ByteBuf buf) throws IOException {
+        try {
+            if (closed) {
+                return;
+            }
+            int start = buf.readerIndex();
+            int end = buf.writerIndex();
+            for (int index = start; index < end;) {
+                index += buf.getBytes(index, fileChannel, written + index - start, end - index);
+            }
+            written += end - start;
+        } finally {
+            buf.release();
+        }
+        pump();
+    }
+
+    /**
+     * Marks the end of the response. The action runs after the last byte is
+     * written to the client, the first given wins.
+     */
+    public void complete(Runnable whenSent) {
+        if (complete) {
+            return;
+        }
+        complete = true;
+        this.whenSent = whenSent;
+        pump();
+    }
+
+    private void pump() {
+        if (closed || writing) {
+            return;
+        }
+        if (sent == written) {
+            if (complete) {
+                close();
+                if (whenSent != null) {
+                    whenSent.run();
+                }
+            }
+            return;
+        }
+        final long count = written - sent;
+        writing = true;
+        client.writeAndFlush(new DefaultFileRegion(file, sent, count)).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                writing = false;
+                if (future.isSuccess()) {
+                    sent += count;
+                    pump();
+                } else {
+                    logger.debug("Spooled write failed:", future.cause());
+                    close();
+                    future.channel().close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the count of bytes waiting in the file for the client.
+     */
+    public long pendingBytes() {
+        return written - sent;
+    }
+
+    private void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            raf.close();
+        } catch (IOException e) {
+            logger.debug("Close of {} failed:", file, e);
+        }
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+}
@@ -0,0 +1,120 @@
+package de.ganskef.shortcircuit.proxy;
+
+import java.util.Arrays;
+import java.util.List;
+
+import de.ganskef.shortcircuit.metrics.ConnectionTableHandler;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.socksx.SocksMessage;
+import io.netty.handler.codec.socksx.v4.DefaultSocks4CommandResponse;
+import io.netty.handler.codec.socksx.v4.Socks4CommandRequest;
+import io.netty.handler.codec.socksx.v4.Socks4CommandStatus;
+import io.netty.handler.codec.socksx.v4.Socks4CommandType;
+import io.netty.handler.codec.socksx.v4.Socks4ServerDecoder;
+import io.netty.handler.codec.socksx.v4.Socks4ServerEncoder;
+import io.netty.handler.codec.socksx.v5.DefaultSocks5CommandResponse;
+import io.netty.handler.codec.socksx.v5.DefaultSocks5InitialResponse;
+import io.netty.handler.codec.socksx.v5.Socks5AddressType;
+import io.netty.handler.codec.socksx.v5.Socks5AuthMethod;
+import io.netty.handler.codec.socksx.v5.Socks5CommandRequest;
+import io.netty.handler.codec.socksx.v5.Socks5CommandRequestDecoder;
+import io.netty.handler.codec.socksx.v5.Socks5CommandStatus;
+import io.netty.handler.codec.socksx.v5.Socks5CommandType;
+import io.netty.handler.codec.socksx.v5.Socks5InitialRequest;
+import io.netty.handler.codec.socksx.v5.Socks5InitialRequestDecoder;
+import io.netty.handler.codec.socksx.v5.Socks5ServerEncoder;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+/**
+ * Answers the SOCKS4 and SOCKS5 handshake without authentication behind a
+ * SocksPortUnificationServerHandler and tunnels a CONNECT to the destination.
+ * After the connection is established the SOCKS codecs are removed, and the
+ * bytes are relayed like an upgraded HTTP connection by a pair of
+ * {@link RawRelayHandler}, without any parsing. Other commands are refused.
+ */
+public class SocksServerHandler extends SimpleChannelInboundHandler<SocksMessage> {
+
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(SocksServerHandler.class);
+
+    private static final List<Class<? extends ChannelHandler>> SOCKS_HANDLERS = Arrays
+            .<Class<? extends ChannelHandler>> asList(Socks4ServerDecoder.class, Socks4ServerEncoder.class,
+                    Socks5InitialRequestDecoder.class, Socks5CommandRequestDecoder.class, Socks5ServerEncoder.class);
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, SocksMessage msg) {
+        if (msg instanceof Socks5InitialRequest) {
+            if (((Socks5InitialRequest) msg).authMethods().contains(Socks5AuthMethod.NO_AUTH)) {
+                ctx.pipeline().addBefore(ctx.name(), null, new Socks5CommandRequestDecoder());
+                ctx.writeAndFlush(new DefaultSocks5InitialResponse(Socks5AuthMethod.NO_AUTH));
+            } else {
+                ctx.writeAndFlush(new DefaultSocks5InitialResponse(Socks5AuthMethod.UNACCEPTED))
+                        .addListener(ChannelFutureListener.CLOSE);
+            }
+        } else if (msg instanceof Socks5CommandRequest
+                && ((Socks5CommandRequest) msg).type() == Socks5CommandType.CONNECT) {
+            Socks5CommandRequest request = (Socks5CommandRequest) msg;
+            connect(ctx, request.dstAddr(), request.dstPort(),
+                    new DefaultSocks5CommandResponse(Socks5CommandStatus.SUCCESS, request.dstAddrType()),
+                    new DefaultSocks5CommandResponse(Socks5CommandStatus.FAILURE, request.dstAddrType()));
+        } else if (msg instanceof Socks4CommandRequest
+                && ((Socks4CommandRequest) msg).type() == Socks4CommandType.CONNECT) {
+            Socks4CommandRequest request = (Socks4CommandRequest) msg;
+            connect(ctx, request.dstAddr(), request.dstPort(),
+                    new DefaultSocks4CommandResponse(Socks4CommandStatus.SUCCESS),
+                    new DefaultSocks4CommandResponse(Socks4CommandStatus.REJECTED_OR_FAILED));
+        } else {
+            logger.info("Unsupported SOCKS request {}", msg);
+            Object refused = msg instanceof Socks5CommandRequest
+                    ? new DefaultSocks5CommandResponse(Socks5CommandStatus.COMMAND_UNSUPPORTED, Socks5AddressType.IPv4)
+                    : new DefaultSocks4CommandResponse(Socks4CommandStatus.REJECTED_OR_FAILED);
+            ctx.writeAndFlush(refused).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    private void connect(final ChannelHandlerContext ctx, String host, int port, final Object success,
+            final Object failure) {
+        final Channel inboundChannel = ctx.channel();
+        // the relay reads on demand, nothing is expected before the answer
+        inboundChannel.config().setAutoRead(false);
+        Bootstrap b = new Bootstrap();
+        b.group(inboundChannel.eventLoop());
+        b.channel(inboundChannel.getClass());
+        b.handler(new RawRelayHandler(inboundChannel));
+        b.option(ChannelOption.AUTO_READ, false);
+        b.connect(host, port).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                if (future.isSuccess()) {
+                    future.channel().pipeline().addFirst(new ConnectionTableHandler(ConnectionTableHandler.UPSTREAM));
+                    ctx.writeAndFlush(success);
+                    ChannelPipeline p = ctx.pipeline();
+                    for (Class<? extends ChannelHandler> each : SOCKS_HANDLERS) {
+                        if (p.get(each) != null) {
+                            p.remove(each);
+                        }
+                    }
+                    p.replace(SocksServerHandler.this, null, new RawRelayHandler(future.channel()));
+                } else {
+                    logger.info("Failed to connect {}", future.cause().toString());
+                    ctx.writeAndFlush(failure).addListener(ChannelFutureListener.CLOSE);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        logger.error("An exception was thrown:", cause);
+        RawRelayHandler.closeOnFlush(ctx.channel());
+    }
+
+}
@@ -2,19 +2,106 @@ package de.ganskef.shortcircuit.proxy;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+import de.ganskef.shortcircuit.metrics.FlightEvent;
+import de.ganskef.shortcircuit.metrics.LatencyHistogram;
+import de.ganskef.shortcircuit.metrics.Metrics;
 import de.ganskef.tls.MitmCertificate;
+import io.netty.handler.codec.http2.Http2SecurityUtil;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolConfig.Protocol;
+import io.netty.handler.ssl.ApplicationProtocolConfig.SelectedListenerFailureBehavior;
+import io.netty.handler.ssl.ApplicationProtocolConfig.SelectorFailureBehavior;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.OpenSsl;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
 
 /**
  * Provides Netty {@link SslContext}s for servers with properly signed
  * certificates by common name.
  * 
- * TODO caching
+ * The contexts are cached by common name, since minting a certificate takes
+ * a key pair generation. The cache is bounded, the least recently used
+ * context is dropped first. The names could be counted in an
+ * {@link AccessHistory} to mint the frequent ones after a restart before they
+ * are requested, see {@link CacheWarmer}.
+ * 
+ * Optionally the contexts offer HTTP/2 with ALPN, so a client multiplexes its
+ * requests to an origin over a single intercepted connection instead of
+ * handshaking several HTTP/1.1 connections. ALPN needs OpenSSL (netty-tcnative)
+ * or the Jetty ALPN boot jar of the running JDK, without it HTTP/1.1 is used.
  */
 public class SslContextFactory {
 
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(SslContextFactory.class);
+
+    private static final ApplicationProtocolConfig ALPN = new ApplicationProtocolConfig(Protocol.ALPN,
+            // the only modes supported by both, OpenSSL and JDK providers
+            SelectorFailureBehavior.NO_ADVERTISE, SelectedListenerFailureBehavior.ACCEPT,
+            ApplicationProtocolNames.HTTP_2, ApplicationProtocolNames.HTTP_1_1);
+
+    private static final LatencyHistogram MINT_TIME = Metrics.histogram("shortcircuit_certificate_mint_seconds",
+            "Time to create a certificate and its context for an intercepted host.");
+
+    /** More than the hosts minted by the {@link CacheWarmer} by default. */
+    public static final int DEFAULT_MAX_CONTEXTS = 2 * AccessHistory.DEFAULT_TOP_COUNT;
+
+    private final Map<String, SslContext> contexts;
+
+    private final AccessHistory history;
+
+    private volatile boolean http2;
+
+    public SslContextFactory() {
+        this(null);
+    }
+
+    public SslContextFactory(AccessHistory history) {
+        this(history, false);
+    }
+
+    /**
+     * Creates a factory offering HTTP/2 with ALPN if wanted and supported.
+     */
+    public SslContextFactory(AccessHistory history, boolean http2) {
+        this(history, http2, DEFAULT_MAX_CONTEXTS);
+    }
+
+    /**
+     * Creates a factory caching at most the given count of contexts.
+     */
+    public SslContextFactory(AccessHistory history, boolean http2, final int maxContexts) {
+        if (maxContexts <= 0) {
+            throw new IllegalArgumentException("maxContexts must be positive: " + maxContexts);
+        }
+        this.history = history;
+        this.http2 = http2;
+        this.contexts = new LinkedHashMap<String, SslContext>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SslContext> eldest) {
+                return size() > maxContexts;
+            }
+        };
+    }
+
+    /**
+     * Returns true if the contexts offer HTTP/2, false if not wanted or ALPN
+     * isn't supported.
+     */
+    public boolean isHttp2() {
+        return http2;
+    }
+
     /**
      * Returns an {@link SslContext} for a server with properly signed
      * certificates for the given common name CN. The name is usually the fully
@@ -22,6 +109,40 @@ public class SslContextFactory {
      * characters too.
      */
     public SslContext getSslContext(String commonName) throws GeneralSecurityException {
+        if (history != null) {
+            history.recordHost(commonName);
+        }
+        return mint(commonName);
+    }
+
+    /**
+     * Returns the cached {@link SslContext} for the common name, creates it if
+     * needed without counting it as a request.
+     */
+    public SslContext mint(String commonName) throws GeneralSecurityException {
+        SslContext result;
+        synchronized (contexts) {
+            result = contexts.get(commonName);
+        }
+        if (result == null) {
+            Object event = FlightEvent.CERTIFICATE_MINT.begin();
+            long start = System.nanoTime();
+            result = newSslContext(commonName);
+            MINT_TIME.record(System.nanoTime() - start);
+            FlightEvent.CERTIFICATE_MINT.commit(event, commonName, 0);
+            synchronized (contexts) {
+                SslContext previous = contexts.get(commonName);
+                if (previous != null) {
+                    result = previous;
+                } else {
+                    contexts.put(commonName, result);
+                }
+            }
+        }
+        return result;
+    }
+
+    private SslContext newSslContext(String commonName) throws GeneralSecurityException {
         try {
             MitmCertificate root = new MitmCertificate.RootBuilder() //
                     // TODO rebuild(boolean), Authority fields...
@@ -30,10 +151,33 @@ public class SslContextFactory {
                     .commonName(commonName) //
                     .issuedBy(root) //
                     .build();
-            return SslContextBuilder.forServer(fake.keyPair.getPrivate(), fake.certificate).build();
+            SslContextBuilder builder = SslContextBuilder.forServer(fake.keyPair.getPrivate(), fake.certificate);
+            if (http2) {
+                try {
+                    return builder.sslProvider(OpenSsl.isAlpnSupported() ? SslProvider.OPENSSL : SslProvider.JDK) //
+                            .ciphers(Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE) //
+                            .applicationProtocolConfig(ALPN) //
+                            .build();
+                } catch (RuntimeException | LinkageError e) {
+                    // thrown by the JDK provider without the Jetty ALPN classes
+                    logger.warn("ALPN not supported, fall back to HTTP/1.1: {}", e.toString());
+                    http2 = false;
+                    builder = SslContextBuilder.forServer(fake.keyPair.getPrivate(), fake.certificate);
+                }
+            }
+            return builder.build();
         } catch (IOException e) {
             throw new GeneralSecurityException(e);
         }
     }
 
+    /**
+     * Returns the count of the cached contexts.
+     */
+    public int size() {
+        synchronized (contexts) {
+            return contexts.size();
+        }
+    }
+
 }
@@ -0,0 +1,269 @@
+package de.ganskef.shortcircuit.proxy;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.regex.Pattern;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+
+/**
+ * The stage of the client pipeline recording the requests into the
+ * {@link TrafficJournal}, placed behind the HttpRequestDecoder like the
+ * {@link AccessLogHandler}. It takes the head of a decoded request before the
+ * URI is rewritten, counts the bytes of the request body, keeps the start of
+ * it if the journal wants it, and counts the bytes of the response body. A
+ * raw response is parsed for it, the head is skipped and a chunked body is
+ * counted without the chunk sizes. A record is appended if the
+ * response is complete, on the next request, an Upgrade or the end of the
+ * connection.
+ */
+public class TrafficCaptureHandler extends ChannelDuplexHandler {
+
+    private static final byte[] HEAD_END = { '\r', '\n', '\r', '\n' };
+
+    private static final Pattern CHUNKED = Pattern.compile("^transfer-encoding:.*chunked",
+            Pattern.CASE_INSENSITIVE);
+
+    private static final int MAX_LINE_LENGTH = 8192;
+
+    private static final int HEAD = 0;
+
+    private static final int BODY = 1;
+
+    private static final int CHUNK_SIZE = 2;
+
+    private static final int CHUNK_DATA = 3;
+
+    private static final int CHUNK_END = 4;
+
+    private static final int TRAILER = 5;
+
+    private final TrafficJournal journal;
+
+    private String head;
+
+    private String host;
+
+    private long start;
+
+    private long requestBytes;
+
+    private byte[] body;
+
+    private int bodyLength;
+
+    private int status;
+
+    private long responseBytes;
+
+    /** The state parsing a raw response. */
+    private int state;
+
+    /** The current line of a raw head, checked when it's complete. */
+    private final StringBuilder headLine = new StringBuilder();
+
+    private boolean chunked;
+
+    /** Bytes of the end of a raw head matched so far. */
+    private int headEndMatched;
+
+    private long chunkLeft;
+
+    private boolean chunkExtension;
+
+    public TrafficCaptureHandler(TrafficJournal journal) {
+        this.journal = journal;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HttpRequest) {
+            complete();
+            HttpRequest request = (HttpRequest) msg;
+            head = head(request);
+            host = host(request);
+            start = System.nanoTime();
+        }
+        if (head != null && msg instanceof HttpContent) {
+            ByteBuf content = ((HttpContent) msg).content();
+            requestBytes += content.readableBytes();
+            int wanted = journal.bodyBytes(requestBytes);
+            if (wanted > bodyLength) {
+                if (body == null || body.length < wanted) {
+                    body = body == null ? new byte[wanted] : Arrays.copyOf(body, wanted);
+                }
+                int n = wanted - bodyLength;
+                content.getBytes(content.readerIndex(), body, bodyLength, n);
+                bodyLength += n;
+            }
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    static String head(HttpRequest request) {
+        StringBuilder b = new StringBuilder(256);
+        b.append(request.method().name()).append(' ').append(request.uri()).append(' ')
+                .append(request.protocolVersion().text()).append("\r\n");
+        Iterator<Entry<CharSequence, CharSequence>> it = request.headers().iteratorCharSequence();
+        while (it.hasNext()) {
+            Entry<CharSequence, CharSequence> header = it.next();
+            b.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        return b.toString();
+    }
+
+    /**
+     * Returns the target as host:port, without resolving it.
+     */
+    static String host(HttpRequest request) {
+        String uri = request.uri();
+        if (HttpMethod.CONNECT.equals(request.method())) {
+            return uri;
+        }
+        int scheme = uri.indexOf("://");
+        String authority;
+        if (scheme != -1) {
+            int path = uri.indexOf('/', scheme + 3);
+            authority = uri.substring(scheme + 3, path == -1 ? uri.length() : path);
+        } else {
+            authority = request.headers().get(HttpHeaderNames.HOST);
+            if (authority == null) {
+                return null;
+            }
+        }
+        if (authority.lastIndexOf(':') <= authority.lastIndexOf(']')) {
+            authority += uri.startsWith("https") ? ":443" : ":80";
+        }
+        return authority;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (head != null) {
+            if (msg instanceof HttpResponse && status == 0) {
+                status = ((HttpResponse) msg).status().code();
+                state = BODY;
+            }
+            if (msg instanceof ByteBuf) {
+                ByteBuf buf = (ByteBuf) msg;
+                if (status == 0) {
+                    status = AccessLogHandler.parseStatus(buf);
+                }
+                responseBytes += bodyBytes(buf);
+            } else if (msg instanceof ByteBufHolder) {
+                responseBytes += ((ByteBufHolder) msg).content().readableBytes();
+            } else if (msg instanceof FileRegion) {
+                responseBytes += ((FileRegion) msg).count();
+            }
+        }
+        ctx.write(msg, promise);
+    }
+
+    /**
+     * Returns the bytes of the body of a raw response in the buffer, the head
+     * and the chunks may be split over several buffers.
+     */
+    private long bodyBytes(ByteBuf buf) {
+        long count = 0;
+        int i = buf.readerIndex();
+        int end = buf.writerIndex();
+        while (i < end) {
+            switch (state) {
+            case HEAD:
+                byte c = buf.getByte(i++);
+                if (c == '\n') {
+                    chunked |= CHUNKED.matcher(headLine).find();
+                    headLine.setLength(0);
+                } else if (headLine.length() < MAX_LINE_LENGTH) {
+                    headLine.append((char) (c & 0xff));
+                }
+                headEndMatched = c == HEAD_END[headEndMatched] ? headEndMatched + 1 : c == '\r' ? 1 : 0;
+                if (headEndMatched == HEAD_END.length) {
+                    state = chunked ? CHUNK_SIZE : BODY;
+                }
+                break;
+            case CHUNK_SIZE:
+                c = buf.getByte(i++);
+                int digit = Character.digit((char) c, 16);
+                if (c == '\n') {
+                    state = chunkLeft == 0 ? TRAILER : CHUNK_DATA;
+                    chunkExtension = false;
+                } else if (c == ';') {
+                    chunkExtension = true;
+                } else if (digit != -1 && !chunkExtension) {
+                    chunkLeft = chunkLeft * 16 + digit;
+                }
+                break;
+            case CHUNK_DATA:
+                int n = (int) Math.min(chunkLeft, end - i);
+                count += n;
+                i += n;
+                chunkLeft -= n;
+                if (chunkLeft == 0) {
+                    state = CHUNK_END;
+                }
+                break;
+            case CHUNK_END:
+                if (buf.getByte(i++) == '\n') {
+                    state = CHUNK_SIZE;
+                }
+                break;
+            case BODY:
+                count += end - i;
+                i = end;
+                break;
+            default:
+                // the trailer isn't counted
+                i = end;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof HttpResponseRelayHandler.ResponseComplete
+                || evt instanceof HttpResponseRelayHandler.Upgraded) {
+            complete();
+        }
+        ctx.fireUserEventTriggered(evt);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        complete();
+        ctx.fireChannelInactive();
+    }
+
+    private void complete() {
+        if (head == null) {
+            return;
+        }
+        journal.record(start, System.nanoTime() - start, host, head, status, requestBytes, responseBytes,
+                bodyLength == 0 ? null : Arrays.copyOf(body, bodyLength));
+        head = null;
+        host = null;
+        requestBytes = 0;
+        bodyLength = 0;
+        status = 0;
+        responseBytes = 0;
+        state = HEAD;
+        headLine.setLength(0);
+        chunked = false;
+        headEndMatched = 0;
+        chunkLeft = 0;
+        chunkExtension = false;
+    }
+
+}
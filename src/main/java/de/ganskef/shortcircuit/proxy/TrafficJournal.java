@@ -0,0 +1,461 @@
+package de.ganskef.shortcircuit.proxy;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import de.ganskef.shortcircuit.metrics.Metrics;
+import de.ganskef.shortcircuit.metrics.StripedCounter;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+/**
+ * An append-only binary journal of the requests passing the proxy, to replay
+ * the traffic of production against another build. A record keeps the time
+ * of the request since the journal started, its duration, the target host,
+ * the request head as sent by the client, the body sizes of request and
+ * response, the status and optionally the start of the request body.
+ *
+ * The file is memory-mapped in segments. A record is appended by claiming
+ * its bytes with a compare and set, marking them with the negative length,
+ * copying the record into the mapped segment and writing its length last.
+ * The next segment is mapped in a background thread when half of the current
+ * is used, so the callers on the event loops neither lock nor make a system
+ * call, unless the records outrun the mapping. A
+ * record not complete is skipped like padding by the readers, and the records
+ * behind it are kept if the journal is opened again. A record never crosses a
+ * segment, the rest of the segment is padded instead. The file is extended a
+ * segment at a time, so it ends with zeros, which mark the end.
+ *
+ * <pre>
+ * header:  int magic, int version, int segment bytes, int 0, long start millis, long 0
+ * record:  int length (negative for padding or not complete), int status, long offset nanos, long duration nanos,
+ *          long request bytes, long response bytes, short host length, host UTF-8,
+ *          int head length, head ISO-8859-1, int body length, body, 0 to 7 bytes to align
+ * </pre>
+ */
+public class TrafficJournal implements Closeable {
+
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(TrafficJournal.class);
+
+    public static final int DEFAULT_SEGMENT_BYTES = 16 * 1024 * 1024;
+
+    public static final long DEFAULT_MAX_FILE_BYTES = 1024L * 1024 * 1024;
+
+    private static final int MAGIC = 0x53434a31;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_BYTES = 32;
+
+    /** The fixed part of a record up to the host. */
+    private static final int FIXED_BYTES = 42;
+
+    private static final StripedCounter DROPPED = Metrics.counter("shortcircuit_traffic_journal_dropped_total",
+            "Requests not recorded in the traffic journal since it was full.");
+
+    private final File file;
+
+    private final int segmentBytes;
+
+    private final long maxFileBytes;
+
+    private final int maxBodyBytes;
+
+    private final FileChannel channel;
+
+    private final AtomicReferenceArray<MappedByteBuffer> segments;
+
+    private final AtomicLong position;
+
+    /** The nano time the offsets of the records are relative to. */
+    private final long base;
+
+    /** The index of the last segment mapped or asked to be mapped. */
+    private final AtomicInteger premapped = new AtomicInteger();
+
+    private final ExecutorService mapper = Executors
+            .newSingleThreadExecutor(new DefaultThreadFactory("journal", true, Thread.MIN_PRIORITY));
+
+    private volatile boolean closed;
+
+    /**
+     * Opens a journal recording the heads without bodies, appending to the
+     * records of the file if it exists.
+     */
+    public TrafficJournal(File file) throws IOException {
+        this(file, DEFAULT_SEGMENT_BYTES, DEFAULT_MAX_FILE_BYTES, 0);
+    }
+
+    /**
+     * Opens a journal recording at most the given bytes of each request body.
+     * The segment size of an existing file is kept.
+     */
+    public TrafficJournal(File file, int segmentBytes, long maxFileBytes, int maxBodyBytes) throws IOException {
+        this.file = file;
+        this.maxFileBytes = maxFileBytes;
+        this.maxBodyBytes = maxBodyBytes;
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+        long startMillis;
+        if (channel.size() >= HEADER_BYTES) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            channel.read(header, 0);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                channel.close();
+                throw new IOException("Not a traffic journal: " + file);
+            }
+            this.segmentBytes = header.getInt(8);
+            startMillis = header.getLong(16);
+        } else {
+            this.segmentBytes = align(Math.max(segmentBytes, 4096));
+            startMillis = System.currentTimeMillis();
+        }
+        this.segments = new AtomicReferenceArray<MappedByteBuffer>((int) (maxFileBytes / this.segmentBytes) + 1);
+        this.base = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - startMillis);
+        MappedByteBuffer first = segment(0);
+        if (first.getInt(0) != MAGIC) {
+            first.putInt(0, MAGIC);
+            first.putInt(4, VERSION);
+            first.putInt(8, this.segmentBytes);
+            first.putLong(16, startMillis);
+        }
+        this.position = new AtomicLong(end());
+        this.premapped.set((int) (position.get() / segmentBytes));
+    }
+
+    private static int align(int bytes) {
+        return (bytes + 7) & ~7;
+    }
+
+    private MappedByteBuffer segment(int index) throws IOException {
+        MappedByteBuffer result = segments.get(index);
+        if (result == null) {
+            synchronized (segments) {
+                result = segments.get(index);
+                if (result == null) {
+                    result = channel.map(MapMode.READ_WRITE, (long) index * segmentBytes, segmentBytes);
+                    segments.set(index, result);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Maps the segment of the given index in the background, before the
+     * records reach it.
+     */
+    private void premap(final int index) {
+        int requested = premapped.get();
+        if (index <= requested || (long) (index + 1) * segmentBytes > maxFileBytes
+                || !premapped.compareAndSet(requested, index)) {
+            return;
+        }
+        try {
+            mapper.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        segment(index);
+                    } catch (IOException e) {
+                        logger.debug("Segment {} not mapped in advance: {}", index, e.toString());
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.debug("Segment {} not mapped, closed", index);
+        }
+    }
+
+    /** Returns true if the segment of the given index is mapped. */
+    boolean isMapped(int index) {
+        return segments.get(index) != null;
+    }
+
+    /** Returns the position behind the last record of the file. */
+    private long end() throws IOException {
+        long pos = HEADER_BYTES;
+        long size = channel.size();
+        while (pos < size) {
+            int length = segment((int) (pos / segmentBytes)).getInt((int) (pos % segmentBytes));
+            if (length == 0) {
+                break;
+            }
+            pos += Math.abs(length);
+        }
+        return pos;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /** Returns the nano time of the start of the journal. */
+    public long getBase() {
+        return base;
+    }
+
+    /**
+     * Returns the bytes to record of a request body of the given length.
+     */
+    public int bodyBytes(long length) {
+        return (int) Math.min(maxBodyBytes, Math.max(0, length));
+    }
+
+    /**
+     * Appends a record, returns false if it's dropped since the file is full.
+     * The body may be null or shorter than recorded for the request.
+     *
+     * @param startNanos
+     *            the nano time the request was received
+     */
+    public boolean record(long startNanos, long durationNanos, String host, String head, int status,
+            long requestBytes, long responseBytes, byte[] body) {
+        byte[] hostBytes = (host == null ? "" : host).getBytes(StandardCharsets.UTF_8);
+        byte[] headBytes = head.getBytes(StandardCharsets.ISO_8859_1);
+        int bodyLength = body == null ? 0 : Math.min(body.length, maxBodyBytes);
+        int length = align(FIXED_BYTES + Math.min(hostBytes.length, Short.MAX_VALUE) + 4 + headBytes.length + 4
+                + bodyLength);
+        long offset = closed ? -1 : claim(length);
+        if (offset == -1) {
+            DROPPED.increment();
+            return false;
+        }
+        try {
+            MappedByteBuffer segment = segment((int) (offset / segmentBytes));
+            int index = (int) (offset % segmentBytes);
+            if (index + length > segmentBytes / 2) {
+                premap((int) (offset / segmentBytes) + 1);
+            }
+            // skipped until complete, the records behind are found
+            segment.putInt(index, -length);
+            ByteBuffer b = segment.duplicate();
+            ((Buffer) b).position(index + 4);
+            b.putInt(status);
+            b.putLong(startNanos - base);
+            b.putLong(durationNanos);
+            b.putLong(requestBytes);
+            b.putLong(responseBytes);
+            b.putShort((short) Math.min(hostBytes.length, Short.MAX_VALUE));
+            b.put(hostBytes, 0, Math.min(hostBytes.length, Short.MAX_VALUE));
+            b.putInt(headBytes.length);
+            b.put(headBytes);
+            b.putInt(bodyLength);
+            if (bodyLength > 0) {
+                b.put(body, 0, bodyLength);
+            }
+            // the length published last marks the record complete
+            segment.putInt(index, length);
+            return true;
+        } catch (IOException e) {
+            logger.warn("Traffic journal not written:", e);
+            return false;
+        }
+    }
+
+    /**
+     * Returns the offset of the bytes claimed, -1 if the file is full. The
+     * rest of a segment too small for the record is padded.
+     */
+    private long claim(int length) {
+        if (length > segmentBytes) {
+            return -1;
+        }
+        while (true) {
+            long pos = position.get();
+            long segmentEnd = (pos / segmentBytes + 1) * segmentBytes;
+            if (pos + length <= segmentEnd) {
+                if (segmentEnd > maxFileBytes) {
+                    return -1;
+                }
+                if (position.compareAndSet(pos, pos + length)) {
+                    return pos;
+                }
+            } else if (position.compareAndSet(pos, segmentEnd)) {
+                try {
+                    segment((int) (pos / segmentBytes)).putInt((int) (pos % segmentBytes), (int) (pos - segmentEnd));
+                } catch (IOException e) {
+                    logger.warn("Traffic journal not padded:", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the mapped segments to the file and closes it.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        mapper.shutdown();
+        for (int i = 0; i < segments.length(); i++) {
+            MappedByteBuffer segment = segments.get(i);
+            if (segment != null) {
+                segment.force();
+            }
+        }
+        channel.close();
+    }
+
+    /**
+     * Opens a reader of the records of the given journal.
+     */
+    public static Reader read(File file) throws IOException {
+        return new Reader(file);
+    }
+
+    /**
+     * Reads the records of a journal in the order they were appended, one at a
+     * time:
+     *
+     * <pre>
+     * while (reader.next()) {
+     *     reader.head() ...
+     * }
+     * </pre>
+     */
+    public static class Reader implements Closeable {
+
+        private final FileChannel channel;
+
+        private final int segmentBytes;
+
+        private final long startMillis;
+
+        private final long size;
+
+        private MappedByteBuffer segment;
+
+        private int segmentIndex = -1;
+
+        private long pos = HEADER_BYTES;
+
+        private int status;
+
+        private long offsetNanos;
+
+        private long durationNanos;
+
+        private long requestBytes;
+
+        private long responseBytes;
+
+        private String host;
+
+        private String head;
+
+        private byte[] body;
+
+        Reader(File file) throws IOException {
+            channel = new RandomAccessFile(file, "r").getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            channel.read(header, 0);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                channel.close();
+                throw new IOException("Not a traffic journal: " + file);
+            }
+            segmentBytes = header.getInt(8);
+            startMillis = header.getLong(16);
+            size = channel.size();
+        }
+
+        /** Returns the time the journal was started. */
+        public long startMillis() {
+            return startMillis;
+        }
+
+        /** Moves to the next record, returns false at the end. */
+        public boolean next() throws IOException {
+            while (pos < size) {
+                int index = (int) (pos / segmentBytes);
+                if (index != segmentIndex) {
+                    segment = channel.map(MapMode.READ_ONLY, (long) index * segmentBytes,
+                            Math.min(segmentBytes, size - (long) index * segmentBytes));
+                    segmentIndex = index;
+                }
+                int start = (int) (pos % segmentBytes);
+                int length = segment.getInt(start);
+                if (length == 0) {
+                    return false;
+                }
+                pos += Math.abs(length);
+                if (length > 0) {
+                    ByteBuffer b = segment.duplicate();
+                    ((Buffer) b).position(start + 4);
+                    status = b.getInt();
+                    offsetNanos = b.getLong();
+                    durationNanos = b.getLong();
+                    requestBytes = b.getLong();
+                    responseBytes = b.getLong();
+                    byte[] hostBytes = new byte[b.getShort()];
+                    b.get(hostBytes);
+                    host = new String(hostBytes, StandardCharsets.UTF_8);
+                    byte[] headBytes = new byte[b.getInt()];
+                    b.get(headBytes);
+                    head = new String(headBytes, StandardCharsets.ISO_8859_1);
+                    body = new byte[b.getInt()];
+                    b.get(body);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public int status() {
+            return status;
+        }
+
+        /** Returns the nanoseconds from the start of the journal. */
+        public long offsetNanos() {
+            return offsetNanos;
+        }
+
+        public long durationNanos() {
+            return durationNanos;
+        }
+
+        public long requestBytes() {
+            return requestBytes;
+        }
+
+        public long responseBytes() {
+            return responseBytes;
+        }
+
+        /** Returns the target as host:port. */
+        public String host() {
+            return host;
+        }
+
+        /** Returns the request line and the headers, as received. */
+        public String head() {
+            return head;
+        }
+
+        /** Returns the start of the request body, empty if not recorded. */
+        public byte[] body() {
+            return body;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+}
@@ -0,0 +1,128 @@
+package de.ganskef.shortcircuit.proxy.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A satisfiable byte range of a representation, see RFC 7233 section 2.1. The
+ * positions are zero based and inclusive.
+ */
+public final class ByteRange {
+
+    private static final String BYTES_UNIT = "bytes=";
+
+    /**
+     * More ranges are ignored to answer with the whole representation, lots of
+     * small or overlapping ranges would amplify the response, see
+     * CVE-2011-3192.
+     */
+    static final int MAX_RANGES = 16;
+
+    public final long first;
+
+    public final long last;
+
+    public ByteRange(long first, long last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    public long length() {
+        return last - first + 1;
+    }
+
+    /**
+     * Returns the value of a Content-Range header for this range of a
+     * representation with the given complete length.
+     */
+    public String contentRange(long completeLength) {
+        return "bytes " + first + "-" + last + "/" + completeLength;
+    }
+
+    /**
+     * Parses the value of a Range header to the ranges satisfiable in a
+     * representation of the given length. Returns an empty list if none is
+     * satisfiable (416), or null if the header is malformed or has too many
+     * ranges and has to be ignored. Overlapping and adjacent ranges are merged
+     * in ascending order.
+     */
+    public static List<ByteRange> parse(String value, long length) {
+        if (value == null || !value.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) {
+            return null;
+        }
+        String[] specs = value.substring(BYTES_UNIT.length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<ByteRange> result = new ArrayList<ByteRange>();
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash == -1) {
+                return null;
+            }
+            try {
+                String firstPos = spec.substring(0, dash).trim();
+                String lastPos = spec.substring(dash + 1).trim();
+                long first;
+                long last;
+                if (firstPos.isEmpty()) {
+                    // suffix-byte-range-spec
+                    long suffix = Long.parseLong(lastPos);
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    first = Math.max(0, length - suffix);
+                    last = length - 1;
+                    if (suffix == 0) {
+                        continue;
+                    }
+                } else {
+                    first = Long.parseLong(firstPos);
+                    last = lastPos.isEmpty() ? length - 1 : Math.min(Long.parseLong(lastPos), length - 1);
+                    if (first < 0 || (!lastPos.isEmpty() && Long.parseLong(lastPos) < first)) {
+                        return null;
+                    }
+                }
+                if (first < length) {
+                    result.add(new ByteRange(first, last));
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return Collections.unmodifiableList(merge(result));
+    }
+
+    private static List<ByteRange> merge(List<ByteRange> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        Collections.sort(ranges, new Comparator<ByteRange>() {
+            @Override
+            public int compare(ByteRange o1, ByteRange o2) {
+                return o1.first < o2.first ? -1 : (o1.first == o2.first ? 0 : 1);
+            }
+        });
+        List<ByteRange> result = new ArrayList<ByteRange>();
+        ByteRange current = ranges.get(0);
+        for (ByteRange each : ranges.subList(1, ranges.size())) {
+            if (each.first <= current.last + 1) {
+                current = new ByteRange(current.first, Math.max(current.last, each.last));
+            } else {
+                result.add(current);
+                current = each;
+            }
+        }
+        result.add(current);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return first + "-" + last;
+    }
+
+}
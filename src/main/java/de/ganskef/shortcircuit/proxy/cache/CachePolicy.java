@@ -0,0 +1,37 @@
+package de.ganskef.shortcircuit.proxy.cache;
+
+import java.util.List;
+
+/**
+ * Decides which keys are kept in a cache limited by the sum of the weights of
+ * its entries. It's not thread safe, the owning cache has to synchronize.
+ */
+public interface CachePolicy {
+
+    /**
+     * Records a request of the key, whether it's stored or not.
+     */
+    void recordAccess(String key);
+
+    /**
+     * Adds the key or updates its weight. Returns the keys to evict to make
+     * room, containing the given key itself if it's not admitted.
+     */
+    List<String> admit(String key, long weight);
+
+    /**
+     * Removes the key if it's removed from the cache for other reasons.
+     */
+    void remove(String key);
+
+    /**
+     * Returns the sum of the weights of the admitted keys.
+     */
+    long weight();
+
+    /**
+     * Returns the count of the admitted keys.
+     */
+    int size();
+
+}
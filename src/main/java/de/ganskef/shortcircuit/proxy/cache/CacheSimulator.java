@@ -0,0 +1,170 @@
+package de.ganskef.shortcircuit.proxy.cache;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import io.netty.util.CharsetUtil;
+
+/**
+ * Replays an access log against the cache policies to compare their hit
+ * ratios for a given capacity. It's an example to tune the cache size with
+ * the traffic of your own proxy.
+ *
+ * Lines are in the Common Log Format, or simply an URI optionally followed by
+ * the length of the response. Requests for the same URI are counted with the
+ * length of the first.
+ *
+ * <pre>
+ * java de.ganskef.shortcircuit.proxy.cache.CacheSimulator access.log 64m 256m
+ * </pre>
+ */
+public class CacheSimulator {
+
+    private static final Pattern COMMON_LOG = Pattern.compile("\"\\S+ (\\S+)[^\"]*\" \\d{3} (\\d+|-)");
+
+    private static final long DEFAULT_LENGTH = 1;
+
+    static final class Access {
+
+        final String key;
+
+        final long length;
+
+        Access(String key, long length) {
+            this.key = key;
+            this.length = length;
+        }
+    }
+
+    /**
+     * The ratios of the requests and of the bytes served from the cache.
+     */
+    public static final class Result {
+
+        long requests;
+
+        long hits;
+
+        long bytes;
+
+        long hitBytes;
+
+        public double hitRatio() {
+            return requests == 0 ? 0 : (double) hits / requests;
+        }
+
+        public double byteHitRatio() {
+            return bytes == 0 ? 0 : (double) hitBytes / bytes;
+        }
+    }
+
+    private final List<Access> accesses = new ArrayList<Access>();
+
+    /**
+     * Adds a line of an access log, ignores it if it's not parsable.
+     */
+    public void add(String line) {
+        Access access = parse(line);
+        if (access != null) {
+            accesses.add(access);
+        }
+    }
+
+    static Access parse(String line) {
+        Matcher matcher = COMMON_LOG.matcher(line);
+        if (matcher.find()) {
+            String length = matcher.group(2);
+            return new Access(matcher.group(1), length.equals("-") ? DEFAULT_LENGTH : Long.parseLong(length));
+        }
+        String[] tokens = line.trim().split("\\s+");
+        if (tokens[0].isEmpty() || tokens[0].startsWith("#")) {
+            return null;
+        }
+        try {
+            return new Access(tokens[0], tokens.length > 1 ? Long.parseLong(tokens[1]) : DEFAULT_LENGTH);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Replays the added requests, a miss is admitted to the policy.
+     */
+    public Result replay(CachePolicy policy) {
+        Result result = new Result();
+        Set<String> stored = new HashSet<String>();
+        Map<String, Long> lengths = new HashMap<String, Long>();
+        for (Access each : accesses) {
+            Long length = lengths.get(each.key);
+            if (length == null) {
+                length = each.length;
+                lengths.put(each.key, length);
+            }
+            result.requests++;
+            result.bytes += length;
+            policy.recordAccess(each.key);
+            if (stored.contains(each.key)) {
+                result.hits++;
+                result.hitBytes += length;
+            } else {
+                stored.add(each.key);
+                stored.removeAll(policy.admit(each.key, length));
+            }
+        }
+        return result;
+    }
+
+    static long parseCapacity(String value) {
+        String lower = value.toLowerCase();
+        long unit = 1;
+        if (lower.endsWith("k")) {
+            unit = 1024;
+        } else if (lower.endsWith("m")) {
+            unit = 1024 * 1024;
+        } else if (lower.endsWith("g")) {
+            unit = 1024 * 1024 * 1024;
+        }
+        String digits = unit == 1 ? lower : lower.substring(0, lower.length() - 1);
+        return Long.parseLong(digits) * unit;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: CacheSimulator <access-log> <capacity>...");
+            System.exit(1);
+        }
+        CacheSimulator simulator = new CacheSimulator();
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(args[0]), CharsetUtil.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                simulator.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        System.out.printf("%-8s %14s %10s %10s%n", "policy", "capacity", "hits", "byte hits");
+        for (int i = 1; i < args.length; i++) {
+            long capacity = parseCapacity(args[i]);
+            print("lru", capacity, simulator.replay(new LruPolicy(capacity)));
+            print("tinylfu", capacity, simulator.replay(new TinyLfuPolicy(capacity)));
+        }
+    }
+
+    private static void print(String policy, long capacity, Result result) {
+        System.out.printf("%-8s %14d %9.2f%% %9.2f%%%n", policy, capacity, 100 * result.hitRatio(),
+                100 * result.byteHitRatio());
+    }
+
+}
@@ -0,0 +1,448 @@
+package de.ganskef.shortcircuit.proxy.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import de.ganskef.shortcircuit.utils.HttpResponseUtil;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.FileRegion;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+/**
+ * A response stored in the {@link ResponseCache}. The head is kept in memory,
+ * the body is written to a file while it's received from upstream. So it's
+ * possible to serve parts of it before the download is completed.
+ *
+ * The body is served with {@link FileRegion}s to transfer it without copying
+ * to user space.
+ */
+public class CachedResponse {
+
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(CachedResponse.class);
+
+    /** Limit of the head to protect against garbage. */
+    private static final int MAX_HEAD_LENGTH = 16 * 1024;
+
+    /**
+     * Notified if the requested bytes are stored, or the recording is
+     * aborted. It's called by the thread receiving the response.
+     */
+    public interface Listener {
+
+        void available(CachedResponse response);
+
+        void aborted(CachedResponse response);
+
+    }
+
+    private static final class Waiter {
+
+        final long end;
+
+        final Listener listener;
+
+        Waiter(long end, Listener listener) {
+            this.end = end;
+            this.listener = listener;
+        }
+    }
+
+    private final ResponseCache cache;
+
+    private final String uri;
+
+    private final File file;
+
+    private final long storedAt = System.currentTimeMillis();
+
+    private final List<Waiter> waiters = new ArrayList<Waiter>();
+
+    private HttpHeaders requestHeaders;
+
+    private long variantKey;
+
+    private ByteBuf headBuffer = Unpooled.buffer();
+
+    private FileChannel out;
+
+    private volatile HttpResponse head;
+
+    private volatile long contentLength = -1;
+
+    private volatile long available;
+
+    private volatile boolean complete;
+
+    private volatile boolean aborted;
+
+    private volatile boolean deleted;
+
+    private volatile File compressed;
+
+    private volatile long compressedLength;
+
+    private final AtomicBoolean compressing = new AtomicBoolean();
+
+    CachedResponse(ResponseCache cache, String uri, HttpHeaders requestHeaders, File file) throws IOException {
+        this.cache = cache;
+        this.uri = uri;
+        this.requestHeaders = requestHeaders;
+        this.file = file;
+        this.out = new RandomAccessFile(file, "rw").getChannel();
+    }
+
+    public String uri() {
+        return uri;
+    }
+
+    /**
+     * Returns the key of this variant of the URI, see {@link VaryKey}.
+     */
+    public long variantKey() {
+        return variantKey;
+    }
+
+    /**
+     * Computes the variant key with the headers of the recorded request. It's
+     * called once the response is admitted to the cache.
+     */
+    long selectVariant(String[] varyNames) {
+        variantKey = VaryKey.of(varyNames, requestHeaders);
+        requestHeaders = null;
+        return variantKey;
+    }
+
+    /**
+     * Returns the head of the response, or null if it's not received yet.
+     */
+    public HttpResponse head() {
+        return head;
+    }
+
+    public long contentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Returns the count of bytes of the body stored yet.
+     */
+    public long available() {
+        return available;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public boolean isAborted() {
+        return aborted;
+    }
+
+    /**
+     * Returns true if the response could be served without validation, see RFC
+     * 7234 section 4.2. The heuristic freshness of Last-Modified is used if
+     * there is no explicit expiration time.
+     */
+    public boolean isFresh(long now) {
+        HttpResponse response = head;
+        if (response == null) {
+            return false;
+        }
+        HttpHeaders headers = response.headers();
+        long age = ageMillis(now);
+        long lifetime = 0;
+        String cacheControl = headers.get(HttpHeaderNames.CACHE_CONTROL);
+        Long maxAge = cacheControl == null ? null : maxAge(cacheControl);
+        Long date = headers.getTimeMillis(HttpHeaderNames.DATE);
+        long responseTime = date == null ? storedAt : date;
+        if (maxAge != null) {
+            lifetime = maxAge * 1000L;
+        } else if (headers.contains(HttpHeaderNames.EXPIRES)) {
+            lifetime = headers.getTimeMillis(HttpHeaderNames.EXPIRES, 0L) - responseTime;
+        } else if (headers.contains(HttpHeaderNames.LAST_MODIFIED)) {
+            lifetime = (responseTime - headers.getTimeMillis(HttpHeaderNames.LAST_MODIFIED, responseTime)) / 10;
+        }
+        return age < lifetime;
+    }
+
+    /**
+     * Returns the current age of the response in seconds, see RFC 7234
+     * section 4.2.3.
+     */
+    public long age(long now) {
+        return ageMillis(now) / 1000L;
+    }
+
+    private long ageMillis(long now) {
+        HttpResponse response = head;
+        int upstreamAge = response == null ? 0 : response.headers().getInt(HttpHeaderNames.AGE, 0);
+        return now - storedAt + 1000L * upstreamAge;
+    }
+
+    private static Long maxAge(String cacheControl) {
+        Long result = null;
+        for (String each : cacheControl.split(",")) {
+            String directive = each.trim().toLowerCase();
+            if (directive.startsWith("s-maxage=")) {
+                return parseSeconds(directive.substring("s-maxage=".length()));
+            } else if (directive.startsWith("max-age=")) {
+                result = parseSeconds(directive.substring("max-age=".length()));
+            }
+        }
+        return result;
+    }
+
+    private static Long parseSeconds(String value) {
+        try {
+            return Long.parseLong(value.replace("\"", ""));
+        } catch (NumberFormatException e) {
+            return 0L;
+        }
+    }
+
+    /**
+     * Returns true if the response is allowed to be stored in a shared cache,
+     * and it's possible to serve ranges of it.
+     */
+    static boolean isCacheable(HttpResponse response) {
+        HttpHeaders headers = response.headers();
+        if (response.status().code() != HttpResponseStatus.OK.code() //
+                || !headers.contains(HttpHeaderNames.CONTENT_LENGTH) //
+                || HttpUtil.isTransferEncodingChunked(response) //
+                || headers.contains(HttpHeaderNames.SET_COOKIE) //
+                || VaryKey.parseVary(headers.getAll(HttpHeaderNames.VARY)) == null) {
+            return false;
+        }
+        String cacheControl = headers.get(HttpHeaderNames.CACHE_CONTROL);
+        if (cacheControl != null) {
+            String directives = cacheControl.toLowerCase();
+            if (directives.contains(HttpHeaderValues.NO_STORE) || directives.contains(HttpHeaderValues.NO_CACHE)
+                    || directives.contains(HttpHeaderValues.PRIVATE)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Appends a buffer of the raw response received from upstream without
+     * taking the ownership of it.
+     */
+    void append(ByteBuf buf) {
+        if (complete || aborted) {
+            return;
+        }
+        try {
+            if (head == null) {
+                headBuffer.writeBytes(buf, buf.readerIndex(), buf.readableBytes());
+                int headEnd = HttpResponseUtil.indexOfHeadEnd(headBuffer);
+                if (headEnd == -1) {
+                    if (headBuffer.readableBytes() > MAX_HEAD_LENGTH) {
+                        abort();
+                    }
+                    return;
+                }
+                HttpResponse response = HttpResponseUtil.decodeHead(headBuffer.slice(0, headEnd));
+                if (response == null || !isCacheable(response)) {
+                    abort();
+                    return;
+                }
+                contentLength = HttpUtil.getContentLength(response);
+                head = response;
+                if (!cache.admit(this)) {
+                    abort();
+                    return;
+                }
+                headBuffer.readerIndex(headEnd);
+                write(headBuffer);
+                headBuffer.release();
+                headBuffer = null;
+            } else {
+                write(buf);
+            }
+        } catch (IOException e) {
+            logger.warn("Recording of {} failed:", uri, e);
+            abort();
+        }
+    }
+
+    private void write(ByteBuf buf) throws IOException {
+        int length = buf.readableBytes();
+        if (available + length > contentLength) {
+            throw new IOException("Body exceeds content length " + contentLength);
+        }
+        int index = buf.readerIndex();
+        while (index < buf.writerIndex()) {
+            index += buf.getBytes(index, out, available + index - buf.readerIndex(), buf.writerIndex() - index);
+        }
+        available += length;
+        notifyWaiters();
+    }
+
+    /**
+     * Marks the recording as finished since upstream is closed. It's aborted if
+     * the body is incomplete.
+     */
+    void complete() {
+        if (complete || aborted) {
+            return;
+        }
+        if (head == null || available != contentLength) {
+            abort();
+            return;
+        }
+        complete = true;
+        closeQuietly();
+        notifyWaiters();
+    }
+
+    /**
+     * Stops the recording and removes the response from the cache.
+     */
+    void abort() {
+        if (complete || aborted) {
+            return;
+        }
+        aborted = true;
+        closeQuietly();
+        if (headBuffer != null) {
+            headBuffer.release();
+            headBuffer = null;
+        }
+        cache.remove(this);
+        delete();
+        notifyWaiters();
+    }
+
+    /**
+     * Deletes the body if the response is removed from the cache.
+     */
+    void evicted() {
+        if (complete) {
+            delete();
+        } else {
+            abort();
+        }
+    }
+
+    private void delete() {
+        deleted = true;
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+        File variant = compressed;
+        if (variant != null && !variant.delete()) {
+            variant.deleteOnExit();
+        }
+    }
+
+    private void closeQuietly() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                logger.debug("Close of {} failed:", file, e);
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * Calls the listener as soon as the body is available up to the given
+     * position exclusive. It's called immediately if already available.
+     */
+    public void whenAvailable(long end, Listener listener) {
+        synchronized (waiters) {
+            if (!aborted && available < end) {
+                waiters.add(new Waiter(end, listener));
+                return;
+            }
+        }
+        notify(listener);
+    }
+
+    private void notifyWaiters() {
+        List<Listener> ready = new ArrayList<Listener>();
+        synchronized (waiters) {
+            for (Iterator<Waiter> it = waiters.iterator(); it.hasNext();) {
+                Waiter each = it.next();
+                if (aborted || available >= each.end) {
+                    ready.add(each.listener);
+                    it.remove();
+                }
+            }
+        }
+        for (Listener each : ready) {
+            notify(each);
+        }
+    }
+
+    private void notify(Listener listener) {
+        if (aborted) {
+            listener.aborted(this);
+        } else {
+            listener.available(this);
+        }
+    }
+
+    /**
+     * Returns a region of the stored body to transfer it with zero copy. The
+     * positions are zero based, the last is inclusive.
+     */
+    public FileRegion region(long first, long last) throws IOException {
+        FileChannel in = new RandomAccessFile(file, "r").getChannel();
+        return new DefaultFileRegion(in, first, last - first + 1);
+    }
+
+    File file() {
+        return file;
+    }
+
+    /**
+     * Returns true for the first caller only, to compress the body once.
+     */
+    boolean startCompression() {
+        return compressing.compareAndSet(false, true);
+    }
+
+    /**
+     * Attaches the compressed variant of a complete body. Returns false if
+     * the response was evicted in the meantime.
+     */
+    boolean attachCompressed(File variant, long length) {
+        compressedLength = length;
+        compressed = variant;
+        if (deleted) {
+            compressed = null;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the gzip compressed body, or null if it's not available.
+     */
+    public File compressed() {
+        return compressed;
+    }
+
+    public long compressedLength() {
+        return compressedLength;
+    }
+
+}
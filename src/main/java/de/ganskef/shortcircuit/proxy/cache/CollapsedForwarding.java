@@ -0,0 +1,190 @@
+package de.ganskef.shortcircuit.proxy.cache;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpUtil;
+
+/**
+ * Collapses concurrent identical requests to a single upstream fetch. The
+ * first request becomes the leader and opens the upstream connection, later
+ * requests to the same URI subscribe to the {@link CollapsedResponse} of the
+ * leader and get the same bytes fanned out, if the response may be shared.
+ *
+ * An instance is shared by all connections of a proxy server, so it's thread
+ * safe.
+ */
+public class CollapsedForwarding {
+
+    /** Bytes kept to replay the response from the start to late subscribers. */
+    public static final int DEFAULT_MAX_REPLAY_BYTES = 1024 * 1024;
+
+    /** Bytes a subscriber may lag behind the fastest before it's detached. */
+    public static final int DEFAULT_MAX_LAG_BYTES = 8 * 1024 * 1024;
+
+    /** Bytes pending for a subscriber to still ask upstream for more. */
+    public static final int DEFAULT_HIGH_WATER_BYTES = 64 * 1024;
+
+    /**
+     * Request headers responses usually vary on. Requests collapse only if
+     * they are equal, since the Vary header of the response isn't known
+     * before.
+     */
+    private static final String[] KEY_HEADERS = { "accept", "accept-encoding", "accept-language" };
+
+    /**
+     * Status codes of responses cacheable by default, see RFC 7231 section
+     * 6.1, without partial content and server errors.
+     */
+    private static final int[] SHAREABLE_STATUS = { 200, 203, 204, 300, 301, 404, 405, 410, 414 };
+
+    private final ConcurrentMap<String, CollapsedResponse> inFlight = new ConcurrentHashMap<String, CollapsedResponse>();
+
+    private final int maxReplayBytes;
+
+    private final int maxLagBytes;
+
+    private final int highWaterBytes;
+
+    private final ResponseCache responseCache;
+
+    public CollapsedForwarding() {
+        this(null);
+    }
+
+    /**
+     * Creates a collapsed forwarding recording the responses of the leaders
+     * into the given cache, if not null.
+     */
+    public CollapsedForwarding(ResponseCache responseCache) {
+        this(DEFAULT_MAX_REPLAY_BYTES, DEFAULT_MAX_LAG_BYTES, DEFAULT_HIGH_WATER_BYTES, responseCache);
+    }
+
+    public CollapsedForwarding(int maxReplayBytes, int maxLagBytes, int highWaterBytes) {
+        this(maxReplayBytes, maxLagBytes, highWaterBytes, null);
+    }
+
+    public CollapsedForwarding(int maxReplayBytes, int maxLagBytes, int highWaterBytes,
+            ResponseCache responseCache) {
+        this.maxReplayBytes = maxReplayBytes;
+        this.maxLagBytes = maxLagBytes;
+        this.highWaterBytes = highWaterBytes;
+        this.responseCache = responseCache;
+    }
+
+    /**
+     * Returns the cache the responses are recorded into, or null.
+     */
+    public ResponseCache responseCache() {
+        return responseCache;
+    }
+
+    /**
+     * Returns true if the request could be answered with the response of an
+     * other client. It has to be a GET without a body, and without any
+     * credentials or partial content which would differ per client.
+     */
+    public boolean isCollapsible(HttpRequest request) {
+        return request.method() == HttpMethod.GET //
+                && !HttpUtil.isTransferEncodingChunked(request) //
+                && HttpUtil.getContentLength(request, 0L) == 0L //
+                && !request.headers().contains(HttpHeaderNames.RANGE) //
+                && !request.headers().contains(HttpHeaderNames.AUTHORIZATION) //
+                && !request.headers().contains(HttpHeaderNames.PROXY_AUTHORIZATION) //
+                && !request.headers().contains(HttpHeaderNames.COOKIE) //
+                && !request.headers().contains(HttpHeaderNames.UPGRADE);
+    }
+
+    /**
+     * Subscribes the channel to the response of the given request. If there is
+     * no request to the same URI with equal content negotiation in flight, the
+     * returned subscriber is the leader and has to fetch the response upstream,
+     * publishing the received buffers into its {@link CollapsedResponse}.
+     */
+    public CollapsedResponse.Subscriber subscribe(HttpRequest request, Channel channel) {
+        return subscribe(request, channel, null);
+    }
+
+    /**
+     * Subscribes the channel like {@link #subscribe(HttpRequest, Channel)}.
+     * The fallback is run in the event loop of a follower if the response
+     * isn't shared, to fetch it on its own. Without it the channel is closed.
+     */
+    public CollapsedResponse.Subscriber subscribe(HttpRequest request, Channel channel, Runnable fallback) {
+        String key = request.uri() + '#' + Long.toHexString(VaryKey.of(KEY_HEADERS, request.headers()));
+        for (;;) {
+            CollapsedResponse response = inFlight.get(key);
+            if (response == null) {
+                CollapsedResponse created = new CollapsedResponse(this, key, maxReplayBytes, maxLagBytes,
+                        highWaterBytes);
+                CollapsedResponse.Subscriber leader = created.join(channel, true, null);
+                if (inFlight.putIfAbsent(key, created) == null) {
+                    if (responseCache != null) {
+                        created.record(responseCache.record(request));
+                    }
+                    return leader;
+                }
+                created.cancel(leader);
+            } else {
+                CollapsedResponse.Subscriber follower = response.join(channel, false, fallback);
+                if (follower != null) {
+                    return follower;
+                }
+                // sealed or completed concurrently
+                inFlight.remove(key, response);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the response of the leader may be sent to the followers
+     * too. It's one a shared cache could serve, without cookies, not private,
+     * and varying on the headers of the key only, which are equal.
+     */
+    public static boolean isShareable(HttpResponse response) {
+        HttpHeaders headers = response.headers();
+        if (Arrays.binarySearch(SHAREABLE_STATUS, response.status().code()) < 0
+                || headers.contains(HttpHeaderNames.SET_COOKIE)) {
+            return false;
+        }
+        String cacheControl = headers.get(HttpHeaderNames.CACHE_CONTROL);
+        if (cacheControl != null) {
+            String directives = cacheControl.toLowerCase(Locale.ROOT);
+            if (directives.contains(HttpHeaderValues.NO_STORE) || directives.contains(HttpHeaderValues.NO_CACHE)
+                    || directives.contains(HttpHeaderValues.PRIVATE)) {
+                return false;
+            }
+        }
+        String[] varyNames = VaryKey.parseVary(headers.getAll(HttpHeaderNames.VARY));
+        if (varyNames == null) {
+            return false;
+        }
+        for (String each : varyNames) {
+            if (!Arrays.asList(KEY_HEADERS).contains(each)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the count of responses in flight which could be joined.
+     */
+    public int size() {
+        return inFlight.size();
+    }
+
+    void remove(String key, CollapsedResponse response) {
+        inFlight.remove(key, response);
+    }
+
+}
@@ -0,0 +1,412 @@
+package de.ganskef.shortcircuit.proxy.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.ganskef.shortcircuit.proxy.HttpResponseRelayHandler;
+import de.ganskef.shortcircuit.utils.HttpResponseUtil;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+/**
+ * The upstream response of a leading request streamed to all subscribed
+ * clients. Every buffer received from upstream is fanned out as a retained
+ * slice, so the bytes are shared and not copied.
+ *
+ * Each subscriber has its own queue and writes as fast as its channel is
+ * writable. Upstream is read on as long as one subscriber is ready to take
+ * more, so the slowest subscriber doesn't stall the others. A subscriber
+ * lagging too far behind will be detached and closed. A
+ * {@link HttpResponseRelayHandler.ResponseComplete} without keep alive is
+ * fired in a client pipeline when the whole response is written.
+ *
+ * The beginning of the response is kept to be replayed to late subscribers.
+ * If it exceeds the limit the response is sealed, and further requests to the
+ * same URI will go upstream by her own.
+ *
+ * The followers get nothing until the head is received. If the response
+ * isn't meant for others, with cookies or private for example, the followers
+ * are detached to fetch it on their own, see
+ * {@link CollapsedForwarding#isShareable(HttpResponse)}.
+ */
+public class CollapsedResponse {
+
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(CollapsedResponse.class);
+
+    private static final int MAX_HEAD_LENGTH = 16 * 1024;
+
+    private final CollapsedForwarding registry;
+
+    private final String key;
+
+    private final int maxReplayBytes;
+
+    private final int maxLagBytes;
+
+    private final int highWaterBytes;
+
+    private final List<Subscriber> subscribers = new ArrayList<Subscriber>();
+
+    private final List<ByteBuf> history = new ArrayList<ByteBuf>();
+
+    private long historyBytes;
+
+    private boolean sealed;
+
+    private boolean completed;
+
+    private Channel upstream;
+
+    private boolean readPending;
+
+    private CachedResponse recording;
+
+    /** The head received so far, null as soon as sharing is decided. */
+    private ByteBuf headBuffer = Unpooled.buffer();
+
+    /** True if the response is fanned out to the followers too. */
+    private boolean shared;
+
+    CollapsedResponse(CollapsedForwarding registry, String key, int maxReplayBytes, int maxLagBytes,
+            int highWaterBytes) {
+        this.registry = registry;
+        this.key = key;
+        this.maxReplayBytes = maxReplayBytes;
+        this.maxLagBytes = maxLagBytes;
+        this.highWaterBytes = highWaterBytes;
+    }
+
+    /**
+     * Records the response into the cache while it's streamed.
+     */
+    synchronized void record(CachedResponse recording) {
+        this.recording = recording;
+    }
+
+    /**
+     * Adds a subscriber and replays the response received so far. Returns null
+     * if the response couldn't be joined anymore.
+     */
+    synchronized Subscriber join(Channel channel, boolean leader, Runnable fallback) {
+        if (sealed || completed) {
+            return null;
+        }
+        Subscriber subscriber = new Subscriber(channel, leader, fallback);
+        subscribers.add(subscriber);
+        if (shared || leader) {
+            for (ByteBuf each : history) {
+                subscriber.offer(each.retainedSlice());
+            }
+        }
+        return subscriber;
+    }
+
+    /**
+     * Publishes a buffer received from upstream to all subscribers and takes
+     * the ownership of it. Reads the next buffer from upstream if one of the
+     * subscribers is ready to take it.
+     */
+    public synchronized void publish(ByteBuf buf, Channel upstream) {
+        this.upstream = upstream;
+        if (recording != null) {
+            recording.append(buf);
+        }
+        if (headBuffer != null) {
+            headBuffer.writeBytes(buf, buf.readerIndex(), buf.readableBytes());
+            int headEnd = HttpResponseUtil.indexOfHeadEnd(headBuffer);
+            if (headEnd != -1) {
+                HttpResponse head = HttpResponseUtil.decodeHead(headBuffer.slice(0, headEnd));
+                decide(head != null && CollapsedForwarding.isShareable(head));
+            } else if (headBuffer.readableBytes() > MAX_HEAD_LENGTH) {
+                decide(false);
+            }
+        }
+        for (Subscriber each : new ArrayList<Subscriber>(subscribers)) {
+            if (shared || each.leader) {
+                each.offer(buf.retainedSlice());
+            }
+        }
+        if (sealed) {
+            buf.release();
+        } else {
+            history.add(buf);
+            historyBytes += buf.readableBytes();
+            // kept for the followers while undecided, the head is limited
+            if (historyBytes > maxReplayBytes && headBuffer == null) {
+                seal();
+            }
+        }
+        if (subscribers.isEmpty()) {
+            upstream.close();
+        } else {
+            readIfReady();
+        }
+    }
+
+    /**
+     * Fans the response out to the followers if it's shared, the bytes
+     * received so far first. Otherwise it's sealed and the followers are
+     * detached.
+     */
+    private void decide(boolean share) {
+        headBuffer.release();
+        headBuffer = null;
+        shared = share;
+        if (share) {
+            for (Subscriber each : new ArrayList<Subscriber>(subscribers)) {
+                if (!each.leader) {
+                    for (ByteBuf buf : history) {
+                        each.offer(buf.retainedSlice());
+                    }
+                }
+            }
+            return;
+        }
+        logger.debug("Response to {} not shared", key);
+        seal();
+        for (Subscriber each : new ArrayList<Subscriber>(subscribers)) {
+            if (!each.leader) {
+                subscribers.remove(each);
+                each.detach();
+            }
+        }
+    }
+
+    /**
+     * Marks the response as complete, when upstream is closed. The subscribers
+     * will be closed after their queues are flushed, the followers are
+     * detached if there was no head.
+     */
+    public synchronized void complete() {
+        if (headBuffer != null) {
+            decide(false);
+        }
+        completed = true;
+        seal();
+        if (recording != null) {
+            recording.complete();
+        }
+        for (Subscriber each : subscribers) {
+            each.finish();
+        }
+        subscribers.clear();
+    }
+
+    /**
+     * Returns true if one or more clients are waiting for this response.
+     */
+    public synchronized boolean isSubscribed() {
+        return !subscribers.isEmpty();
+    }
+
+    /**
+     * Removes a subscriber whose channel is closed. Upstream is closed if no
+     * other one is interested anymore.
+     */
+    public synchronized void cancel(Subscriber subscriber) {
+        if (subscribers.remove(subscriber)) {
+            subscriber.releaseQueued();
+        }
+        if (subscribers.isEmpty() && !completed) {
+            seal();
+            if (recording != null) {
+                recording.abort();
+            }
+            if (upstream != null) {
+                upstream.close();
+            }
+        } else {
+            readIfReady();
+        }
+    }
+
+    private synchronized void drained() {
+        if (readPending) {
+            readIfReady();
+        }
+    }
+
+    private void readIfReady() {
+        if (upstream == null || completed) {
+            return;
+        }
+        for (Subscriber each : subscribers) {
+            if (each.pending.get() < highWaterBytes) {
+                readPending = false;
+                upstream.read();
+                return;
+            }
+        }
+        readPending = true;
+    }
+
+    private void seal() {
+        if (!sealed) {
+            sealed = true;
+            registry.remove(key, this);
+        }
+        if (headBuffer != null) {
+            headBuffer.release();
+            headBuffer = null;
+        }
+        for (ByteBuf each : history) {
+            each.release();
+        }
+        history.clear();
+        historyBytes = 0;
+    }
+
+    /**
+     * Returns true if upstream isn't read since all subscribers are busy.
+     */
+    synchronized boolean isReadPending() {
+        return readPending;
+    }
+
+    /**
+     * A client channel subscribed to the response with its own queue of
+     * buffers pending to write.
+     */
+    public final class Subscriber {
+
+        private final Channel channel;
+
+        private final boolean leader;
+
+        private final Runnable fallback;
+
+        private final Queue<ByteBuf> queue = new ConcurrentLinkedQueue<ByteBuf>();
+
+        private final AtomicLong pending = new AtomicLong();
+
+        private volatile boolean finished;
+
+        private boolean closing;
+
+        private final Runnable pumpTask = new Runnable() {
+            @Override
+            public void run() {
+                pump();
+            }
+        };
+
+        Subscriber(Channel channel, boolean leader, Runnable fallback) {
+            this.channel = channel;
+            this.leader = leader;
+            this.fallback = fallback;
+        }
+
+        /**
+         * Returns true if this subscriber has to fetch the response upstream.
+         */
+        public boolean isLeader() {
+            return leader;
+        }
+
+        public CollapsedResponse response() {
+            return CollapsedResponse.this;
+        }
+
+        /**
+         * Returns the count of bytes queued or written but not flushed yet.
+         */
+        public long pendingBytes() {
+            return pending.get();
+        }
+
+        void offer(ByteBuf buf) {
+            if (pending.addAndGet(buf.readableBytes()) > maxLagBytes) {
+                buf.release();
+                logger.info("Detach subscriber {} lagging behind on {}", channel, key);
+                cancel(this);
+                channel.close();
+                return;
+            }
+            queue.add(buf);
+            schedulePump();
+        }
+
+        /**
+         * Runs the fallback in the event loop of the channel to fetch the
+         * response on its own, or closes the channel without one.
+         */
+        void detach() {
+            releaseQueued();
+            if (fallback == null) {
+                channel.close();
+            } else {
+                channel.eventLoop().execute(fallback);
+            }
+        }
+
+        void finish() {
+            finished = true;
+            schedulePump();
+        }
+
+        private void schedulePump() {
+            if (channel.eventLoop().inEventLoop()) {
+                pump();
+            } else {
+                channel.eventLoop().execute(pumpTask);
+            }
+        }
+
+        /**
+         * Writes the queued buffers as long as the channel is writable. It has
+         * to be called again if the channel writability has changed.
+         */
+        public void pump() {
+            boolean written = false;
+            ByteBuf buf;
+            while (channel.isWritable() && (buf = queue.poll()) != null) {
+                final int size = buf.readableBytes();
+                channel.write(buf).addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) {
+                        pending.addAndGet(-size);
+                        if (future.isSuccess()) {
+                            drained();
+                        }
+                    }
+                });
+                written = true;
+            }
+            if (finished && queue.isEmpty() && !closing) {
+                closing = true;
+                channel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) {
+                        if (future.isSuccess()) {
+                            // logged without waiting for the close
+                            channel.pipeline()
+                                    .fireUserEventTriggered(new HttpResponseRelayHandler.ResponseComplete(false));
+                        }
+                        channel.close();
+                    }
+                });
+            } else if (written) {
+                channel.flush();
+            }
+        }
+
+        void releaseQueued() {
+            ByteBuf buf;
+            while ((buf = queue.poll()) != null) {
+                pending.addAndGet(-buf.readableBytes());
+                buf.release();
+            }
+        }
+
+    }
+
+}
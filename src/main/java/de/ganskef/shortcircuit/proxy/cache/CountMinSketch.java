@@ -0,0 +1,97 @@
+package de.ganskef.shortcircuit.proxy.cache;
+
+/**
+ * A probabilistic frequency estimation with a count-min sketch of four rows of
+ * 4 bit counters packed two per byte, as used by TinyLFU. All counters are
+ * halved after a sample of ten times the width is recorded, so the history
+ * ages and recent popularity counts more.
+ *
+ * It's not thread safe, the owning policy has to synchronize.
+ */
+public class CountMinSketch {
+
+    private static final int DEPTH = 4;
+
+    private static final int MAX_COUNT = 15;
+
+    private static final int MAX_WIDTH = 1 << 24;
+
+    private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+            0xcbf29ce484222325L };
+
+    private final byte[] table;
+
+    private final int mask;
+
+    private final int sampleSize;
+
+    private int additions;
+
+    /**
+     * Creates a sketch for the expected count of distinct keys in the cache.
+     */
+    public CountMinSketch(int expectedEntries) {
+        int width = Integer.highestOneBit(Math.min(MAX_WIDTH, Math.max(16, expectedEntries - 1)) << 1);
+        this.table = new byte[DEPTH * width / 2];
+        this.mask = width - 1;
+        this.sampleSize = 10 * width;
+    }
+
+    /**
+     * Increments the estimated frequency of the key.
+     */
+    public void increment(String key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < DEPTH; i++) {
+            int index = index(hash, i);
+            if (counter(index) < MAX_COUNT) {
+                table[index >>> 1] += 1 << shift(index);
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Returns the estimated frequency of the key, the minimum of its counters.
+     */
+    public int frequency(String key) {
+        int hash = spread(key.hashCode());
+        int result = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            result = Math.min(result, counter(index(hash, i)));
+        }
+        return result;
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (byte) ((table[i] >>> 1) & 0x77);
+        }
+        additions /= 2;
+    }
+
+    private int counter(int index) {
+        return (table[index >>> 1] >>> shift(index)) & MAX_COUNT;
+    }
+
+    private static int shift(int index) {
+        return (index & 1) << 2;
+    }
+
+    private int index(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return row * (mask + 1) + ((int) h & mask);
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+
+}
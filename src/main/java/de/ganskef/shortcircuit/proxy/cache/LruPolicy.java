@@ -0,0 +1,70 @@
+package de.ganskef.shortcircuit.proxy.cache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A plain least recently used policy. Every key is admitted, one large or a
+ * scan of new keys could flush the frequently used ones.
+ */
+public class LruPolicy implements CachePolicy {
+
+    private final long maxWeight;
+
+    private final Map<String, Long> weights = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    private long weight;
+
+    public LruPolicy(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    @Override
+    public void recordAccess(String key) {
+        weights.get(key);
+    }
+
+    @Override
+    public List<String> admit(String key, long keyWeight) {
+        List<String> evicted = new ArrayList<String>();
+        if (keyWeight > maxWeight) {
+            remove(key);
+            evicted.add(key);
+            return evicted;
+        }
+        Long previous = weights.put(key, keyWeight);
+        weight += keyWeight - (previous == null ? 0 : previous);
+        for (Iterator<Map.Entry<String, Long>> it = weights.entrySet().iterator(); weight > maxWeight
+                && it.hasNext();) {
+            Map.Entry<String, Long> eldest = it.next();
+            if (!eldest.getKey().equals(key)) {
+                it.remove();
+                weight -= eldest.getValue();
+                evicted.add(eldest.getKey());
+            }
+        }
+        return evicted;
+    }
+
+    @Override
+    public void remove(String key) {
+        Long previous = weights.remove(key);
+        if (previous != null) {
+            weight -= previous;
+        }
+    }
+
+    @Override
+    public long weight() {
+        return weight;
+    }
+
+    @Override
+    public int size() {
+        return weights.size();
+    }
+
+}
@@ -0,0 +1,235 @@
+package de.ganskef.shortcircuit.proxy.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.ganskef.shortcircuit.proxy.AccessHistory;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+/**
+ * A shared cache of responses stored in files of a directory, limited by the
+ * sum of the content lengths. Which URIs are kept is decided by a
+ * {@link CachePolicy}, a {@link TinyLfuPolicy} by default, so a single large
+ * download or a crawler can't flush the popular responses.
+ *
+ * Responses are recorded while they are forwarded to the leader of a
+ * {@link CollapsedForwarding}. They could be served partially with Range
+ * requests before they are complete.
+ *
+ * An URI could have several variants, if the response has a Vary header. They
+ * are stored under the entry of the URI with a {@link VaryKey} and evicted
+ * together.
+ */
+public class ResponseCache {
+
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(ResponseCache.class);
+
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    /**
+     * The variants of an URI, selected by the request headers named in Vary.
+     */
+    private static final class Entry {
+
+        String[] varyNames;
+
+        final List<CachedResponse> variants = new ArrayList<CachedResponse>(1);
+
+        Entry(String[] varyNames) {
+            this.varyNames = varyNames;
+        }
+
+        CachedResponse get(long variantKey) {
+            for (CachedResponse each : variants) {
+                if (each.variantKey() == variantKey) {
+                    return each;
+                }
+            }
+            return null;
+        }
+
+        long weight() {
+            long result = 0;
+            for (CachedResponse each : variants) {
+                result += ResponseCache.weight(each);
+            }
+            return result;
+        }
+    }
+
+    private final File directory;
+
+    private final CachePolicy policy;
+
+    private final AccessHistory history;
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    private int variantCount;
+
+    public ResponseCache(File directory) {
+        this(directory, DEFAULT_MAX_BYTES);
+    }
+
+    public ResponseCache(File directory, long maxBytes) {
+        this(directory, new TinyLfuPolicy(maxBytes));
+    }
+
+    public ResponseCache(File directory, CachePolicy policy) {
+        this(directory, policy, null);
+    }
+
+    /**
+     * Creates a cache counting the requests of stored URIs in the given
+     * history, if not null, to warm it up after a restart.
+     */
+    public ResponseCache(File directory, CachePolicy policy, AccessHistory history) {
+        this.directory = directory;
+        this.policy = policy;
+        this.history = history;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Not a directory " + directory);
+        }
+    }
+
+    /**
+     * Returns the variant of the response selected by the request, which could
+     * be in progress, or null if there is none.
+     */
+    public synchronized CachedResponse get(HttpRequest request) {
+        policy.recordAccess(request.uri());
+        Entry entry = entries.get(request.uri());
+        if (entry == null) {
+            return null;
+        }
+        if (history != null) {
+            history.recordUrl(request.uri());
+        }
+        return entry.get(VaryKey.of(entry.varyNames, request.headers()));
+    }
+
+    /**
+     * Starts the recording of a response to the request. It replaces a
+     * previous variant as soon as the new head is received. Returns null if
+     * it's not possible to store it.
+     */
+    public CachedResponse record(HttpRequest request) {
+        try {
+            File file = File.createTempFile("response", ".body", directory);
+            file.deleteOnExit();
+            return new CachedResponse(this, request.uri(), new DefaultHttpHeaders().set(request.headers()), file);
+        } catch (IOException e) {
+            logger.warn("Recording of {} failed:", request.uri(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Admits a response with a known content length, evicting the URIs chosen
+     * by the policy. Returns false if the policy rejects it, the other variants
+     * of the URI are dropped then too. If the response varies on other headers
+     * than the stored ones, the previous variants are dropped.
+     */
+    synchronized boolean admit(CachedResponse response) {
+        String[] varyNames = VaryKey.parseVary(response.head().headers().getAll(HttpHeaderNames.VARY));
+        Entry entry = entries.get(response.uri());
+        if (entry == null) {
+            entry = new Entry(varyNames);
+            entries.put(response.uri(), entry);
+        } else if (!Arrays.equals(entry.varyNames, varyNames)) {
+            evict(entry);
+            entry.varyNames = varyNames;
+        }
+        long variantKey = response.selectVariant(varyNames);
+        CachedResponse previous = entry.get(variantKey);
+        if (previous != null) {
+            entry.variants.remove(previous);
+            variantCount--;
+            previous.evicted();
+        }
+        entry.variants.add(response);
+        variantCount++;
+        boolean admitted = true;
+        for (String each : policy.admit(response.uri(), entry.weight())) {
+            if (each.equals(response.uri())) {
+                entries.remove(each);
+                entry.variants.remove(response);
+                variantCount--;
+                evict(entry);
+                admitted = false;
+            } else {
+                Entry evicted = entries.remove(each);
+                if (evicted != null) {
+                    evict(evicted);
+                }
+            }
+        }
+        if (admitted && history != null) {
+            history.recordUrl(response.uri());
+        }
+        return admitted;
+    }
+
+    private void evict(Entry entry) {
+        List<CachedResponse> evicted = new ArrayList<CachedResponse>(entry.variants);
+        entry.variants.clear();
+        for (CachedResponse each : evicted) {
+            variantCount--;
+            each.evicted();
+        }
+    }
+
+    synchronized void remove(CachedResponse response) {
+        Entry entry = entries.get(response.uri());
+        if (entry != null && entry.variants.remove(response)) {
+            variantCount--;
+            response.evicted();
+            if (entry.variants.isEmpty()) {
+                entries.remove(response.uri());
+                policy.remove(response.uri());
+            } else {
+                for (String each : policy.admit(response.uri(), entry.weight())) {
+                    Entry evicted = entries.remove(each);
+                    if (evicted != null) {
+                        evict(evicted);
+                    }
+                }
+            }
+        }
+    }
+
+    private static long weight(CachedResponse response) {
+        return Math.max(0, response.contentLength());
+    }
+
+    /**
+     * Returns the sum of the content lengths of the stored responses.
+     */
+    public synchronized long weight() {
+        return policy.weight();
+    }
+
+    /**
+     * Returns the count of the stored URIs.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the count of the stored variants of all URIs.
+     */
+    public synchronized int variantCount() {
+        return variantCount;
+    }
+
+}
@@ -0,0 +1,366 @@
+package de.ganskef.shortcircuit.proxy.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.ganskef.shortcircuit.proxy.HttpResponseRelayHandler;
+import de.ganskef.shortcircuit.utils.HttpResponseUtil;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.FileRegion;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+/**
+ * This handler responds to a GET request with a fresh response stored in the
+ * {@link ResponseCache}. Range requests are answered with 206 Partial Content,
+ * multiple ranges in a multipart/byteranges body, see RFC 7233. Ranges of a
+ * response still in progress are written as soon as the bytes are stored.
+ * Other requests will be chained to the next handler in the pipeline.
+ *
+ * It's expected in a raw relaying pipeline behind a HttpRequestDecoder, so the
+ * response head is encoded here, and the body is written with zero copy
+ * {@link FileRegion}s.
+ *
+ * The responses of pipelined requests have to be written in the order of the
+ * requests. So a request is held with its content while a response in front
+ * of it is in progress, until the cached one is written or a
+ * {@link HttpResponseRelayHandler.ResponseComplete} passes for the forwarded
+ * one. A {@link HttpResponseRelayHandler.ResponseComplete} is fired from the
+ * head of the pipeline when a cached response is written, for the handlers in
+ * front, it isn't passed to the handlers behind.
+ */
+public class ResponseCacheHandler extends ChannelInboundHandlerAdapter {
+
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(ResponseCacheHandler.class);
+
+    private static final AtomicLong BOUNDARY_SEQUENCE = new AtomicLong(System.currentTimeMillis());
+
+    private static final String[] HOP_BY_HOP_HEADERS = { "Connection", "Keep-Alive", "Proxy-Connection",
+            "Proxy-Authenticate", "Transfer-Encoding", "Upgrade", "TE", "Trailer" };
+
+    private final ResponseCache cache;
+
+    private final ResponseCompressor compressor;
+
+    private HttpRequest served;
+
+    /** True while a response is in progress, the next request is held. */
+    private boolean responding;
+
+    /** Requests and their content held until the responses in front are complete. */
+    private final ArrayDeque<Object> held = new ArrayDeque<Object>();
+
+    /** True if the content of the current request is held too. */
+    private boolean holding;
+
+    /** The event fired for the cached response written, stopped here. */
+    private HttpResponseRelayHandler.ResponseComplete completing;
+
+    public ResponseCacheHandler(ResponseCache cache) {
+        this(cache, null);
+    }
+
+    /**
+     * Creates a handler serving gzip compressed variants of the cached
+     * responses, if a compressor is given and the client accepts it.
+     */
+    public ResponseCacheHandler(ResponseCache cache, ResponseCompressor compressor) {
+        this.cache = cache;
+        this.compressor = compressor;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HttpRequest) {
+            holding = responding || !held.isEmpty();
+            if (holding) {
+                // pipelined, answered when the responses in front are complete
+                held.add(msg);
+            } else {
+                handle(ctx, (HttpRequest) msg);
+            }
+            return;
+        } else if (holding) {
+            held.add(msg);
+            return;
+        } else if (served != null && msg instanceof HttpContent) {
+            // there is no body expected, the response is on the way
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    /**
+     * Serves the request from the cache or forwards it, the response is in
+     * progress until it's complete.
+     */
+    private void handle(ChannelHandlerContext ctx, HttpRequest request) {
+        responding = true;
+        served = null;
+        if (isHandeled(request)) {
+            CachedResponse entry = cache.get(request);
+            if (entry != null && serve(ctx, request, entry)) {
+                served = request;
+                return;
+            }
+        }
+        ctx.fireChannelRead(request);
+    }
+
+    /**
+     * Completes the response in progress, and handles the next request held.
+     */
+    private void completed(ChannelHandlerContext ctx) {
+        responding = false;
+        while (!responding && !held.isEmpty()) {
+            handle(ctx, (HttpRequest) held.poll());
+            while (held.peek() != null && !(held.peek() instanceof HttpRequest)) {
+                Object content = held.poll();
+                if (served != null) {
+                    ReferenceCountUtil.release(content);
+                } else {
+                    ctx.fireChannelRead(content);
+                }
+            }
+            holding = !held.isEmpty();
+        }
+    }
+
+    protected boolean isHandeled(HttpRequest request) {
+        HttpHeaders headers = request.headers();
+        return request.method() == HttpMethod.GET //
+                && !headers.contains(HttpHeaderNames.AUTHORIZATION) //
+                && !headers.contains(HttpHeaderNames.PROXY_AUTHORIZATION) //
+                && !headers.contains(HttpHeaderNames.UPGRADE) //
+                && !headers.containsValue(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_CACHE, true) //
+                && !headers.containsValue(HttpHeaderNames.PRAGMA, HttpHeaderValues.NO_CACHE, true);
+    }
+
+    private boolean serve(final ChannelHandlerContext ctx, final HttpRequest request, CachedResponse entry) {
+        if (!entry.isFresh(System.currentTimeMillis())) {
+            return false;
+        }
+        String range = request.headers().get(HttpHeaderNames.RANGE);
+        List<ByteRange> parsed = null;
+        if (range != null && isIfRangeMatching(request, entry.head())) {
+            parsed = ByteRange.parse(range, entry.contentLength());
+        }
+        if (parsed == null && !entry.isComplete()) {
+            // the whole response in progress is served by collapsed forwarding
+            return false;
+        }
+        final List<ByteRange> ranges = parsed;
+        long end = 0;
+        if (ranges != null) {
+            for (ByteRange each : ranges) {
+                end = Math.max(end, each.last + 1);
+            }
+        }
+        entry.whenAvailable(end, new CachedResponse.Listener() {
+            @Override
+            public void available(final CachedResponse response) {
+                ctx.executor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        write(ctx, request, response, ranges);
+                    }
+                });
+            }
+
+            @Override
+            public void aborted(CachedResponse response) {
+                ctx.executor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        forward(ctx, request);
+                    }
+                });
+            }
+        });
+        return true;
+    }
+
+    private boolean isIfRangeMatching(HttpRequest request, HttpResponse head) {
+        String ifRange = request.headers().get(HttpHeaderNames.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"")) {
+            // strong comparison only
+            return ifRange.equals(head.headers().get(HttpHeaderNames.ETAG));
+        }
+        return ifRange.equals(head.headers().get(HttpHeaderNames.LAST_MODIFIED));
+    }
+
+    private void forward(ChannelHandlerContext ctx, HttpRequest request) {
+        logger.debug("Recording aborted, forward {}", request.uri());
+        served = null;
+        ctx.fireChannelRead(request);
+        ctx.fireChannelRead(LastHttpContent.EMPTY_LAST_CONTENT);
+    }
+
+    private void write(final ChannelHandlerContext ctx, HttpRequest request, CachedResponse entry,
+            List<ByteRange> ranges) {
+        long length = entry.contentLength();
+        List<Object> body = new ArrayList<Object>();
+        HttpResponse response;
+        File compressed = null;
+        if (ranges == null && compressor != null && ResponseCompressor.isAccepted(request)) {
+            compressed = compressor.variant(entry);
+        }
+        try {
+            if (compressed != null) {
+                response = newCompressedResponse(entry);
+                body.add(new DefaultFileRegion(compressed, 0, entry.compressedLength()));
+                HttpUtil.setContentLength(response, entry.compressedLength());
+            } else if (ranges == null) {
+                response = newResponse(entry, HttpResponseStatus.OK);
+                if (length > 0) {
+                    body.add(entry.region(0, length - 1));
+                }
+                HttpUtil.setContentLength(response, length);
+            } else if (ranges.isEmpty()) {
+                response = newResponse(entry, HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+                response.headers().set(HttpHeaderNames.CONTENT_RANGE, "bytes */" + length);
+                response.headers().remove(HttpHeaderNames.CONTENT_TYPE);
+                HttpUtil.setContentLength(response, 0);
+            } else if (ranges.size() == 1) {
+                ByteRange range = ranges.get(0);
+                response = newResponse(entry, HttpResponseStatus.PARTIAL_CONTENT);
+                response.headers().set(HttpHeaderNames.CONTENT_RANGE, range.contentRange(length));
+                body.add(entry.region(range.first, range.last));
+                HttpUtil.setContentLength(response, range.length());
+            } else {
+                String boundary = Long.toHexString(BOUNDARY_SEQUENCE.incrementAndGet());
+                response = newResponse(entry, HttpResponseStatus.PARTIAL_CONTENT);
+                String contentType = response.headers().get(HttpHeaderNames.CONTENT_TYPE);
+                response.headers().set(HttpHeaderNames.CONTENT_TYPE, "multipart/byteranges; boundary=" + boundary);
+                long contentLength = 0;
+                for (ByteRange range : ranges) {
+                    StringBuilder sb = new StringBuilder();
+                    sb.append("\r\n--").append(boundary).append("\r\n");
+                    if (contentType != null) {
+                        sb.append("Content-Type: ").append(contentType).append("\r\n");
+                    }
+                    sb.append("Content-Range: ").append(range.contentRange(length)).append("\r\n\r\n");
+                    ByteBuf part = Unpooled.copiedBuffer(sb, CharsetUtil.US_ASCII);
+                    contentLength += part.readableBytes() + range.length();
+                    body.add(part);
+                    body.add(entry.region(range.first, range.last));
+                }
+                ByteBuf close = Unpooled.copiedBuffer("\r\n--" + boundary + "--\r\n", CharsetUtil.US_ASCII);
+                contentLength += close.readableBytes();
+                body.add(close);
+                HttpUtil.setContentLength(response, contentLength);
+            }
+        } catch (IOException e) {
+            logger.info("Stored response of {} not readable: {}", request.uri(), e.toString());
+            for (Object each : body) {
+                ReferenceCountUtil.release(each);
+            }
+            forward(ctx, request);
+            return;
+        }
+        final boolean keepAlive = HttpUtil.isKeepAlive(request);
+        HttpUtil.setKeepAlive(response, keepAlive);
+        ctx.write(HttpResponseUtil.encodeHead(ctx.alloc(), response));
+        for (Object each : body) {
+            ctx.write(each);
+        }
+        ChannelFuture f = ctx.writeAndFlush(Unpooled.EMPTY_BUFFER);
+        f.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                if (future.isSuccess()) {
+                    completing = new HttpResponseRelayHandler.ResponseComplete(keepAlive);
+                    ctx.pipeline().fireUserEventTriggered(completing);
+                }
+                if (!keepAlive) {
+                    future.channel().close();
+                } else if (future.isSuccess()) {
+                    future.channel().read();
+                }
+            }
+        });
+    }
+
+    private HttpResponse newCompressedResponse(CachedResponse entry) {
+        HttpResponse response = newResponse(entry, HttpResponseStatus.OK);
+        ResponseCompressor.setCompressed(response.headers());
+        return response;
+    }
+
+    private HttpResponse newResponse(CachedResponse entry, HttpResponseStatus status) {
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, status);
+        for (Entry<String, String> each : entry.head().headers()) {
+            response.headers().add(each.getKey(), each.getValue());
+        }
+        for (String each : HOP_BY_HOP_HEADERS) {
+            response.headers().remove(each);
+        }
+        response.headers().set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+        response.headers().set(HttpHeaderNames.AGE, entry.age(System.currentTimeMillis()));
+        return response;
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt != completing) {
+            ctx.fireUserEventTriggered(evt);
+        }
+        if (evt instanceof HttpResponseRelayHandler.ResponseComplete) {
+            completing = null;
+            // the cached or forwarded response is written
+            if (((HttpResponseRelayHandler.ResponseComplete) evt).isKeepAlive()) {
+                completed(ctx);
+            }
+        }
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        for (Object each : held) {
+            ReferenceCountUtil.release(each);
+        }
+        held.clear();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        handlerRemoved(ctx);
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        logger.error("An exception was thrown:", cause);
+        ctx.close();
+    }
+
+}
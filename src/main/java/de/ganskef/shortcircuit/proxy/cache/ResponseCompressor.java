@@ -0,0 +1,320 @@
+package de.ganskef.shortcircuit.proxy.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import de.ganskef.shortcircuit.proxy.HttpResponseRelayHandler;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.compression.JZlibEncoder;
+import io.netty.handler.codec.compression.ZlibWrapper;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+/**
+ * Compresses cached responses of compressible content types with gzip, for
+ * clients accepting it. A body is compressed once in the background with the
+ * level configured for its content type, and the variant is stored next to
+ * the cached body until the response is evicted. Until it's available, the
+ * identity body is served.
+ *
+ * Responses which aren't cached are compressed on the fly while they are
+ * relayed, with a {@link #newStream()} for each.
+ *
+ * It's using the JZlib encoder of Netty, the reason for the jzlib dependency.
+ */
+public class ResponseCompressor {
+
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(ResponseCompressor.class);
+
+    /** Bodies smaller than this aren't worth to compress. */
+    public static final int DEFAULT_MIN_LENGTH = 1024;
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final Executor executor;
+
+    /** The executor created here, to shut it down with the compressor. */
+    private final ExecutorService ownExecutor;
+
+    private final int minLength;
+
+    private final Map<String, Integer> levels;
+
+    /**
+     * Creates a compressor with the default levels and a single background
+     * thread of low priority, which bounds the CPU used to compress. The
+     * thread is a daemon, stopped by {@link #shutdown()} too.
+     */
+    public ResponseCompressor() {
+        this(Executors.newSingleThreadExecutor(new DefaultThreadFactory("compressor", true, Thread.MIN_PRIORITY)),
+                DEFAULT_MIN_LENGTH, defaultLevels(), true);
+    }
+
+    /**
+     * Creates a compressor with the given compression levels by content type
+     * without parameters, from 1 (fastest) to 9 (best compression).
+     */
+    public ResponseCompressor(Executor executor, int minLength, Map<String, Integer> levels) {
+        this(executor, minLength, levels, false);
+    }
+
+    private ResponseCompressor(Executor executor, int minLength, Map<String, Integer> levels, boolean own) {
+        this.executor = executor;
+        this.ownExecutor = own ? (ExecutorService) executor : null;
+        this.minLength = minLength;
+        this.levels = new HashMap<String, Integer>(levels);
+    }
+
+    /**
+     * Returns the default levels, the best compression for static resources
+     * which are requested often, and a faster one for documents.
+     */
+    public static Map<String, Integer> defaultLevels() {
+        Map<String, Integer> result = new HashMap<String, Integer>();
+        result.put("text/html", 6);
+        result.put("text/plain", 6);
+        result.put("text/xml", 6);
+        result.put("application/json", 6);
+        result.put("application/xml", 6);
+        result.put("text/css", 9);
+        result.put("text/javascript", 9);
+        result.put("application/javascript", 9);
+        result.put("application/x-javascript", 9);
+        result.put("image/svg+xml", 9);
+        return result;
+    }
+
+    /**
+     * Returns true if the request accepts a gzip coded response.
+     */
+    public static boolean isAccepted(HttpRequest request) {
+        String acceptEncoding = request.headers().get(HttpHeaderNames.ACCEPT_ENCODING);
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String each : acceptEncoding.split(",")) {
+            String[] params = each.split(";");
+            String coding = params[0].trim().toLowerCase();
+            if (coding.equals("gzip") || coding.equals("x-gzip") || coding.equals("*")) {
+                return !isRejected(params);
+            }
+        }
+        return false;
+    }
+
+    private static boolean isRejected(String[] params) {
+        for (int i = 1; i < params.length; i++) {
+            String param = params[i].trim();
+            if (param.startsWith("q=")) {
+                try {
+                    return Float.parseFloat(param.substring(2)) <= 0;
+                } catch (NumberFormatException e) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the compression level for the content type of the response, or
+     * -1 if it's not compressible.
+     */
+    int level(CachedResponse entry) {
+        return level(entry.head().headers());
+    }
+
+    private int level(HttpHeaders headers) {
+        String contentType = headers.get(HttpHeaderNames.CONTENT_TYPE);
+        if (contentType == null || headers.contains(HttpHeaderNames.CONTENT_ENCODING)) {
+            return -1;
+        }
+        String cacheControl = headers.get(HttpHeaderNames.CACHE_CONTROL);
+        if (cacheControl != null && cacheControl.toLowerCase().contains("no-transform")) {
+            return -1;
+        }
+        int end = contentType.indexOf(';');
+        Integer result = levels.get((end == -1 ? contentType : contentType.substring(0, end)).trim().toLowerCase());
+        return result == null ? -1 : result;
+    }
+
+    /**
+     * Returns the compressed variant of a complete response, or null if it's
+     * not compressible or not available yet. In the latter case the
+     * compression is started in the background.
+     */
+    public File variant(final CachedResponse entry) {
+        if (!entry.isComplete() || entry.contentLength() < minLength) {
+            return null;
+        }
+        File result = entry.compressed();
+        if (result == null) {
+            final int level = level(entry);
+            if (level != -1 && entry.startCompression()) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        compress(entry, level);
+                    }
+                });
+                result = entry.compressed();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Sets the headers of a response compressed with gzip. Ranges are served
+     * of the identity body only.
+     */
+    static void setCompressed(HttpHeaders headers) {
+        headers.set(HttpHeaderNames.CONTENT_ENCODING, HttpHeaderValues.GZIP);
+        headers.set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.NONE);
+        String etag = headers.get(HttpHeaderNames.ETAG);
+        if (etag != null && !etag.startsWith("W/")) {
+            headers.set(HttpHeaderNames.ETAG, "W/" + etag);
+        }
+        String vary = headers.get(HttpHeaderNames.VARY);
+        if (vary == null) {
+            headers.set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+        } else if (!vary.toLowerCase().contains("accept-encoding")) {
+            headers.set(HttpHeaderNames.VARY, vary + ", " + HttpHeaderNames.ACCEPT_ENCODING);
+        }
+    }
+
+    /**
+     * Returns a coder compressing the body of a relayed response on the fly,
+     * if it's compressible.
+     */
+    public HttpResponseRelayHandler.BodyCoder newStream() {
+        return new Stream();
+    }
+
+    /**
+     * Stops the background thread created by the default constructor, a given
+     * executor is left to its owner.
+     */
+    public void shutdown() {
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+        }
+    }
+
+    private final class Stream implements HttpResponseRelayHandler.BodyCoder {
+
+        private EmbeddedChannel encoder;
+
+        @Override
+        public boolean start(HttpResponse response) {
+            if (response.status().code() != 200 || HttpUtil.getContentLength(response, Long.MAX_VALUE) < minLength) {
+                return false;
+            }
+            int level = level(response.headers());
+            if (level == -1) {
+                return false;
+            }
+            encoder = new EmbeddedChannel(new JZlibEncoder(ZlibWrapper.GZIP, level));
+            setCompressed(response.headers());
+            return true;
+        }
+
+        @Override
+        public ByteBuf encode(ByteBufAllocator alloc, ByteBuf payload) {
+            encoder.writeOutbound(payload);
+            return drain(alloc);
+        }
+
+        @Override
+        public ByteBuf finish(ByteBufAllocator alloc) {
+            encoder.finish();
+            return drain(alloc);
+        }
+
+        private ByteBuf drain(ByteBufAllocator alloc) {
+            CompositeByteBuf result = alloc.compositeBuffer();
+            ByteBuf buf;
+            while ((buf = encoder.readOutbound()) != null) {
+                result.addComponent(true, buf);
+            }
+            return result;
+        }
+
+        @Override
+        public void release() {
+            if (encoder != null) {
+                encoder.finishAndReleaseAll();
+            }
+        }
+    }
+
+    private void compress(CachedResponse entry, int level) {
+        File target = new File(entry.file().getPath() + ".gz");
+        EmbeddedChannel encoder = new EmbeddedChannel(new JZlibEncoder(ZlibWrapper.GZIP, level));
+        try {
+            InputStream in = new FileInputStream(entry.file());
+            OutputStream out = new FileOutputStream(target);
+            try {
+                byte[] chunk = new byte[CHUNK_SIZE];
+                int count;
+                while ((count = in.read(chunk)) != -1) {
+                    encoder.writeOutbound(Unpooled.copiedBuffer(chunk, 0, count));
+                    drain(encoder, out);
+                }
+                encoder.finish();
+                drain(encoder, out);
+            } finally {
+                in.close();
+                out.close();
+            }
+            long length = target.length();
+            if (length >= entry.contentLength() || !entry.attachCompressed(target, length)) {
+                delete(target);
+                return;
+            }
+            logger.debug("Compressed {} from {} to {} bytes", entry.uri(), entry.contentLength(), length);
+        } catch (IOException e) {
+            logger.info("Compression of {} failed: {}", entry.uri(), e.toString());
+            delete(target);
+        } finally {
+            encoder.finishAndReleaseAll();
+        }
+    }
+
+    private static void drain(EmbeddedChannel encoder, OutputStream out) throws IOException {
+        ByteBuf buf;
+        while ((buf = encoder.readOutbound()) != null) {
+            try {
+                buf.readBytes(out, buf.readableBytes());
+            } finally {
+                buf.release();
+            }
+        }
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+}
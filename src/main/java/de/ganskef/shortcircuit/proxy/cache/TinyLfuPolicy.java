@@ -0,0 +1,218 @@
+package de.ganskef.shortcircuit.proxy.cache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A Window TinyLFU policy, see Einziger, Friedman, Manes: "TinyLFU: A Highly
+ * Efficient Cache Admission Policy". New keys enter a small LRU admission
+ * window. Leaving it, a key has to compete with the keys it would evict from
+ * the main region, and is admitted only if its frequency estimated by a
+ * {@link CountMinSketch} is higher than the frequency of each of them. So one
+ * large download has to beat more keys than a small one, and a scan of keys
+ * used only once can't flush the frequently used ones.
+ *
+ * The main region is a segmented LRU. Keys are admitted to the probation
+ * segment and promoted to the protected segment if they are used again.
+ */
+public class TinyLfuPolicy implements CachePolicy {
+
+    /** Percentage of the weight for the admission window. */
+    private static final int WINDOW_PERCENT = 1;
+
+    /** Percentage of the main region for the protected segment. */
+    private static final int PROTECTED_PERCENT = 80;
+
+    /** Weight of an average entry to estimate the width of the sketch. */
+    private static final long AVERAGE_WEIGHT = 64 * 1024;
+
+    private final long maxWeight;
+
+    private final long windowMax;
+
+    private final long protectedMax;
+
+    private final CountMinSketch sketch;
+
+    private final Map<String, Long> window = new LinkedHashMap<String, Long>();
+
+    private final Map<String, Long> probation = new LinkedHashMap<String, Long>();
+
+    private final Map<String, Long> protect = new LinkedHashMap<String, Long>();
+
+    private long windowWeight;
+
+    private long probationWeight;
+
+    private long protectedWeight;
+
+    public TinyLfuPolicy(long maxWeight) {
+        this(maxWeight, (int) Math.min(Integer.MAX_VALUE, Math.max(1, maxWeight / AVERAGE_WEIGHT)));
+    }
+
+    public TinyLfuPolicy(long maxWeight, int expectedEntries) {
+        this.maxWeight = maxWeight;
+        this.windowMax = Math.max(1, maxWeight * WINDOW_PERCENT / 100);
+        this.protectedMax = (maxWeight - windowMax) * PROTECTED_PERCENT / 100;
+        this.sketch = new CountMinSketch(expectedEntries);
+    }
+
+    @Override
+    public void recordAccess(String key) {
+        sketch.increment(key);
+        Long keyWeight = window.remove(key);
+        if (keyWeight != null) {
+            window.put(key, keyWeight);
+        } else if ((keyWeight = probation.remove(key)) != null) {
+            probationWeight -= keyWeight;
+            protect.put(key, keyWeight);
+            protectedWeight += keyWeight;
+            demoteProtected(key);
+        } else if ((keyWeight = protect.remove(key)) != null) {
+            protect.put(key, keyWeight);
+        }
+    }
+
+    private void demoteProtected(String promoted) {
+        for (Iterator<Map.Entry<String, Long>> it = protect.entrySet().iterator(); protectedWeight > protectedMax
+                && it.hasNext();) {
+            Map.Entry<String, Long> eldest = it.next();
+            if (!eldest.getKey().equals(promoted)) {
+                it.remove();
+                protectedWeight -= eldest.getValue();
+                probation.put(eldest.getKey(), eldest.getValue());
+                probationWeight += eldest.getValue();
+            }
+        }
+    }
+
+    @Override
+    public List<String> admit(String key, long keyWeight) {
+        List<String> evicted = new ArrayList<String>();
+        if (keyWeight > maxWeight - windowMax) {
+            remove(key);
+            evicted.add(key);
+            return evicted;
+        }
+        Long previous;
+        if ((previous = window.get(key)) != null) {
+            window.put(key, keyWeight);
+            windowWeight += keyWeight - previous;
+        } else if ((previous = probation.get(key)) != null) {
+            probation.put(key, keyWeight);
+            probationWeight += keyWeight - previous;
+        } else if ((previous = protect.get(key)) != null) {
+            protect.put(key, keyWeight);
+            protectedWeight += keyWeight - previous;
+        } else {
+            window.put(key, keyWeight);
+            windowWeight += keyWeight;
+        }
+        while (windowWeight > windowMax && !window.isEmpty()) {
+            Iterator<Map.Entry<String, Long>> it = window.entrySet().iterator();
+            Map.Entry<String, Long> candidate = it.next();
+            it.remove();
+            windowWeight -= candidate.getValue();
+            admitToMain(candidate.getKey(), candidate.getValue(), evicted);
+        }
+        // weights of admitted keys could have grown
+        while (weight() > maxWeight) {
+            evicted.add(evictEldest());
+        }
+        return evicted;
+    }
+
+    private void admitToMain(String candidate, long candidateWeight, List<String> evicted) {
+        long needed = probationWeight + protectedWeight + candidateWeight - (maxWeight - windowMax);
+        if (needed > 0) {
+            List<String> victims = new ArrayList<String>();
+            int victimFrequency = 0;
+            for (Iterator<String> it = new SegmentIterator(); needed > 0 && it.hasNext();) {
+                String victim = it.next();
+                victims.add(victim);
+                victimFrequency = Math.max(victimFrequency, sketch.frequency(victim));
+                needed -= weightOf(victim);
+            }
+            if (needed > 0 || sketch.frequency(candidate) <= victimFrequency) {
+                evicted.add(candidate);
+                return;
+            }
+            for (String each : victims) {
+                remove(each);
+            }
+            evicted.addAll(victims);
+        }
+        probation.put(candidate, candidateWeight);
+        probationWeight += candidateWeight;
+    }
+
+    private String evictEldest() {
+        Map<String, Long> segment = !probation.isEmpty() ? probation : !protect.isEmpty() ? protect : window;
+        String eldest = segment.keySet().iterator().next();
+        remove(eldest);
+        return eldest;
+    }
+
+    private long weightOf(String key) {
+        Long result = probation.get(key);
+        return result != null ? result : protect.get(key);
+    }
+
+    /**
+     * Iterates the main region in eviction order, probation before protected.
+     */
+    private final class SegmentIterator implements Iterator<String> {
+
+        private final Iterator<String> probationKeys = probation.keySet().iterator();
+
+        private final Iterator<String> protectedKeys = protect.keySet().iterator();
+
+        @Override
+        public boolean hasNext() {
+            return probationKeys.hasNext() || protectedKeys.hasNext();
+        }
+
+        @Override
+        public String next() {
+            return probationKeys.hasNext() ? probationKeys.next() : protectedKeys.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        Long keyWeight;
+        if ((keyWeight = window.remove(key)) != null) {
+            windowWeight -= keyWeight;
+        } else if ((keyWeight = probation.remove(key)) != null) {
+            probationWeight -= keyWeight;
+        } else if ((keyWeight = protect.remove(key)) != null) {
+            protectedWeight -= keyWeight;
+        }
+    }
+
+    /**
+     * Returns the estimated frequency of the key.
+     */
+    public int frequency(String key) {
+        return sketch.frequency(key);
+    }
+
+    @Override
+    public long weight() {
+        return windowWeight + probationWeight + protectedWeight;
+    }
+
+    @Override
+    public int size() {
+        return window.size() + probation.size() + protect.size();
+    }
+
+}
@@ -0,0 +1,146 @@
+package de.ganskef.shortcircuit.proxy.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeSet;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+
+/**
+ * Computes the secondary key of a response variant, see RFC 7234 section 4.1.
+ * Only the request headers named in the Vary header of the response are
+ * hashed into a 64 bit key, so the variants of an URI are selected without
+ * storing and comparing the request headers.
+ *
+ * The header values are normalized before, so trivial differences like the
+ * order of content codings don't split the cache.
+ */
+public final class VaryKey {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final String[] NONE = {};
+
+    private VaryKey() {
+        // don't instantiate
+    }
+
+    /**
+     * Returns the sorted, lower case names of the Vary headers, or null if a
+     * response varies on anything ("*") and can't be selected by a cache.
+     */
+    public static String[] parseVary(List<String> varyHeaders) {
+        TreeSet<String> names = new TreeSet<String>();
+        for (String header : varyHeaders) {
+            for (String each : header.split(",")) {
+                String name = each.trim().toLowerCase(Locale.ROOT);
+                if (name.equals("*")) {
+                    return null;
+                }
+                if (!name.isEmpty()) {
+                    names.add(name);
+                }
+            }
+        }
+        return names.isEmpty() ? NONE : names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * Returns the key of the variant selected by the given request headers.
+     */
+    public static long of(String[] varyNames, HttpHeaders requestHeaders) {
+        long hash = FNV_OFFSET_BASIS;
+        for (String name : varyNames) {
+            hash = hash(hash, name);
+            hash = hash(hash, normalize(name, requestHeaders.getAll(name)));
+        }
+        return hash;
+    }
+
+    /**
+     * Normalizes the values of a request header. Content codings are reduced
+     * to the sorted set of the accepted ones, others are trimmed and joined
+     * with collapsed white space.
+     */
+    static String normalize(String name, List<String> values) {
+        if (values.isEmpty()) {
+            return "";
+        }
+        if (HttpHeaderNames.ACCEPT_ENCODING.contentEqualsIgnoreCase(name)) {
+            return normalizeCodings(values);
+        }
+        List<String> parts = new ArrayList<String>();
+        for (String value : values) {
+            for (String each : value.split(",")) {
+                String part = each.trim().replaceAll("\\s+", " ");
+                if (!part.isEmpty()) {
+                    parts.add(part);
+                }
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String each : parts) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(each);
+        }
+        return sb.toString();
+    }
+
+    private static String normalizeCodings(List<String> values) {
+        List<String> codings = new ArrayList<String>();
+        for (String value : values) {
+            for (String each : value.split(",")) {
+                String[] params = each.split(";");
+                String coding = params[0].trim().toLowerCase(Locale.ROOT);
+                if (coding.equals("x-gzip")) {
+                    coding = "gzip";
+                }
+                if (!coding.isEmpty() && !isRejected(params) && !codings.contains(coding)) {
+                    codings.add(coding);
+                }
+            }
+        }
+        Collections.sort(codings);
+        StringBuilder sb = new StringBuilder();
+        for (String each : codings) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(each);
+        }
+        return sb.toString();
+    }
+
+    private static boolean isRejected(String[] params) {
+        for (int i = 1; i < params.length; i++) {
+            String param = params[i].trim().toLowerCase(Locale.ROOT);
+            if (param.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(param.substring(2)) <= 0;
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static long hash(long hash, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        // terminate to separate the values
+        hash ^= 0xff;
+        hash *= FNV_PRIME;
+        return hash;
+    }
+
+}
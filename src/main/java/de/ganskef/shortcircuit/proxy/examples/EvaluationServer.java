@@ -1,5 +1,12 @@
 package de.ganskef.shortcircuit.proxy.examples;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import de.ganskef.shortcircuit.metrics.EventLoopWatchdog;
+import de.ganskef.shortcircuit.proxy.AccessHistory;
+import de.ganskef.shortcircuit.proxy.CacheWarmer;
 import de.ganskef.shortcircuit.proxy.SslContextFactory;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.ChannelFuture;
@@ -8,6 +15,8 @@ import io.netty.channel.EventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.logging.LoggingHandler;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
 
 /**
  * This is a HTTP server based on the Netty
@@ -19,20 +28,71 @@ import io.netty.handler.logging.LoggingHandler;
  */
 public class EvaluationServer {
 
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(EvaluationServer.class);
+
+    /** None of the handlers needs the full body, so requests are streamed. */
+    private static final String[] NO_AGGREGATED_PATHS = {};
+
     private final int port;
 
+    private final boolean http2;
+
+    private final File historyFile;
+
+    private final long watchdogThresholdMillis;
+
+    private AccessHistory history;
+
+    private CacheWarmer warmer;
+
+    private EventLoopWatchdog watchdog;
+
     private EventLoopGroup bossGroup;
 
     private EventLoopGroup workerGroup;
 
     public EvaluationServer(int port) {
-        this(port, new NioEventLoopGroup(), new NioEventLoopGroup());
+        this(port, false);
+    }
+
+    /**
+     * Creates a server offering HTTP/2 to intercepted TLS connections, if
+     * wanted and ALPN is supported.
+     */
+    public EvaluationServer(int port, boolean http2) {
+        this(port, new NioEventLoopGroup(), new NioEventLoopGroup(), http2);
     }
 
     public EvaluationServer(int port, EventLoopGroup bossGroup, EventLoopGroup workerGroup) {
+        this(port, bossGroup, workerGroup, false);
+    }
+
+    public EvaluationServer(int port, EventLoopGroup bossGroup, EventLoopGroup workerGroup, boolean http2) {
+        this(port, bossGroup, workerGroup, http2, null);
+    }
+
+    /**
+     * Creates a server counting the intercepted hosts in the given file, if
+     * not null, to mint their certificates after a restart before they are
+     * requested.
+     */
+    public EvaluationServer(int port, EventLoopGroup bossGroup, EventLoopGroup workerGroup, boolean http2,
+            File historyFile) {
+        this(port, bossGroup, workerGroup, http2, historyFile, 0);
+    }
+
+    /**
+     * Creates a server watching its event loops for stalls longer than the
+     * given threshold, if positive, see {@link EventLoopWatchdog}.
+     */
+    public EvaluationServer(int port, EventLoopGroup bossGroup, EventLoopGroup workerGroup, boolean http2,
+            File historyFile, long watchdogThresholdMillis) {
         this.port = port;
         this.bossGroup = bossGroup;
         this.workerGroup = workerGroup;
+        this.http2 = http2;
+        this.historyFile = historyFile;
+        this.watchdogThresholdMillis = watchdogThresholdMillis;
     }
 
     public void run() {
@@ -47,16 +107,32 @@ public class EvaluationServer {
     }
 
     public ChannelFuture start() throws InterruptedException {
+        if (watchdogThresholdMillis > 0) {
+            watchdog = new EventLoopWatchdog(watchdogThresholdMillis,
+                    EventLoopWatchdog.DEFAULT_REPORT_INTERVAL_MILLIS, bossGroup, workerGroup).start();
+        }
         ServerBootstrap b = new ServerBootstrap();
         b.group(bossGroup, workerGroup);
         b.channel(NioServerSocketChannel.class);
         b.handler(new LoggingHandler("boss"));
-        b.childHandler(new EvaluationServerInitializer(new SslContextFactory()));
+        if (historyFile != null) {
+            try {
+                history = new AccessHistory().read(historyFile);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        SslContextFactory sslCtxFactory = new SslContextFactory(history, http2);
+        b.childHandler(new EvaluationServerInitializer(sslCtxFactory, NO_AGGREGATED_PATHS));
         b.option(ChannelOption.SO_BACKLOG, 128);
         b.childOption(ChannelOption.SO_KEEPALIVE, true);
 
         // Start server...
         ChannelFuture f = b.bind(port).sync();
+        if (history != null) {
+            warmer = new CacheWarmer(history, sslCtxFactory, null).scheduleWrites(historyFile, 1, TimeUnit.MINUTES)
+                    .start();
+        }
         return f;
     }
 
@@ -66,12 +142,45 @@ public class EvaluationServer {
     }
 
     public void stop() {
+        if (warmer != null) {
+            warmer.stop();
+            warmer = null;
+        }
+        if (history != null) {
+            try {
+                history.write(historyFile);
+            } catch (IOException e) {
+                logger.warn("History not written to {}:", historyFile, e);
+            }
+            history = null;
+        }
+        if (watchdog != null) {
+            watchdog.stop();
+            watchdog = null;
+        }
         bossGroup.shutdownGracefully();
         workerGroup.shutdownGracefully();
     }
 
+    /**
+     * Runs the server, with the options --http2, --history FILE and
+     * --watchdog MILLIS.
+     */
     public static void main(String[] args) {
-        new EvaluationServer(9090).run();
+        boolean http2 = false;
+        File historyFile = null;
+        long watchdogThresholdMillis = 0;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--http2")) {
+                http2 = true;
+            } else if (args[i].equals("--history") && i + 1 < args.length) {
+                historyFile = new File(args[++i]);
+            } else if (args[i].equals("--watchdog") && i + 1 < args.length) {
+                watchdogThresholdMillis = Long.parseLong(args[++i]);
+            }
+        }
+        new EvaluationServer(9090, new NioEventLoopGroup(), new NioEventLoopGroup(), http2, historyFile,
+                watchdogThresholdMillis).run();
     }
 
 }
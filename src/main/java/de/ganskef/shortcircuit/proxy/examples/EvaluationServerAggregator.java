@@ -0,0 +1,55 @@
+package de.ganskef.shortcircuit.proxy.examples;
+
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequest;
+
+/**
+ * This aggregator combines the parts of a request into a
+ * {@link io.netty.handler.codec.http.FullHttpRequest} only for the routes
+ * which really need the full body. Other requests are passed through as
+ * {@link HttpRequest} and {@link HttpContent} parts, so uploads and large
+ * proxied payloads aren't buffered or rejected.
+ * 
+ * It's an example to demonstrate a multiply handler application. This way it's
+ * possible to divide different server and/or proxy requirements into
+ * independent components.
+ */
+public class EvaluationServerAggregator extends HttpObjectAggregator {
+
+    private final String[] aggregatedPaths;
+
+    private boolean aggregating;
+
+    /**
+     * Creates an aggregator for all requests, if the paths are null, or for
+     * the requests with an URI starting with one of the given paths.
+     */
+    public EvaluationServerAggregator(int maxContentLength, String... aggregatedPaths) {
+        super(maxContentLength);
+        this.aggregatedPaths = aggregatedPaths;
+    }
+
+    @Override
+    public boolean acceptInboundMessage(Object msg) throws Exception {
+        if (msg instanceof HttpRequest) {
+            aggregating = isAggregated((HttpRequest) msg);
+        } else if (!(msg instanceof HttpContent)) {
+            return false;
+        }
+        return aggregating && super.acceptInboundMessage(msg);
+    }
+
+    protected boolean isAggregated(HttpRequest request) {
+        if (aggregatedPaths == null) {
+            return true;
+        }
+        for (String each : aggregatedPaths) {
+            if (request.uri().startsWith(each)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -1,24 +1,32 @@
 package de.ganskef.shortcircuit.proxy.examples;
 
+import de.ganskef.shortcircuit.metrics.FlightEvent;
+import de.ganskef.shortcircuit.metrics.Metrics;
+import de.ganskef.shortcircuit.metrics.StripedCounter;
 import de.ganskef.shortcircuit.proxy.SslContextFactory;
+import de.ganskef.shortcircuit.utils.CannedResponse;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpRequest;
-import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http2.Http2ServerDowngrader;
 import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 
 /**
  * This handler responds to a CONNECT request and stores the address in the
  * channel context. Other requests will be chained to the next handler in the
- * pipeline.
+ * pipeline, with or without an aggregator in front of it.
  * 
  * It's an example to demonstrate a multiply handler application. This way it's
  * possible to divide different server and/or proxy requirements into
@@ -29,21 +37,59 @@ public class EvaluationServerConnectHandler extends ChannelInboundHandlerAdapter
     private static final InternalLogger logger = InternalLoggerFactory
             .getInstance(EvaluationServerConnectHandler.class);
 
+    private static final CannedResponse CONNECTED = CannedResponse.register("connect.established",
+            connectedResponse());
+
+    private static final StripedCounter CONNECTS = Metrics.counter("shortcircuit_connect_requests_total",
+            "CONNECT requests answered.");
+
     private final SslContextFactory sslCtxFactory;
 
     private final AttributeKey<String> connectedAttributeKey;
 
+    private final ChannelHandler streamInitializer;
+
+    private boolean handled;
+
     public EvaluationServerConnectHandler(SslContextFactory sslCtxFactory, AttributeKey<String> connectedAttributeKey) {
+        this(sslCtxFactory, connectedAttributeKey, null);
+    }
+
+    /**
+     * Creates a handler intercepting the tunnel with HTTP/2 if negotiated,
+     * with a child channel per stream initialized by the given handler.
+     */
+    public EvaluationServerConnectHandler(SslContextFactory sslCtxFactory, AttributeKey<String> connectedAttributeKey,
+            ChannelHandler streamInitializer) {
         this.sslCtxFactory = sslCtxFactory;
         this.connectedAttributeKey = connectedAttributeKey;
+        this.streamInitializer = streamInitializer;
     }
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-        if (msg instanceof HttpRequest && isHandeled((HttpRequest) msg)) {
-            ctx.pipeline().channel().attr(connectedAttributeKey).set(((HttpRequest) msg).uri());
-            ctx.writeAndFlush(connectedResponse());
-            ctx.pipeline().addFirst(new EvaluationServerSslUpdateHandler(sslCtxFactory, connectedAttributeKey));
+        if (msg instanceof HttpRequest) {
+            handled = isHandeled((HttpRequest) msg);
+            if (handled) {
+                CONNECTS.increment();
+                Object event = FlightEvent.CONNECT.begin();
+                String uri = ((HttpRequest) msg).uri();
+                ctx.pipeline().channel().attr(connectedAttributeKey).set(uri);
+                CONNECTED.writeAndFlush(ctx);
+                // a stream of a HTTP/2 connection is intercepted already
+                if (ctx.pipeline().get(Http2ServerDowngrader.class) == null) {
+                    ctx.pipeline().addFirst(new EvaluationServerSslUpdateHandler(sslCtxFactory, connectedAttributeKey,
+                            streamInitializer));
+                }
+                FlightEvent.CONNECT.commit(event, uri, 0);
+            }
+        }
+        if (handled) {
+            // the content of a handled request is consumed here
+            ReferenceCountUtil.release(msg);
+            if (msg instanceof LastHttpContent) {
+                handled = false;
+            }
         } else {
             ctx.fireChannelRead(msg);
         }
@@ -53,9 +99,9 @@ public class EvaluationServerConnectHandler extends ChannelInboundHandlerAdapter
         return request.method() == HttpMethod.CONNECT;
     }
 
-    private HttpResponse connectedResponse() {
+    private static FullHttpResponse connectedResponse() {
         HttpResponseStatus status = new HttpResponseStatus(200, "Connection established");
-        HttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status);
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status);
         response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
         response.headers().set("Proxy-Connection", HttpHeaderValues.KEEP_ALIVE);
         // TODO add via header
@@ -0,0 +1,97 @@
+package de.ganskef.shortcircuit.proxy.examples;
+
+import java.util.List;
+
+import de.ganskef.shortcircuit.metrics.ConnectionTable;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+/**
+ * This handler responds to a request to the /connections URI with the open
+ * channels of the {@link ConnectionTable} as tab separated text, the largest
+ * pending outbound bytes first, at most the number given by the limit
+ * parameter like /connections?limit=20, a limit not a count is answered with
+ * 400 Bad Request. Other requests will be chained to the next handler in the
+ * pipeline.
+ *
+ * It's an example to demonstrate a multiply handler application. This way it's
+ * possible to divide different server and/or proxy requirements into
+ * independent components.
+ */
+public class EvaluationServerConnectionsHandler extends ChannelInboundHandlerAdapter {
+
+    private static final InternalLogger logger = InternalLoggerFactory
+            .getInstance(EvaluationServerConnectionsHandler.class);
+
+    private boolean handled;
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HttpRequest) {
+            handled = isHandeled((HttpRequest) msg);
+            if (handled) {
+                ctx.writeAndFlush(connectionsResponse(new QueryStringDecoder(((HttpRequest) msg).uri())));
+            }
+        }
+        if (handled) {
+            // the content of a handled request is consumed here
+            ReferenceCountUtil.release(msg);
+            if (msg instanceof LastHttpContent) {
+                handled = false;
+            }
+        } else {
+            ctx.fireChannelRead(msg);
+        }
+    }
+
+    protected boolean isHandeled(HttpRequest request) {
+        return new QueryStringDecoder(request.uri()).path().equals("/connections");
+    }
+
+    private static FullHttpResponse connectionsResponse(QueryStringDecoder query) {
+        int limit = Integer.MAX_VALUE;
+        List<String> values = query.parameters().get("limit");
+        if (values != null && !values.isEmpty()) {
+            try {
+                limit = Integer.parseInt(values.get(0));
+            } catch (NumberFormatException e) {
+                limit = -1;
+            }
+            if (limit < 0) {
+                logger.debug("Invalid limit {}", values.get(0));
+                return textResponse(HttpResponseStatus.BAD_REQUEST,
+                        "Failure: limit not a count " + values.get(0) + "\r\n");
+            }
+        }
+        return textResponse(HttpResponseStatus.OK, ConnectionTable.dump(EvaluationServerInitializer.CONNECTED, limit));
+    }
+
+    private static FullHttpResponse textResponse(HttpResponseStatus status, String text) {
+        ByteBuf buffer = Unpooled.copiedBuffer(text, CharsetUtil.UTF_8);
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, buffer);
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; charset=UTF-8");
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, buffer.readableBytes());
+        return response;
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        logger.error("An exception was thrown:", cause);
+        ctx.close();
+    }
+
+}
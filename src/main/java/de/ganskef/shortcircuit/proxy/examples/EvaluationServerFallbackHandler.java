@@ -1,22 +1,25 @@
 package de.ganskef.shortcircuit.proxy.examples;
 
+import de.ganskef.shortcircuit.utils.CannedResponse;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaderNames;
-import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 
 /**
  * This handler responds with a 404 Not Found response always to a completed
- * request. It's the last handler in the chain of the HTTP server.
+ * request, and drops the streamed parts before. It's the last handler in the
+ * chain of the HTTP server.
  * 
  * It's an example to demonstrate a multiply handler application. This way it's
  * possible to divide different server and/or proxy requirements into
@@ -27,10 +30,15 @@ public class EvaluationServerFallbackHandler extends ChannelInboundHandlerAdapte
     private static final InternalLogger logger = InternalLoggerFactory
             .getInstance(EvaluationServerFallbackHandler.class);
 
+    private static final CannedResponse NOT_FOUND = CannedResponse.register("fallback.not-found",
+            errorResponse(HttpResponseStatus.NOT_FOUND));
+
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-        if (isHandeled(msg)) {
-            ctx.writeAndFlush(errorResponse(HttpResponseStatus.NOT_FOUND));
+        boolean handled = isHandeled(msg);
+        ReferenceCountUtil.release(msg);
+        if (handled) {
+            NOT_FOUND.writeAndFlush(ctx);
         }
     }
 
@@ -38,9 +46,9 @@ public class EvaluationServerFallbackHandler extends ChannelInboundHandlerAdapte
         return msg instanceof LastHttpContent;
     }
 
-    private HttpResponse errorResponse(HttpResponseStatus status) {
+    private static FullHttpResponse errorResponse(HttpResponseStatus status) {
         ByteBuf buffer = Unpooled.copiedBuffer("Failure: " + status + "\r\n", CharsetUtil.UTF_8);
-        HttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, buffer);
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, buffer);
         response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; charset=UTF-8");
         response.headers().set(HttpHeaderNames.CONTENT_LENGTH, buffer.readableBytes());
         return response;
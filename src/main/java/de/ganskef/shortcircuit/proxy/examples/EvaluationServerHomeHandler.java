@@ -1,16 +1,19 @@
 package de.ganskef.shortcircuit.proxy.examples;
 
+import de.ganskef.shortcircuit.utils.CannedResponse;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
-import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaderNames;
-import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 
@@ -26,24 +29,38 @@ public class EvaluationServerHomeHandler extends ChannelInboundHandlerAdapter {
 
     private static final InternalLogger logger = InternalLoggerFactory.getInstance(EvaluationServerHomeHandler.class);
 
+    private static final CannedResponse OK = CannedResponse.register("home.ok", okResponse());
+
+    private boolean handled;
+
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-        if (msg instanceof FullHttpRequest && isHandeled((FullHttpRequest) msg)) {
-            ctx.writeAndFlush(okResponse());
+        if (msg instanceof HttpRequest) {
+            handled = isHandeled((HttpRequest) msg);
+            if (handled) {
+                OK.writeAndFlush(ctx);
+            }
+        }
+        if (handled) {
+            // the content of a handled request is consumed here
+            ReferenceCountUtil.release(msg);
+            if (msg instanceof LastHttpContent) {
+                handled = false;
+            }
         } else {
             ctx.fireChannelRead(msg);
         }
     }
 
-    protected boolean isHandeled(FullHttpRequest request) {
+    protected boolean isHandeled(HttpRequest request) {
         String uri = request.uri();
         return uri.equals("/") || uri.equals("/values/path");
     }
 
-    private HttpResponse okResponse() {
+    private static FullHttpResponse okResponse() {
         HttpResponseStatus status = HttpResponseStatus.OK;
         ByteBuf buffer = Unpooled.copiedBuffer("Response status: " + status + "\r\n", CharsetUtil.UTF_8);
-        HttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, buffer);
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, buffer);
         response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; charset=UTF-8");
         response.headers().set(HttpHeaderNames.CONTENT_LENGTH, buffer.readableBytes());
         return response;
@@ -0,0 +1,48 @@
+package de.ganskef.shortcircuit.proxy.examples;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.http2.Http2MultiplexCodec;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.ApplicationProtocolNegotiationHandler;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+/**
+ * This handler waits for the TLS handshake behind the SslHandler and replaces
+ * the HTTP/1.1 handlers with a HTTP/2 codec, if the client has chosen it with
+ * ALPN. Every stream gets a child channel initialized with the given handler,
+ * usually converting the frames to HTTP/1.x objects for the same chain of
+ * handlers, so they work per stream like per connection before. Otherwise the
+ * pipeline is left as it is.
+ *
+ * It's an example to demonstrate a multiply handler application. This way it's
+ * possible to divide different server and/or proxy requirements into
+ * independent components.
+ */
+public class EvaluationServerHttp2Handler extends ApplicationProtocolNegotiationHandler {
+
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(EvaluationServerHttp2Handler.class);
+
+    private final ChannelHandler streamInitializer;
+
+    public EvaluationServerHttp2Handler(ChannelHandler streamInitializer) {
+        super(ApplicationProtocolNames.HTTP_1_1);
+        this.streamInitializer = streamInitializer;
+    }
+
+    @Override
+    protected void configurePipeline(ChannelHandlerContext ctx, String protocol) throws Exception {
+        if (!ApplicationProtocolNames.HTTP_2.equals(protocol)) {
+            return;
+        }
+        logger.debug("Negotiated {} with {}", protocol, ctx.channel());
+        ChannelPipeline pipeline = ctx.pipeline();
+        while (pipeline.last() != this) {
+            pipeline.removeLast();
+        }
+        pipeline.addLast(new Http2MultiplexCodec(true, streamInitializer));
+    }
+
+}
@@ -1,11 +1,17 @@
 package de.ganskef.shortcircuit.proxy.examples;
 
+import de.ganskef.shortcircuit.metrics.ChannelMetricsHandler;
+import de.ganskef.shortcircuit.metrics.ConnectionTableHandler;
+import de.ganskef.shortcircuit.metrics.StageTimingHandler;
 import de.ganskef.shortcircuit.proxy.SslContextFactory;
+import de.ganskef.shortcircuit.utils.CannedResponseEncoder;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.handler.codec.http.HttpObjectAggregator;
-import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpRequestDecoder;
+import io.netty.handler.codec.http2.Http2ServerDowngrader;
 import io.netty.handler.logging.LoggingHandler;
 import io.netty.handler.stream.ChunkedWriteHandler;
 import io.netty.util.AttributeKey;
@@ -22,25 +28,70 @@ public class EvaluationServerInitializer extends ChannelInitializer<SocketChanne
 
     public static final AttributeKey<String> CONNECTED = AttributeKey.newInstance("CONNECTED_HOST_AND_PORT");
 
+    private static final int MAX_CONTENT_LENGTH = 65536;
+
+    private static final StageTimingHandler DECODE_STAGE = new StageTimingHandler("decode");
+
+    private static final StageTimingHandler HANDLERS_STAGE = new StageTimingHandler("handlers");
+
     private final SslContextFactory sslCtxFactory;
 
+    private final String[] aggregatedPaths;
+
+    /**
+     * Initializes the channel of a HTTP/2 stream with the same handlers as a
+     * HTTP/1.1 connection, behind a converter of the frames.
+     */
+    private final ChannelHandler streamInitializer = new ChannelInitializer<Channel>() {
+        @Override
+        protected void initChannel(Channel ch) throws Exception {
+            ChannelPipeline p = ch.pipeline();
+            p.addLast(new Http2ServerDowngrader());
+            addHandlers(p);
+        }
+    };
+
+    /**
+     * Creates a pipeline with all requests aggregated to a full request.
+     */
     public EvaluationServerInitializer(SslContextFactory sslContextFactory) {
+        this(sslContextFactory, (String[]) null);
+    }
+
+    /**
+     * Creates a streaming pipeline, the handlers get the parts of the
+     * requests. Only requests with an URI starting with the given paths are
+     * aggregated for handlers which need the full body.
+     */
+    public EvaluationServerInitializer(SslContextFactory sslContextFactory, String... aggregatedPaths) {
         this.sslCtxFactory = sslContextFactory;
+        this.aggregatedPaths = aggregatedPaths;
     }
 
     @Override
     protected void initChannel(SocketChannel ch) throws Exception {
         ChannelPipeline p = ch.pipeline();
-        if (sslCtxFactory != null) {
-            p.addFirst(new EvaluationServerSslUpdateHandler(sslCtxFactory, CONNECTED));
-        }
-        p.addLast(new HttpServerCodec(), //
-                new HttpObjectAggregator(65536), //
+        // SOCKS, TLS and HTTP share the port
+        p.addFirst(new EvaluationServerPortUnificationHandler(sslCtxFactory, CONNECTED, streamInitializer));
+        p.addFirst(new ConnectionTableHandler(ConnectionTableHandler.CLIENT));
+        p.addFirst(ChannelMetricsHandler.INSTANCE);
+        // separated codecs, since canned responses pass the encoder raw
+        p.addLast(DECODE_STAGE, //
+                new HttpRequestDecoder(), //
+                new CannedResponseEncoder());
+        addHandlers(p);
+    }
+
+    private void addHandlers(ChannelPipeline p) {
+        p.addLast(HANDLERS_STAGE, //
+                new EvaluationServerAggregator(MAX_CONTENT_LENGTH, aggregatedPaths), //
                 new ChunkedWriteHandler(), //
                 new LoggingHandler("work"), //
-                new EvaluationServerConnectHandler(sslCtxFactory, CONNECTED), //
+                new EvaluationServerConnectHandler(sslCtxFactory, CONNECTED, streamInitializer), //
 //                new EvaluationServerProxyHandler(sslCtxFactory, CONNECTED), //
                 new EvaluationServerHomeHandler(), //
+                new EvaluationServerMetricsHandler(), //
+                new EvaluationServerConnectionsHandler(), //
                 new EvaluationServerFallbackHandler());
     }
 
@@ -0,0 +1,74 @@
+package de.ganskef.shortcircuit.proxy.examples;
+
+import de.ganskef.shortcircuit.metrics.Metrics;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+/**
+ * This handler responds to a request to the /metrics URI with the current
+ * {@link Metrics} in the text format of Prometheus. Other requests will be
+ * chained to the next handler in the pipeline.
+ *
+ * It's an example to demonstrate a multiply handler application. This way it's
+ * possible to divide different server and/or proxy requirements into
+ * independent components.
+ */
+public class EvaluationServerMetricsHandler extends ChannelInboundHandlerAdapter {
+
+    private static final InternalLogger logger = InternalLoggerFactory
+            .getInstance(EvaluationServerMetricsHandler.class);
+
+    private boolean handled;
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HttpRequest) {
+            handled = isHandeled((HttpRequest) msg);
+            if (handled) {
+                ctx.writeAndFlush(metricsResponse());
+            }
+        }
+        if (handled) {
+            // the content of a handled request is consumed here
+            ReferenceCountUtil.release(msg);
+            if (msg instanceof LastHttpContent) {
+                handled = false;
+            }
+        } else {
+            ctx.fireChannelRead(msg);
+        }
+    }
+
+    protected boolean isHandeled(HttpRequest request) {
+        return request.uri().equals("/metrics");
+    }
+
+    private static FullHttpResponse metricsResponse() {
+        ByteBuf buffer = Unpooled.copiedBuffer(Metrics.scrape(), CharsetUtil.UTF_8);
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                buffer);
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; version=0.0.4; charset=UTF-8");
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, buffer.readableBytes());
+        return response;
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        logger.error("An exception was thrown:", cause);
+        ctx.close();
+    }
+
+}
@@ -0,0 +1,75 @@
+package de.ganskef.shortcircuit.proxy.examples;
+
+import java.util.List;
+
+import de.ganskef.shortcircuit.proxy.SocksServerHandler;
+import de.ganskef.shortcircuit.proxy.SslContextFactory;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.socksx.SocksPortUnificationServerHandler;
+import io.netty.handler.codec.socksx.SocksVersion;
+import io.netty.util.AttributeKey;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+/**
+ * This handler tells apart the protocols on the first byte of a connection
+ * and removes himself from the pipeline. A SOCKS4 or SOCKS5 client gets the
+ * HTTP handlers replaced with a SOCKS handshake tunneling to the destination.
+ * Otherwise the bytes are passed to the {@link EvaluationServerSslUpdateHandler}
+ * to detect TLS, or to the HTTP handlers directly. The versions of SOCKS don't
+ * collide with a TLS record type or the letter of a HTTP method.
+ *
+ * It's an example to demonstrate a multiply handler application. This way it's
+ * possible to divide different server and/or proxy requirements into
+ * independent components.
+ */
+public class EvaluationServerPortUnificationHandler extends ByteToMessageDecoder {
+
+    private static final InternalLogger logger = InternalLoggerFactory
+            .getInstance(EvaluationServerPortUnificationHandler.class);
+
+    private final SslContextFactory sslCtxFactory;
+
+    private final AttributeKey<String> connectedAttributeKey;
+
+    private final ChannelHandler streamInitializer;
+
+    /**
+     * Creates a handler detecting SOCKS, and TLS if a factory is given, with
+     * the arguments of the {@link EvaluationServerSslUpdateHandler}.
+     */
+    public EvaluationServerPortUnificationHandler(SslContextFactory sslCtxFactory,
+            AttributeKey<String> connectedAttributeKey, ChannelHandler streamInitializer) {
+        this.sslCtxFactory = sslCtxFactory;
+        this.connectedAttributeKey = connectedAttributeKey;
+        this.streamInitializer = streamInitializer;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf buf, List<Object> outs) throws Exception {
+        ChannelPipeline pipeline = ctx.pipeline();
+        byte version = buf.getByte(buf.readerIndex());
+        if (version == SocksVersion.SOCKS4a.byteValue() || version == SocksVersion.SOCKS5.byteValue()) {
+            logger.debug("Detect SOCKS connection from {}", ctx.channel());
+            while (pipeline.last() != this) {
+                pipeline.removeLast();
+            }
+            pipeline.addLast(new SocksPortUnificationServerHandler(), new SocksServerHandler());
+        } else if (sslCtxFactory != null) {
+            pipeline.addAfter(ctx.name(), null,
+                    new EvaluationServerSslUpdateHandler(sslCtxFactory, connectedAttributeKey, streamInitializer));
+        }
+        pipeline.remove(this);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        logger.error("An exception was thrown:", cause);
+        ctx.close();
+    }
+
+}
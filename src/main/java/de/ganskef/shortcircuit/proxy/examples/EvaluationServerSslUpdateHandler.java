@@ -5,6 +5,7 @@ import java.net.UnknownHostException;
 import java.util.List;
 import java.util.Map.Entry;
 
+import de.ganskef.shortcircuit.metrics.FlightEvent;
 import de.ganskef.shortcircuit.proxy.SslContextFactory;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
@@ -15,6 +16,8 @@ import io.netty.handler.codec.ByteToMessageDecoder;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslHandler;
 import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
 import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 
@@ -39,22 +42,52 @@ public class EvaluationServerSslUpdateHandler extends ByteToMessageDecoder {
 
     private final AttributeKey<String> connectedAttributeKey;
 
+    private final ChannelHandler streamInitializer;
+
     public EvaluationServerSslUpdateHandler(SslContextFactory sslCtxFactory,
             AttributeKey<String> connectedAttributeKey) {
+        this(sslCtxFactory, connectedAttributeKey, null);
+    }
+
+    /**
+     * Creates a handler switching to HTTP/2 if negotiated with ALPN, with a
+     * child channel per stream initialized by the given handler.
+     */
+    public EvaluationServerSslUpdateHandler(SslContextFactory sslCtxFactory,
+            AttributeKey<String> connectedAttributeKey, ChannelHandler streamInitializer) {
         this.sslCtxFactory = sslCtxFactory;
         this.connectedAttributeKey = connectedAttributeKey;
+        this.streamInitializer = streamInitializer;
     }
 
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf buf, List<Object> outs) throws Exception {
         ChannelPipeline pipeline = ctx.pipeline();
+        Object sniffEvent = FlightEvent.TLS_SNIFF.begin();
+        String cn = null;
         if (sslCtxFactory != null && SslHandler.isEncrypted(buf)) {
-            String cn = findCertificateName(ctx.channel());
+            cn = findCertificateName(ctx.channel());
             logger.info("Detect encrypted connection to {}...", cn);
             SslContext sslCtx = sslCtxFactory.getSslContext(cn);
             String name = findHandlerName(pipeline);
-            pipeline.addAfter(name, null, sslCtx.newHandler(ctx.alloc()));
+            SslHandler sslHandler = sslCtx.newHandler(ctx.alloc());
+            final Object handshakeEvent = FlightEvent.TLS_HANDSHAKE.begin();
+            if (handshakeEvent != null) {
+                final String host = cn;
+                sslHandler.handshakeFuture().addListener(new GenericFutureListener<Future<Channel>>() {
+                    @Override
+                    public void operationComplete(Future<Channel> future) {
+                        FlightEvent.TLS_HANDSHAKE.commit(handshakeEvent, host, 0);
+                    }
+                });
+            }
+            pipeline.addAfter(name, null, sslHandler);
+            if (streamInitializer != null && !sslCtx.applicationProtocolNegotiator().protocols().isEmpty()) {
+                pipeline.addAfter(pipeline.context(sslHandler).name(), null,
+                        new EvaluationServerHttp2Handler(streamInitializer));
+            }
         }
+        FlightEvent.TLS_SNIFF.commit(sniffEvent, cn, buf.readableBytes());
         pipeline.remove(this);
     }
 
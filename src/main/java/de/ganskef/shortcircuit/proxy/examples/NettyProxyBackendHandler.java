@@ -1,10 +1,23 @@
 package de.ganskef.shortcircuit.proxy.examples;
 
+import java.io.File;
+import java.io.IOException;
+
+import de.ganskef.shortcircuit.metrics.FlightEvent;
+import de.ganskef.shortcircuit.proxy.HttpResponseRelayHandler;
+import de.ganskef.shortcircuit.proxy.RawRelayHandler;
+import de.ganskef.shortcircuit.proxy.RequestTiming;
+import de.ganskef.shortcircuit.proxy.ResponseSpool;
+import de.ganskef.shortcircuit.proxy.cache.CollapsedResponse;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.HttpRequestEncoder;
 import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 
@@ -19,8 +32,55 @@ public class NettyProxyBackendHandler extends ChannelInboundHandlerAdapter {
 
     private final Channel inboundChannel;
 
+    private final CollapsedResponse collapsedResponse;
+
+    private final File spoolDirectory;
+
+    private RequestTiming timing;
+
+    private Object responseEvent;
+
+    private long responseBytes;
+
+    private boolean responseStarted;
+
+    private ResponseSpool spool;
+
+    private boolean keepAlive;
+
     public NettyProxyBackendHandler(Channel inboundChannel) {
+        this(inboundChannel, null);
+    }
+
+    /**
+     * Creates a handler publishing the response to all subscribers of the
+     * collapsed response instead of writing it to the inbound channel only.
+     */
+    public NettyProxyBackendHandler(Channel inboundChannel, CollapsedResponse collapsedResponse) {
+        this(inboundChannel, collapsedResponse, null);
+    }
+
+    /**
+     * Creates a handler spooling the response into a file of the given
+     * directory, if not null, as soon as the client channel isn't writable.
+     * Upstream is read at full speed then.
+     * Collapsed responses aren't spooled, they detach lagging subscribers.
+     */
+    public NettyProxyBackendHandler(Channel inboundChannel, CollapsedResponse collapsedResponse,
+            File spoolDirectory) {
+        this(inboundChannel, collapsedResponse, spoolDirectory, null);
+    }
+
+    /**
+     * Creates a handler completing the timing of the request, if not null,
+     * with the last byte written to the client.
+     */
+    public NettyProxyBackendHandler(Channel inboundChannel, CollapsedResponse collapsedResponse,
+            File spoolDirectory, RequestTiming timing) {
         this.inboundChannel = inboundChannel;
+        this.collapsedResponse = collapsedResponse;
+        this.spoolDirectory = spoolDirectory;
+        this.timing = timing;
     }
 
     @Override
@@ -30,22 +90,141 @@ public class NettyProxyBackendHandler extends ChannelInboundHandlerAdapter {
 
     @Override
     public void channelRead(final ChannelHandlerContext ctx, Object msg) {
+        if (timing != null) {
+            timing.firstByte();
+        }
+        if (!responseStarted) {
+            responseStarted = true;
+            responseEvent = FlightEvent.RESPONSE.begin();
+        }
+        if (responseEvent != null && msg instanceof ByteBuf) {
+            responseBytes += ((ByteBuf) msg).readableBytes();
+        }
+        if (collapsedResponse != null) {
+            // the response reads on as soon as one subscriber is ready
+            collapsedResponse.publish((ByteBuf) msg, ctx.channel());
+            return;
+        }
+        if (spool == null && spoolDirectory != null && !inboundChannel.isWritable()) {
+            try {
+                spool = new ResponseSpool(inboundChannel, spoolDirectory);
+            } catch (IOException e) {
+                logger.warn("Spooling failed:", e);
+            }
+        }
+        if (spool != null) {
+            try {
+                spool.append((ByteBuf) msg);
+                ctx.read();
+            } catch (IOException e) {
+                logger.warn("An exception was thrown:", e);
+                ctx.close();
+                inboundChannel.close();
+            }
+            return;
+        }
+        // read on if it could be spooled, till the lagging client is unwritable
+        final boolean readOn = spoolDirectory != null && inboundChannel.isWritable();
         inboundChannel.writeAndFlush(msg).addListener(new ChannelFutureListener() {
             @Override
             public void operationComplete(ChannelFuture future) {
                 if (future.isSuccess()) {
-                    ctx.channel().read();
+                    if (!readOn) {
+                        ctx.channel().read();
+                    }
                 } else {
                     logger.warn("An exception was thrown:", future.cause());
                     future.channel().close();
                 }
             }
         });
+        if (readOn) {
+            ctx.read();
+        }
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, final Object evt) {
+        if (evt instanceof HttpResponseRelayHandler.ResponseComplete) {
+            // there's no upstream connection caching, but the client could
+            // send the next request without waiting for the upstream close
+            keepAlive = collapsedResponse == null && ((HttpResponseRelayHandler.ResponseComplete) evt).isKeepAlive();
+            if (collapsedResponse != null) {
+                // the subscribers are fed on their own, it's received only
+                completeTiming(false);
+                collapsedResponse.complete();
+            } else if (keepAlive) {
+                whenSent(new Runnable() {
+                    @Override
+                    public void run() {
+                        completeTiming(true);
+                        inboundChannel.pipeline().fireUserEventTriggered(evt);
+                    }
+                });
+            }
+            ctx.close();
+        } else if (evt instanceof HttpResponseRelayHandler.Upgraded) {
+            // both sides relay raw bytes of the new protocol from now on
+            ChannelPipeline p = ctx.pipeline();
+            if (p.get(HttpRequestEncoder.class) != null) {
+                p.remove(HttpRequestEncoder.class);
+            }
+            p.replace(this, null, new RawRelayHandler(inboundChannel));
+            completeTiming(true);
+            inboundChannel.pipeline().fireUserEventTriggered(evt);
+        } else {
+            ctx.fireUserEventTriggered(evt);
+        }
     }
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) {
-        NettyProxyFrontendHandler.closeOnFlush(inboundChannel);
+        if (collapsedResponse != null) {
+            completeTiming(false);
+            collapsedResponse.complete();
+            return;
+        }
+        if (!keepAlive) {
+            whenSent(new Runnable() {
+                @Override
+                public void run() {
+                    completeTiming(true);
+                    NettyProxyFrontendHandler.closeOnFlush(inboundChannel);
+                }
+            });
+        }
+    }
+
+    /**
+     * Completes the timing once, after the bytes written to the client so far
+     * are flushed if wanted.
+     */
+    private void completeTiming(boolean flushed) {
+        FlightEvent.RESPONSE.commit(responseEvent, inboundChannel.remoteAddress(), responseBytes);
+        responseEvent = null;
+        final RequestTiming completed = timing;
+        timing = null;
+        if (completed == null) {
+            return;
+        }
+        if (!flushed || !inboundChannel.isActive()) {
+            completed.complete();
+            return;
+        }
+        inboundChannel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                completed.complete();
+            }
+        });
+    }
+
+    private void whenSent(Runnable action) {
+        if (spool != null) {
+            spool.complete(action);
+        } else {
+            action.run();
+        }
     }
 
     @Override
@@ -1,23 +1,46 @@
 package de.ganskef.shortcircuit.proxy.examples;
 
-import java.net.SocketAddress;
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
 
+import de.ganskef.shortcircuit.metrics.ConnectionTableHandler;
+import de.ganskef.shortcircuit.metrics.FlightEvent;
+import de.ganskef.shortcircuit.proxy.Http2UpstreamPool;
+import de.ganskef.shortcircuit.proxy.HttpResponseRelayHandler;
+import de.ganskef.shortcircuit.proxy.ParentProxies;
 import de.ganskef.shortcircuit.proxy.ProxyUtils;
+import de.ganskef.shortcircuit.proxy.RawRelayHandler;
+import de.ganskef.shortcircuit.proxy.RequestTiming;
+import de.ganskef.shortcircuit.proxy.cache.CollapsedForwarding;
+import de.ganskef.shortcircuit.proxy.cache.CollapsedResponse;
+import de.ganskef.shortcircuit.proxy.cache.ResponseCacheHandler;
+import de.ganskef.shortcircuit.proxy.cache.ResponseCompressor;
 import de.ganskef.shortcircuit.utils.HttpRequestUtil;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpRequestDecoder;
 import io.netty.handler.codec.http.HttpRequestEncoder;
 import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.handler.logging.LoggingHandler;
+import io.netty.handler.proxy.ProxyHandler;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
 import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 
@@ -31,8 +54,85 @@ public class NettyProxyFrontendHandler extends ChannelInboundHandlerAdapter {
 
     private static final InternalLogger logger = InternalLoggerFactory.getInstance(NettyProxyFrontendHandler.class);
 
+    private static final List<Class<? extends ChannelHandler>> HTTP_HANDLERS = Arrays
+            .<Class<? extends ChannelHandler>> asList(HttpRequestDecoder.class, IdleStateHandler.class,
+                    ResponseCacheHandler.class);
+
+    private final CollapsedForwarding collapsedForwarding;
+
+    private final File spoolDirectory;
+
+    private final Http2UpstreamPool http2Pool;
+
+    private final ParentProxies parentProxies;
+
+    private final ResponseCompressor compressor;
+
     private volatile Channel outboundChannel;
 
+    private Http2UpstreamPool.Exchange exchange;
+
+    private CollapsedResponse.Subscriber subscriber;
+
+    /** Pipelined requests held at most, the connection is closed if more. */
+    static final int MAX_PENDING_REQUESTS = 32;
+
+    /** Pipelined requests waiting for the current response, in order. */
+    private final ArrayDeque<HttpRequest> pendingRequests = new ArrayDeque<HttpRequest>();
+
+    public NettyProxyFrontendHandler() {
+        this(null);
+    }
+
+    /**
+     * Creates a handler collapsing concurrent identical requests into a single
+     * upstream fetch if collapsed forwarding is given.
+     */
+    public NettyProxyFrontendHandler(CollapsedForwarding collapsedForwarding) {
+        this(collapsedForwarding, null);
+    }
+
+    /**
+     * Creates a handler spooling responses for slow clients into files of the
+     * given directory, if not null.
+     */
+    public NettyProxyFrontendHandler(CollapsedForwarding collapsedForwarding, File spoolDirectory) {
+        this(collapsedForwarding, spoolDirectory, null);
+    }
+
+    /**
+     * Creates a handler forwarding the requests to origins speaking HTTP/2 as
+     * streams of the pooled connections, if a pool is given. Collapsed
+     * requests are fetched with HTTP/1.1 still.
+     */
+    public NettyProxyFrontendHandler(CollapsedForwarding collapsedForwarding, File spoolDirectory,
+            Http2UpstreamPool http2Pool) {
+        this(collapsedForwarding, spoolDirectory, http2Pool, null);
+    }
+
+    /**
+     * Creates a handler connecting upstream through the given parent proxies,
+     * if not null. Origins of the HTTP/2 pool are connected directly still.
+     */
+    public NettyProxyFrontendHandler(CollapsedForwarding collapsedForwarding, File spoolDirectory,
+            Http2UpstreamPool http2Pool, ParentProxies parentProxies) {
+        this(collapsedForwarding, spoolDirectory, http2Pool, parentProxies, null);
+    }
+
+    /**
+     * Creates a handler compressing the relayed responses on the fly, if a
+     * compressor is given and the client accepts it. Collapsed responses are
+     * cached, they are compressed by the cache.
+     */
+    public NettyProxyFrontendHandler(CollapsedForwarding collapsedForwarding, File spoolDirectory,
+            Http2UpstreamPool http2Pool, ParentProxies parentProxies, ResponseCompressor compressor) {
+        this.compressor = compressor;
+        this.collapsedForwarding = collapsedForwarding;
+        this.spoolDirectory = spoolDirectory;
+        this.http2Pool = http2Pool;
+        this.parentProxies = parentProxies;
+    }
+
     @Override
     public void channelActive(ChannelHandlerContext ctx) {
         final Channel inboundChannel = ctx.channel();
@@ -43,8 +143,29 @@ public class NettyProxyFrontendHandler extends ChannelInboundHandlerAdapter {
     public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
         if (msg instanceof HttpRequest) {
             final HttpRequest request = (HttpRequest) msg;
-            SocketAddress address = HttpRequestUtil.getInetSocketAddress(request);
+            if (subscriber != null) {
+                // one response per connection with collapsed forwarding
+                ctx.channel().read();
+                return;
+            }
+            if (outboundChannel != null || exchange != null) {
+                // pipelined, wait until the current response is complete,
+                // it's resolved and timed when it's read again
+                if (pendingRequests.size() >= MAX_PENDING_REQUESTS) {
+                    logger.info("More than {} pipelined requests, close {}", MAX_PENDING_REQUESTS, ctx.channel());
+                    ctx.close();
+                    return;
+                }
+                pendingRequests.add(request);
+                return;
+            }
+            Object event = FlightEvent.REQUEST.begin();
+            RequestTiming timing = RequestTiming.start(request.method().name(), request.uri());
+            // the name is resolved here, blocking the event loop
+            final InetSocketAddress address = HttpRequestUtil.getInetSocketAddress(request);
+            timing.resolved();
             if (address == null) {
+                timing.recycle();
                 // TODO could be a direct request to the proxy server
                 // TODO could be a CONNECT request, HTTPS or proxy tunneling
                 /*
@@ -83,10 +204,36 @@ public class NettyProxyFrontendHandler extends ChannelInboundHandlerAdapter {
 //                // Close the connection as soon as the error message is sent.
 //                ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
                  throw new IllegalStateException("Address not resolved, terminate " + msg);
-            } else if (outboundChannel == null) {
-                initOutboundChannel(ctx, request, address);
-            } else if (outboundChannel.isActive()) {
-                writeOutbound(ctx, msg);
+            } else {
+                if (HttpRequestUtil.isUpgrade(request)) {
+                    // relayed raw if switched, neither collapsed nor pooled
+                    initOutboundChannel(ctx, request, address, timing, event);
+                    return;
+                }
+                if (collapsedForwarding != null && collapsedForwarding.isCollapsible(request)) {
+                    subscriber = collapsedForwarding.subscribe(request, ctx.channel(), new Runnable() {
+                        @Override
+                        public void run() {
+                            fetchDetached(ctx, request, address);
+                        }
+                    });
+                    if (!subscriber.isLeader()) {
+                        // the response is fed by the leading request
+                        timing.recycle();
+                        FlightEvent.REQUEST.commit(event, address.getHostString(), 0);
+                        ctx.channel().read();
+                        return;
+                    }
+                }
+                if (subscriber == null && http2Pool != null && http2Pool.isHttp2(address)) {
+                    // timed per connection upstream only
+                    timing.recycle();
+                    exchange = http2Pool.forward(request, address, ctx.channel());
+                    FlightEvent.REQUEST.commit(event, address.getHostString(), 0);
+                    ctx.channel().read();
+                    return;
+                }
+                initOutboundChannel(ctx, request, address, timing, event);
             }
         } else if (msg instanceof LastHttpContent) {
             // Success, terminator received
@@ -99,24 +246,71 @@ public class NettyProxyFrontendHandler extends ChannelInboundHandlerAdapter {
         }
     }
 
+    /**
+     * Fetches the response of a follower on its own, since the response of
+     * the leader isn't shared. It's still one response per connection.
+     */
+    private void fetchDetached(ChannelHandlerContext ctx, HttpRequest request, InetSocketAddress address) {
+        if (!ctx.channel().isActive()) {
+            return;
+        }
+        subscriber = null;
+        HttpUtil.setKeepAlive(request, false);
+        RequestTiming timing = RequestTiming.start(request.method().name(), request.uri());
+        timing.resolved();
+        initOutboundChannel(ctx, request, address, timing, FlightEvent.REQUEST.begin());
+    }
+
     private void initOutboundChannel(final ChannelHandlerContext ctx, final HttpRequest request,
-            SocketAddress address) {
+            final InetSocketAddress address, final RequestTiming timing, final Object requestEvent) {
         final Channel inboundChannel = ctx.channel();
         // Start the connection attempt.
         Bootstrap b = new Bootstrap();
         b.group(inboundChannel.eventLoop());
         b.channel(ctx.channel().getClass());
-        b.handler(new NettyProxyBackendHandler(inboundChannel));
+        b.handler(new NettyProxyBackendHandler(inboundChannel, subscriber == null ? null : subscriber.response(),
+                spoolDirectory, timing));
         b.option(ChannelOption.AUTO_READ, false);
-        ChannelFuture f = b.connect(address);
+        final boolean keepAlive = subscriber == null && HttpUtil.isKeepAlive(request);
+        final boolean upgrade = HttpRequestUtil.isUpgrade(request);
+        final HttpMethod method = request.method();
+        final HttpResponseRelayHandler.BodyCoder coder = compressor != null && subscriber == null && !upgrade
+                && request.protocolVersion().equals(HttpVersion.HTTP_1_1) && ResponseCompressor.isAccepted(request)
+                        ? compressor.newStream() : null;
+        final boolean forwarding;
+        final Object connectEvent = FlightEvent.UPSTREAM_CONNECT.begin();
+        ChannelFuture f;
+        if (parentProxies != null) {
+            ParentProxies.Parent parent = parentProxies.select();
+            forwarding = parent.isForwarding(upgrade);
+            f = parent.connect(b, address, upgrade);
+        } else {
+            forwarding = false;
+            f = b.connect(address);
+        }
         outboundChannel = f.channel();
         f.addListener(new ChannelFutureListener() {
             @Override
             public void operationComplete(ChannelFuture future) {
+                FlightEvent.UPSTREAM_CONNECT.commit(connectEvent, address.getHostString(), 0);
                 if (future.isSuccess()) {
+                    timing.connected();
                     ChannelPipeline p = outboundChannel.pipeline();
+                    ProxyHandler proxyHandler = p.get(ProxyHandler.class);
+                    if (proxyHandler != null) {
+                        proxyHandler.connectFuture().addListener(new GenericFutureListener<Future<Channel>>() {
+                            @Override
+                            public void operationComplete(Future<Channel> future) {
+                                if (future.isSuccess()) {
+                                    timing.handshaken();
+                                }
+                            }
+                        });
+                    }
                     p.addLast(new LoggingHandler(NettyProxyBackendHandler.class), //
                             new HttpRequestEncoder());
+                    p.addFirst(new HttpResponseRelayHandler(method, keepAlive, upgrade, coder));
+                    p.addFirst(new ConnectionTableHandler(ConnectionTableHandler.UPSTREAM));
 
                     // There is no connection caching at the moment.
                     // RFC 2616 HTTP/1.1 section 14.10 says:
@@ -124,17 +318,28 @@ public class NettyProxyFrontendHandler extends ChannelInboundHandlerAdapter {
                     // connections MUST include the "close" connection
                     // option
                     // in every message
-                    HttpUtil.setKeepAlive(request, false);
+                    // An upgrade keeps the connection for the new protocol.
+                    if (!upgrade) {
+                        HttpUtil.setKeepAlive(request, false);
+                    }
 
                     // URLConnection rejects if the proxied URL won't start
-                    // with the query, see RFC 7230 section 5.3.1.
-                    String adjustedUri = ProxyUtils.stripHost(request.uri());
-                    request.setUri(adjustedUri);
+                    // with the query, see RFC 7230 section 5.3.1. A parent
+                    // proxy needs the absolute form instead.
+                    if (!forwarding) {
+                        String adjustedUri = ProxyUtils.stripHost(request.uri());
+                        request.setUri(adjustedUri);
+                    }
 
                     writeOutbound(ctx, request);
+                    FlightEvent.REQUEST.commit(requestEvent, address.getHostString(), 0);
                 } else {
                     // Close the connection if the connection attempt has
                     // failed.
+                    timing.recycle();
+                    if (subscriber != null) {
+                        subscriber.response().complete();
+                    }
                     inboundChannel.close();
                 }
             }
@@ -147,7 +352,9 @@ public class NettyProxyFrontendHandler extends ChannelInboundHandlerAdapter {
             public void operationComplete(ChannelFuture future) {
                 if (future.isSuccess()) {
                     // was able to flush out data, start to read the next chunk
-                    ctx.channel().read();
+                    if (pendingRequests.isEmpty()) {
+                        ctx.channel().read();
+                    }
                 } else {
                     logger.warn("An exception was thrown:", future.cause());
                     future.channel().close();
@@ -156,9 +363,53 @@ public class NettyProxyFrontendHandler extends ChannelInboundHandlerAdapter {
         });
     }
 
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+        if (evt instanceof HttpResponseRelayHandler.ResponseComplete) {
+            if (!((HttpResponseRelayHandler.ResponseComplete) evt).isKeepAlive()) {
+                // the client connection is closed, there's no next request
+                return;
+            }
+            // the upstream connection is closed, the next request opens a new
+            outboundChannel = null;
+            exchange = null;
+            HttpRequest pending = pendingRequests.poll();
+            if (pending != null) {
+                channelRead(ctx, pending);
+            } else {
+                ctx.channel().read();
+            }
+        } else if (evt instanceof HttpResponseRelayHandler.Upgraded) {
+            // the HTTP handlers are obsolete for the new protocol
+            ChannelPipeline p = ctx.pipeline();
+            for (Class<? extends ChannelHandler> each : HTTP_HANDLERS) {
+                if (p.get(each) != null) {
+                    p.remove(each);
+                }
+            }
+            p.replace(this, null, new RawRelayHandler(outboundChannel));
+        } else {
+            ctx.fireUserEventTriggered(evt);
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if (subscriber != null && ctx.channel().isWritable()) {
+            subscriber.pump();
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
     @Override
     public void channelInactive(ChannelHandlerContext ctx) {
-        if (outboundChannel != null) {
+        if (subscriber != null) {
+            // upstream is shared, it's closed if nobody else is interested
+            subscriber.response().cancel(subscriber);
+        } else if (exchange != null) {
+            // the pooled connection is shared, only the stream is reset
+            exchange.cancel();
+        } else if (outboundChannel != null) {
             closeOnFlush(outboundChannel);
         }
     }
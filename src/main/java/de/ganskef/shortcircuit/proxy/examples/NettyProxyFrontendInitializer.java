@@ -1,6 +1,19 @@
 package de.ganskef.shortcircuit.proxy.examples;
 
+import java.io.File;
+
+import de.ganskef.shortcircuit.metrics.ConnectionTableHandler;
+import de.ganskef.shortcircuit.proxy.AccessLog;
+import de.ganskef.shortcircuit.proxy.AccessLogHandler;
+import de.ganskef.shortcircuit.proxy.Http2UpstreamPool;
+import de.ganskef.shortcircuit.proxy.ParentProxies;
+import de.ganskef.shortcircuit.proxy.TrafficCaptureHandler;
+import de.ganskef.shortcircuit.proxy.TrafficJournal;
+import de.ganskef.shortcircuit.proxy.cache.CollapsedForwarding;
+import de.ganskef.shortcircuit.proxy.cache.ResponseCacheHandler;
+import de.ganskef.shortcircuit.proxy.cache.ResponseCompressor;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.http.HttpRequestDecoder;
 import io.netty.handler.logging.LoggingHandler;
@@ -8,6 +21,95 @@ import io.netty.handler.timeout.IdleStateHandler;
 
 public class NettyProxyFrontendInitializer extends ChannelInitializer<SocketChannel> {
 
+    private final CollapsedForwarding collapsedForwarding;
+
+    private final File spoolDirectory;
+
+    private final ResponseCompressor compressor;
+
+    private final Http2UpstreamPool http2Pool;
+
+    private final ParentProxies parentProxies;
+
+    private final AccessLog accessLog;
+
+    private final TrafficJournal trafficJournal;
+
+    public NettyProxyFrontendInitializer() {
+        this(null);
+    }
+
+    /**
+     * Creates an initializer sharing the given collapsed forwarding with all
+     * connections, null to fetch every request upstream. If it records into a
+     * response cache, the cached responses are served in front of the proxy.
+     */
+    public NettyProxyFrontendInitializer(CollapsedForwarding collapsedForwarding) {
+        this(collapsedForwarding, null);
+    }
+
+    /**
+     * Creates an initializer spooling responses for slow clients into files
+     * of the given directory, if not null, to release upstream early.
+     */
+    public NettyProxyFrontendInitializer(CollapsedForwarding collapsedForwarding, File spoolDirectory) {
+        this(collapsedForwarding, spoolDirectory, null);
+    }
+
+    /**
+     * Creates an initializer serving gzip compressed variants of the cached
+     * responses, and compressing the others on the fly, if a compressor is
+     * given.
+     */
+    public NettyProxyFrontendInitializer(CollapsedForwarding collapsedForwarding, File spoolDirectory,
+            ResponseCompressor compressor) {
+        this(collapsedForwarding, spoolDirectory, compressor, null);
+    }
+
+    /**
+     * Creates an initializer multiplexing the requests to origins speaking
+     * HTTP/2 over the connections of the given pool, if not null.
+     */
+    public NettyProxyFrontendInitializer(CollapsedForwarding collapsedForwarding, File spoolDirectory,
+            ResponseCompressor compressor, Http2UpstreamPool http2Pool) {
+        this(collapsedForwarding, spoolDirectory, compressor, http2Pool, null);
+    }
+
+    /**
+     * Creates an initializer chaining the upstream connections through the
+     * given parent proxies, if not null.
+     */
+    public NettyProxyFrontendInitializer(CollapsedForwarding collapsedForwarding, File spoolDirectory,
+            ResponseCompressor compressor, Http2UpstreamPool http2Pool, ParentProxies parentProxies) {
+        this(collapsedForwarding, spoolDirectory, compressor, http2Pool, parentProxies, null);
+    }
+
+    /**
+     * Creates an initializer writing a line per request into the given access
+     * log, if not null.
+     */
+    public NettyProxyFrontendInitializer(CollapsedForwarding collapsedForwarding, File spoolDirectory,
+            ResponseCompressor compressor, Http2UpstreamPool http2Pool, ParentProxies parentProxies,
+            AccessLog accessLog) {
+        this(collapsedForwarding, spoolDirectory, compressor, http2Pool, parentProxies, accessLog, null);
+    }
+
+    /**
+     * Creates an initializer recording the requests into the given traffic
+     * journal, if not null, to replay them later.
+     */
+    public NettyProxyFrontendInitializer(CollapsedForwarding collapsedForwarding, File spoolDirectory,
+            ResponseCompressor compressor, Http2UpstreamPool http2Pool, ParentProxies parentProxies,
+            AccessLog accessLog, TrafficJournal trafficJournal) {
+        this.collapsedForwarding = collapsedForwarding;
+        this.spoolDirectory = spoolDirectory;
+        this.compressor = compressor;
+        this.http2Pool = http2Pool;
+        this.parentProxies = parentProxies;
+        this.accessLog = accessLog;
+        this.trafficJournal = trafficJournal;
+    }
+
     @Override
     public void initChannel(SocketChannel ch) {
         /* Netty default: {@code maxInitialLineLength (4096)} */
@@ -19,10 +121,22 @@ public class NettyProxyFrontendInitializer extends ChannelInitializer<SocketChan
         int readerIdleTimeSeconds = 0;
         int writerIdleTimeSeconds = 0;
         int allIdleTimeSeconds = 10;
-        ch.pipeline().addLast(new LoggingHandler(NettyProxyFrontendHandler.class), //
-                new HttpRequestDecoder(maxInitialLineLength, maxHeaderSize, maxChunkSize), //
-                new IdleStateHandler(readerIdleTimeSeconds, writerIdleTimeSeconds, allIdleTimeSeconds), //
-                new NettyProxyFrontendHandler());
+        ChannelPipeline p = ch.pipeline();
+        p.addLast(new ConnectionTableHandler(ConnectionTableHandler.CLIENT));
+        p.addLast(new LoggingHandler(NettyProxyFrontendHandler.class), //
+                new HttpRequestDecoder(maxInitialLineLength, maxHeaderSize, maxChunkSize));
+        if (accessLog != null) {
+            p.addLast(new AccessLogHandler(accessLog));
+        }
+        if (trafficJournal != null) {
+            p.addLast(new TrafficCaptureHandler(trafficJournal));
+        }
+        p.addLast(new IdleStateHandler(readerIdleTimeSeconds, writerIdleTimeSeconds, allIdleTimeSeconds));
+        if (collapsedForwarding != null && collapsedForwarding.responseCache() != null) {
+            p.addLast(new ResponseCacheHandler(collapsedForwarding.responseCache(), compressor));
+        }
+        p.addLast(new NettyProxyFrontendHandler(collapsedForwarding, spoolDirectory, http2Pool, parentProxies,
+                compressor));
     }
 
 }
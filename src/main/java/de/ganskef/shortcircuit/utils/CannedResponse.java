@@ -0,0 +1,98 @@
+package de.ganskef.shortcircuit.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http2.Http2ServerDowngrader;
+
+/**
+ * An immutable response serialized once, with head and body in a single
+ * direct buffer. It's written as a duplicate of the buffer, so an answer
+ * doesn't need allocations or an encoder pass.
+ *
+ * Handlers register their canned responses by name in a shared registry, to
+ * provide them for other handlers too.
+ *
+ * The buffer is written from the context of the handler answering, so it
+ * passes the outbound handlers in front of it like any other response. The
+ * pipeline has to encode with a {@link CannedResponseEncoder}, which passes
+ * the buffer between the responses it encodes. In the channel of a HTTP/2
+ * stream it's written as message for the {@link Http2ServerDowngrader},
+ * sharing the body buffer.
+ */
+public final class CannedResponse {
+
+    private static final ConcurrentMap<String, CannedResponse> registry = new ConcurrentHashMap<String, CannedResponse>();
+
+    private final ByteBuf content;
+
+    private final FullHttpResponse message;
+
+    private CannedResponse(ByteBuf content, FullHttpResponse message) {
+        this.content = content;
+        this.message = message;
+    }
+
+    /**
+     * Serializes the response and releases it.
+     */
+    public static CannedResponse of(FullHttpResponse response) {
+        try {
+            ByteBuf head = HttpResponseUtil.encodeHead(UnpooledByteBufAllocator.DEFAULT, response);
+            ByteBuf content = Unpooled.directBuffer(head.readableBytes() + response.content().readableBytes());
+            content.writeBytes(head).writeBytes(response.content(), response.content().readerIndex(),
+                    response.content().readableBytes());
+            head.release();
+            ByteBuf body = Unpooled.unreleasableBuffer(content.slice(
+                    content.writerIndex() - response.content().readableBytes(), response.content().readableBytes())
+                    .asReadOnly());
+            FullHttpResponse message = new DefaultFullHttpResponse(response.protocolVersion(), response.status(), body);
+            message.headers().set(response.headers());
+            return new CannedResponse(Unpooled.unreleasableBuffer(content.asReadOnly()), message);
+        } finally {
+            response.release();
+        }
+    }
+
+    /**
+     * Serializes the response and registers it by name, replacing a previous
+     * one. Returns the canned response.
+     */
+    public static CannedResponse register(String name, FullHttpResponse response) {
+        CannedResponse result = of(response);
+        registry.put(name, result);
+        return result;
+    }
+
+    /**
+     * Returns the response registered by name, or null.
+     */
+    public static CannedResponse get(String name) {
+        return registry.get(name);
+    }
+
+    /**
+     * Returns the serialized response to write it into a raw pipeline.
+     */
+    public ByteBuf retainedDuplicate() {
+        return content.retainedDuplicate();
+    }
+
+    /**
+     * Writes the response from the context of the handler answering.
+     */
+    public ChannelFuture writeAndFlush(ChannelHandlerContext ctx) {
+        if (ctx.pipeline().get(Http2ServerDowngrader.class) != null) {
+            return ctx.writeAndFlush(message.duplicate());
+        }
+        return ctx.writeAndFlush(retainedDuplicate());
+    }
+
+}
@@ -0,0 +1,36 @@
+package de.ganskef.shortcircuit.utils;
+
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpMessage;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.codec.http.LastHttpContent;
+
+/**
+ * A {@link HttpResponseEncoder} passing a buffer written between two
+ * responses unchanged, the serialized {@link CannedResponse}. The plain
+ * encoder rejects it, since it takes a buffer for the body of the current
+ * response only.
+ */
+public class CannedResponseEncoder extends HttpResponseEncoder {
+
+    private boolean encoding;
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, Object msg, List<Object> out) throws Exception {
+        if (!encoding && msg instanceof ByteBuf) {
+            out.add(((ByteBuf) msg).retain());
+            return;
+        }
+        if (msg instanceof HttpMessage) {
+            encoding = true;
+        }
+        super.encode(ctx, msg, out);
+        if (msg instanceof LastHttpContent) {
+            encoding = false;
+        }
+    }
+
+}
@@ -4,6 +4,9 @@ import java.net.InetSocketAddress;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpRequest;
 
 public final class HttpRequestUtil {
@@ -34,4 +37,14 @@ public final class HttpRequestUtil {
         return null;
     }
 
+    /**
+     * Returns true if the request asks to switch the connection to another
+     * protocol, WebSocket or h2c for example.
+     */
+    public static boolean isUpgrade(HttpRequest request) {
+        HttpHeaders headers = request.headers();
+        return headers.contains(HttpHeaderNames.UPGRADE)
+                && headers.containsValue(HttpHeaderNames.CONNECTION, HttpHeaderValues.UPGRADE, true);
+    }
+
 }
@@ -0,0 +1,91 @@
+package de.ganskef.shortcircuit.utils;
+
+import java.util.Map.Entry;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.CharsetUtil;
+
+/**
+ * Encodes and decodes the head of a HTTP response to use it in a pipeline
+ * relaying raw bytes, where no HTTP codec is available.
+ */
+public final class HttpResponseUtil {
+
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    private static final byte[] COLON_SP = { ':', ' ' };
+
+    private HttpResponseUtil() {
+        // don't instantiate
+    }
+
+    /**
+     * Returns the index behind the empty line terminating the head in the
+     * buffer, or -1 if the head is incomplete.
+     */
+    public static int indexOfHeadEnd(ByteBuf buf) {
+        for (int i = buf.readerIndex(); i + 3 < buf.writerIndex(); i++) {
+            if (buf.getByte(i) == '\r' && buf.getByte(i + 1) == '\n' && buf.getByte(i + 2) == '\r'
+                    && buf.getByte(i + 3) == '\n') {
+                return i + 4;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Decodes the status line and the headers of a complete response head.
+     * Returns null if it's malformed.
+     */
+    public static HttpResponse decodeHead(ByteBuf head) {
+        String[] lines = head.toString(CharsetUtil.ISO_8859_1).split("\r\n");
+        String[] status = lines[0].split(" ", 3);
+        if (status.length < 2) {
+            return null;
+        }
+        HttpResponse response;
+        try {
+            HttpVersion version = HttpVersion.valueOf(status[0]);
+            int code = Integer.parseInt(status[1]);
+            String reason = status.length > 2 ? status[2] : "";
+            response = new DefaultHttpResponse(version, new HttpResponseStatus(code, reason));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                response.headers().add(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Encodes the status line and the headers of the response terminated with
+     * the empty line.
+     */
+    public static ByteBuf encodeHead(ByteBufAllocator alloc, HttpResponse response) {
+        ByteBuf buf = alloc.buffer(256);
+        buf.writeBytes(response.protocolVersion().toString().getBytes(CharsetUtil.US_ASCII));
+        buf.writeByte(' ');
+        buf.writeBytes(response.status().codeAsText().toString().getBytes(CharsetUtil.US_ASCII));
+        buf.writeByte(' ');
+        buf.writeBytes(response.status().reasonPhrase().getBytes(CharsetUtil.US_ASCII));
+        buf.writeBytes(CRLF);
+        for (Entry<String, String> each : response.headers()) {
+            buf.writeBytes(each.getKey().getBytes(CharsetUtil.US_ASCII));
+            buf.writeBytes(COLON_SP);
+            buf.writeBytes(each.getValue().getBytes(CharsetUtil.ISO_8859_1));
+            buf.writeBytes(CRLF);
+        }
+        buf.writeBytes(CRLF);
+        return buf;
+    }
+
+}
@@ -0,0 +1,73 @@
+package de.ganskef.shortcircuit.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.AttributeKey;
+
+public class ConnectionTableTest {
+
+    private static final AttributeKey<String> TARGET = AttributeKey.newInstance("TEST_TARGET");
+
+    private static ConnectionTable.Entry find(Channel channel) {
+        for (ConnectionTable.Entry each : ConnectionTable.snapshot()) {
+            if (each.channel() == channel) {
+                return each;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testAccounting() {
+        EmbeddedChannel channel = new EmbeddedChannel(new ConnectionTableHandler(ConnectionTableHandler.CLIENT));
+        channel.attr(TARGET).set("example.com:443");
+        channel.writeInbound(Unpooled.wrappedBuffer(new byte[10]));
+        channel.writeOutbound(Unpooled.wrappedBuffer(new byte[25]));
+        ConnectionTable.Entry entry = find(channel);
+        assertNotNull(entry);
+        assertEquals(ConnectionTableHandler.CLIENT, entry.side());
+        assertEquals(10, entry.bytesIn());
+        assertEquals(25, entry.bytesOut());
+        assertEquals(0, entry.pendingOutboundBytes());
+        String dump = ConnectionTable.dump(TARGET, Integer.MAX_VALUE);
+        assertTrue(dump, dump.contains("\tclient\t"));
+        assertTrue(dump, dump.contains("\texample.com:443\t"));
+        assertTrue(dump, dump.contains("\t10\t25\t0\t"));
+        channel.finishAndReleaseAll();
+        assertFalse(ConnectionTable.snapshot().contains(entry));
+    }
+
+    @Test
+    public void testLimited() {
+        EmbeddedChannel channel = new EmbeddedChannel(new ConnectionTableHandler(ConnectionTableHandler.CLIENT));
+        String dump = ConnectionTable.dump(TARGET, 0);
+        assertEquals(2, dump.split("\n").length);
+        channel.finishAndReleaseAll();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeLimitRejected() {
+        ConnectionTable.dump(TARGET, -1);
+    }
+
+    @Test
+    public void testPendingFirst() {
+        EmbeddedChannel idle = new EmbeddedChannel(new ConnectionTableHandler(ConnectionTableHandler.UPSTREAM));
+        EmbeddedChannel pending = new EmbeddedChannel(new ConnectionTableHandler(ConnectionTableHandler.CLIENT));
+        // written, but not flushed
+        pending.write(Unpooled.wrappedBuffer(new byte[100]));
+        assertEquals(100, find(pending).pendingOutboundBytes());
+        assertEquals(pending, ConnectionTable.snapshot().get(0).channel());
+        idle.finishAndReleaseAll();
+        pending.finishAndReleaseAll();
+    }
+
+}
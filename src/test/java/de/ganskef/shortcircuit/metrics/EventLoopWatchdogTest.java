@@ -0,0 +1,107 @@
+package de.ganskef.shortcircuit.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import io.netty.channel.nio.NioEventLoopGroup;
+
+public class EventLoopWatchdogTest {
+
+    @Test
+    public void testStallReported() throws Exception {
+        NioEventLoopGroup group = new NioEventLoopGroup(1);
+        final CountDownLatch reported = new CountDownLatch(1);
+        final StackTraceElement[][] stack = new StackTraceElement[1][];
+        EventLoopWatchdog watchdog = new EventLoopWatchdog(20, 60000, group) {
+            @Override
+            protected void report(Thread thread, long stalledNanos) {
+                stack[0] = thread.getStackTrace();
+                reported.countDown();
+            }
+        };
+        LatencyHistogram stalls = Metrics.histogram("shortcircuit_event_loop_stall_seconds", "");
+        long before = stalls.count();
+        try {
+            watchdog.start();
+            // the thread is known after the first heartbeat
+            Thread.sleep(100);
+            group.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(300);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            assertTrue(reported.await(5, TimeUnit.SECONDS));
+            StringBuilder trace = new StringBuilder();
+            for (StackTraceElement each : stack[0]) {
+                trace.append(each).append('\n');
+            }
+            assertTrue(trace.toString(), trace.toString().contains("EventLoopWatchdogTest"));
+            Thread.sleep(400);
+            assertTrue(stalls.count() > before);
+        } finally {
+            watchdog.stop();
+            group.shutdownGracefully().sync();
+        }
+    }
+
+    @Test
+    public void testFirstStallReported() throws Exception {
+        NioEventLoopGroup group = new NioEventLoopGroup(1);
+        final CountDownLatch reported = new CountDownLatch(1);
+        EventLoopWatchdog watchdog = new EventLoopWatchdog(20, 60000, group) {
+            @Override
+            protected void report(Thread thread, long stalledNanos) {
+                reported.countDown();
+            }
+        };
+        try {
+            // stalled before the first heartbeat is run
+            group.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(300);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            watchdog.start();
+            assertTrue(reported.await(5, TimeUnit.SECONDS));
+        } finally {
+            watchdog.stop();
+            group.shutdownGracefully().sync();
+        }
+    }
+
+    @Test
+    public void testNoStallReported() throws Exception {
+        NioEventLoopGroup group = new NioEventLoopGroup(2);
+        final int[] reports = new int[1];
+        EventLoopWatchdog watchdog = new EventLoopWatchdog(200, 60000, group) {
+            @Override
+            protected void report(Thread thread, long stalledNanos) {
+                reports[0]++;
+            }
+        };
+        try {
+            watchdog.start();
+            Thread.sleep(500);
+        } finally {
+            watchdog.stop();
+            group.shutdownGracefully().sync();
+        }
+        assertEquals(0, reports[0]);
+    }
+
+}
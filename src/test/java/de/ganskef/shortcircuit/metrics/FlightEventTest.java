@@ -0,0 +1,66 @@
+package de.ganskef.shortcircuit.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.List;
+
+import org.junit.Test;
+
+public class FlightEventTest {
+
+    @Test
+    public void testIgnoredWithoutRecording() {
+        assertNull(FlightEvent.CONNECT.begin());
+        FlightEvent.CONNECT.commit(null, "localhost", 0);
+        FlightEvent.ACCEPT.instant("localhost", 0);
+    }
+
+    /**
+     * The recorder is used by reflection, the tests are compiled for Java 7.
+     */
+    @Test
+    public void testRecorded() throws Exception {
+        Class<?> recordingClass;
+        try {
+            recordingClass = Class.forName("jdk.jfr.Recording");
+        } catch (ClassNotFoundException e) {
+            recordingClass = null;
+        }
+        assumeTrue(recordingClass != null);
+        File file = File.createTempFile("shortcircuit", ".jfr");
+        Object recording = recordingClass.getDeclaredConstructor().newInstance();
+        try {
+            recordingClass.getMethod("enable", String.class).invoke(recording, "de.ganskef.shortcircuit.Tunnel");
+            recordingClass.getMethod("start").invoke(recording);
+            Object event = FlightEvent.TUNNEL.begin();
+            assertNotNull(event);
+            FlightEvent.TUNNEL.commit(event, "example.com", 1234);
+            recordingClass.getMethod("stop").invoke(recording);
+            recordingClass.getMethod("dump", java.nio.file.Path.class).invoke(recording, file.toPath());
+        } finally {
+            recordingClass.getMethod("close").invoke(recording);
+        }
+        Method readAllEvents = Class.forName("jdk.jfr.consumer.RecordingFile").getMethod("readAllEvents",
+                java.nio.file.Path.class);
+        List<?> events = (List<?>) readAllEvents.invoke(null, file.toPath());
+        Object recorded = null;
+        for (Object each : events) {
+            Object type = each.getClass().getMethod("getEventType").invoke(each);
+            if ("de.ganskef.shortcircuit.Tunnel".equals(type.getClass().getMethod("getName").invoke(type))) {
+                recorded = each;
+            }
+        }
+        assertNotNull(recorded);
+        Method getValue = recorded.getClass().getMethod("getValue", String.class);
+        assertEquals("example.com", getValue.invoke(recorded, "host"));
+        assertEquals(1234L, getValue.invoke(recorded, "bytes"));
+        assertNotNull(getValue.invoke(recorded, "eventThread"));
+        file.delete();
+    }
+
+}
@@ -0,0 +1,70 @@
+package de.ganskef.shortcircuit.metrics;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketContainsValue() {
+        for (long value : new long[] { 0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE }) {
+            int index = LatencyHistogram.index(value);
+            assertTrue(value + " above bucket " + index, value <= LatencyHistogram.highestValue(index));
+            if (index > 0) {
+                assertTrue(value + " below bucket " + index, value > LatencyHistogram.highestValue(index - 1));
+            }
+        }
+    }
+
+    @Test
+    public void testRelativeError() {
+        for (long value = 1; value < 1L << 40; value = value * 3 + 1) {
+            long highest = LatencyHistogram.highestValue(LatencyHistogram.index(value));
+            assertTrue(value + " estimated as " + highest, (highest - value) * 8 <= value);
+        }
+    }
+
+    @Test
+    public void testQuantiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertArrayEquals(new long[] { 0 }, histogram.quantiles(0.5));
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 1000);
+        }
+        histogram.record(-5);
+        assertEquals(101, histogram.count());
+        assertEquals(5050000, histogram.sum());
+        long[] quantiles = histogram.quantiles(0.5, 0.99);
+        assertEquals(50000, quantiles[0], 50000 / 8);
+        assertEquals(99000, quantiles[1], 99000 / 8);
+    }
+
+    @Test
+    public void testStripesSummedUp() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long value = (t + 1) * 1000;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        histogram.record(value);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread each : threads) {
+            each.join();
+        }
+        assertEquals(4000, histogram.count());
+        long[] quantiles = histogram.quantiles(0.25, 1);
+        assertEquals(1000, quantiles[0], 1000 / 8);
+        assertEquals(4000, quantiles[1], 4000 / 8);
+    }
+
+}
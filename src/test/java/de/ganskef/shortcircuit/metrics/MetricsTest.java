@@ -0,0 +1,36 @@
+package de.ganskef.shortcircuit.metrics;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MetricsTest {
+
+    @Test
+    public void testRegisteredOnce() {
+        StripedCounter counter = Metrics.counter("test_registered_total", "Help.");
+        assertSame(counter, Metrics.counter("test_registered_total", "Help."));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTypeConflict() {
+        Metrics.counter("test_conflict", "Help.");
+        Metrics.histogram("test_conflict", "Help.");
+    }
+
+    @Test
+    public void testScrapeFormat() {
+        Metrics.counter("test_requests_total", "Requests.").add(3);
+        Metrics.histogram("test_seconds{stage=\"a\"}", "Durations.").record(2000000000L);
+        Metrics.histogram("test_seconds{stage=\"b\"}", "Durations.");
+        String text = Metrics.scrape();
+        assertTrue(text, text.contains("# HELP test_requests_total Requests.\n# TYPE test_requests_total counter\n"
+                + "test_requests_total 3\n"));
+        assertTrue(text, text.contains("# TYPE test_seconds summary\ntest_seconds{stage=\"a\",quantile=\"0.5\"} 2."));
+        assertTrue(text, text.contains("test_seconds_sum{stage=\"a\"} 2.0\ntest_seconds_count{stage=\"a\"} 1\n"
+                + "test_seconds{stage=\"b\",quantile=\"0.5\"} 0.0\n"));
+        assertTrue(text, text.indexOf("# TYPE test_seconds") == text.lastIndexOf("# TYPE test_seconds"));
+    }
+
+}
@@ -0,0 +1,52 @@
+package de.ganskef.shortcircuit.proxy;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AccessHistoryTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void testTopEntriesWrittenAndRead() throws Exception {
+        AccessHistory history = new AccessHistory(2);
+        for (int i = 0; i < 3; i++) {
+            history.recordUrl("http://localhost/a");
+        }
+        history.recordUrl("http://localhost/b");
+        history.recordUrl("http://localhost/b");
+        history.recordUrl("http://localhost/c");
+        history.recordHost("www.example.com");
+        File file = new File(temp.getRoot(), "history.txt");
+        history.write(file);
+
+        AccessHistory read = new AccessHistory(2).read(file);
+        assertEquals(Arrays.asList("http://localhost/a", "http://localhost/b"), read.topUrls());
+        assertEquals(Arrays.asList("www.example.com"), read.topHosts());
+    }
+
+    @Test
+    public void testRareEntriesDropped() {
+        AccessHistory history = new AccessHistory(1);
+        history.recordUrl("http://localhost/hot");
+        history.recordUrl("http://localhost/hot");
+        for (int i = 0; i < 10; i++) {
+            history.recordUrl("http://localhost/" + i);
+        }
+        assertEquals(Arrays.asList("http://localhost/hot"), history.topUrls());
+    }
+
+    @Test
+    public void testMissingFileIsEmpty() throws Exception {
+        AccessHistory history = new AccessHistory().read(new File(temp.getRoot(), "missing.txt"));
+        assertEquals(0, history.topUrls().size());
+    }
+
+}
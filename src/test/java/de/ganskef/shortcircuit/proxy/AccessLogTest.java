@@ -0,0 +1,125 @@
+package de.ganskef.shortcircuit.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+
+public class AccessLogTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<String> lines(File file) throws Exception {
+        return Files.readAllLines(file.toPath(), StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void testCommonLogFormat() throws Exception {
+        File file = folder.newFile("access.log");
+        AccessLog log = new AccessLog(file);
+        log.log("127.0.0.1", "GET", "http://localhost/a b\n", "HTTP/1.1", 200, 1234, 567);
+        log.close();
+        List<String> lines = lines(file);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0), lines.get(0).matches("127\\.0\\.0\\.1 - - \\[\\d\\d/\\w{3}/\\d{4}:\\d\\d:\\d\\d:\\d\\d "
+                + "\\+0000\\] \"GET http://localhost/a b\\? HTTP/1\\.1\" 200 1234 567"));
+    }
+
+    @Test
+    public void testLongUriTruncated() throws Exception {
+        File file = folder.newFile("access.log");
+        AccessLog log = new AccessLog(file);
+        StringBuilder uri = new StringBuilder("http://localhost/");
+        while (uri.length() < 1000) {
+            uri.append("0123456789");
+        }
+        log.log("127.0.0.1", "GET", uri.toString(), "HTTP/1.1", 200, 1234, 567);
+        log.close();
+        String line = lines(file).get(0);
+        assertTrue(line.length() < AccessLog.MAX_LINE_LENGTH);
+        assertTrue(line, line.endsWith("\" 200 1234 567"));
+    }
+
+    @Test
+    public void testNothingLostIfWaiting() throws Exception {
+        File file = folder.newFile("access.log");
+        final AccessLog log = new AccessLog(file, 16, AccessLog.DEFAULT_MAX_FILE_BYTES, 0, 1, false);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        assertTrue(log.log("127.0.0.1", "GET", "/" + thread + "/" + i, "HTTP/1.1", 200, i, 1));
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread each : threads) {
+            each.join();
+        }
+        log.close();
+        Set<String> unique = new HashSet<String>(lines(file));
+        assertEquals(4000, unique.size());
+    }
+
+    @Test
+    public void testRotated() throws Exception {
+        File file = folder.newFile("access.log");
+        AccessLog log = new AccessLog(file, 4, 200, 2, 1, false);
+        for (int i = 0; i < 20; i++) {
+            log.log("127.0.0.1", "GET", "/" + i, "HTTP/1.1", 200, i, 1);
+            // one line per batch
+            Thread.sleep(5);
+        }
+        log.close();
+        assertTrue(file.length() <= 200);
+        assertTrue(new File(file.getPath() + ".1").exists());
+        assertTrue(new File(file.getPath() + ".2").exists());
+        assertTrue(!new File(file.getPath() + ".3").exists());
+        List<String> last = lines(file);
+        assertTrue(last.toString(), last.get(last.size() - 1).contains("\"GET /19 HTTP/1.1\""));
+    }
+
+    @Test
+    public void testWrittenAfterIdle() throws Exception {
+        File file = folder.newFile("access.log");
+        AccessLog log = new AccessLog(file);
+        try {
+            // the writer backs off to the longest sleep
+            Thread.sleep(TimeUnit.NANOSECONDS.toMillis(AccessLog.MAX_IDLE_NANOS) * 3);
+            log.log("127.0.0.1", "GET", "/idle", "HTTP/1.1", 200, 1, 1);
+            for (int i = 0; i < 50 && file.length() == 0; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, lines(file).size());
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test
+    public void testParseStatus() {
+        assertEquals(404, AccessLogHandler.parseStatus(Unpooled.copiedBuffer("HTTP/1.1 404 Not Found\r\n",
+                CharsetUtil.US_ASCII)));
+        assertEquals(0, AccessLogHandler.parseStatus(Unpooled.copiedBuffer("0123456789abcdef",
+                CharsetUtil.US_ASCII)));
+    }
+
+}
@@ -0,0 +1,243 @@
+package de.ganskef.shortcircuit.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.ganskef.shortcircuit.proxy.examples.NettyProxyFrontendInitializer;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.Http2MultiplexCodec;
+import io.netty.handler.codec.http2.Http2ServerDowngrader;
+import io.netty.util.CharsetUtil;
+
+public class Http2UpstreamPoolTest {
+
+    private final AtomicInteger originConnections = new AtomicInteger();
+
+    private final AtomicInteger originConnectionsClosed = new AtomicInteger();
+
+    private Http2UpstreamPool pool;
+
+    private EventLoopGroup group;
+
+    private int originPort;
+
+    private int proxyPort;
+
+    @Before
+    public void before() throws Exception {
+        // a single event loop, so all clients share the pooled connection
+        group = new NioEventLoopGroup(1);
+        ServerBootstrap origin = new ServerBootstrap().group(group).channel(NioServerSocketChannel.class);
+        origin.childHandler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel ch) {
+                originConnections.incrementAndGet();
+                ch.closeFuture().addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) {
+                        originConnectionsClosed.incrementAndGet();
+                    }
+                });
+                ch.pipeline().addLast(new Http2MultiplexCodec(true, new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel stream) {
+                        stream.pipeline().addLast(new Http2ServerDowngrader(), new OriginHandler());
+                    }
+                }));
+            }
+        });
+        originPort = ((InetSocketAddress) origin.bind(0).sync().channel().localAddress()).getPort();
+        pool = new Http2UpstreamPool(Collections.singleton("localhost:" + originPort));
+        proxyPort = startProxy(pool);
+    }
+
+    @After
+    public void after() {
+        pool.close();
+        group.shutdownGracefully();
+    }
+
+    private int startProxy(Http2UpstreamPool pool) throws InterruptedException {
+        ServerBootstrap proxy = new ServerBootstrap().group(group).channel(NioServerSocketChannel.class);
+        proxy.childHandler(new NettyProxyFrontendInitializer(null, null, null, pool));
+        proxy.childOption(ChannelOption.AUTO_READ, false);
+        return ((InetSocketAddress) proxy.bind(0).sync().channel().localAddress()).getPort();
+    }
+
+    private void awaitClosed(int expected) throws InterruptedException {
+        for (int i = 0; i < 100 && originConnectionsClosed.get() < expected; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(expected, originConnectionsClosed.get());
+    }
+
+    /**
+     * Answers with the path, without a length for a path ending with chunked,
+     * and delayed for a slow path.
+     */
+    private static class OriginHandler extends SimpleChannelInboundHandler<HttpRequest> {
+
+        @Override
+        protected void channelRead0(final ChannelHandlerContext ctx, HttpRequest request) {
+            ByteBuf content = Unpooled.copiedBuffer("origin " + request.uri(), CharsetUtil.US_ASCII);
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                    content);
+            if (!request.uri().endsWith("chunked")) {
+                response.headers().set(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes());
+            }
+            if (request.uri().endsWith("slow")) {
+                final FullHttpResponse delayed = response;
+                ctx.executor().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        ctx.writeAndFlush(delayed);
+                    }
+                }, 200, TimeUnit.MILLISECONDS);
+            } else {
+                ctx.writeAndFlush(response);
+            }
+        }
+    }
+
+    private String get(Socket socket, String path) throws Exception {
+        OutputStream out = socket.getOutputStream();
+        out.write(("GET http://localhost:" + originPort + path + " HTTP/1.1\r\nHost: localhost:" + originPort
+                + "\r\n\r\n").getBytes("US-ASCII"));
+        out.flush();
+        InputStream in = socket.getInputStream();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int b;
+        while (!isComplete(bytes.toString("US-ASCII")) && (b = in.read()) != -1) {
+            bytes.write(b);
+        }
+        return bytes.toString("US-ASCII");
+    }
+
+    private static boolean isComplete(String response) {
+        int headEnd = response.indexOf("\r\n\r\n");
+        if (headEnd == -1) {
+            return false;
+        }
+        if (response.contains("transfer-encoding: chunked")) {
+            return response.endsWith("\r\n0\r\n\r\n");
+        }
+        String length = response.replaceFirst("(?s).*content-length: (\\d+).*", "$1");
+        return response.length() - headEnd - 4 == Integer.parseInt(length);
+    }
+
+    @Test
+    public void testRequestsMultiplexed() throws Exception {
+        Socket first = new Socket("localhost", proxyPort);
+        Socket second = new Socket("localhost", proxyPort);
+        try {
+            String response = get(first, "/a");
+            assertTrue(response, response.startsWith("HTTP/1.1 200 OK\r\n"));
+            assertTrue(response, response.contains("connection: keep-alive\r\n"));
+            assertTrue(response, response.endsWith("\r\n\r\norigin /a"));
+            response = get(second, "/b");
+            assertTrue(response, response.endsWith("\r\n\r\norigin /b"));
+            response = get(first, "/c");
+            assertTrue(response, response.endsWith("\r\n\r\norigin /c"));
+        } finally {
+            first.close();
+            second.close();
+        }
+        assertEquals(1, originConnections.get());
+    }
+
+    @Test
+    public void testUnknownLengthChunked() throws Exception {
+        Socket socket = new Socket("localhost", proxyPort);
+        try {
+            String response = get(socket, "/chunked");
+            assertTrue(response, response.contains("transfer-encoding: chunked\r\n"));
+            assertTrue(response, response.endsWith("\r\n\r\nf\r\norigin /chunked\r\n0\r\n\r\n"));
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testOverflowToSecondConnection() throws Exception {
+        pool.close();
+        pool = new Http2UpstreamPool(Collections.singleton("localhost:" + originPort), 1);
+        int port = startProxy(pool);
+        Socket first = new Socket("localhost", port);
+        Socket second = new Socket("localhost", port);
+        try {
+            String request = "GET http://localhost:" + originPort + "/slow HTTP/1.1\r\n\r\n";
+            // both are sent before a response is complete
+            first.getOutputStream().write(request.getBytes("US-ASCII"));
+            second.getOutputStream().write(request.getBytes("US-ASCII"));
+            assertTrue(get(first, "/y").contains("origin /slow"));
+            assertTrue(get(second, "/y").contains("origin /slow"));
+        } finally {
+            first.close();
+            second.close();
+        }
+        assertEquals(2, originConnections.get());
+    }
+
+    @Test
+    public void testRetiredBeforeStreamIdsExhausted() throws Exception {
+        pool.close();
+        pool = new Http2UpstreamPool(Collections.singleton("localhost:" + originPort), 100, 6);
+        int port = startProxy(pool);
+        Socket socket = new Socket("localhost", port);
+        try {
+            assertTrue(get(socket, "/a").endsWith("origin /a"));
+            assertTrue(get(socket, "/b").endsWith("origin /b"));
+            assertTrue(get(socket, "/c").endsWith("origin /c"));
+        } finally {
+            socket.close();
+        }
+        assertEquals(2, originConnections.get());
+        awaitClosed(1);
+    }
+
+    @Test
+    public void testClosed() throws Exception {
+        Socket socket = new Socket("localhost", proxyPort);
+        try {
+            assertTrue(get(socket, "/a").endsWith("origin /a"));
+            pool.close();
+            awaitClosed(1);
+            assertEquals("", get(socket, "/b"));
+        } finally {
+            socket.close();
+        }
+    }
+
+}
@@ -0,0 +1,114 @@
+package de.ganskef.shortcircuit.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.util.CharsetUtil;
+
+public class HttpResponseRelayHandlerTest {
+
+    private final List<HttpResponseRelayHandler.ResponseComplete> events = new ArrayList<HttpResponseRelayHandler.ResponseComplete>();
+
+    private EmbeddedChannel createChannel(HttpMethod method, boolean keepAlive) {
+        return new EmbeddedChannel(new HttpResponseRelayHandler(method, keepAlive),
+                new ChannelInboundHandlerAdapter() {
+                    @Override
+                    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+                        events.add((HttpResponseRelayHandler.ResponseComplete) evt);
+                    }
+                });
+    }
+
+    private String relay(EmbeddedChannel channel, String... parts) {
+        for (String each : parts) {
+            channel.writeInbound(Unpooled.copiedBuffer(each, CharsetUtil.ISO_8859_1));
+        }
+        StringBuilder result = new StringBuilder();
+        ByteBuf buf;
+        while ((buf = channel.readInbound()) != null) {
+            result.append(buf.toString(CharsetUtil.ISO_8859_1));
+            buf.release();
+        }
+        return result.toString();
+    }
+
+    @Test
+    public void testContentLength() {
+        EmbeddedChannel channel = createChannel(HttpMethod.GET, true);
+        String relayed = relay(channel, "HTTP/1.1 200 OK\r\nConnection: close, X-Hop\r\nX-Hop: 1\r\n",
+                "Keep-Alive: timeout=5\r\nContent-Length: 10\r\n\r\n01234", "56789 garbage");
+        assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 10\r\nconnection: keep-alive\r\n\r\n0123456789", relayed);
+        assertEquals(1, events.size());
+        assertTrue(events.get(0).isKeepAlive());
+        channel.finish();
+    }
+
+    @Test
+    public void testChunkedSplitAnywhere() {
+        String body = "5;name=value\r\nhello\r\n10\r\n0123456789abcdef\r\n0\r\nX-Trailer: 1\r\n\r\n";
+        for (int split = 1; split < body.length(); split++) {
+            events.clear();
+            EmbeddedChannel channel = createChannel(HttpMethod.GET, true);
+            String relayed = relay(channel, "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n",
+                    body.substring(0, split));
+            assertTrue(events.isEmpty());
+            relayed += relay(channel, body.substring(split));
+            assertTrue(relayed.endsWith("\r\n\r\n" + body));
+            assertEquals(1, events.size());
+            channel.finish();
+        }
+    }
+
+    @Test
+    public void testNoBodyAfterInterimResponse() {
+        EmbeddedChannel channel = createChannel(HttpMethod.HEAD, true);
+        String relayed = relay(channel,
+                "HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 200 OK\r\nContent-Length: 42\r\n\r\n");
+        assertTrue(relayed.startsWith("HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 200 OK\r\n"));
+        assertEquals(1, events.size());
+        channel.finish();
+    }
+
+    @Test
+    public void testUntilCloseNotKeptAlive() {
+        EmbeddedChannel channel = createChannel(HttpMethod.GET, true);
+        String relayed = relay(channel, "HTTP/1.0 200 OK\r\n\r\nsome", " more");
+        assertEquals("HTTP/1.0 200 OK\r\nconnection: close\r\n\r\nsome more", relayed);
+        assertTrue(events.isEmpty());
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void testUpgradeSwitchesToRaw() {
+        final List<Object> upgrades = new ArrayList<Object>();
+        EmbeddedChannel channel = new EmbeddedChannel(new HttpResponseRelayHandler(HttpMethod.GET, true, true),
+                new ChannelInboundHandlerAdapter() {
+                    @Override
+                    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+                        upgrades.add(evt);
+                    }
+                });
+        String relayed = relay(channel, "HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\n"
+                + "Connection: Upgrade\r\nKeep-Alive: timeout=5\r\n\r\n\u0081\u0002hi");
+        assertEquals("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nconnection: upgrade\r\n\r\n"
+                + "\u0081\u0002hi", relayed);
+        assertEquals(1, upgrades.size());
+        assertTrue(upgrades.get(0) instanceof HttpResponseRelayHandler.Upgraded);
+        assertNull(channel.pipeline().get(HttpResponseRelayHandler.class));
+        channel.finish();
+    }
+
+}
@@ -0,0 +1,217 @@
+package de.ganskef.shortcircuit.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.ganskef.shortcircuit.proxy.examples.NettyProxyFrontendInitializer;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.CharsetUtil;
+
+public class ParentProxiesTest {
+
+    private EventLoopGroup group;
+
+    private int parentPort;
+
+    @Before
+    public void before() throws Exception {
+        group = new NioEventLoopGroup(1);
+        ServerBootstrap parent = new ServerBootstrap().group(group).channel(NioServerSocketChannel.class);
+        parent.childHandler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel ch) {
+                ch.pipeline().addLast(new HttpServerCodec(), new ParentHandler());
+            }
+        });
+        parentPort = ((InetSocketAddress) parent.bind(0).sync().channel().localAddress()).getPort();
+    }
+
+    @After
+    public void after() {
+        group.shutdownGracefully();
+    }
+
+    /**
+     * Answers with the URI of the request and closes.
+     */
+    private static class ParentHandler extends SimpleChannelInboundHandler<HttpRequest> {
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, HttpRequest request) {
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                    Unpooled.copiedBuffer("parent " + request.uri(), CharsetUtil.US_ASCII));
+            response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    private static int closedPort() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        int result = socket.getLocalPort();
+        socket.close();
+        return result;
+    }
+
+    private String get(int proxyPort, String url) throws Exception {
+        Socket socket = new Socket("localhost", proxyPort);
+        try {
+            socket.setSoTimeout(5000);
+            String request = "GET " + url + " HTTP/1.1\r\nConnection: close\r\n\r\n";
+            socket.getOutputStream().write(request.getBytes("US-ASCII"));
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1) {
+                bytes.write(b);
+            }
+            return bytes.toString("US-ASCII");
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testForwardedInAbsoluteForm() throws Exception {
+        ParentProxies parents = new ParentProxies(Collections.singleton("http://localhost:" + parentPort));
+        ServerBootstrap proxy = new ServerBootstrap().group(group).channel(NioServerSocketChannel.class);
+        proxy.childHandler(new NettyProxyFrontendInitializer(null, null, null, null, parents));
+        proxy.childOption(ChannelOption.AUTO_READ, false);
+        int proxyPort = ((InetSocketAddress) proxy.bind(0).sync().channel().localAddress()).getPort();
+        // the port of the destination is never connected
+        String url = "http://localhost:" + closedPort() + "/a";
+        String response = get(proxyPort, url);
+        assertTrue(response, response.endsWith("\r\n\r\nparent " + url));
+        // the second request takes a connection established before
+        response = get(proxyPort, url);
+        assertTrue(response, response.endsWith("\r\n\r\nparent " + url));
+        assertEquals(0, parents.parents().get(0).outstanding());
+    }
+
+    @Test
+    public void testFailingParentEjected() throws Exception {
+        ParentProxies parents = new ParentProxies(
+                Arrays.asList("http://localhost:" + closedPort(), "socks5://localhost:" + parentPort), 0);
+        ParentProxies.Parent failing = parents.parents().get(0);
+        Bootstrap b = new Bootstrap().group(group.next()).channel(NioSocketChannel.class)
+                .handler(new ChannelInboundHandlerAdapter());
+        InetSocketAddress destination = new InetSocketAddress("localhost", 80);
+        for (int i = 0; i < ParentProxies.MAX_FAILURES; i++) {
+            assertFalse(failing.isEjected(System.currentTimeMillis()));
+            // notified behind the health check of the parent
+            final CountDownLatch failed = new CountDownLatch(1);
+            failing.connect(b, destination, false).addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) {
+                    failed.countDown();
+                }
+            });
+            assertTrue(failed.await(5, TimeUnit.SECONDS));
+        }
+        assertTrue(failing.isEjected(System.currentTimeMillis()));
+        for (int i = 0; i < 10; i++) {
+            assertEquals(parents.parents().get(1), parents.select());
+        }
+    }
+
+    @Test
+    public void testDroppingParentEjected() throws Exception {
+        // accepts and closes at once, warm connections are dropped unused
+        ServerBootstrap dropping = new ServerBootstrap().group(group).channel(NioServerSocketChannel.class);
+        dropping.childHandler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel ch) {
+                ch.close();
+            }
+        });
+        int droppingPort = ((InetSocketAddress) dropping.bind(0).sync().channel().localAddress()).getPort();
+        ParentProxies parents = new ParentProxies(Collections.singleton("http://localhost:" + droppingPort),
+                ParentProxies.MAX_FAILURES);
+        ParentProxies.Parent parent = parents.parents().get(0);
+        Bootstrap b = new Bootstrap().group(group.next()).channel(NioSocketChannel.class)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        // nothing to relay
+                    }
+                }).option(ChannelOption.AUTO_READ, false);
+        InetSocketAddress destination = new InetSocketAddress("localhost", 80);
+        for (int i = 0; i < 100 && !parent.isEjected(System.currentTimeMillis()); i++) {
+            parent.connect(b, destination, false);
+            Thread.sleep(20);
+        }
+        assertTrue(parent.isEjected(System.currentTimeMillis()));
+    }
+
+    @Test
+    public void testRejectedTunnelNotCounted() throws Exception {
+        // answers 502 for CONNECT, the destination is unreachable
+        ServerBootstrap rejecting = new ServerBootstrap().group(group).channel(NioServerSocketChannel.class);
+        rejecting.childHandler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel ch) {
+                ch.pipeline().addLast(new HttpServerCodec(), new SimpleChannelInboundHandler<HttpRequest>() {
+                    @Override
+                    protected void channelRead0(ChannelHandlerContext ctx, HttpRequest request) {
+                        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                                HttpResponseStatus.BAD_GATEWAY);
+                        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, 0);
+                        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+                    }
+                });
+            }
+        });
+        int rejectingPort = ((InetSocketAddress) rejecting.bind(0).sync().channel().localAddress()).getPort();
+        ParentProxies parents = new ParentProxies(Collections.singleton("http://localhost:" + rejectingPort), 0);
+        ParentProxies.Parent parent = parents.parents().get(0);
+        Bootstrap b = new Bootstrap().group(group.next()).channel(NioSocketChannel.class)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        // nothing to relay
+                    }
+                });
+        InetSocketAddress destination = new InetSocketAddress("localhost", closedPort());
+        for (int i = 0; i <= ParentProxies.MAX_FAILURES; i++) {
+            ChannelFuture f = parent.connect(b, destination, true);
+            assertTrue(f.channel().closeFuture().await(5, TimeUnit.SECONDS));
+        }
+        assertFalse(parent.isEjected(System.currentTimeMillis()));
+    }
+
+}
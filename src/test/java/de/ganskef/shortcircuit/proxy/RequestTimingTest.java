@@ -0,0 +1,45 @@
+package de.ganskef.shortcircuit.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import de.ganskef.shortcircuit.metrics.LatencyHistogram;
+import de.ganskef.shortcircuit.metrics.Metrics;
+
+public class RequestTimingTest {
+
+    private static LatencyHistogram phase(String name) {
+        return Metrics.histogram("shortcircuit_request_phase_seconds{phase=\"" + name + "\"}", "");
+    }
+
+    @Test
+    public void testSkippedPhaseNotRecorded() {
+        long connects = phase("connect").count();
+        long handshakes = phase("handshake").count();
+        long transfers = phase("transfer").count();
+        RequestTiming timing = RequestTiming.start("GET", "http://localhost/");
+        timing.resolved();
+        timing.connected();
+        timing.firstByte();
+        timing.firstByte();
+        timing.complete();
+        assertEquals(connects + 1, phase("connect").count());
+        assertEquals(handshakes, phase("handshake").count());
+        assertEquals(transfers + 1, phase("transfer").count());
+    }
+
+    @Test
+    public void testRecycled() {
+        RequestTiming timing = RequestTiming.start("GET", "http://localhost/");
+        timing.handshaken();
+        timing.recycle();
+        long handshakes = phase("handshake").count();
+        RequestTiming next = RequestTiming.start("GET", "http://localhost/next");
+        assertSame(timing, next);
+        next.complete();
+        assertEquals(handshakes, phase("handshake").count());
+    }
+
+}
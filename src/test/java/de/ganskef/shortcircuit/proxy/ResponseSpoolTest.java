@@ -0,0 +1,53 @@
+package de.ganskef.shortcircuit.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.FileRegion;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.CharsetUtil;
+
+public class ResponseSpoolTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void testSpooledToClientAndDeleted() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        ResponseSpool spool = new ResponseSpool(channel, temp.getRoot());
+        spool.append(Unpooled.copiedBuffer("hello", CharsetUtil.US_ASCII));
+        spool.append(Unpooled.copiedBuffer(" world", CharsetUtil.US_ASCII));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WritableByteChannel target = Channels.newChannel(out);
+        FileRegion region;
+        while ((region = channel.readOutbound()) != null) {
+            region.transferTo(target, 0);
+            region.release();
+        }
+
+        final AtomicBoolean sent = new AtomicBoolean();
+        spool.complete(new Runnable() {
+            @Override
+            public void run() {
+                sent.set(true);
+            }
+        });
+        assertTrue(sent.get());
+        assertEquals(0, spool.pendingBytes());
+        assertEquals(0, temp.getRoot().list().length);
+        assertEquals("hello world", out.toString("US-ASCII"));
+        channel.finish();
+    }
+
+}
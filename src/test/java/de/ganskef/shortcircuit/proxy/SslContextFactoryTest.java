@@ -0,0 +1,35 @@
+package de.ganskef.shortcircuit.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.net.InetSocketAddress;
+
+import org.junit.Test;
+
+import io.netty.handler.ssl.SslContext;
+
+public class SslContextFactoryTest {
+
+    @Test
+    public void testLeastRecentlyUsedDropped() throws Exception {
+        SslContextFactory factory = new SslContextFactory(null, false, 2);
+        SslContext a = factory.mint("a.example.com");
+        factory.mint("b.example.com");
+        assertSame(a, factory.mint("a.example.com"));
+        factory.mint("c.example.com");
+        assertEquals(2, factory.size());
+        assertSame(a, factory.mint("a.example.com"));
+        // b was used least recently
+        SslContext b = factory.mint("b.example.com");
+        assertNotSame(null, b);
+        assertEquals(2, factory.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCacheWarmerRejectsZeroRate() {
+        new CacheWarmer(new AccessHistory(), null, new InetSocketAddress("localhost", 9090), 0);
+    }
+
+}
@@ -0,0 +1,224 @@
+package de.ganskef.shortcircuit.proxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.CharsetUtil;
+
+public class TrafficJournalTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRecordRead() throws Exception {
+        File file = new File(folder.getRoot(), "traffic.journal");
+        TrafficJournal journal = new TrafficJournal(file, 4096, TrafficJournal.DEFAULT_MAX_FILE_BYTES, 4);
+        long start = journal.getBase() + 1000;
+        assertTrue(journal.record(start, 567, "localhost:80", "GET http://localhost/ HTTP/1.1\r\n", 200, 10, 1234,
+                new byte[] { 1, 2, 3, 4, 5, 6 }));
+        assertTrue(journal.record(start + 1000, 0, null, "GET / HTTP/1.0\r\n", 0, 0, 0, null));
+        journal.close();
+
+        TrafficJournal.Reader reader = TrafficJournal.read(file);
+        assertTrue(reader.next());
+        assertEquals(1000, reader.offsetNanos());
+        assertEquals(567, reader.durationNanos());
+        assertEquals("localhost:80", reader.host());
+        assertEquals("GET http://localhost/ HTTP/1.1\r\n", reader.head());
+        assertEquals(200, reader.status());
+        assertEquals(10, reader.requestBytes());
+        assertEquals(1234, reader.responseBytes());
+        assertArrayEquals(new byte[] { 1, 2, 3, 4 }, reader.body());
+        assertTrue(reader.next());
+        assertEquals(2000, reader.offsetNanos());
+        assertEquals("", reader.host());
+        assertEquals(0, reader.body().length);
+        assertFalse(reader.next());
+        reader.close();
+    }
+
+    @Test
+    public void testNextSegmentMappedInAdvance() throws Exception {
+        File file = new File(folder.getRoot(), "traffic.journal");
+        TrafficJournal journal = new TrafficJournal(file, 4096, TrafficJournal.DEFAULT_MAX_FILE_BYTES, 0);
+        try {
+            String head = "GET / HTTP/1.1\r\n";
+            journal.record(journal.getBase(), 0, "host", head, 200, 0, 0, null);
+            assertFalse(journal.isMapped(1));
+            for (int i = 0; i < 40; i++) {
+                journal.record(journal.getBase(), 0, "host", head, 200, 0, 0, null);
+            }
+            for (int i = 0; i < 100 && !journal.isMapped(1); i++) {
+                Thread.sleep(10);
+            }
+            assertTrue(journal.isMapped(1));
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void testSegmentsPaddedAndReopenedForAppending() throws Exception {
+        File file = new File(folder.getRoot(), "traffic.journal");
+        TrafficJournal journal = new TrafficJournal(file, 4096, TrafficJournal.DEFAULT_MAX_FILE_BYTES, 0);
+        for (int i = 0; i < 100; i++) {
+            journal.record(journal.getBase(), 0, "host", "GET /" + i + " HTTP/1.1\r\n", 200, 0, i, null);
+        }
+        journal.close();
+        assertTrue(file.length() > 4096);
+        journal = new TrafficJournal(file);
+        journal.record(journal.getBase(), 0, "host", "GET /100 HTTP/1.1\r\n", 200, 0, 100, null);
+        journal.close();
+
+        TrafficJournal.Reader reader = TrafficJournal.read(file);
+        for (int i = 0; i <= 100; i++) {
+            assertTrue(reader.next());
+            assertEquals("GET /" + i + " HTTP/1.1\r\n", reader.head());
+            assertEquals(i, reader.responseBytes());
+        }
+        assertFalse(reader.next());
+        reader.close();
+    }
+
+    @Test
+    public void testIncompleteRecordSkipped() throws Exception {
+        File file = new File(folder.getRoot(), "traffic.journal");
+        TrafficJournal journal = new TrafficJournal(file, 4096, TrafficJournal.DEFAULT_MAX_FILE_BYTES, 0);
+        for (int i = 0; i < 3; i++) {
+            journal.record(journal.getBase(), 0, "host", "GET /" + i + " HTTP/1.1\r\n", 200, 0, i, null);
+        }
+        journal.close();
+        // the second record claimed and marked, but not written
+        RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        try {
+            raw.seek(32);
+            int first = raw.readInt();
+            raw.seek(32 + first);
+            int second = raw.readInt();
+            raw.seek(32 + first);
+            raw.writeInt(-second);
+            raw.write(new byte[second - 4]);
+        } finally {
+            raw.close();
+        }
+        journal = new TrafficJournal(file);
+        journal.record(journal.getBase(), 0, "host", "GET /3 HTTP/1.1\r\n", 200, 0, 3, null);
+        journal.close();
+
+        TrafficJournal.Reader reader = TrafficJournal.read(file);
+        for (int i : new int[] { 0, 2, 3 }) {
+            assertTrue(reader.next());
+            assertEquals("GET /" + i + " HTTP/1.1\r\n", reader.head());
+        }
+        assertFalse(reader.next());
+        reader.close();
+    }
+
+    @Test
+    public void testDroppedIfFull() throws Exception {
+        File file = new File(folder.getRoot(), "traffic.journal");
+        TrafficJournal journal = new TrafficJournal(file, 4096, 8192, 0);
+        int recorded = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (journal.record(journal.getBase(), 0, "host", "GET / HTTP/1.1\r\n", 200, 0, 0, null)) {
+                recorded++;
+            }
+        }
+        journal.close();
+        assertTrue(recorded > 0 && recorded < 1000);
+        assertEquals(8192, file.length());
+        int read = 0;
+        TrafficJournal.Reader reader = TrafficJournal.read(file);
+        while (reader.next()) {
+            read++;
+        }
+        reader.close();
+        assertEquals(recorded, read);
+    }
+
+    @Test
+    public void testConcurrentAppends() throws Exception {
+        File file = new File(folder.getRoot(), "traffic.journal");
+        final TrafficJournal journal = new TrafficJournal(file, 4096, TrafficJournal.DEFAULT_MAX_FILE_BYTES, 0);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        journal.record(journal.getBase(), 0, "host", "GET /" + thread + "/" + i + " HTTP/1.1\r\n",
+                                200, 0, 0, null);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread each : threads) {
+            each.join();
+        }
+        journal.close();
+        Set<String> heads = new HashSet<String>();
+        TrafficJournal.Reader reader = TrafficJournal.read(file);
+        while (reader.next()) {
+            heads.add(reader.head());
+        }
+        reader.close();
+        assertEquals(4000, heads.size());
+    }
+
+    @Test
+    public void testCapturedHead() {
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/a?b");
+        request.headers().set("Host", "example.com");
+        request.headers().set("Accept", "*/*");
+        assertEquals("GET /a?b HTTP/1.1\r\nHost: example.com\r\nAccept: */*\r\n", TrafficCaptureHandler.head(request));
+        assertEquals("example.com:80", TrafficCaptureHandler.host(request));
+        request.setUri("http://localhost:8080/x");
+        assertEquals("localhost:8080", TrafficCaptureHandler.host(request));
+        request.setMethod(HttpMethod.CONNECT);
+        request.setUri("example.com:443");
+        assertEquals("example.com:443", TrafficCaptureHandler.host(request));
+    }
+
+    @Test
+    public void testChunkedBehindLongHeadCounted() throws Exception {
+        File file = new File(folder.getRoot(), "traffic.journal");
+        TrafficJournal journal = new TrafficJournal(file, 65536, TrafficJournal.DEFAULT_MAX_FILE_BYTES, 0);
+        EmbeddedChannel channel = new EmbeddedChannel(new TrafficCaptureHandler(journal));
+        channel.writeInbound(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "http://localhost/"));
+        StringBuilder pad = new StringBuilder();
+        for (int i = 0; i < 9000; i++) {
+            pad.append('x');
+        }
+        String response = "HTTP/1.1 200 OK\r\nX-Pad: " + pad + "\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "5\r\nhello\r\n0\r\n\r\n";
+        channel.writeOutbound(Unpooled.copiedBuffer(response, CharsetUtil.US_ASCII));
+        channel.finishAndReleaseAll();
+        journal.close();
+        TrafficJournal.Reader reader = TrafficJournal.read(file);
+        assertTrue(reader.next());
+        assertEquals(200, reader.status());
+        assertEquals(5, reader.responseBytes());
+        reader.close();
+    }
+
+}
@@ -0,0 +1,59 @@
+package de.ganskef.shortcircuit.proxy.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CacheSimulatorTest {
+
+    @Test
+    public void testParse() {
+        CacheSimulator.Access access = CacheSimulator
+                .parse("127.0.0.1 - - [10/Oct/2016:13:55:36 +0200] \"GET /a.png HTTP/1.1\" 200 2326");
+        assertEquals("/a.png", access.key);
+        assertEquals(2326, access.length);
+        access = CacheSimulator.parse("http://localhost/b 42");
+        assertEquals("http://localhost/b", access.key);
+        assertEquals(42, access.length);
+        assertNull(CacheSimulator.parse("   "));
+        assertEquals(64L * 1024 * 1024, CacheSimulator.parseCapacity("64m"));
+    }
+
+    @Test
+    public void testHotKeysSurviveScan() {
+        CacheSimulator simulator = new CacheSimulator();
+        for (int round = 0; round < 20; round++) {
+            for (int hot = 0; hot < 50; hot++) {
+                simulator.add("/hot/" + hot + " 100");
+            }
+            for (int scan = 0; scan < 200; scan++) {
+                simulator.add("/scan/" + round + "/" + scan + " 100");
+            }
+        }
+        CacheSimulator.Result lru = simulator.replay(new LruPolicy(100 * 100));
+        CacheSimulator.Result tinyLfu = simulator.replay(new TinyLfuPolicy(100 * 100, 100));
+        assertEquals(0, lru.hits);
+        assertTrue(tinyLfu.hitRatio() > 0.15);
+    }
+
+    @Test
+    public void testLargeOneOffNotAdmitted() {
+        TinyLfuPolicy policy = new TinyLfuPolicy(1000, 16);
+        for (int i = 0; i < 9; i++) {
+            policy.recordAccess("/small/" + i);
+            policy.recordAccess("/small/" + i);
+            assertTrue(policy.admit("/small/" + i, 100).isEmpty());
+        }
+        policy.recordAccess("/large");
+        assertEquals("[/large]", policy.admit("/large", 900).toString());
+        assertEquals(900, policy.weight());
+        LruPolicy lru = new LruPolicy(1000);
+        for (int i = 0; i < 9; i++) {
+            lru.admit("/small/" + i, 100);
+        }
+        assertEquals(8, lru.admit("/large", 900).size());
+    }
+
+}
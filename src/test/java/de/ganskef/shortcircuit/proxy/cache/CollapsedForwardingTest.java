@@ -0,0 +1,218 @@
+package de.ganskef.shortcircuit.proxy.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.CharsetUtil;
+
+public class CollapsedForwardingTest {
+
+    private static class ReadCounter extends ChannelOutboundHandlerAdapter {
+        int reads;
+
+        @Override
+        public void read(ChannelHandlerContext ctx) throws Exception {
+            reads++;
+            super.read(ctx);
+        }
+    }
+
+    private static final String HEAD = "HTTP/1.1 200 OK\r\n\r\n";
+
+    private HttpRequest createRequest(String uri) {
+        return new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+    }
+
+    private ByteBuf buffer(String content) {
+        return Unpooled.copiedBuffer(content, CharsetUtil.UTF_8);
+    }
+
+    private String readOutbound(EmbeddedChannel channel) {
+        StringBuilder sb = new StringBuilder();
+        ByteBuf buf;
+        while ((buf = channel.readOutbound()) != null) {
+            sb.append(buf.toString(CharsetUtil.UTF_8));
+            buf.release();
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testFirstIsLeaderOthersFollow() {
+        CollapsedForwarding sut = new CollapsedForwarding();
+        CollapsedResponse.Subscriber first = sut.subscribe(createRequest("http://localhost/a"), new EmbeddedChannel());
+        CollapsedResponse.Subscriber second = sut.subscribe(createRequest("http://localhost/a"), new EmbeddedChannel());
+        CollapsedResponse.Subscriber other = sut.subscribe(createRequest("http://localhost/b"), new EmbeddedChannel());
+        assertTrue(first.isLeader());
+        assertFalse(second.isLeader());
+        assertSame(first.response(), second.response());
+        assertTrue(other.isLeader());
+        assertNotSame(first.response(), other.response());
+        assertEquals(2, sut.size());
+    }
+
+    @Test
+    public void testNotCollapsible() {
+        CollapsedForwarding sut = new CollapsedForwarding();
+        HttpRequest request = createRequest("http://localhost/");
+        assertTrue(sut.isCollapsible(request));
+        request.headers().set(HttpHeaderNames.RANGE, "bytes=0-1");
+        assertFalse(sut.isCollapsible(request));
+        assertFalse(sut.isCollapsible(
+                new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "http://localhost/")));
+    }
+
+    @Test
+    public void testFanOutAndReplayToLateSubscriber() {
+        CollapsedForwarding sut = new CollapsedForwarding();
+        EmbeddedChannel leaderChannel = new EmbeddedChannel();
+        EmbeddedChannel followerChannel = new EmbeddedChannel();
+        EmbeddedChannel upstream = new EmbeddedChannel();
+        CollapsedResponse.Subscriber leader = sut.subscribe(createRequest("http://localhost/"), leaderChannel);
+        leader.response().publish(buffer("HTTP/1.1 200 OK\r\n"), upstream);
+        sut.subscribe(createRequest("http://localhost/"), followerChannel);
+        leader.response().publish(buffer("\r\nbody"), upstream);
+        leader.response().complete();
+
+        assertEquals("HTTP/1.1 200 OK\r\n\r\nbody", readOutbound(leaderChannel));
+        assertEquals("HTTP/1.1 200 OK\r\n\r\nbody", readOutbound(followerChannel));
+        assertFalse(leaderChannel.isOpen());
+        assertFalse(followerChannel.isOpen());
+        assertEquals(0, sut.size());
+    }
+
+    @Test
+    public void testSealedIfReplayExceeded() {
+        CollapsedForwarding sut = new CollapsedForwarding(4, 1024, 1024);
+        EmbeddedChannel upstream = new EmbeddedChannel();
+        CollapsedResponse.Subscriber leader = sut.subscribe(createRequest("http://localhost/"), new EmbeddedChannel());
+        leader.response().publish(buffer(HEAD), upstream);
+        assertEquals(0, sut.size());
+        assertTrue(sut.subscribe(createRequest("http://localhost/"), new EmbeddedChannel()).isLeader());
+    }
+
+    @Test
+    public void testSlowSubscriberDoesNotStallOthers() {
+        CollapsedForwarding sut = new CollapsedForwarding(1024, 1024, 32);
+        ReadCounter reads = new ReadCounter();
+        EmbeddedChannel upstream = new EmbeddedChannel(reads);
+        EmbeddedChannel fast = new EmbeddedChannel();
+        EmbeddedChannel slow = new EmbeddedChannel();
+        slow.config().setWriteBufferWaterMark(new WriteBufferWaterMark(1, 2));
+        slow.write(buffer("blocking"));
+        assertFalse(slow.isWritable());
+
+        CollapsedResponse.Subscriber leader = sut.subscribe(createRequest("http://localhost/"), fast);
+        CollapsedResponse.Subscriber follower = sut.subscribe(createRequest("http://localhost/"), slow);
+        int readsBefore = reads.reads;
+        leader.response().publish(buffer(HEAD), upstream);
+        leader.response().publish(buffer("0123456789"), upstream);
+        leader.response().publish(buffer("0123456789"), upstream);
+
+        assertEquals(3, reads.reads - readsBefore);
+        assertEquals(HEAD + "01234567890123456789", readOutbound(fast));
+        assertEquals(HEAD.length() + 20, follower.pendingBytes());
+        assertFalse(leader.response().isReadPending());
+    }
+
+    @Test
+    public void testLaggingSubscriberDetached() {
+        CollapsedForwarding sut = new CollapsedForwarding(1024, 32, 8);
+        EmbeddedChannel upstream = new EmbeddedChannel();
+        EmbeddedChannel slow = new EmbeddedChannel();
+        slow.config().setWriteBufferWaterMark(new WriteBufferWaterMark(1, 2));
+        slow.write(buffer("blocking"));
+
+        CollapsedResponse.Subscriber leader = sut.subscribe(createRequest("http://localhost/"), new EmbeddedChannel());
+        sut.subscribe(createRequest("http://localhost/"), slow);
+        leader.response().publish(buffer(HEAD), upstream);
+        leader.response().publish(buffer("0123456789"), upstream);
+        assertTrue(slow.isOpen());
+        leader.response().publish(buffer("0123456789"), upstream);
+        assertFalse(slow.isOpen());
+        assertTrue(leader.response().isSubscribed());
+    }
+
+    @Test
+    public void testShareable() {
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        assertTrue(CollapsedForwarding.isShareable(response));
+        response.headers().set(HttpHeaderNames.VARY, "Accept-Encoding");
+        assertTrue(CollapsedForwarding.isShareable(response));
+        response.headers().set(HttpHeaderNames.VARY, "Cookie");
+        assertFalse(CollapsedForwarding.isShareable(response));
+        response.headers().remove(HttpHeaderNames.VARY);
+        response.headers().set(HttpHeaderNames.CACHE_CONTROL, "Private, max-age=60");
+        assertFalse(CollapsedForwarding.isShareable(response));
+        response.headers().set(HttpHeaderNames.CACHE_CONTROL, "no-store");
+        assertFalse(CollapsedForwarding.isShareable(response));
+        response.headers().remove(HttpHeaderNames.CACHE_CONTROL);
+        response.headers().set(HttpHeaderNames.SET_COOKIE, "id=1");
+        assertFalse(CollapsedForwarding.isShareable(response));
+        assertFalse(CollapsedForwarding.isShareable(
+                new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.SERVICE_UNAVAILABLE)));
+    }
+
+    @Test
+    public void testFollowersDetachedFromPrivateResponse() {
+        CollapsedForwarding sut = new CollapsedForwarding();
+        EmbeddedChannel leaderChannel = new EmbeddedChannel();
+        EmbeddedChannel followerChannel = new EmbeddedChannel();
+        EmbeddedChannel upstream = new EmbeddedChannel();
+        final AtomicInteger fallbacks = new AtomicInteger();
+        Runnable fallback = new Runnable() {
+            @Override
+            public void run() {
+                fallbacks.incrementAndGet();
+            }
+        };
+        CollapsedResponse.Subscriber leader = sut.subscribe(createRequest("http://localhost/"), leaderChannel);
+        sut.subscribe(createRequest("http://localhost/"), followerChannel, fallback);
+        leader.response().publish(buffer("HTTP/1.1 200 OK\r\nSet-Cookie: id=1\r\n"), upstream);
+        leader.response().publish(buffer("Cache-Control: private\r\n\r\nbody"), upstream);
+        followerChannel.runPendingTasks();
+        // a later request goes upstream on its own too
+        assertEquals(0, sut.size());
+        assertTrue(sut.subscribe(createRequest("http://localhost/"), new EmbeddedChannel()).isLeader());
+        leader.response().complete();
+
+        assertEquals("HTTP/1.1 200 OK\r\nSet-Cookie: id=1\r\nCache-Control: private\r\n\r\nbody",
+                readOutbound(leaderChannel));
+        assertEquals("", readOutbound(followerChannel));
+        assertEquals(1, fallbacks.get());
+        assertTrue(followerChannel.isOpen());
+    }
+
+    @Test
+    public void testUpstreamClosedIfNobodyInterested() {
+        CollapsedForwarding sut = new CollapsedForwarding();
+        EmbeddedChannel upstream = new EmbeddedChannel();
+        CollapsedResponse.Subscriber leader = sut.subscribe(createRequest("http://localhost/"), new EmbeddedChannel());
+        leader.response().publish(buffer("0123456789"), upstream);
+        leader.response().cancel(leader);
+        assertFalse(upstream.isOpen());
+        assertEquals(0, sut.size());
+    }
+
+}
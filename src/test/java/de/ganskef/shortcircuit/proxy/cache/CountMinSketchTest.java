@@ -0,0 +1,36 @@
+package de.ganskef.shortcircuit.proxy.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CountMinSketchTest {
+
+    @Test
+    public void testCountedUpToFifteen() {
+        CountMinSketch sut = new CountMinSketch(1024);
+        for (int i = 0; i < 20; i++) {
+            sut.increment("hot");
+        }
+        sut.increment("cold");
+        assertEquals(15, sut.frequency("hot"));
+        assertEquals(1, sut.frequency("cold"));
+        assertEquals(0, sut.frequency("unknown"));
+    }
+
+    @Test
+    public void testHalvedAfterSample() {
+        CountMinSketch sut = new CountMinSketch(16);
+        for (int i = 0; i < 15; i++) {
+            sut.increment("hot");
+        }
+        // a width of 32 is sampled after 320 additions
+        for (int i = 0; i < 320; i++) {
+            sut.increment("key" + i);
+        }
+        int frequency = sut.frequency("hot");
+        assertTrue(String.valueOf(frequency), frequency >= 7 && frequency < 15);
+    }
+
+}
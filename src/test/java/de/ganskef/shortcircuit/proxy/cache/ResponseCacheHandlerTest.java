@@ -0,0 +1,294 @@
+package de.ganskef.shortcircuit.proxy.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.FileRegion;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.CharsetUtil;
+
+public class ResponseCacheHandlerTest {
+
+    private static final String URI = "http://localhost/file.bin";
+
+    private static final String HEAD = "HTTP/1.1 200 OK\r\n" //
+            + "Content-Type: application/octet-stream\r\n" //
+            + "Cache-Control: max-age=3600\r\n" //
+            + "Content-Length: 10\r\n\r\n";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private ResponseCache cache;
+
+    @Before
+    public void before() throws Exception {
+        File dir = folder.newFolder();
+        cache = new ResponseCache(dir, 1024);
+    }
+
+    private ByteBuf buffer(String content) {
+        return Unpooled.copiedBuffer(content, CharsetUtil.ISO_8859_1);
+    }
+
+    private CachedResponse record(String... parts) {
+        CachedResponse recording = cache.record(createRequest(null));
+        for (String each : parts) {
+            ByteBuf buf = buffer(each);
+            recording.append(buf);
+            buf.release();
+        }
+        return recording;
+    }
+
+    private HttpRequest createRequest(String range) {
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, URI);
+        if (range != null) {
+            request.headers().set(HttpHeaderNames.RANGE, range);
+        }
+        return request;
+    }
+
+    private String readOutbound(EmbeddedChannel channel) throws Exception {
+        channel.runPendingTasks();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        WritableByteChannel target = Channels.newChannel(bytes);
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            if (msg instanceof ByteBuf) {
+                ByteBuf buf = (ByteBuf) msg;
+                buf.readBytes(bytes, buf.readableBytes());
+                buf.release();
+            } else {
+                FileRegion region = (FileRegion) msg;
+                while (region.transferred() < region.count()) {
+                    region.transferTo(target, region.transferred());
+                }
+                region.release();
+            }
+        }
+        return bytes.toString("ISO-8859-1");
+    }
+
+    @Test
+    public void testParseRanges() {
+        List<ByteRange> ranges = ByteRange.parse("bytes=0-1, 5-, -3, 20-30", 10);
+        assertEquals("[0-1, 5-9]", ranges.toString());
+        assertEquals("[0-4, 7-8]", ByteRange.parse("bytes=7-8, 3-4, 0-2, 1-1", 10).toString());
+        assertEquals("[0-9]", ByteRange.parse("bytes=0-100", 10).toString());
+        assertTrue(ByteRange.parse("bytes=10-", 10).isEmpty());
+        assertNull(ByteRange.parse("bytes=5-1", 10));
+        assertNull(ByteRange.parse("items=0-1", 10));
+    }
+
+    @Test
+    public void testRecordedIfComplete() {
+        CachedResponse recording = record(HEAD + "01234", "56789");
+        assertSame(recording, cache.get(createRequest(null)));
+        recording.complete();
+        assertTrue(recording.isComplete());
+        assertEquals(10, cache.weight());
+    }
+
+    @Test
+    public void testNotRecordedIfIncomplete() {
+        CachedResponse recording = record(HEAD + "01234");
+        recording.complete();
+        assertTrue(recording.isAborted());
+        assertNull(cache.get(createRequest(null)));
+    }
+
+    @Test
+    public void testWholeResponse() throws Exception {
+        record(HEAD, "0123456789").complete();
+        EmbeddedChannel channel = new EmbeddedChannel(new ResponseCacheHandler(cache));
+        channel.writeInbound(createRequest(null));
+        String response = readOutbound(channel);
+        assertTrue(response, response.startsWith("HTTP/1.1 200 OK\r\n"));
+        assertTrue(response, response.contains("content-length: 10\r\n"));
+        assertTrue(response, response.endsWith("\r\n\r\n0123456789"));
+    }
+
+    @Test
+    public void testSingleRange() throws Exception {
+        record(HEAD, "0123456789").complete();
+        EmbeddedChannel channel = new EmbeddedChannel(new ResponseCacheHandler(cache));
+        channel.writeInbound(createRequest("bytes=2-4"));
+        String response = readOutbound(channel);
+        assertTrue(response, response.startsWith("HTTP/1.1 206 Partial Content\r\n"));
+        assertTrue(response, response.contains("content-range: bytes 2-4/10\r\n"));
+        assertTrue(response, response.endsWith("\r\n\r\n234"));
+    }
+
+    @Test
+    public void testMultipleRanges() throws Exception {
+        record(HEAD, "0123456789").complete();
+        EmbeddedChannel channel = new EmbeddedChannel(new ResponseCacheHandler(cache));
+        channel.writeInbound(createRequest("bytes=0-1,8-"));
+        String response = readOutbound(channel);
+        assertTrue(response, response.contains("content-type: multipart/byteranges; boundary="));
+        assertTrue(response, response.contains("\r\nContent-Range: bytes 0-1/10\r\n\r\n01\r\n--"));
+        assertTrue(response, response.contains("\r\nContent-Range: bytes 8-9/10\r\n\r\n89\r\n--"));
+        int headEnd = response.indexOf("\r\n\r\n") + 4;
+        String length = response.replaceFirst("(?s).*content-length: (\\d+).*", "$1");
+        assertEquals(response.length() - headEnd, Integer.parseInt(length));
+    }
+
+    @Test
+    public void testTooManyRangesIgnored() throws Exception {
+        record(HEAD, "0123456789").complete();
+        EmbeddedChannel channel = new EmbeddedChannel(new ResponseCacheHandler(cache));
+        StringBuilder range = new StringBuilder("bytes=0-0");
+        for (int i = 0; i < ByteRange.MAX_RANGES; i++) {
+            range.append(",0-9");
+        }
+        channel.writeInbound(createRequest(range.toString()));
+        String response = readOutbound(channel);
+        assertTrue(response, response.startsWith("HTTP/1.1 200 OK\r\n"));
+        assertTrue(response, response.endsWith("\r\n\r\n0123456789"));
+    }
+
+    @Test
+    public void testOverlappingRangesMerged() throws Exception {
+        record(HEAD, "0123456789").complete();
+        EmbeddedChannel channel = new EmbeddedChannel(new ResponseCacheHandler(cache));
+        channel.writeInbound(createRequest("bytes=0-5,0-5,6-7"));
+        String response = readOutbound(channel);
+        assertTrue(response, response.startsWith("HTTP/1.1 206 Partial Content\r\n"));
+        assertTrue(response, response.contains("content-range: bytes 0-7/10\r\n"));
+        assertTrue(response, response.endsWith("\r\n\r\n01234567"));
+    }
+
+    @Test
+    public void testUnsatisfiableRange() throws Exception {
+        record(HEAD, "0123456789").complete();
+        EmbeddedChannel channel = new EmbeddedChannel(new ResponseCacheHandler(cache));
+        channel.writeInbound(createRequest("bytes=10-"));
+        String response = readOutbound(channel);
+        assertTrue(response, response.startsWith("HTTP/1.1 416 Requested Range Not Satisfiable\r\n"));
+        assertTrue(response, response.contains("content-range: bytes */10\r\n"));
+    }
+
+    @Test
+    public void testRangeOfResponseInProgress() throws Exception {
+        CachedResponse recording = record(HEAD, "012");
+        EmbeddedChannel channel = new EmbeddedChannel(new ResponseCacheHandler(cache));
+        channel.writeInbound(createRequest("bytes=1-4"));
+        assertEquals("", readOutbound(channel));
+        ByteBuf rest = buffer("3456789");
+        recording.append(rest);
+        rest.release();
+        String response = readOutbound(channel);
+        assertTrue(response, response.endsWith("\r\n\r\n1234"));
+    }
+
+    @Test
+    public void testForwardedIfRecordingAborted() throws Exception {
+        CachedResponse recording = record(HEAD, "012");
+        EmbeddedChannel channel = new EmbeddedChannel(new ResponseCacheHandler(cache));
+        HttpRequest request = createRequest("bytes=1-4");
+        channel.writeInbound(request);
+        recording.abort();
+        channel.runPendingTasks();
+        assertSame(request, channel.readInbound());
+    }
+
+    private CachedResponse recordVariant(String acceptEncoding, String head, String body) {
+        HttpRequest request = createRequest(null);
+        request.headers().set(HttpHeaderNames.ACCEPT_ENCODING, acceptEncoding);
+        CachedResponse recording = cache.record(request);
+        ByteBuf buf = buffer(head + body);
+        recording.append(buf);
+        buf.release();
+        recording.complete();
+        return recording;
+    }
+
+    @Test
+    public void testVariantsSelectedByVary() throws Exception {
+        String gzipped = HEAD.replace("\r\n\r\n", "\r\nVary: Accept-Encoding\r\nContent-Encoding: gzip\r\n\r\n");
+        String identity = HEAD.replace("\r\n\r\n", "\r\nVary: Accept-Encoding\r\n\r\n");
+        CachedResponse first = recordVariant("gzip, deflate", gzipped, "zzzzzzzzzz");
+        CachedResponse second = recordVariant("identity", identity, "0123456789");
+        assertEquals(1, cache.size());
+        assertEquals(2, cache.variantCount());
+        assertEquals(20, cache.weight());
+
+        HttpRequest request = createRequest("bytes=0-1");
+        request.headers().set(HttpHeaderNames.ACCEPT_ENCODING, "deflate,gzip");
+        assertSame(first, cache.get(request));
+        request.headers().set(HttpHeaderNames.ACCEPT_ENCODING, "identity");
+        assertSame(second, cache.get(request));
+        EmbeddedChannel channel = new EmbeddedChannel(new ResponseCacheHandler(cache));
+        channel.writeInbound(request);
+        assertTrue(readOutbound(channel).endsWith("\r\n\r\n01"));
+        request.headers().set(HttpHeaderNames.ACCEPT_ENCODING, "br");
+        assertNull(cache.get(request));
+    }
+
+    @Test
+    public void testVariantsEvictedTogether() {
+        String varying = HEAD.replace("\r\n\r\n", "\r\nVary: Accept-Encoding\r\n\r\n");
+        recordVariant("gzip", varying, "0123456789");
+        recordVariant("identity", varying, "0123456789");
+        HttpRequest other = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "http://localhost/other");
+        // requested more often, so it's admitted instead of the variants
+        cache.get(other);
+        cache.get(other);
+        CachedResponse recording = cache.record(other);
+        ByteBuf buf = buffer(HEAD.replace("Content-Length: 10", "Content-Length: 1010") + "0");
+        recording.append(buf);
+        buf.release();
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.variantCount());
+        assertEquals(1010, cache.weight());
+    }
+
+    @Test
+    public void testLargeResponseOfRareUriRejected() {
+        record(HEAD, "0123456789").complete();
+        HttpRequest other = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "http://localhost/other");
+        CachedResponse recording = cache.record(other);
+        ByteBuf buf = buffer(HEAD.replace("Content-Length: 10", "Content-Length: 1010") + "0");
+        recording.append(buf);
+        buf.release();
+        assertTrue(recording.isAborted());
+        assertNotNull(cache.get(createRequest(null)));
+        assertEquals(10, cache.weight());
+    }
+
+    @Test
+    public void testNotStoredIfVaryingOnAnything() {
+        record(HEAD.replace("\r\n\r\n", "\r\nVary: *\r\n\r\n"), "0123456789").complete();
+        assertNull(cache.get(createRequest(null)));
+    }
+
+    @Test
+    public void testNotStoredIfNotCacheable() {
+        record("HTTP/1.1 200 OK\r\nCache-Control: no-store\r\nContent-Length: 1\r\n\r\n", "0");
+        assertNull(cache.get(createRequest(null)));
+        assertEquals(0, cache.weight());
+    }
+
+}
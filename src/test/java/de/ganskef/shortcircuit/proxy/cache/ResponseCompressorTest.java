@@ -0,0 +1,205 @@
+package de.ganskef.shortcircuit.proxy.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.concurrent.Executor;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.ganskef.shortcircuit.proxy.HttpResponseRelayHandler;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.FileRegion;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.CharsetUtil;
+
+public class ResponseCompressorTest {
+
+    private static final String URI = "http://localhost/index.html";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private ResponseCache cache;
+
+    private ResponseCompressor compressor;
+
+    private String body;
+
+    @Before
+    public void before() throws Exception {
+        cache = new ResponseCache(folder.newFolder(), 1024 * 1024);
+        Executor direct = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        compressor = new ResponseCompressor(direct, ResponseCompressor.DEFAULT_MIN_LENGTH,
+                ResponseCompressor.defaultLevels());
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            sb.append("<p>Line ").append(i).append("</p>\n");
+        }
+        body = sb.toString();
+    }
+
+    private HttpRequest createRequest(String acceptEncoding) {
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, URI);
+        if (acceptEncoding != null) {
+            request.headers().set(HttpHeaderNames.ACCEPT_ENCODING, acceptEncoding);
+        }
+        return request;
+    }
+
+    private CachedResponse record(String contentType) {
+        CachedResponse recording = cache.record(createRequest(null));
+        ByteBuf buf = Unpooled.copiedBuffer("HTTP/1.1 200 OK\r\n" //
+                + "Content-Type: " + contentType + "\r\n" //
+                + "Cache-Control: max-age=3600\r\n" //
+                + "ETag: \"abc\"\r\n" //
+                + "Content-Length: " + body.length() + "\r\n\r\n" + body, CharsetUtil.ISO_8859_1);
+        recording.append(buf);
+        buf.release();
+        recording.complete();
+        return recording;
+    }
+
+    private static String gunzip(InputStream in) throws Exception {
+        InputStream gz = new GZIPInputStream(in);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int count;
+            while ((count = gz.read(buf)) != -1) {
+                bytes.write(buf, 0, count);
+            }
+            return bytes.toString("ISO-8859-1");
+        } finally {
+            gz.close();
+        }
+    }
+
+    @Test
+    public void testAccepted() {
+        assertTrue(ResponseCompressor.isAccepted(createRequest("gzip, deflate")));
+        assertTrue(ResponseCompressor.isAccepted(createRequest("deflate, gzip;q=0.5")));
+        assertTrue(ResponseCompressor.isAccepted(createRequest("*")));
+        assertFalse(ResponseCompressor.isAccepted(createRequest("gzip;q=0")));
+        assertFalse(ResponseCompressor.isAccepted(createRequest("br")));
+        assertFalse(ResponseCompressor.isAccepted(createRequest(null)));
+    }
+
+    @Test
+    public void testVariant() throws Exception {
+        CachedResponse entry = record("text/html; charset=UTF-8");
+        File variant = compressor.variant(entry);
+        assertNotNull(variant);
+        assertEquals(variant.length(), entry.compressedLength());
+        assertTrue(entry.compressedLength() < entry.contentLength());
+        assertEquals(body, gunzip(new FileInputStream(variant)));
+        entry.evicted();
+        assertFalse(variant.exists());
+    }
+
+    @Test
+    public void testNotCompressible() {
+        assertNull(compressor.variant(record("image/png")));
+    }
+
+    @Test
+    public void testCompressedResponse() throws Exception {
+        record("text/html");
+        EmbeddedChannel channel = new EmbeddedChannel(new ResponseCacheHandler(cache, compressor));
+        channel.writeInbound(createRequest("gzip"));
+        channel.runPendingTasks();
+        ByteBuf head = channel.readOutbound();
+        String headers = head.toString(CharsetUtil.ISO_8859_1);
+        head.release();
+        assertTrue(headers, headers.contains("content-encoding: gzip\r\n"));
+        assertTrue(headers, headers.contains("etag: W/\"abc\"\r\n"));
+        assertTrue(headers, headers.contains("vary: accept-encoding\r\n"));
+        FileRegion region = channel.readOutbound();
+        File variant = cache.get(createRequest(null)).compressed();
+        assertEquals(variant.length(), region.count());
+        region.release();
+        assertTrue(channel.finishAndReleaseAll());
+    }
+
+    private String relay(EmbeddedChannel channel, String... parts) {
+        for (String each : parts) {
+            channel.writeInbound(Unpooled.copiedBuffer(each, CharsetUtil.ISO_8859_1));
+        }
+        StringBuilder result = new StringBuilder();
+        ByteBuf buf;
+        while ((buf = channel.readInbound()) != null) {
+            result.append(buf.toString(CharsetUtil.ISO_8859_1));
+            buf.release();
+        }
+        return result.toString();
+    }
+
+    private static byte[] dechunk(String chunked) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int i = 0;
+        for (int size; (size = Integer.parseInt(chunked.substring(i, chunked.indexOf("\r\n", i)), 16)) > 0;) {
+            i = chunked.indexOf("\r\n", i) + 2;
+            for (int j = i; j < i + size; j++) {
+                bytes.write(chunked.charAt(j));
+            }
+            i += size + 2;
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void testCompressedWhileRelayed() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(
+                new HttpResponseRelayHandler(HttpMethod.GET, true, false, compressor.newStream()));
+        String chunk = Integer.toHexString(body.length()) + "\r\n" + body + "\r\n";
+        String relayed = relay(channel,
+                "HTTP/1.1 200 OK\r\nContent-Type: text/html\r\nETag: \"abc\"\r\nTransfer-Encoding: chunked\r\n\r\n",
+                chunk.substring(0, 100), chunk.substring(100) + chunk, "0\r\nX-Trailer: 1\r\n\r\n");
+        int headEnd = relayed.indexOf("\r\n\r\n") + 4;
+        String headers = relayed.substring(0, headEnd);
+        assertTrue(headers, headers.contains("content-encoding: gzip\r\n"));
+        assertTrue(headers, headers.contains("transfer-encoding: chunked\r\n"));
+        assertTrue(headers, headers.contains("etag: W/\"abc\"\r\n"));
+        assertTrue(relayed, relayed.endsWith("\r\n0\r\n\r\n"));
+        byte[] compressed = dechunk(relayed.substring(headEnd));
+        assertTrue(compressed.length < body.length());
+        assertEquals(body + body, gunzip(new ByteArrayInputStream(compressed)));
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void testNotCompressedWhileRelayed() {
+        String head = "HTTP/1.1 200 OK\r\nContent-Type: image/png\r\nContent-Length: " + body.length()
+                + "\r\n\r\n";
+        EmbeddedChannel channel = new EmbeddedChannel(
+                new HttpResponseRelayHandler(HttpMethod.GET, true, false, compressor.newStream()));
+        String relayed = relay(channel, head + body);
+        assertTrue(relayed, relayed.endsWith("Content-Length: " + body.length() + "\r\n"
+                + "connection: keep-alive\r\n\r\n" + body));
+        assertFalse(channel.finish());
+    }
+
+}
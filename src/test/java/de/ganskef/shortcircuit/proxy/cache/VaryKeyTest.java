@@ -0,0 +1,57 @@
+package de.ganskef.shortcircuit.proxy.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaders;
+
+public class VaryKeyTest {
+
+    private static final String[] ACCEPT_ENCODING = { "accept-encoding" };
+
+    private HttpHeaders headers(String name, String value) {
+        HttpHeaders headers = new DefaultHttpHeaders();
+        if (value != null) {
+            headers.set(name, value);
+        }
+        return headers;
+    }
+
+    @Test
+    public void testParseVary() {
+        assertArrayEquals(new String[] { "accept-encoding", "user-agent" },
+                VaryKey.parseVary(Arrays.asList("User-Agent, Accept-Encoding", "accept-encoding")));
+        assertArrayEquals(new String[] {}, VaryKey.parseVary(Collections.<String> emptyList()));
+        assertNull(VaryKey.parseVary(Arrays.asList("Accept-Encoding, *")));
+    }
+
+    @Test
+    public void testCodingsNormalized() {
+        long expected = VaryKey.of(ACCEPT_ENCODING, headers("Accept-Encoding", "gzip, deflate"));
+        assertEquals(expected, VaryKey.of(ACCEPT_ENCODING, headers("Accept-Encoding", "deflate,GZIP")));
+        assertEquals(expected, VaryKey.of(ACCEPT_ENCODING, headers("Accept-Encoding", "x-gzip;q=0.8, deflate")));
+        assertEquals(expected, VaryKey.of(ACCEPT_ENCODING, headers("Accept-Encoding", "gzip, deflate, br;q=0")));
+        assertNotEquals(expected, VaryKey.of(ACCEPT_ENCODING, headers("Accept-Encoding", "gzip")));
+        assertNotEquals(expected, VaryKey.of(ACCEPT_ENCODING, headers("Accept-Encoding", null)));
+    }
+
+    @Test
+    public void testOnlyNamedHeadersHashed() {
+        HttpHeaders first = headers("Accept-Encoding", "gzip");
+        first.set("User-Agent", "first");
+        HttpHeaders second = headers("Accept-Encoding", "gzip");
+        second.set("User-Agent", "second");
+        assertEquals(VaryKey.of(ACCEPT_ENCODING, first), VaryKey.of(ACCEPT_ENCODING, second));
+        String[] userAgent = { "user-agent" };
+        assertNotEquals(VaryKey.of(userAgent, first), VaryKey.of(userAgent, second));
+    }
+
+}
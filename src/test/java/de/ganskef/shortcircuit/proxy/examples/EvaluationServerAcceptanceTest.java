@@ -1,6 +1,7 @@
 package de.ganskef.shortcircuit.proxy.examples;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.BufferedReader;
 import java.io.InputStream;
@@ -94,6 +95,36 @@ public class EvaluationServerAcceptanceTest {
         assertEquals("Failure: 404 Not Found", reader.readLine());
     }
 
+    @Test
+    public void httpServerMetrics() throws Exception {
+        Request request = new Request.Builder().url("http://localhost:9092/metrics").build();
+        Response response = client.newCall(request).execute();
+        assertEquals(HttpURLConnection.HTTP_OK, response.code());
+        assertEquals("text/plain; version=0.0.4; charset=UTF-8", response.header("content-type"));
+        String body = response.body().string();
+        assertTrue(body, body.contains("# TYPE shortcircuit_connections_active gauge\n"));
+        assertTrue(body, body.contains("shortcircuit_stage_seconds_count{stage=\"handlers\"} "));
+    }
+
+    @Test
+    public void httpServerConnections() throws Exception {
+        Request request = new Request.Builder().url("http://localhost:9092/connections?limit=10").build();
+        Response response = client.newCall(request).execute();
+        assertEquals(HttpURLConnection.HTTP_OK, response.code());
+        String body = response.body().string();
+        assertTrue(body, body.contains("\tpending_out\tpipeline\n"));
+        // the connection asking is open
+        assertTrue(body, body.contains("\tclient\t"));
+    }
+
+    @Test
+    public void httpServerConnectionsNegativeLimit() throws Exception {
+        Request request = new Request.Builder().url("http://localhost:9092/connections?limit=-1").build();
+        Response response = client.newCall(request).execute();
+        assertEquals(HttpURLConnection.HTTP_BAD_REQUEST, response.code());
+        response.close();
+    }
+
     @Test
     public void securedServerForProxyUI() throws Exception {
         Request request = new Request.Builder().url("https://localhost:9092/").build();
@@ -0,0 +1,66 @@
+package de.ganskef.shortcircuit.proxy.examples;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpRequestDecoder;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+
+public class EvaluationServerAggregatorTest {
+
+    private static final String BODY = "0123456789012345678901234567890123456789";
+
+    private EmbeddedChannel createChannel() {
+        return new EmbeddedChannel(new HttpRequestDecoder(), new EvaluationServerAggregator(64, "/form"));
+    }
+
+    private void writeRequest(EmbeddedChannel channel, String uri, String body) {
+        String request = "POST " + uri + " HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + body.length()
+                + "\r\n\r\n" + body;
+        channel.writeInbound(Unpooled.copiedBuffer(request, CharsetUtil.US_ASCII));
+    }
+
+    @Test
+    public void testStreamedIfNotAggregated() {
+        EmbeddedChannel channel = createChannel();
+        writeRequest(channel, "/upload", BODY + BODY);
+        Object request = channel.readInbound();
+        assertTrue(request instanceof HttpRequest);
+        assertFalse(request instanceof FullHttpRequest);
+        int length = 0;
+        Object content;
+        while ((content = channel.readInbound()) != null) {
+            length += ((HttpContent) content).content().readableBytes();
+            boolean last = content instanceof LastHttpContent;
+            ReferenceCountUtil.release(content);
+            if (last) {
+                break;
+            }
+        }
+        assertEquals(2 * BODY.length(), length);
+        channel.finish();
+    }
+
+    @Test
+    public void testAggregatedRoute() {
+        EmbeddedChannel channel = createChannel();
+        writeRequest(channel, "/form/submit", BODY);
+        FullHttpRequest request = channel.readInbound();
+        assertEquals(BODY, request.content().toString(CharsetUtil.US_ASCII));
+        request.release();
+        assertNull(channel.readInbound());
+        channel.finish();
+    }
+
+}
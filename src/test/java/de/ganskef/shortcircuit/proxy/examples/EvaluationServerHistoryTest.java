@@ -0,0 +1,39 @@
+package de.ganskef.shortcircuit.proxy.examples;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.ganskef.shortcircuit.proxy.AccessHistory;
+import de.ganskef.test.LoadGenerator;
+import io.netty.channel.nio.NioEventLoopGroup;
+
+public class EvaluationServerHistoryTest {
+
+    @Rule
+    public final TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void testHostsWrittenOnStop() throws Exception {
+        File file = new File(temp.getRoot(), "hosts.txt");
+        EvaluationServer server = new EvaluationServer(9097, new NioEventLoopGroup(), new NioEventLoopGroup(), false,
+                file);
+        server.start();
+        try {
+            LoadGenerator.Report report = new LoadGenerator("https://localhost:9097/").proxy("localhost", 9097)
+                    .rate(10).connections(1).warmup(0, TimeUnit.SECONDS).duration(200, TimeUnit.MILLISECONDS)
+                    .run();
+            assertEquals(report.toString(), 0, report.errors());
+        } finally {
+            server.stop();
+        }
+        assertEquals(Arrays.asList("localhost"), new AccessHistory().read(file).topHosts());
+    }
+
+}
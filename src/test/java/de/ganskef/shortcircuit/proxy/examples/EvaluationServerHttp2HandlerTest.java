@@ -0,0 +1,121 @@
+package de.ganskef.shortcircuit.proxy.examples;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpRequestDecoder;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.Http2ConnectionHandler;
+import io.netty.handler.codec.http2.Http2ConnectionHandlerBuilder;
+import io.netty.handler.codec.http2.Http2FrameAdapter;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2MultiplexCodec;
+import io.netty.handler.codec.http2.Http2ServerDowngrader;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.util.CharsetUtil;
+
+public class EvaluationServerHttp2HandlerTest {
+
+    private final Map<Integer, String> statuses = new HashMap<Integer, String>();
+
+    private final Map<Integer, String> bodies = new HashMap<Integer, String>();
+
+    private EmbeddedChannel server;
+
+    private EmbeddedChannel client;
+
+    private Http2ConnectionHandler clientHandler;
+
+    @Before
+    public void before() throws Exception {
+        EvaluationServerHttp2Handler handler = new EvaluationServerHttp2Handler(new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) {
+                ch.pipeline().addLast(new Http2ServerDowngrader(), new EvaluationServerHomeHandler(),
+                        new EvaluationServerFallbackHandler());
+            }
+        });
+        server = new EmbeddedChannel(handler, new HttpRequestDecoder(), new HttpResponseEncoder(),
+                new EvaluationServerHomeHandler());
+        handler.configurePipeline(server.pipeline().context(handler), ApplicationProtocolNames.HTTP_2);
+        clientHandler = new Http2ConnectionHandlerBuilder().server(false).frameListener(new Http2FrameAdapter() {
+            @Override
+            public void onHeadersRead(ChannelHandlerContext ctx, int streamId, Http2Headers headers, int padding,
+                    boolean endOfStream) {
+                statuses.put(streamId, headers.status().toString());
+            }
+
+            @Override
+            public void onHeadersRead(ChannelHandlerContext ctx, int streamId, Http2Headers headers,
+                    int streamDependency, short weight, boolean exclusive, int padding, boolean endOfStream) {
+                onHeadersRead(ctx, streamId, headers, padding, endOfStream);
+            }
+
+            @Override
+            public int onDataRead(ChannelHandlerContext ctx, int streamId, ByteBuf data, int padding,
+                    boolean endOfStream) {
+                bodies.put(streamId, data.toString(CharsetUtil.UTF_8));
+                return data.readableBytes() + padding;
+            }
+        }).build();
+        client = new EmbeddedChannel(clientHandler);
+    }
+
+    private void exchange() {
+        for (boolean moved = true; moved;) {
+            moved = transfer(client, server) | transfer(server, client);
+        }
+    }
+
+    private static boolean transfer(EmbeddedChannel from, EmbeddedChannel to) {
+        from.runPendingTasks();
+        boolean result = false;
+        Object msg;
+        while ((msg = from.readOutbound()) != null) {
+            to.writeInbound(msg);
+            result = true;
+        }
+        return result;
+    }
+
+    private void request(int streamId, String path) {
+        Http2Headers headers = new DefaultHttp2Headers().method("GET").scheme("https").authority("localhost")
+                .path(path);
+        ChannelHandlerContext ctx = client.pipeline().context(clientHandler);
+        clientHandler.encoder().writeHeaders(ctx, streamId, headers, 0, true, ctx.newPromise());
+        ctx.flush();
+    }
+
+    @Test
+    public void testHttp1HandlersReplaced() {
+        assertNull(server.pipeline().get(HttpRequestDecoder.class));
+        assertNull(server.pipeline().get(EvaluationServerHomeHandler.class));
+        assertNotNull(server.pipeline().get(Http2MultiplexCodec.class));
+    }
+
+    @Test
+    public void testHandlersPerStream() {
+        exchange();
+        request(3, "/");
+        request(5, "/missing");
+        exchange();
+        assertEquals("200", statuses.get(3));
+        assertEquals("Response status: 200 OK\r\n", bodies.get(3));
+        assertEquals("404", statuses.get(5));
+        assertEquals("Failure: 404 Not Found\r\n", bodies.get(5));
+    }
+
+}
@@ -0,0 +1,115 @@
+package de.ganskef.shortcircuit.proxy.examples;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+
+public class EvaluationServerPortUnificationHandlerTest {
+
+    private EventLoopGroup group;
+
+    private int originPort;
+
+    private int serverPort;
+
+    @Before
+    public void before() throws Exception {
+        group = new NioEventLoopGroup(1);
+        ServerBootstrap origin = new ServerBootstrap().group(group).channel(NioServerSocketChannel.class);
+        origin.childHandler(new ChannelInboundHandlerAdapter() {
+            @Override
+            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                ctx.writeAndFlush(msg);
+            }
+
+            @Override
+            public boolean isSharable() {
+                return true;
+            }
+        });
+        originPort = ((InetSocketAddress) origin.bind(0).sync().channel().localAddress()).getPort();
+        ServerBootstrap server = new ServerBootstrap().group(group).channel(NioServerSocketChannel.class);
+        server.childHandler(new EvaluationServerInitializer(null));
+        serverPort = ((InetSocketAddress) server.bind(0).sync().channel().localAddress()).getPort();
+    }
+
+    @After
+    public void after() {
+        group.shutdownGracefully();
+    }
+
+    private static byte[] read(Socket socket, int length) throws Exception {
+        byte[] result = new byte[length];
+        new DataInputStream(socket.getInputStream()).readFully(result);
+        return result;
+    }
+
+    private void assertEchoed(Socket socket) throws Exception {
+        socket.getOutputStream().write("hello".getBytes("US-ASCII"));
+        assertEquals("hello", new String(read(socket, 5), "US-ASCII"));
+    }
+
+    @Test
+    public void testSocks5Tunnel() throws Exception {
+        Socket socket = new Socket("localhost", serverPort);
+        try {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            out.write(new byte[] { 5, 1, 0 });
+            assertArrayEquals(new byte[] { 5, 0 }, read(socket, 2));
+            out.write(new byte[] { 5, 1, 0, 1, 127, 0, 0, 1, (byte) (originPort >> 8), (byte) originPort });
+            byte[] response = read(socket, 10);
+            assertEquals(5, response[0]);
+            assertEquals(0, response[1]);
+            assertEchoed(socket);
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testSocks4Tunnel() throws Exception {
+        Socket socket = new Socket("localhost", serverPort);
+        try {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream()
+                    .write(new byte[] { 4, 1, (byte) (originPort >> 8), (byte) originPort, 127, 0, 0, 1, 0 });
+            byte[] response = read(socket, 8);
+            assertEquals(0, response[0]);
+            assertEquals(0x5a, response[1]);
+            assertEchoed(socket);
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testHttpOnSamePort() throws Exception {
+        Socket socket = new Socket("localhost", serverPort);
+        try {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("US-ASCII"));
+            String head = new String(read(socket, 15), "US-ASCII");
+            assertTrue(head, head.startsWith("HTTP/1.1 200 OK"));
+        } finally {
+            socket.close();
+        }
+    }
+
+}
@@ -1,5 +1,16 @@
 package de.ganskef.shortcircuit.proxy.examples;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import de.ganskef.shortcircuit.proxy.AccessHistory;
+import de.ganskef.shortcircuit.proxy.CacheWarmer;
+import de.ganskef.shortcircuit.proxy.cache.CollapsedForwarding;
+import de.ganskef.shortcircuit.proxy.cache.ResponseCache;
+import de.ganskef.shortcircuit.proxy.cache.ResponseCompressor;
+import de.ganskef.shortcircuit.proxy.cache.TinyLfuPolicy;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelOption;
@@ -21,8 +32,22 @@ public class NettyProxy {
 
     private static final int WORKER_THREAD_COUNT = 10;
 
+    private static final File CACHE_DIR = new File(System.getProperty("java.io.tmpdir"), "shortcircuit-cache");
+
+    private static final File SPOOL_DIR = new File(CACHE_DIR, "spool");
+
+    private static final File HISTORY_FILE = new File(CACHE_DIR, "history.txt");
+
+    private static final long HISTORY_WRITE_MINUTES = 1;
+
     private EventLoopGroup bossGroup;
 
+    private AccessHistory history;
+
+    private CacheWarmer warmer;
+
+    private ResponseCompressor compressor;
+
     private EventLoopGroup workerGroup;
 
     public static void main(String[] args) throws Exception {
@@ -48,18 +73,36 @@ public class NettyProxy {
         b.group(bossGroup, workerGroup);
         b.channel(NioServerSocketChannel.class);
         b.handler(new LoggingHandler(NettyProxy.class));
-        b.childHandler(new NettyProxyFrontendInitializer());
+        if (!SPOOL_DIR.isDirectory() && !SPOOL_DIR.mkdirs()) {
+            throw new IllegalStateException("Not a directory " + SPOOL_DIR);
+        }
+        history = readHistory();
+        warmer = new CacheWarmer(history, null, new InetSocketAddress("localhost", LOCAL_PORT))
+                .scheduleWrites(HISTORY_FILE, HISTORY_WRITE_MINUTES, TimeUnit.MINUTES);
+        ResponseCache cache = new ResponseCache(CACHE_DIR, new TinyLfuPolicy(ResponseCache.DEFAULT_MAX_BYTES), history);
+        compressor = new ResponseCompressor();
+        b.childHandler(new NettyProxyFrontendInitializer(new CollapsedForwarding(cache), SPOOL_DIR, compressor));
         b.childOption(ChannelOption.AUTO_READ, false);
         startHook(b);
     }
 
+    private AccessHistory readHistory() {
+        try {
+            return new AccessHistory().read(HISTORY_FILE);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     /**
      * Bind the port and to override behavior. Default behavior is to run a
-     * proxy and wait until close.
+     * proxy, warm up the cache with the requests of the last run, and wait
+     * until close.
      */
     protected void startHook(ServerBootstrap b) {
         try {
             ChannelFuture f = b.bind(LOCAL_PORT).sync();
+            warmer.start();
             f.channel().closeFuture().sync();
         } catch (InterruptedException e) {
             throw new IllegalStateException(e);
@@ -72,6 +115,22 @@ public class NettyProxy {
      * Shut down the workers gracefully and waits for quitting.
      */
     public void stop() {
+        if (warmer != null) {
+            warmer.stop();
+            warmer = null;
+        }
+        if (compressor != null) {
+            compressor.shutdown();
+            compressor = null;
+        }
+        if (history != null) {
+            try {
+                history.write(HISTORY_FILE);
+            } catch (IOException e) {
+                // ignored in shutdown
+            }
+            history = null;
+        }
         if (bossGroup != null) {
             try {
                 bossGroup.shutdownGracefully().sync();
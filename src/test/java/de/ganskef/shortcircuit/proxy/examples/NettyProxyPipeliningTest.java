@@ -0,0 +1,332 @@
+package de.ganskef.shortcircuit.proxy.examples;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.TestRule;
+import org.junit.rules.Timeout;
+
+import de.ganskef.shortcircuit.proxy.AccessLog;
+import de.ganskef.shortcircuit.proxy.TrafficJournal;
+import de.ganskef.shortcircuit.proxy.cache.CachedResponse;
+import de.ganskef.shortcircuit.proxy.cache.CollapsedForwarding;
+import de.ganskef.shortcircuit.proxy.cache.ResponseCache;
+import de.ganskef.test.Server;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.ssl.SslContext;
+import io.netty.util.CharsetUtil;
+
+public class NettyProxyPipeliningTest {
+
+    private static final int ORIGIN_PORT = 9098;
+
+    @Rule
+    public final TestRule timeout = new Timeout(30, TimeUnit.SECONDS);
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private EventLoopGroup group;
+
+    private Server origin;
+
+    /**
+     * Answers with the path as body, cacheable if it starts with /hit, and
+     * late if it contains slow.
+     */
+    private static class PathServer extends Server {
+
+        PathServer(int port) {
+            super(port);
+        }
+
+        @Override
+        protected ChannelHandler createInitializer(SslContext sslCtx) {
+            return new ChannelInitializer<SocketChannel>() {
+                @Override
+                protected void initChannel(SocketChannel ch) {
+                    ch.pipeline().addLast(new HttpServerCodec(), new HttpObjectAggregator(1024),
+                            new SimpleChannelInboundHandler<HttpRequest>() {
+                                @Override
+                                protected void channelRead0(final ChannelHandlerContext ctx, HttpRequest request) {
+                                    String path = request.uri();
+                                    final boolean keepAlive = HttpUtil.isKeepAlive(request);
+                                    final FullHttpResponse response = new DefaultFullHttpResponse(
+                                            HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                                            Unpooled.copiedBuffer(path, CharsetUtil.US_ASCII));
+                                    HttpUtil.setContentLength(response, path.length());
+                                    HttpUtil.setKeepAlive(response, keepAlive);
+                                    if (path.startsWith("/hit")) {
+                                        response.headers().set(HttpHeaderNames.CACHE_CONTROL, "max-age=60");
+                                    }
+                                    Runnable write = new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            if (keepAlive) {
+                                                ctx.writeAndFlush(response);
+                                            } else {
+                                                ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+                                            }
+                                        }
+                                    };
+                                    if (path.contains("slow")) {
+                                        ctx.executor().schedule(write, 300, TimeUnit.MILLISECONDS);
+                                    } else {
+                                        write.run();
+                                    }
+                                }
+                            });
+                }
+            };
+        }
+    }
+
+    @Before
+    public void before() throws Exception {
+        group = new NioEventLoopGroup(2);
+        origin = new PathServer(ORIGIN_PORT).start();
+    }
+
+    @After
+    public void after() {
+        origin.stop();
+        group.shutdownGracefully();
+    }
+
+    private int startProxy(CollapsedForwarding collapsedForwarding) throws InterruptedException {
+        return startProxy(collapsedForwarding, null);
+    }
+
+    private int startProxy(CollapsedForwarding collapsedForwarding, AccessLog accessLog)
+            throws InterruptedException {
+        return startProxy(collapsedForwarding, accessLog, null);
+    }
+
+    private int startProxy(CollapsedForwarding collapsedForwarding, AccessLog accessLog, TrafficJournal journal)
+            throws InterruptedException {
+        ServerBootstrap proxy = new ServerBootstrap().group(group).channel(NioServerSocketChannel.class);
+        proxy.childHandler(new NettyProxyFrontendInitializer(collapsedForwarding, null, null, null, null, accessLog,
+                journal));
+        proxy.childOption(ChannelOption.AUTO_READ, false);
+        return ((InetSocketAddress) proxy.bind(0).sync().channel().localAddress()).getPort();
+    }
+
+    private static String request(String path, boolean collapsible) {
+        // a cookie prevents collapsing, which answers one request per connection
+        return "GET " + origin(path) + " HTTP/1.1\r\nHost: 127.0.0.1:" + ORIGIN_PORT + "\r\n"
+                + (collapsible ? "" : "Cookie: c=1\r\n") + "\r\n";
+    }
+
+    private static String origin(String path) {
+        return "http://127.0.0.1:" + ORIGIN_PORT + path;
+    }
+
+    /**
+     * Returns the body of the next response, with a Content-Length expected.
+     */
+    private static String readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        while (!head.toString("ISO-8859-1").endsWith("\r\n\r\n")) {
+            int b = in.read();
+            if (b == -1) {
+                throw new IOException("Closed in head " + head);
+            }
+            head.write(b);
+        }
+        String headers = head.toString("ISO-8859-1");
+        assertTrue(headers, headers.startsWith("HTTP/1.1 200 "));
+        int length = Integer.parseInt(headers.replaceFirst("(?is).*content-length: *(\\d+).*", "$1"));
+        byte[] body = new byte[length];
+        for (int n = 0; n < length;) {
+            int read = in.read(body, n, length - n);
+            if (read == -1) {
+                throw new IOException("Closed in body " + headers);
+            }
+            n += read;
+        }
+        return new String(body, StandardCharsets.ISO_8859_1);
+    }
+
+    private static void pipeline(int proxyPort, String... paths) throws IOException {
+        pipeline(proxyPort, false, paths);
+    }
+
+    private static void pipeline(int proxyPort, boolean collapsible, String... paths) throws IOException {
+        Socket socket = new Socket("localhost", proxyPort);
+        try {
+            StringBuilder requests = new StringBuilder();
+            for (String each : paths) {
+                requests.append(request(each, collapsible));
+            }
+            socket.getOutputStream().write(requests.toString().getBytes(StandardCharsets.ISO_8859_1));
+            socket.getOutputStream().flush();
+            InputStream in = socket.getInputStream();
+            for (String each : paths) {
+                assertEquals(each, readBody(in));
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testPipelinedMissesInOrder() throws Exception {
+        pipeline(startProxy(null), "/slow-1", "/2", "/slow-3", "/4");
+    }
+
+    @Test
+    public void testClosedIfPipelinedTooDeep() throws Exception {
+        // the first reads take a few requests only, until the buffer grows
+        String[] paths = new String[8 * NettyProxyFrontendHandler.MAX_PENDING_REQUESTS];
+        paths[0] = "/slow-0";
+        for (int i = 1; i < paths.length; i++) {
+            paths[i] = "/" + i;
+        }
+        try {
+            pipeline(startProxy(null), paths);
+            fail("All pipelined requests answered");
+        } catch (IOException e) {
+            // closed before
+        }
+    }
+
+    @Test
+    public void testPipelinedHitsAndMissesInOrder() throws Exception {
+        ResponseCache cache = new ResponseCache(folder.newFolder(), 1024 * 1024);
+        int proxyPort = startProxy(new CollapsedForwarding(cache));
+        // recorded by the collapsed forwarding
+        pipeline(proxyPort, true, "/hit");
+        awaitCached(cache, new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, origin("/hit")));
+        pipeline(proxyPort, "/slow-miss-1", "/hit", "/miss-2", "/hit", "/slow-miss-3");
+    }
+
+    private static void awaitCached(ResponseCache cache, HttpRequest request) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            CachedResponse entry = cache.get(request);
+            if (entry != null && entry.isComplete()) {
+                return;
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    private static boolean awaitLogged(File file, String text, int times) throws Exception {
+        for (int i = 0; i < 100; i++) {
+            String log = new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII);
+            if (log.split(Pattern.quote(text), -1).length > times) {
+                return true;
+            }
+            Thread.sleep(20);
+        }
+        return false;
+    }
+
+    @Test
+    public void testCacheHitLoggedWhileKeptAlive() throws Exception {
+        ResponseCache cache = new ResponseCache(folder.newFolder(), 1024 * 1024);
+        File file = folder.newFile("access.log");
+        AccessLog log = new AccessLog(file);
+        try {
+            int proxyPort = startProxy(new CollapsedForwarding(cache), log);
+            String line = "\"GET " + origin("/hit") + " HTTP/1.1\" 200 ";
+            pipeline(proxyPort, true, "/hit");
+            assertTrue(awaitLogged(file, line, 1));
+            awaitCached(cache, new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, origin("/hit")));
+            Socket socket = new Socket("localhost", proxyPort);
+            try {
+                socket.getOutputStream().write(request("/hit", true).getBytes(StandardCharsets.ISO_8859_1));
+                socket.getOutputStream().flush();
+                assertEquals("/hit", readBody(socket.getInputStream()));
+                // the connection is still open, the next request not sent
+                assertTrue(awaitLogged(file, line, 2));
+            } finally {
+                socket.close();
+            }
+        } finally {
+            log.close();
+        }
+    }
+
+    private static int recorded(File file, String head) throws IOException {
+        int result = 0;
+        TrafficJournal.Reader reader = TrafficJournal.read(file);
+        try {
+            while (reader.next()) {
+                if (reader.head().startsWith(head)) {
+                    result++;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return result;
+    }
+
+    @Test
+    public void testCacheHitRecordedWhileKeptAlive() throws Exception {
+        ResponseCache cache = new ResponseCache(folder.newFolder(), 1024 * 1024);
+        File file = new File(folder.getRoot(), "traffic.journal");
+        TrafficJournal journal = new TrafficJournal(file);
+        try {
+            int proxyPort = startProxy(new CollapsedForwarding(cache), null, journal);
+            String head = "GET " + origin("/hit") + " HTTP/1.1\r\n";
+            pipeline(proxyPort, true, "/hit");
+            awaitCached(cache, new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, origin("/hit")));
+            Socket socket = new Socket("localhost", proxyPort);
+            try {
+                socket.getOutputStream().write(request("/hit", true).getBytes(StandardCharsets.ISO_8859_1));
+                socket.getOutputStream().flush();
+                assertEquals("/hit", readBody(socket.getInputStream()));
+                // the connection is still open, the next request not sent
+                for (int i = 0; i < 100 && recorded(file, head) < 2; i++) {
+                    Thread.sleep(20);
+                }
+                assertEquals(2, recorded(file, head));
+            } finally {
+                socket.close();
+            }
+        } finally {
+            journal.close();
+        }
+    }
+
+}
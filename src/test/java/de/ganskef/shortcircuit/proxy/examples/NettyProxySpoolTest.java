@@ -0,0 +1,165 @@
+package de.ganskef.shortcircuit.proxy.examples;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.TestRule;
+import org.junit.rules.Timeout;
+
+import de.ganskef.test.Server;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.ssl.SslContext;
+
+public class NettyProxySpoolTest {
+
+    private static final int ORIGIN_PORT = 9099;
+
+    private static final byte[] MEGABYTE = new byte[1024 * 1024];
+
+    /** More than the socket buffers of the way hold. */
+    private static final int MEGABYTES = 32;
+
+    @Rule
+    public final TestRule timeout = new Timeout(60, TimeUnit.SECONDS);
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final CountDownLatch upstreamClosed = new CountDownLatch(1);
+
+    private EventLoopGroup group;
+
+    private Server origin;
+
+    /**
+     * Answers with a large body at once, and counts down if the proxy closes
+     * the connection.
+     */
+    private class LargeServer extends Server {
+
+        LargeServer(int port) {
+            super(port);
+        }
+
+        @Override
+        protected ChannelHandler createInitializer(SslContext sslCtx) {
+            return new ChannelInitializer<SocketChannel>() {
+                @Override
+                protected void initChannel(SocketChannel ch) {
+                    ch.pipeline().addLast(new HttpServerCodec(), new SimpleChannelInboundHandler<HttpRequest>() {
+                        @Override
+                        protected void channelRead0(ChannelHandlerContext ctx, HttpRequest request) {
+                            HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1,
+                                    HttpResponseStatus.OK);
+                            HttpUtil.setContentLength(response, (long) MEGABYTES * MEGABYTE.length);
+                            ctx.write(response);
+                            for (int i = 0; i < MEGABYTES; i++) {
+                                ctx.write(new DefaultHttpContent(Unpooled.wrappedBuffer(MEGABYTE)));
+                            }
+                            ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT)
+                                    .addListener(ChannelFutureListener.CLOSE);
+                        }
+
+                        @Override
+                        public void channelInactive(ChannelHandlerContext ctx) {
+                            upstreamClosed.countDown();
+                        }
+                    });
+                }
+            };
+        }
+    }
+
+    @Before
+    public void before() throws Exception {
+        group = new NioEventLoopGroup(2);
+        origin = new LargeServer(ORIGIN_PORT).start();
+    }
+
+    @After
+    public void after() {
+        origin.stop();
+        group.shutdownGracefully();
+    }
+
+    private int startProxy(File spoolDirectory) throws InterruptedException {
+        ServerBootstrap proxy = new ServerBootstrap().group(group).channel(NioServerSocketChannel.class);
+        proxy.childHandler(new NettyProxyFrontendInitializer(null, spoolDirectory));
+        proxy.childOption(ChannelOption.AUTO_READ, false);
+        return ((InetSocketAddress) proxy.bind(0).sync().channel().localAddress()).getPort();
+    }
+
+    @Test
+    public void testUpstreamReleasedBeforeSlowClientRead() throws Exception {
+        File spoolDirectory = folder.newFolder();
+        Socket socket = new Socket();
+        socket.setReceiveBufferSize(16 * 1024);
+        socket.connect(new InetSocketAddress("localhost", startProxy(spoolDirectory)));
+        try {
+            String request = "GET http://127.0.0.1:" + ORIGIN_PORT + "/large HTTP/1.1\r\nHost: 127.0.0.1:"
+                    + ORIGIN_PORT + "\r\n\r\n";
+            socket.getOutputStream().write(request.getBytes(StandardCharsets.ISO_8859_1));
+            socket.getOutputStream().flush();
+            // the client hasn't read a byte yet
+            assertTrue(upstreamClosed.await(20, TimeUnit.SECONDS));
+
+            InputStream in = socket.getInputStream();
+            StringBuilder head = new StringBuilder();
+            while (head.indexOf("\r\n\r\n") == -1) {
+                int b = in.read();
+                if (b == -1) {
+                    throw new IOException("Closed in head " + head);
+                }
+                head.append((char) b);
+            }
+            assertTrue(head.toString(), head.toString().startsWith("HTTP/1.1 200 "));
+            byte[] buf = new byte[64 * 1024];
+            long body = 0;
+            for (int n; body < (long) MEGABYTES * MEGABYTE.length && (n = in.read(buf)) != -1;) {
+                body += n;
+            }
+            assertEquals((long) MEGABYTES * MEGABYTE.length, body);
+        } finally {
+            socket.close();
+        }
+        for (int i = 0; i < 100 && spoolDirectory.list().length > 0; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, spoolDirectory.list().length);
+    }
+
+}
@@ -0,0 +1,156 @@
+package de.ganskef.shortcircuit.proxy.examples;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.junit.rules.Timeout;
+
+import de.ganskef.test.Server;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
+import io.netty.handler.ssl.SslContext;
+
+public class NettyProxyWebSocketTest {
+
+    private static final int ORIGIN_PORT = 9100;
+
+    @Rule
+    public final TestRule timeout = new Timeout(30, TimeUnit.SECONDS);
+
+    private EventLoopGroup group;
+
+    private Server origin;
+
+    /**
+     * Echoes the text frames of a WebSocket in upper case.
+     */
+    private static class EchoServer extends Server {
+
+        EchoServer(int port) {
+            super(port);
+        }
+
+        @Override
+        protected ChannelHandler createInitializer(SslContext sslCtx) {
+            return new ChannelInitializer<SocketChannel>() {
+                @Override
+                protected void initChannel(SocketChannel ch) {
+                    ch.pipeline().addLast(new HttpServerCodec(), new HttpObjectAggregator(1024),
+                            new WebSocketServerProtocolHandler("/ws"),
+                            new SimpleChannelInboundHandler<TextWebSocketFrame>() {
+                                @Override
+                                protected void channelRead0(ChannelHandlerContext ctx, TextWebSocketFrame frame) {
+                                    ctx.writeAndFlush(new TextWebSocketFrame(frame.text().toUpperCase()));
+                                }
+                            });
+                }
+            };
+        }
+    }
+
+    @Before
+    public void before() throws Exception {
+        group = new NioEventLoopGroup(2);
+        origin = new EchoServer(ORIGIN_PORT).start();
+    }
+
+    @After
+    public void after() {
+        origin.stop();
+        group.shutdownGracefully();
+    }
+
+    private int startProxy() throws InterruptedException {
+        ServerBootstrap proxy = new ServerBootstrap().group(group).channel(NioServerSocketChannel.class);
+        proxy.childHandler(new NettyProxyFrontendInitializer());
+        proxy.childOption(ChannelOption.AUTO_READ, false);
+        return ((InetSocketAddress) proxy.bind(0).sync().channel().localAddress()).getPort();
+    }
+
+    private static void writeText(OutputStream out, String text) throws IOException {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        byte[] mask = { 1, 2, 3, 4 };
+        out.write(0x81);
+        out.write(0x80 | payload.length);
+        out.write(mask);
+        for (int i = 0; i < payload.length; i++) {
+            out.write(payload[i] ^ mask[i % 4]);
+        }
+        out.flush();
+    }
+
+    private static String readText(InputStream in) throws IOException {
+        assertEquals(0x81, in.read());
+        byte[] payload = new byte[in.read()];
+        for (int n = 0; n < payload.length;) {
+            int read = in.read(payload, n, payload.length - n);
+            if (read == -1) {
+                throw new IOException("Closed in frame");
+            }
+            n += read;
+        }
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testSwitchedAndRelayed() throws Exception {
+        Socket socket = new Socket("localhost", startProxy());
+        try {
+            String request = "GET http://127.0.0.1:" + ORIGIN_PORT + "/ws HTTP/1.1\r\n" //
+                    + "Host: 127.0.0.1:" + ORIGIN_PORT + "\r\n" //
+                    + "Upgrade: websocket\r\n" //
+                    + "Connection: Upgrade\r\n" //
+                    + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n" //
+                    + "Sec-WebSocket-Version: 13\r\n\r\n";
+            OutputStream out = socket.getOutputStream();
+            out.write(request.getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            InputStream in = socket.getInputStream();
+            StringBuilder head = new StringBuilder();
+            while (head.indexOf("\r\n\r\n") == -1) {
+                int b = in.read();
+                if (b == -1) {
+                    throw new IOException("Closed in head " + head);
+                }
+                head.append((char) b);
+            }
+            String headers = head.toString();
+            assertTrue(headers, headers.startsWith("HTTP/1.1 101 Switching Protocols\r\n"));
+            assertTrue(headers, headers.toLowerCase().contains("upgrade: websocket\r\n"));
+            assertTrue(headers, headers.contains("s3pPLMBiTxaQ9kYGzzhZRbK+xOo="));
+
+            writeText(out, "hello");
+            assertEquals("HELLO", readText(in));
+            writeText(out, "again");
+            assertEquals("AGAIN", readText(in));
+        } finally {
+            socket.close();
+        }
+    }
+
+}
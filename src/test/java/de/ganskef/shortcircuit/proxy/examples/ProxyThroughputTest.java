@@ -0,0 +1,112 @@
+package de.ganskef.shortcircuit.proxy.examples;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.junit.rules.Timeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.ganskef.test.IProxy;
+import de.ganskef.test.LoadGenerator;
+import de.ganskef.test.OriginProfile;
+import de.ganskef.test.OriginProfile.Distribution;
+import de.ganskef.test.OriginSimulator;
+import de.ganskef.test.Server;
+
+/**
+ * End to end throughput over loopback with a modest rate, short enough for
+ * the build. Raise the rate and the duration to find the capacity.
+ */
+public class ProxyThroughputTest {
+
+    private static final Logger log = LoggerFactory.getLogger(ProxyThroughputTest.class);
+
+    private static final int RATE = 200;
+
+    private static final int SECONDS = 2;
+
+    @Rule
+    public final TestRule timeout = new Timeout(60, TimeUnit.SECONDS);
+
+    private static LoadGenerator load(String url) {
+        return new LoadGenerator(url).rate(RATE).connections(8).warmup(500, TimeUnit.MILLISECONDS)
+                .duration(SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static void assertAllCompleted(LoadGenerator.Report report) {
+        log.info("{}", report);
+        assertEquals(report.toString(), 0, report.errors());
+        assertEquals(report.toString(), 0, report.incomplete());
+        assertEquals(report.toString(), 0, report.failedStatus());
+        assertEquals(report.toString(), report.scheduled(), report.completed());
+    }
+
+    @Test
+    public void testEvaluationServerKeepAlive() throws Exception {
+        EvaluationServer server = new EvaluationServer(9093);
+        server.start();
+        try {
+            assertAllCompleted(load("http://localhost:9093/").run());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testEvaluationServerConnectionPerRequest() throws Exception {
+        EvaluationServer server = new EvaluationServer(9093);
+        server.start();
+        try {
+            assertAllCompleted(load("http://localhost:9093/").keepAlive(false).run());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testEvaluationServerConnectTls() throws Exception {
+        EvaluationServer server = new EvaluationServer(9093);
+        server.start();
+        try {
+            assertAllCompleted(load("https://localhost:9093/").proxy("localhost", 9093).run());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testNettyProxyWithLocalOrigin() throws Exception {
+        Server origin = new Server(9091).start();
+        IProxy proxy = NettyProxyOkHttpTest.createNettyProxy(9094).start();
+        try {
+            assertAllCompleted(load("http://localhost:9091/LICENSE.txt").proxy("localhost", 9094).run());
+        } finally {
+            proxy.stop();
+            origin.stop();
+        }
+    }
+
+    @Test
+    public void testNettyProxyWithSimulatedOrigin() throws Exception {
+        OriginProfile mix = new OriginProfile() //
+                .size(Distribution.choice(new long[] { 512, 16384, 262144 }, new double[] { 60, 30, 10 })) //
+                .think(Distribution.exponential(2)) //
+                .chunked(0.3) //
+                .maxRequestsPerConnection(50);
+        OriginSimulator origin = new OriginSimulator(9091, mix);
+        origin.start();
+        IProxy proxy = NettyProxyOkHttpTest.createNettyProxy(9094).start();
+        try {
+            assertAllCompleted(load("http://localhost:9091/mix").proxy("localhost", 9094).run());
+        } finally {
+            proxy.stop();
+            origin.stop();
+        }
+    }
+
+}
@@ -0,0 +1,106 @@
+package de.ganskef.shortcircuit.proxy.examples;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.TestRule;
+import org.junit.rules.Timeout;
+
+import de.ganskef.shortcircuit.proxy.TrafficJournal;
+import de.ganskef.test.LoadGenerator;
+import de.ganskef.test.OriginProfile;
+import de.ganskef.test.OriginProfile.Distribution;
+import de.ganskef.test.OriginSimulator;
+import de.ganskef.test.TrafficReplayer;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+
+public class TrafficReplayTest {
+
+    @Rule
+    public final TestRule timeout = new Timeout(60, TimeUnit.SECONDS);
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private EventLoopGroup group;
+
+    @Before
+    public void before() {
+        group = new NioEventLoopGroup(2);
+    }
+
+    @After
+    public void after() {
+        group.shutdownGracefully();
+    }
+
+    private int startProxy(TrafficJournal journal) throws InterruptedException {
+        ServerBootstrap proxy = new ServerBootstrap().group(group).channel(NioServerSocketChannel.class);
+        proxy.childHandler(new NettyProxyFrontendInitializer(null, null, null, null, null, null, journal));
+        proxy.childOption(ChannelOption.AUTO_READ, false);
+        return ((InetSocketAddress) proxy.bind(0).sync().channel().localAddress()).getPort();
+    }
+
+    @Test
+    public void testRecordedAndReplayed() throws Exception {
+        File file = folder.newFile("traffic.journal");
+        file.delete();
+        TrafficJournal journal = new TrafficJournal(file);
+        OriginSimulator recordedOrigin = new OriginSimulator(9091, new OriginProfile()
+                .size(Distribution.choice(new long[] { 100, 5000, 70000 }, new double[] { 1, 1, 1 })).chunked(0.5));
+        recordedOrigin.start();
+        LoadGenerator.Report recorded;
+        try {
+            recorded = new LoadGenerator("http://localhost:9091/production").proxy("localhost", startProxy(journal))
+                    .rate(100).connections(4).warmup(0, TimeUnit.SECONDS).duration(1, TimeUnit.SECONDS).run();
+        } finally {
+            recordedOrigin.stop();
+        }
+        journal.close();
+        assertEquals(recorded.toString(), recorded.scheduled(), recorded.completed());
+
+        long records = 0;
+        TrafficJournal.Reader reader = TrafficJournal.read(file);
+        while (reader.next()) {
+            records++;
+            assertEquals("localhost:9091", reader.host());
+            assertTrue(reader.head(), reader.head().startsWith("GET http://localhost:9091/production HTTP/1.1\r\n"));
+            assertEquals(200, reader.status());
+            assertTrue(String.valueOf(reader.responseBytes()), reader.responseBytes() == 100
+                    || reader.responseBytes() == 5000 || reader.responseBytes() == 70000);
+        }
+        reader.close();
+        assertEquals(recorded.completed(), records);
+
+        OriginSimulator simulated = new OriginSimulator(9096, new OriginProfile());
+        simulated.start();
+        try {
+            long start = System.nanoTime();
+            LoadGenerator.Report replayed = new LoadGenerator(simulated.getBaseUrl())
+                    .proxy("localhost", startProxy(null)).connections(4).warmup(0, TimeUnit.SECONDS)
+                    .workload(new TrafficReplayer(file, simulated.getBaseUrl()).speed(2)).run();
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertEquals(replayed.toString() + " scheduled " + replayed.scheduled(), records, replayed.completed());
+            assertEquals(replayed.toString(), 0, replayed.failedStatus());
+            assertEquals(records, simulated.getRequests());
+            // a second recorded is replayed in about half of it
+            assertTrue(millis + " ms", millis < 1000);
+        } finally {
+            simulated.stop();
+        }
+    }
+
+}
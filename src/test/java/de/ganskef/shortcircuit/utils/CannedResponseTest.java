@@ -0,0 +1,87 @@
+package de.ganskef.shortcircuit.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.CharsetUtil;
+
+public class CannedResponseTest {
+
+    private static final String EXPECTED = "HTTP/1.1 404 Not Found\r\ncontent-length: 4\r\n\r\ngone";
+
+    private int written;
+
+    private FullHttpResponse createResponse() {
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_FOUND,
+                Unpooled.copiedBuffer("gone", CharsetUtil.US_ASCII));
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, 4);
+        return response;
+    }
+
+    @Test
+    public void testSerializedOnce() {
+        CannedResponse canned = CannedResponse.register("test.gone", createResponse());
+        assertSame(canned, CannedResponse.get("test.gone"));
+        for (int i = 0; i < 2; i++) {
+            ByteBuf buf = canned.retainedDuplicate();
+            assertEquals(EXPECTED, buf.toString(CharsetUtil.US_ASCII));
+            buf.release();
+        }
+    }
+
+    @Test
+    public void testPassingEncoder() {
+        final CannedResponse canned = CannedResponse.of(createResponse());
+        EmbeddedChannel channel = new EmbeddedChannel(new CannedResponseEncoder(), new ChannelOutboundHandlerAdapter() {
+            @Override
+            public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+                // an outbound handler behind the encoder sees the response
+                ctx.write(msg, promise);
+                written++;
+            }
+        }, new ChannelInboundHandlerAdapter() {
+            @Override
+            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                canned.writeAndFlush(ctx);
+            }
+        });
+        channel.writeInbound("request");
+        ByteBuf buf = channel.readOutbound();
+        assertEquals(EXPECTED, buf.toString(CharsetUtil.US_ASCII));
+        assertEquals(1, written);
+        buf.release();
+        channel.finish();
+    }
+
+    @Test
+    public void testPassingEncoderBetweenResponses() {
+        CannedResponse canned = CannedResponse.of(createResponse());
+        EmbeddedChannel channel = new EmbeddedChannel(new CannedResponseEncoder());
+        channel.writeOutbound(createResponse(), canned.retainedDuplicate(), createResponse());
+        for (int i = 0; i < 3; i++) {
+            ByteBuf buf = Unpooled.buffer();
+            // the encoder writes head and body separately
+            for (ByteBuf part; buf.readableBytes() < EXPECTED.length() && (part = channel.readOutbound()) != null;) {
+                buf.writeBytes(part);
+                part.release();
+            }
+            assertEquals(EXPECTED, buf.toString(CharsetUtil.US_ASCII));
+        }
+        channel.finish();
+    }
+
+}
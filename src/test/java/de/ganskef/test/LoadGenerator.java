@@ -0,0 +1,685 @@
+package de.ganskef.test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import de.ganskef.shortcircuit.metrics.LatencyHistogram;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoop;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/**
+ * A non-blocking HTTP load generator built on Netty, to measure the capacity
+ * of the proxy over loopback instead of a single {@link Client} request.
+ *
+ * The requests are scheduled open loop with a fixed rate, independent of the
+ * responses. The latency is measured from the time a request should have
+ * been sent, so a stalled server delays the waiting requests and their
+ * latencies show it, instead of throttling the load (coordinated omission).
+ * A request waits for an idle connection of at most the given number of
+ * connections, kept alive or opened per request.
+ *
+ * With a proxy a https URL is requested with CONNECT and TLS in the tunnel,
+ * a http URL in absolute form. The certificates aren't verified.
+ *
+ * Instead of the URL at a fixed rate, a {@link Workload} may give the
+ * requests and their times, to replay recorded traffic for example. The URL
+ * gives the target of the connections then.
+ *
+ * <pre>
+ * LoadGenerator.Report report = new LoadGenerator("http://localhost:9091/LICENSE.txt")
+ *         .proxy("localhost", 9092).rate(2000).connections(32).run();
+ * </pre>
+ */
+public class LoadGenerator {
+
+    private static final long GRACE_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private static final long DEFAULT_DURATION_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private static final long TICK_MICROS = 500;
+
+    private final URI uri;
+
+    private final String host;
+
+    private final int port;
+
+    private final boolean tls;
+
+    private InetSocketAddress proxy;
+
+    private boolean keepAlive = true;
+
+    private int connections = 16;
+
+    private int rate = 1000;
+
+    private int threads = 1;
+
+    private long warmupNanos = TimeUnit.SECONDS.toNanos(1);
+
+    private long durationNanos = -1;
+
+    private WorkloadSource workloadSource;
+
+    /**
+     * A request and the time to send it in nanoseconds after the start.
+     */
+    public static final class Scheduled {
+
+        private final long offsetNanos;
+
+        private final FullHttpRequest request;
+
+        public Scheduled(long offsetNanos, FullHttpRequest request) {
+            this.offsetNanos = offsetNanos;
+            this.request = request;
+        }
+    }
+
+    /**
+     * The requests of a worker in the order of their times.
+     */
+    public interface Workload {
+
+        /** Returns the next request, null at the end. */
+        Scheduled next();
+    }
+
+    /**
+     * Opens the share of the requests of each worker.
+     */
+    public interface WorkloadSource {
+
+        Workload open(int share, int shares) throws IOException;
+    }
+
+    /**
+     * The result of a run, the counts and latencies after the warm up.
+     */
+    public static final class Report {
+
+        private final LatencyHistogram latencies = new LatencyHistogram();
+
+        private long scheduled;
+
+        private long completed;
+
+        private long failedStatus;
+
+        private long errors;
+
+        private long incomplete;
+
+        private long maxNanos;
+
+        private double measuredSeconds;
+
+        public long scheduled() {
+            return scheduled;
+        }
+
+        public long completed() {
+            return completed;
+        }
+
+        /** Returns the responses with a status other than 2xx. */
+        public long failedStatus() {
+            return failedStatus;
+        }
+
+        /** Returns the requests failed by a connection error. */
+        public long errors() {
+            return errors;
+        }
+
+        /** Returns the requests still waiting after the grace time. */
+        public long incomplete() {
+            return incomplete;
+        }
+
+        public double throughput() {
+            return completed / measuredSeconds;
+        }
+
+        /**
+         * Returns the latency of the quantile in milliseconds, the upper bound
+         * of its bucket but not above the maximum.
+         */
+        public double latencyMillis(double quantile) {
+            return Math.min(latencies.quantiles(quantile)[0], maxNanos) / 1e6;
+        }
+
+        public double maxMillis() {
+            return maxNanos / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH,
+                    "%d requests in %.1f s, %.1f req/s, %d non 2xx, %d errors, %d incomplete, "
+                            + "latency ms p50 %.2f p90 %.2f p99 %.2f p99.9 %.2f max %.2f",
+                    completed, measuredSeconds, throughput(), failedStatus, errors, incomplete,
+                    latencyMillis(0.5), latencyMillis(0.9), latencyMillis(0.99), latencyMillis(0.999),
+                    maxMillis());
+        }
+    }
+
+    public LoadGenerator(String url) {
+        this.uri = URI.create(url);
+        this.host = uri.getHost();
+        this.tls = "https".equalsIgnoreCase(uri.getScheme());
+        this.port = uri.getPort() != -1 ? uri.getPort() : tls ? 443 : 80;
+    }
+
+    /**
+     * Sends the requests through the proxy, with CONNECT for a https URL.
+     */
+    public LoadGenerator proxy(String proxyHost, int proxyPort) {
+        this.proxy = new InetSocketAddress(proxyHost, proxyPort);
+        return this;
+    }
+
+    /**
+     * Keeps the connections alive for the next requests, true by default.
+     */
+    public LoadGenerator keepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+        return this;
+    }
+
+    /** Limits the connections open at the same time. */
+    public LoadGenerator connections(int connections) {
+        this.connections = connections;
+        return this;
+    }
+
+    /** Sets the requests per second. */
+    public LoadGenerator rate(int rate) {
+        this.rate = rate;
+        return this;
+    }
+
+    /**
+     * Sets the event loops generating the load, each with its share of the
+     * rate and the connections.
+     */
+    public LoadGenerator threads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    /** Sets the time before measuring, to warm up the JIT and the pools. */
+    public LoadGenerator warmup(long time, TimeUnit unit) {
+        this.warmupNanos = unit.toNanos(time);
+        return this;
+    }
+
+    /**
+     * Sets the time measured after the warm up, 10 seconds by default, until
+     * the end of the workload if one is given.
+     */
+    public LoadGenerator duration(long time, TimeUnit unit) {
+        this.durationNanos = unit.toNanos(time);
+        return this;
+    }
+
+    /**
+     * Sends the requests of the workloads instead of the URL at the rate.
+     */
+    public LoadGenerator workload(WorkloadSource source) {
+        this.workloadSource = source;
+        return this;
+    }
+
+    /**
+     * Generates the load and waits for the responses, at most a grace time of
+     * some seconds after the last request is scheduled.
+     */
+    public Report run() throws InterruptedException, IOException {
+        SslContext sslCtx = tls ? SslContextBuilder.forClient().trustManager(InsecureTrustManagerFactory.INSTANCE)
+                .build() : null;
+        NioEventLoopGroup group = new NioEventLoopGroup(threads, new DefaultThreadFactory("load"));
+        Report result = new Report();
+        try {
+            long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+            long duration = durationNanos >= 0 ? durationNanos
+                    : workloadSource == null ? DEFAULT_DURATION_NANOS : Long.MAX_VALUE / 4;
+            CountDownLatch done = new CountDownLatch(threads);
+            List<Worker> workers = new ArrayList<Worker>();
+            for (int i = 0; i < threads; i++) {
+                int share = connections / threads + (i < connections % threads ? 1 : 0);
+                Workload workload = workloadSource == null ? fixedRate(i, threads) : workloadSource.open(i, threads);
+                Worker worker = new Worker(group.next(), sslCtx, result.latencies, Math.max(1, share), workload,
+                        start, start + warmupNanos, done);
+                workers.add(worker);
+                worker.start(start + warmupNanos + duration);
+            }
+            done.await();
+            for (Worker each : workers) {
+                if (each.failure != null) {
+                    throw each.failure;
+                }
+            }
+            long last = start + warmupNanos;
+            for (Worker each : workers) {
+                last = Math.max(last, each.lastIntended);
+                result.scheduled += each.scheduled;
+                result.completed += each.completed;
+                result.failedStatus += each.failedStatus;
+                result.errors += each.errors;
+                result.incomplete += each.incomplete;
+                result.maxNanos = Math.max(result.maxNanos, each.maxNanos);
+            }
+            if (durationNanos >= 0 || workloadSource == null) {
+                result.measuredSeconds = duration / 1e9;
+            } else {
+                // until the last request of the workload
+                result.measuredSeconds = Math.max(1, last - start - warmupNanos) / 1e9;
+            }
+            return result;
+        } finally {
+            group.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+        }
+    }
+
+    private Workload fixedRate(final int share, final int shares) {
+        final long period = TimeUnit.SECONDS.toNanos(1) * shares / rate;
+        return new Workload() {
+
+            private long offset = share * period / shares;
+
+            @Override
+            public Scheduled next() {
+                Scheduled result = new Scheduled(offset, newRequest());
+                offset += period;
+                return result;
+            }
+        };
+    }
+
+    private FullHttpRequest newRequest() {
+        String requestUri = proxy != null && !tls ? uri.toString() : uri.getRawPath()
+                + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery());
+        if (requestUri.isEmpty()) {
+            requestUri = "/";
+        }
+        FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, requestUri);
+        request.headers().set(HttpHeaderNames.HOST, host + ":" + port);
+        return request;
+    }
+
+    /**
+     * The share of the load generated by an event loop, confined to it.
+     */
+    private final class Worker implements Runnable {
+
+        private final EventLoop loop;
+
+        private final SslContext sslCtx;
+
+        private final LatencyHistogram latencies;
+
+        private final int maxConnections;
+
+        private final Workload workload;
+
+        private final long start;
+
+        private final long recordFrom;
+
+        private final CountDownLatch done;
+
+        /** The requests waiting to be sent. */
+        private final ArrayDeque<Scheduled> backlog = new ArrayDeque<Scheduled>();
+
+        private final ArrayDeque<Connection> idle = new ArrayDeque<Connection>();
+
+        private final List<Connection> open = new ArrayList<Connection>();
+
+        private ScheduledFuture<?> ticks;
+
+        private Scheduled next;
+
+        private long end;
+
+        private long lastIntended;
+
+        private RuntimeException failure;
+
+        private boolean finished;
+
+        private long scheduled;
+
+        private long completed;
+
+        private long failedStatus;
+
+        private long errors;
+
+        private long incomplete;
+
+        private long maxNanos;
+
+        Worker(EventLoop loop, SslContext sslCtx, LatencyHistogram latencies, int maxConnections,
+                Workload workload, long start, long recordFrom, CountDownLatch done) {
+            this.loop = loop;
+            this.sslCtx = sslCtx;
+            this.latencies = latencies;
+            this.maxConnections = maxConnections;
+            this.workload = workload;
+            this.start = start;
+            this.recordFrom = recordFrom;
+            this.done = done;
+        }
+
+        void start(long endTime) {
+            this.end = endTime;
+            this.lastIntended = start;
+            this.next = workload.next();
+            ticks = loop.scheduleAtFixedRate(this, 0, TICK_MICROS, TimeUnit.MICROSECONDS);
+        }
+
+        @Override
+        public void run() {
+            long now = System.nanoTime();
+            try {
+                while (next != null) {
+                    long intended = start + next.offsetNanos;
+                    if (intended >= end) {
+                        ReferenceCountUtil.release(next.request);
+                        next = null;
+                    } else if (intended <= now) {
+                        backlog.add(next);
+                        if (intended >= recordFrom) {
+                            scheduled++;
+                        }
+                        lastIntended = intended;
+                        next = workload.next();
+                    } else {
+                        break;
+                    }
+                }
+            } catch (RuntimeException e) {
+                failure = e;
+                next = null;
+                finish();
+                return;
+            }
+            dispatch();
+            if (next == null && (backlog.isEmpty() && !isBusy() || now > lastIntended + GRACE_NANOS)) {
+                finish();
+            }
+        }
+
+        private boolean isBusy() {
+            for (Connection each : open) {
+                if (each.intended != 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void finish() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            ticks.cancel(false);
+            for (Scheduled each : backlog) {
+                if (start + each.offsetNanos >= recordFrom) {
+                    incomplete++;
+                }
+                ReferenceCountUtil.release(each.request);
+            }
+            backlog.clear();
+            for (Connection each : new ArrayList<Connection>(open)) {
+                if (each.intended >= recordFrom) {
+                    incomplete++;
+                }
+                each.intended = 0;
+                each.channel.close();
+            }
+            done.countDown();
+        }
+
+        void dispatch() {
+            while (!finished && !backlog.isEmpty()) {
+                Connection connection = idle.poll();
+                if (connection != null) {
+                    connection.send(backlog.poll());
+                } else if (open.size() < maxConnections) {
+                    connect();
+                    return;
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private void connect() {
+            final Connection connection = new Connection(this);
+            open.add(connection);
+            Bootstrap b = new Bootstrap();
+            b.group(loop);
+            b.channel(NioSocketChannel.class);
+            b.option(ChannelOption.TCP_NODELAY, true);
+            b.handler(new ChannelInitializer<SocketChannel>() {
+                @Override
+                protected void initChannel(SocketChannel ch) {
+                    ChannelPipeline p = ch.pipeline();
+                    if (sslCtx != null && proxy == null) {
+                        p.addLast(sslCtx.newHandler(ch.alloc(), host, port));
+                    }
+                    p.addLast(new HttpClientCodec(), connection);
+                }
+            });
+            ChannelFuture f = proxy != null ? b.connect(proxy) : b.connect(host, port);
+            connection.channel = f.channel();
+            f.addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) {
+                    if (!future.isSuccess()) {
+                        // fails the request waiting longest, not retried
+                        open.remove(connection);
+                        Scheduled failed = backlog.poll();
+                        if (failed != null) {
+                            ReferenceCountUtil.release(failed.request);
+                        }
+                        closed(connection, failed == null ? 0 : start + failed.offsetNanos);
+                        return;
+                    }
+                    if (sslCtx != null && proxy != null) {
+                        connection.tunnel();
+                    } else {
+                        ready(connection);
+                    }
+                }
+            });
+        }
+
+        void ready(Connection connection) {
+            if (finished) {
+                connection.channel.close();
+                return;
+            }
+            Scheduled waiting = backlog.poll();
+            if (waiting != null) {
+                connection.send(waiting);
+            } else {
+                idle.add(connection);
+            }
+        }
+
+        void completed(Connection connection, long intended, boolean success, boolean reusable) {
+            if (intended >= recordFrom) {
+                long latency = System.nanoTime() - intended;
+                latencies.record(latency);
+                maxNanos = Math.max(maxNanos, latency);
+                completed++;
+                if (!success) {
+                    failedStatus++;
+                }
+            }
+            if (reusable) {
+                ready(connection);
+            } else {
+                connection.channel.close();
+            }
+        }
+
+        void closed(Connection connection, long intended) {
+            open.remove(connection);
+            idle.remove(connection);
+            if (intended != 0 && intended >= recordFrom) {
+                errors++;
+            }
+            dispatch();
+        }
+    }
+
+    /**
+     * A connection of a worker with one request at a time.
+     */
+    private final class Connection extends SimpleChannelInboundHandler<HttpObject> {
+
+        private final Worker worker;
+
+        private Channel channel;
+
+        /** Time the current request should have been sent, zero if none. */
+        private long intended;
+
+        private boolean tunneling;
+
+        private boolean success;
+
+        private boolean reusable;
+
+        Connection(Worker worker) {
+            this.worker = worker;
+        }
+
+        void tunnel() {
+            tunneling = true;
+            String authority = host + ":" + port;
+            FullHttpRequest connect = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.CONNECT, authority);
+            connect.headers().set(HttpHeaderNames.HOST, authority);
+            channel.writeAndFlush(connect);
+        }
+
+        void send(Scheduled scheduled) {
+            intended = worker.start + scheduled.offsetNanos;
+            if (!keepAlive) {
+                scheduled.request.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+            }
+            channel.writeAndFlush(scheduled.request);
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) {
+            if (msg instanceof HttpResponse) {
+                HttpResponse response = (HttpResponse) msg;
+                success = response.status().code() / 100 == 2;
+                reusable = keepAlive && HttpUtil.isKeepAlive(response);
+            }
+            if (msg instanceof LastHttpContent) {
+                if (tunneling) {
+                    tunneling = false;
+                    if (!success) {
+                        ctx.close();
+                        return;
+                    }
+                    // TLS with the intercepting proxy, HTTP inside
+                    ChannelPipeline p = ctx.pipeline();
+                    p.remove(HttpClientCodec.class);
+                    p.addBefore(ctx.name(), null, new HttpClientCodec());
+                    p.addFirst(worker.sslCtx.newHandler(ctx.alloc(), host, port));
+                    worker.ready(this);
+                    return;
+                }
+                long completedIntended = intended;
+                intended = 0;
+                worker.completed(this, completedIntended, success, reusable);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            long failedIntended = intended;
+            intended = 0;
+            worker.closed(this, failedIntended);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+
+    /**
+     * Runs a load with the URL, the rate, the connections and the seconds
+     * given, through the proxy port if given, for example:
+     *
+     * <pre>
+     * LoadGenerator http://localhost:9091/LICENSE.txt 2000 32 30 9090
+     * </pre>
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: LoadGenerator url [rate [connections [seconds [proxyPort]]]]");
+            return;
+        }
+        LoadGenerator generator = new LoadGenerator(args[0]);
+        if (args.length > 1) {
+            generator.rate(Integer.parseInt(args[1]));
+        }
+        if (args.length > 2) {
+            generator.connections(Integer.parseInt(args[2]));
+        }
+        if (args.length > 3) {
+            generator.duration(Integer.parseInt(args[3]), TimeUnit.SECONDS);
+        }
+        if (args.length > 4) {
+            generator.proxy("localhost", Integer.parseInt(args[4]));
+        }
+        System.out.println(generator.run());
+    }
+
+}
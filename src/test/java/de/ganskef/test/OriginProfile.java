@@ -0,0 +1,349 @@
+package de.ganskef.test;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * The traffic mix answered by the {@link OriginSimulator}, the sizes, the
+ * delays, the encoding, the connection handling and the failures. It's
+ * configured fluently or with properties, for example:
+ *
+ * <pre>
+ * size = choice(512:60, 16384:30, 1048576:10)
+ * think = exponential(5)
+ * latency = uniform(1, 3)
+ * chunked = 0.3
+ * keepAlive = true
+ * maxRequestsPerConnection = 100
+ * dripBytes = 0
+ * dripMillis = 0
+ * errorRate = 0.01
+ * resetRate = 0.001
+ * seed = 42
+ * </pre>
+ */
+public class OriginProfile {
+
+    /**
+     * A distribution of values drawn with the random of a request, written as
+     * a number, <code>uniform(min, max)</code>, <code>exponential(mean)</code>,
+     * <code>lognormal(median, sigma)</code> or
+     * <code>choice(value:weight, ...)</code>.
+     */
+    public static abstract class Distribution {
+
+        public abstract long sample(Random random);
+
+        public static Distribution constant(final long value) {
+            return new Distribution() {
+                @Override
+                public long sample(Random random) {
+                    return value;
+                }
+
+                @Override
+                public String toString() {
+                    return String.valueOf(value);
+                }
+            };
+        }
+
+        public static Distribution uniform(final long min, final long max) {
+            if (max < min) {
+                throw new IllegalArgumentException("uniform(" + min + ", " + max + ")");
+            }
+            return new Distribution() {
+                @Override
+                public long sample(Random random) {
+                    return min + (long) (random.nextDouble() * (max - min + 1));
+                }
+
+                @Override
+                public String toString() {
+                    return "uniform(" + min + ", " + max + ")";
+                }
+            };
+        }
+
+        public static Distribution exponential(final double mean) {
+            return new Distribution() {
+                @Override
+                public long sample(Random random) {
+                    return Math.round(-mean * Math.log(1 - random.nextDouble()));
+                }
+
+                @Override
+                public String toString() {
+                    return "exponential(" + mean + ")";
+                }
+            };
+        }
+
+        /**
+         * Returns the long tailed distribution typical for response sizes.
+         */
+        public static Distribution lognormal(final double median, final double sigma) {
+            final double mu = Math.log(median);
+            return new Distribution() {
+                @Override
+                public long sample(Random random) {
+                    return Math.round(Math.exp(mu + sigma * random.nextGaussian()));
+                }
+
+                @Override
+                public String toString() {
+                    return "lognormal(" + median + ", " + sigma + ")";
+                }
+            };
+        }
+
+        /**
+         * Returns the values with their relative weights, an empirical mix.
+         */
+        public static Distribution choice(final long[] values, double[] weights) {
+            if (values.length == 0 || values.length != weights.length) {
+                throw new IllegalArgumentException("choice needs a weight for each value");
+            }
+            final double[] cumulative = new double[weights.length];
+            double sum = 0;
+            for (int i = 0; i < weights.length; i++) {
+                sum += weights[i];
+                cumulative[i] = sum;
+            }
+            final double total = sum;
+            return new Distribution() {
+                @Override
+                public long sample(Random random) {
+                    double point = random.nextDouble() * total;
+                    for (int i = 0; i < cumulative.length - 1; i++) {
+                        if (point < cumulative[i]) {
+                            return values[i];
+                        }
+                    }
+                    return values[values.length - 1];
+                }
+
+                @Override
+                public String toString() {
+                    StringBuilder b = new StringBuilder("choice(");
+                    for (int i = 0; i < values.length; i++) {
+                        b.append(i == 0 ? "" : ", ").append(values[i]).append(':').append(cumulative[i]
+                                - (i == 0 ? 0 : cumulative[i - 1]));
+                    }
+                    return b.append(')').toString();
+                }
+            };
+        }
+
+        public static Distribution parse(String spec) {
+            String s = spec.trim();
+            int open = s.indexOf('(');
+            if (open == -1) {
+                return constant(Long.parseLong(s));
+            }
+            if (!s.endsWith(")")) {
+                throw new IllegalArgumentException("Invalid distribution: " + spec);
+            }
+            String name = s.substring(0, open).trim();
+            String[] args = s.substring(open + 1, s.length() - 1).split(",");
+            try {
+                if ("uniform".equals(name) && args.length == 2) {
+                    return uniform(Long.parseLong(args[0].trim()), Long.parseLong(args[1].trim()));
+                } else if ("exponential".equals(name) && args.length == 1) {
+                    return exponential(Double.parseDouble(args[0].trim()));
+                } else if ("lognormal".equals(name) && args.length == 2) {
+                    return lognormal(Double.parseDouble(args[0].trim()), Double.parseDouble(args[1].trim()));
+                } else if ("choice".equals(name)) {
+                    long[] values = new long[args.length];
+                    double[] weights = new double[args.length];
+                    for (int i = 0; i < args.length; i++) {
+                        String[] pair = args[i].split(":");
+                        values[i] = Long.parseLong(pair[0].trim());
+                        weights[i] = pair.length > 1 ? Double.parseDouble(pair[1].trim()) : 1;
+                    }
+                    return choice(values, weights);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid distribution: " + spec, e);
+            }
+            throw new IllegalArgumentException("Invalid distribution: " + spec);
+        }
+    }
+
+    private Distribution size = Distribution.constant(1024);
+
+    private Distribution think = Distribution.constant(0);
+
+    private Distribution latency = Distribution.constant(0);
+
+    private double chunked;
+
+    private boolean keepAlive = true;
+
+    private int maxRequestsPerConnection;
+
+    private int dripBytes;
+
+    private long dripMillis;
+
+    private double errorRate;
+
+    private double resetRate;
+
+    private long seed = 42;
+
+    /** Sets the body sizes in bytes. */
+    public OriginProfile size(Distribution size) {
+        this.size = size;
+        return this;
+    }
+
+    /** Sets the milliseconds the origin needs before it responds. */
+    public OriginProfile think(Distribution think) {
+        this.think = think;
+        return this;
+    }
+
+    /** Sets the milliseconds added for the network before the response. */
+    public OriginProfile latency(Distribution latency) {
+        this.latency = latency;
+        return this;
+    }
+
+    /** Sets the part of the responses chunked instead of with length. */
+    public OriginProfile chunked(double chunked) {
+        this.chunked = chunked;
+        return this;
+    }
+
+    /** Closes every connection after the response if false. */
+    public OriginProfile keepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+        return this;
+    }
+
+    /** Closes a kept alive connection after the requests, 0 for no limit. */
+    public OriginProfile maxRequestsPerConnection(int maxRequestsPerConnection) {
+        this.maxRequestsPerConnection = maxRequestsPerConnection;
+        return this;
+    }
+
+    /**
+     * Sends the bodies slowly in pieces of the bytes with a pause of the
+     * milliseconds, 0 bytes to send them at once.
+     */
+    public OriginProfile drip(int bytes, long millis) {
+        this.dripBytes = bytes;
+        this.dripMillis = millis;
+        return this;
+    }
+
+    /** Sets the part of the responses failing with 500. */
+    public OriginProfile errorRate(double errorRate) {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    /** Sets the part of the requests answered by closing the connection. */
+    public OriginProfile resetRate(double resetRate) {
+        this.resetRate = resetRate;
+        return this;
+    }
+
+    /** Sets the seed, the same seed draws the same values in every run. */
+    public OriginProfile seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public Distribution size() {
+        return size;
+    }
+
+    public Distribution think() {
+        return think;
+    }
+
+    public Distribution latency() {
+        return latency;
+    }
+
+    public double chunked() {
+        return chunked;
+    }
+
+    public boolean keepAlive() {
+        return keepAlive;
+    }
+
+    public int maxRequestsPerConnection() {
+        return maxRequestsPerConnection;
+    }
+
+    public int dripBytes() {
+        return dripBytes;
+    }
+
+    public long dripMillis() {
+        return dripMillis;
+    }
+
+    public double errorRate() {
+        return errorRate;
+    }
+
+    public double resetRate() {
+        return resetRate;
+    }
+
+    public long seed() {
+        return seed;
+    }
+
+    /**
+     * Returns a profile with the properties given, the defaults otherwise.
+     */
+    public static OriginProfile load(Properties p) {
+        OriginProfile profile = new OriginProfile();
+        if (p.containsKey("size")) {
+            profile.size(Distribution.parse(p.getProperty("size")));
+        }
+        if (p.containsKey("think")) {
+            profile.think(Distribution.parse(p.getProperty("think")));
+        }
+        if (p.containsKey("latency")) {
+            profile.latency(Distribution.parse(p.getProperty("latency")));
+        }
+        profile.chunked(Double.parseDouble(p.getProperty("chunked", "0")));
+        profile.keepAlive(Boolean.parseBoolean(p.getProperty("keepAlive", "true")));
+        profile.maxRequestsPerConnection(Integer.parseInt(p.getProperty("maxRequestsPerConnection", "0")));
+        profile.drip(Integer.parseInt(p.getProperty("dripBytes", "0")),
+                Long.parseLong(p.getProperty("dripMillis", "0")));
+        profile.errorRate(Double.parseDouble(p.getProperty("errorRate", "0")));
+        profile.resetRate(Double.parseDouble(p.getProperty("resetRate", "0")));
+        profile.seed(Long.parseLong(p.getProperty("seed", "42")));
+        return profile;
+    }
+
+    public static OriginProfile load(String fileName) throws IOException {
+        Properties p = new Properties();
+        InputStream in = new FileInputStream(fileName);
+        try {
+            p.load(in);
+        } finally {
+            in.close();
+        }
+        return load(p);
+    }
+
+    @Override
+    public String toString() {
+        return "size=" + size + " think=" + think + " latency=" + latency + " chunked=" + chunked + " keepAlive="
+                + keepAlive + " maxRequestsPerConnection=" + maxRequestsPerConnection + " drip=" + dripBytes + "/"
+                + dripMillis + "ms errorRate=" + errorRate + " resetRate=" + resetRate + " seed=" + seed;
+    }
+
+}
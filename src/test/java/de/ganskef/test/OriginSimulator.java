@@ -0,0 +1,233 @@
+package de.ganskef.test;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.ssl.SslContext;
+
+/**
+ * An origin answering with generated bodies as configured by an
+ * {@link OriginProfile}, to measure the proxy with the traffic mix of the
+ * real world without a network. It runs in the tests and the benchmarks or
+ * standalone for a longer time:
+ *
+ * <pre>
+ * OriginSimulator 8083 mix.properties
+ * </pre>
+ *
+ * The values are drawn with a random seeded with the profile seed and the
+ * number of the request, so the n-th request gets the same answer in every
+ * run. The query parameters <code>size</code> and <code>status</code> of a
+ * request override the drawn values, to answer a recorded request as it was.
+ */
+public class OriginSimulator extends Server {
+
+    private static final byte[] BODY = new byte[64 * 1024];
+
+    static {
+        byte[] alphabet = "abcdefghijklmnopqrstuvwxyz0123456789\n".getBytes();
+        for (int i = 0; i < BODY.length; i++) {
+            BODY[i] = alphabet[i % alphabet.length];
+        }
+    }
+
+    private final OriginProfile profile;
+
+    private final AtomicLong requests = new AtomicLong();
+
+    public OriginSimulator(int port, OriginProfile profile) {
+        super(port);
+        this.profile = profile;
+    }
+
+    public OriginProfile getProfile() {
+        return profile;
+    }
+
+    /** Returns the requests received so far. */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    @Override
+    protected ChannelHandler createInitializer(SslContext sslCtx) {
+        final SslContext ctx = sslCtx;
+        return new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel ch) {
+                if (ctx != null) {
+                    ch.pipeline().addLast(ctx.newHandler(ch.alloc()));
+                }
+                ch.pipeline().addLast(new HttpServerCodec(), new SimulatorHandler());
+            }
+        };
+    }
+
+    /**
+     * Answers the requests of a connection in order, pipelined requests wait.
+     */
+    private final class SimulatorHandler extends SimpleChannelInboundHandler<HttpObject> {
+
+        private final ArrayDeque<HttpRequest> pending = new ArrayDeque<HttpRequest>();
+
+        private HttpRequest request;
+
+        private boolean responding;
+
+        private int served;
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) {
+            if (msg instanceof HttpRequest) {
+                request = (HttpRequest) msg;
+            }
+            if (msg instanceof LastHttpContent && request != null) {
+                pending.add(request);
+                request = null;
+                if (!responding) {
+                    respondNext(ctx);
+                }
+            }
+        }
+
+        private void respondNext(final ChannelHandlerContext ctx) {
+            final HttpRequest next = pending.poll();
+            if (next == null) {
+                responding = false;
+                return;
+            }
+            responding = true;
+            long n = requests.getAndIncrement();
+            Random random = new Random(profile.seed() ^ (n * 0x9E3779B97F4A7C15L));
+            if (random.nextDouble() < profile.resetRate()) {
+                ctx.channel().config().setOption(ChannelOption.SO_LINGER, 0);
+                ctx.close();
+                return;
+            }
+            Map<String, List<String>> params = new QueryStringDecoder(next.uri()).parameters();
+            HttpResponseStatus status = random.nextDouble() < profile.errorRate()
+                    ? HttpResponseStatus.INTERNAL_SERVER_ERROR : HttpResponseStatus.OK;
+            if (params.containsKey("status")) {
+                status = HttpResponseStatus.valueOf(Integer.parseInt(params.get("status").get(0)));
+            }
+            long size = Math.max(0, profile.size().sample(random));
+            if (params.containsKey("size")) {
+                size = Long.parseLong(params.get("size").get(0));
+            }
+            if (status.code() == 204 || status.code() == 304) {
+                size = 0;
+            }
+            // the head of a GET without the body
+            final boolean headOnly = HttpMethod.HEAD.equals(next.method());
+            boolean chunked = random.nextDouble() < profile.chunked() && !headOnly;
+            long delay = Math.max(0, profile.think().sample(random)) + Math.max(0, profile.latency().sample(random));
+            served++;
+            final boolean close = !profile.keepAlive() || !HttpUtil.isKeepAlive(next)
+                    || profile.maxRequestsPerConnection() > 0 && served >= profile.maxRequestsPerConnection();
+
+            final HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, status);
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; charset=US-ASCII");
+            if (chunked) {
+                HttpUtil.setTransferEncodingChunked(response, true);
+            } else {
+                HttpUtil.setContentLength(response, size);
+            }
+            if (close) {
+                response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+            }
+            final long bodySize = size;
+            Runnable head = new Runnable() {
+                @Override
+                public void run() {
+                    ctx.write(response);
+                    writeBody(ctx, headOnly ? 0 : bodySize, close);
+                }
+            };
+            if (delay > 0) {
+                ctx.executor().schedule(head, delay, TimeUnit.MILLISECONDS);
+            } else {
+                head.run();
+            }
+        }
+
+        private void writeBody(final ChannelHandlerContext ctx, final long remaining, final boolean close) {
+            if (!ctx.channel().isActive()) {
+                return;
+            }
+            int drip = profile.dripBytes();
+            long left = remaining;
+            while (left > 0) {
+                int piece = (int) Math.min(left, drip > 0 ? Math.min(drip, BODY.length) : BODY.length);
+                ctx.write(new DefaultHttpContent(Unpooled.wrappedBuffer(BODY, 0, piece)));
+                left -= piece;
+                if (drip > 0 && left > 0) {
+                    ctx.flush();
+                    final long rest = left;
+                    ctx.executor().schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            writeBody(ctx, rest, close);
+                        }
+                    }, profile.dripMillis(), TimeUnit.MILLISECONDS);
+                    return;
+                }
+            }
+            ChannelFuture f = ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+            if (close) {
+                f.addListener(ChannelFutureListener.CLOSE);
+            } else {
+                f.addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) {
+                        respondNext(ctx);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+
+    /**
+     * Runs the simulator at the port, with the profile properties file if
+     * given.
+     */
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8083;
+        OriginProfile profile = args.length > 1 ? OriginProfile.load(args[1]) : new OriginProfile();
+        new OriginSimulator(port, profile).start();
+        System.out.println("Simulating origin at port " + port + " with " + profile);
+        waitUntilInterupted();
+    }
+
+}
@@ -0,0 +1,152 @@
+package de.ganskef.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.junit.rules.Timeout;
+
+import de.ganskef.test.OriginProfile.Distribution;
+
+public class OriginSimulatorTest {
+
+    @Rule
+    public final TestRule timeout = new Timeout(30, TimeUnit.SECONDS);
+
+    private OriginSimulator sut;
+
+    @After
+    public void after() {
+        if (sut != null) {
+            sut.stop();
+        }
+    }
+
+    private static HttpURLConnection get(String uri) throws IOException {
+        return (HttpURLConnection) new URL("http://localhost:9095" + uri).openConnection();
+    }
+
+    private static long read(HttpURLConnection connection) throws IOException {
+        InputStream in = connection.getResponseCode() < 400 ? connection.getInputStream()
+                : connection.getErrorStream();
+        long count = 0;
+        byte[] buffer = new byte[8192];
+        for (int n; (n = in.read(buffer)) != -1;) {
+            count += n;
+        }
+        in.close();
+        return count;
+    }
+
+    private List<Long> sizes(long seed) throws Exception {
+        sut = new OriginSimulator(9095, new OriginProfile().seed(seed).size(Distribution.uniform(0, 100000)));
+        sut.start();
+        List<Long> sizes = new ArrayList<Long>();
+        for (int i = 0; i < 5; i++) {
+            sizes.add(read(get("/")));
+        }
+        sut.stop();
+        return sizes;
+    }
+
+    @Test
+    public void testDeterministicSizes() throws Exception {
+        List<Long> first = sizes(7);
+        assertEquals(first, sizes(7));
+        assertTrue(first.toString(), !first.equals(sizes(8)));
+    }
+
+    @Test
+    public void testFixedLengthAndOverriddenSize() throws Exception {
+        sut = new OriginSimulator(9095, new OriginProfile());
+        sut.start();
+        HttpURLConnection connection = get("/any?size=100000");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("100000", connection.getHeaderField("content-length"));
+        assertEquals(100000, read(connection));
+        assertEquals(1, sut.getRequests());
+    }
+
+    @Test
+    public void testChunked() throws Exception {
+        sut = new OriginSimulator(9095, new OriginProfile().chunked(1));
+        sut.start();
+        HttpURLConnection connection = get("/");
+        assertEquals("chunked", connection.getHeaderField("transfer-encoding"));
+        assertNull(connection.getHeaderField("content-length"));
+        assertEquals(1024, read(connection));
+    }
+
+    @Test
+    public void testErrorInjectionAndStatusOverride() throws Exception {
+        sut = new OriginSimulator(9095, new OriginProfile().errorRate(1));
+        sut.start();
+        assertEquals(500, get("/").getResponseCode());
+        assertEquals(404, get("/?status=404").getResponseCode());
+    }
+
+    @Test
+    public void testSlowDripAndThinkTime() throws Exception {
+        sut = new OriginSimulator(9095,
+                new OriginProfile().think(Distribution.constant(100)).drip(100, 50).keepAlive(false));
+        sut.start();
+        long start = System.nanoTime();
+        HttpURLConnection connection = get("/?size=500");
+        assertEquals(500, read(connection));
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        // 100 ms thinking and 4 pauses between 5 pieces
+        assertTrue(millis + " ms", millis >= 300);
+        assertEquals("close", connection.getHeaderField("connection"));
+    }
+
+    @Test
+    public void testReset() throws Exception {
+        sut = new OriginSimulator(9095, new OriginProfile().resetRate(1));
+        sut.start();
+        try {
+            get("/").getResponseCode();
+            fail("closed without response");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testProfileProperties() {
+        Properties p = new Properties();
+        p.setProperty("size", "choice(512:60, 16384:30, 1048576:10)");
+        p.setProperty("think", "exponential(5)");
+        p.setProperty("latency", "lognormal(2, 0.5)");
+        p.setProperty("chunked", "0.3");
+        p.setProperty("maxRequestsPerConnection", "100");
+        OriginProfile profile = OriginProfile.load(p);
+        assertEquals(0.3, profile.chunked(), 0);
+        assertEquals(100, profile.maxRequestsPerConnection());
+        Random random = new Random(1);
+        for (int i = 0; i < 100; i++) {
+            long size = profile.size().sample(random);
+            assertTrue(String.valueOf(size), size == 512 || size == 16384 || size == 1048576);
+        }
+        assertEquals("uniform(1, 3)", Distribution.parse(" uniform( 1 , 3 ) ").toString());
+        try {
+            Distribution.parse("normal(1)");
+            fail("unknown distribution");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+}
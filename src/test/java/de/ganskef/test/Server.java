@@ -2,6 +2,7 @@ package de.ganskef.test;
 
 import de.ganskef.shortcircuit.proxy.ProxyUtils;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.logging.LoggingHandler;
@@ -31,11 +32,15 @@ public class Server {
         b.group(bossGroup, workerGroup);
         b.channel(NioServerSocketChannel.class);
         b.handler(new LoggingHandler(getClass()));
-        b.childHandler(new ServerInitializer(sslCtx));
+        b.childHandler(createInitializer(sslCtx));
         b.bind(getPort()).sync();
         return this;
     }
 
+    protected ChannelHandler createInitializer(SslContext sslCtx) {
+        return new ServerInitializer(sslCtx);
+    }
+
     public void stop() {
         bossGroup.shutdownGracefully();
         workerGroup.shutdownGracefully();
@@ -0,0 +1,176 @@
+package de.ganskef.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import de.ganskef.shortcircuit.proxy.ProxyUtils;
+import de.ganskef.shortcircuit.proxy.TrafficJournal;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+
+/**
+ * Replays the requests of a {@link TrafficJournal} with the
+ * {@link LoadGenerator}, at the times recorded or faster or slower by a
+ * factor. The requests go to the given origin, an {@link OriginSimulator}
+ * normally, asking for the size and the status recorded, so the proxy gets
+ * the traffic of production without a network:
+ *
+ * <pre>
+ * OriginSimulator origin = new OriginSimulator(9091, new OriginProfile());
+ * origin.start();
+ * LoadGenerator.Report report = new LoadGenerator(origin.getBaseUrl()).proxy("localhost", 9092)
+ *         .workload(new TrafficReplayer(journal, origin.getBaseUrl()).speed(2)).warmup(0, SECONDS).run();
+ * </pre>
+ *
+ * A request keeps its method, path and headers, and gets a body of the size
+ * recorded, the start recorded if any followed by zeros. The tunnels of
+ * CONNECT requests are skipped, their content isn't known. The records are
+ * appended when complete, a request recorded behind a later one is sent
+ * with it and counted late.
+ */
+public class TrafficReplayer implements LoadGenerator.WorkloadSource {
+
+    private final File journal;
+
+    private final URI origin;
+
+    private double speed = 1;
+
+    public TrafficReplayer(File journal, String originBaseUrl) {
+        this.journal = journal;
+        this.origin = URI.create(originBaseUrl);
+    }
+
+    /**
+     * Replays faster by the factor, 2 for twice the rate recorded.
+     */
+    public TrafficReplayer speed(double speed) {
+        this.speed = speed;
+        return this;
+    }
+
+    @Override
+    public LoadGenerator.Workload open(final int share, final int shares) throws IOException {
+        final long first = firstOffset();
+        final TrafficJournal.Reader reader = TrafficJournal.read(journal);
+        final boolean any = reader.next();
+        return new LoadGenerator.Workload() {
+
+            private long index;
+
+            private boolean pending = any;
+
+            @Override
+            public LoadGenerator.Scheduled next() {
+                try {
+                    while (pending) {
+                        boolean mine = index++ % shares == share;
+                        if (mine && !reader.head().startsWith("CONNECT ")) {
+                            LoadGenerator.Scheduled result = new LoadGenerator.Scheduled(
+                                    (long) ((reader.offsetNanos() - first) / speed), request(reader));
+                            pending = reader.next();
+                            return result;
+                        }
+                        pending = reader.next();
+                    }
+                    reader.close();
+                    return null;
+                } catch (IOException e) {
+                    throw new IllegalStateException("Journal not readable: " + journal, e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the time of the first request, the records are appended when
+     * complete, so not exactly in the order of their start.
+     */
+    private long firstOffset() throws IOException {
+        TrafficJournal.Reader reader = TrafficJournal.read(journal);
+        try {
+            long result = Long.MAX_VALUE;
+            while (reader.next()) {
+                result = Math.min(result, reader.offsetNanos());
+            }
+            return result == Long.MAX_VALUE ? 0 : result;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private FullHttpRequest request(TrafficJournal.Reader record) {
+        String[] lines = record.head().split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        String path = ProxyUtils.stripHost(requestLine[1]);
+        StringBuilder uri = new StringBuilder(origin.toString());
+        uri.append(path);
+        uri.append(path.indexOf('?') == -1 ? '?' : '&');
+        uri.append("size=").append(record.responseBytes());
+        if (record.status() != 0) {
+            uri.append("&status=").append(record.status());
+        }
+        byte[] body = Arrays.copyOf(record.body(), (int) Math.min(Integer.MAX_VALUE, record.requestBytes()));
+        FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.valueOf(requestLine[2]),
+                HttpMethod.valueOf(requestLine[0]), uri.toString(), Unpooled.wrappedBuffer(body));
+        HttpHeaders headers = request.headers();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                headers.add(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+            }
+        }
+        // the framing and the connection are the generator's
+        headers.remove(HttpHeaderNames.TRANSFER_ENCODING);
+        headers.remove(HttpHeaderNames.CONNECTION);
+        headers.remove("Proxy-Connection");
+        headers.remove("Keep-Alive");
+        headers.remove(HttpHeaderNames.UPGRADE);
+        headers.set(HttpHeaderNames.HOST, origin.getAuthority());
+        if (body.length > 0 || headers.contains(HttpHeaderNames.CONTENT_LENGTH)) {
+            HttpUtil.setContentLength(request, body.length);
+        }
+        return request;
+    }
+
+    /**
+     * Replays a journal through the proxy at the port given, with a simulated
+     * origin, at the speed given or as recorded, for example:
+     *
+     * <pre>
+     * TrafficReplayer traffic.journal 9090 2
+     * </pre>
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: TrafficReplayer journal proxyPort [speed [connections [originPort]]]");
+            return;
+        }
+        TrafficReplayer replayer = new TrafficReplayer(new File(args[0]),
+                "http://localhost:" + (args.length > 4 ? args[4] : "8083"));
+        if (args.length > 2) {
+            replayer.speed(Double.parseDouble(args[2]));
+        }
+        OriginSimulator origin = new OriginSimulator(replayer.origin.getPort(), new OriginProfile());
+        origin.start();
+        try {
+            LoadGenerator.Report report = new LoadGenerator(replayer.origin.toString())
+                    .proxy("localhost", Integer.parseInt(args[1])) //
+                    .connections(args.length > 3 ? Integer.parseInt(args[3]) : 64) //
+                    .warmup(0, TimeUnit.SECONDS).workload(replayer).run();
+            System.out.println(report);
+        } finally {
+            origin.stop();
+        }
+    }
+
+}